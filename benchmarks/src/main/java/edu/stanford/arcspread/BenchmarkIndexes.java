@@ -0,0 +1,55 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * Synthetic indexes for the benchmarks, made by SyntheticIndexGenerator
+ * and kept in INDEX_DIR_PROPERTY's directory (the temp directory by
+ * default), so that only the first trial of a given shape pays for
+ * generating it. A file's name spells out its parameters; delete it
+ * after changing the generator.
+ *
+ * @author Paepcke
+ *
+ */
+final class BenchmarkIndexes {
+
+	static final String INDEX_DIR_PROPERTY = "wbindex.benchmark.dir";
+
+	private BenchmarkIndexes() {
+	}
+
+	/**
+	 * @return the generator that makes, or made, the index of the given shape.
+	 */
+	static SyntheticIndexGenerator generatorFor(String layout, long numURLs, int capturesPerURL) {
+		SyntheticIndexGenerator generator = new SyntheticIndexGenerator(numURLs, capturesPerURL);
+		generator.setLayout(layout);
+		generator.verbose = 0;
+		return generator;
+	}
+
+	/**
+	 * @return path of the index of the given shape, generated if need be.
+	 */
+	static String indexFor(SyntheticIndexGenerator generator) throws SQLiteException, DataFormatException {
+		File dir = new File(System.getProperty(INDEX_DIR_PROPERTY, System.getProperty("java.io.tmpdir")));
+		File indexFile = new File(dir, String.format("wbbench-%s-%d-urls-%d-captures-%d-crawls-seed-%d.db",
+				generator.getLayout(), generator.getNumURLs(), generator.getCapturesPerURL(),
+				generator.getNumCrawls(), generator.getSeed()));
+		if (indexFile.exists())
+			return indexFile.getPath();
+		// Generate under another name, so an interrupted run leaves nothing to reuse:
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		tempFile.delete();
+		System.out.println("Generating benchmark index " + indexFile + "...");
+		generator.generate(tempFile.getPath());
+		if (!tempFile.renameTo(indexFile))
+			throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN, "Cannot rename " + tempFile + " to " + indexFile);
+		return indexFile.getPath();
+	}
+}
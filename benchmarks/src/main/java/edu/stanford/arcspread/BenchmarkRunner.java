@@ -0,0 +1,45 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, and
+ * always adds JMH's GC profiler, so that every result comes with the
+ * bytes allocated per operation (gc.alloc.rate.norm) as well as the
+ * time. The forked JVMs are pointed at the sqlite4java native library,
+ * by default in target/lib, where the build puts it, and at the
+ * directory of generated indexes (see BenchmarkIndexes).
+ *
+ * Usage: java -jar target/benchmarks.jar [JMH options] [benchmark regexp ...]
+ * e.g. java -jar target/benchmarks.jar -p layout=packed -p capturesPerURL=10 getClosestURLCrawl
+ *
+ * @author Paepcke
+ *
+ */
+public class BenchmarkRunner {
+
+	static final String LIBRARY_PATH_PROPERTY = "sqlite4java.library.path";
+	static final String DEFAULT_LIBRARY_PATH = "target" + File.separator + "lib";
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		String libraryPath = new File(System.getProperty(LIBRARY_PATH_PROPERTY, DEFAULT_LIBRARY_PATH)).getAbsolutePath();
+		String indexDir = new File(System.getProperty(BenchmarkIndexes.INDEX_DIR_PROPERTY,
+				System.getProperty("java.io.tmpdir"))).getAbsolutePath();
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.jvmArgsAppend("-D" + LIBRARY_PATH_PROPERTY + "=" + libraryPath,
+							   "-D" + BenchmarkIndexes.INDEX_DIR_PROPERTY + "=" + indexDir)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,99 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * The date handling on the lookup path, without the database: parsing
+ * a datesCrawled chain of datesPerChain dates, into Calendars as
+ * getAllURLCrawlDates() does and into epoch seconds as the lookups do,
+ * and formatting a Calendar with calendarToString(). The chains and
+ * Calendars are drawn at random once per trial with a fixed seed.
+ *
+ * @author Paepcke
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DateHandlingBenchmark {
+
+	/* Power of 2 */
+	static final int NUM_PROBES = 1024;
+
+	@Param({ "1", "10", "100" })
+	public int datesPerChain;
+
+	// parseWBIndexDateChain() is an instance method; any index will do:
+	private WBIndex index;
+	private final String[] dateChains = new String[NUM_PROBES];
+	private final GregorianCalendar[] calendars = new GregorianCalendar[NUM_PROBES];
+	private int probe = 0;
+
+	@Setup(Level.Trial)
+	public void makeDates() throws SQLiteException, DataFormatException {
+		SyntheticIndexGenerator generator = BenchmarkIndexes.generatorFor(SyntheticIndexGenerator.LAYOUT_TEXT, 1, 1);
+		index = new WBIndex(BenchmarkIndexes.indexFor(generator), true);
+		index.verbose = 0;
+		Random random = new Random(1);
+		long firstTime = SyntheticIndexGenerator.crawlStartOf(0);
+		long span = SyntheticIndexGenerator.crawlEndOf(generator.getNumCrawls() - 1) - firstTime;
+		StringBuilder chain = new StringBuilder();
+		for (int i = 0; i < NUM_PROBES; i++) {
+			chain.setLength(0);
+			for (int d = 0; d < datesPerChain; d++) {
+				if (d > 0)
+					chain.append(';');
+				WBDateTime.appendDateTime(firstTime + (long) (random.nextDouble() * span), chain);
+			}
+			dateChains[i] = chain.toString();
+			calendars[i] = WBDateTime.toCalendar(firstTime + (long) (random.nextDouble() * span));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void closeIndex() {
+		index.close();
+	}
+
+	private int nextProbe() {
+		return probe++ & (NUM_PROBES - 1);
+	}
+
+	@Benchmark
+	public ArrayList<GregorianCalendar> parseWBIndexDateChain() {
+		return index.parseWBIndexDateChain(dateChains[nextProbe()]);
+	}
+
+	@Benchmark
+	public long[] parseWBIndexTimeChain() {
+		return WBIndex.parseWBIndexTimeChain(dateChains[nextProbe()]);
+	}
+
+	@Benchmark
+	public String calendarToString() {
+		return WBIndex.calendarToString(calendars[nextProbe()]);
+	}
+}
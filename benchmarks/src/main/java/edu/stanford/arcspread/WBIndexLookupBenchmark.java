@@ -0,0 +1,114 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almworks.sqlite4java.SQLiteException;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+import edu.stanford.arcspread.WBIndex.ResourceSpec;
+
+/**
+ * Lookups through WBIndex against a synthetic index (see
+ * BenchmarkIndexes), for each capture layout and number of captures
+ * per URL. Each invocation takes the next of NUM_PROBES URIs and
+ * reference times, drawn at random once per trial with a fixed seed,
+ * so runs are comparable. The miss benchmark asks for URIs that the
+ * index does not hold.
+ *
+ * @author Paepcke
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WBIndexLookupBenchmark {
+
+	/* Power of 2 */
+	static final int NUM_PROBES = 4096;
+
+	@Param({ SyntheticIndexGenerator.LAYOUT_TEXT, SyntheticIndexGenerator.LAYOUT_PACKED,
+			 SyntheticIndexGenerator.LAYOUT_NORMALIZED })
+	public String layout;
+
+	@Param({ "100000" })
+	public long numURLs;
+
+	@Param({ "1", "10", "100" })
+	public int capturesPerURL;
+
+	private WBIndex index;
+	private final String[] hitURIs = new String[NUM_PROBES];
+	private final String[] missURIs = new String[NUM_PROBES];
+	private final long[] referenceTimes = new long[NUM_PROBES];
+	private final String[] crawlShortNames = new String[NUM_PROBES];
+	private int probe = 0;
+
+	@Setup(Level.Trial)
+	public void openIndex() throws SQLiteException, DataFormatException {
+		SyntheticIndexGenerator generator = BenchmarkIndexes.generatorFor(layout, numURLs, capturesPerURL);
+		index = new WBIndex(BenchmarkIndexes.indexFor(generator), true);
+		index.verbose = 0;
+		Random random = new Random(1);
+		int numCrawls = generator.getNumCrawls();
+		long firstTime = SyntheticIndexGenerator.crawlStartOf(0);
+		long lastTime = SyntheticIndexGenerator.crawlEndOf(numCrawls - 1);
+		for (int i = 0; i < NUM_PROBES; i++) {
+			hitURIs[i] = generator.urlOf((long) (random.nextDouble() * numURLs));
+			missURIs[i] = generator.urlOf(numURLs + random.nextInt(Integer.MAX_VALUE));
+			referenceTimes[i] = firstTime + (long) (random.nextDouble() * (lastTime - firstTime));
+			crawlShortNames[i] = Integer.toString(random.nextInt(numCrawls));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void closeIndex() {
+		index.close();
+	}
+
+	private int nextProbe() {
+		return probe++ & (NUM_PROBES - 1);
+	}
+
+	@Benchmark
+	public ResourceSpec getClosestURLCrawl() throws SQLiteException, DataFormatException {
+		int i = nextProbe();
+		return index.getClosestURLCrawl(hitURIs[i], referenceTimes[i]);
+	}
+
+	@Benchmark
+	public ResourceSpec getClosestURLCrawlMiss() throws SQLiteException, DataFormatException {
+		int i = nextProbe();
+		return index.getClosestURLCrawl(missURIs[i], referenceTimes[i]);
+	}
+
+	@Benchmark
+	public ArrayList<GregorianCalendar> getAllURLCrawlDates() throws SQLiteException {
+		return index.getAllURLCrawlDates(hitURIs[nextProbe()]);
+	}
+
+	@Benchmark
+	public CrawlSpec getCrawlNameFromShortName() throws SQLiteException, DataFormatException {
+		return index.getCrawlNameFromShortName(crawlShortNames[nextProbe()]);
+	}
+}
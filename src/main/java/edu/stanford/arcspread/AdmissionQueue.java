@@ -0,0 +1,151 @@
+package edu.stanford.arcspread;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded queue of accepted connections that wait for a worker of the
+ * default connection engine; see HTTPCommandDispatcher.SocketListener.
+ *
+ * With fair queueing, each client address has a queue of its own, and
+ * poll() takes from the client queues in turn. A crawler that opens a
+ * hundred connections then waits behind one request of every other
+ * client, rather than the other clients waiting behind the crawler.
+ * When the queue is full, the newest connection of the client with the
+ * most queued connections is the one to be shed. Without fair queueing,
+ * connections are served first come, first served, and a full queue
+ * sheds the connection that arrives.
+ *
+ * Not thread safe; the SocketListener guards it with its worker pool.
+ *
+ * @author Paepcke
+ *
+ */
+final class AdmissionQueue {
+
+	/**
+	 * One waiting connection.
+	 */
+	static final class Entry {
+		final Socket socket;
+		// System.nanoTime() when the connection was accepted:
+		final long acceptedAt;
+
+		Entry(Socket theSocket, long theAcceptedAt) {
+			socket = theSocket;
+			acceptedAt = theAcceptedAt;
+		}
+	}
+
+	private final int capacity;
+	private final boolean fair;
+	// Queue of each client address, in turn order; a single null key if not fair:
+	private final LinkedHashMap<InetAddress, ArrayDeque<Entry>> clients =
+		new LinkedHashMap<InetAddress, ArrayDeque<Entry>>();
+	private int size = 0;
+
+	/**
+	 * @param theCapacity max # of waiting connections.
+	 * @param isFair true to take turns among client addresses.
+	 */
+	AdmissionQueue(int theCapacity, boolean isFair) {
+		if (theCapacity < 1)
+			throw new IllegalArgumentException("Admission queue needs room for one connection at least; was " + theCapacity);
+		capacity = theCapacity;
+		fair = isFair;
+	}
+
+	/**
+	 * Queue a connection.
+	 * @return the connection that must be shed because the queue is
+	 * full: the given one, or one queued before; null if none.
+	 */
+	Entry add(Socket socket, long acceptedAt) {
+		Entry entry = new Entry(socket, acceptedAt);
+		InetAddress client = fair ? socket.getInetAddress() : null;
+		ArrayDeque<Entry> queue = clients.get(client);
+		Entry shed = null;
+		if (size >= capacity) {
+			ArrayDeque<Entry> longest = longestQueue();
+			if (longest == null || longest == queue || (queue != null && queue.size() >= longest.size()))
+				return entry;
+			shed = longest.pollLast();
+			size--;
+			if (longest.isEmpty())
+				clients.remove(fair ? shed.socket.getInetAddress() : null);
+		}
+		if (queue == null) {
+			queue = new ArrayDeque<Entry>();
+			clients.put(client, queue);
+		}
+		queue.addLast(entry);
+		size++;
+		return shed;
+	}
+
+	/**
+	 * @return the next connection to serve; null if none waits.
+	 */
+	Entry poll() {
+		Iterator<Map.Entry<InetAddress, ArrayDeque<Entry>>> turns = clients.entrySet().iterator();
+		while (turns.hasNext()) {
+			Map.Entry<InetAddress, ArrayDeque<Entry>> turn = turns.next();
+			ArrayDeque<Entry> queue = turn.getValue();
+			Entry entry = queue.pollFirst();
+			turns.remove();
+			if (entry == null)
+				continue;
+			size--;
+			// The client's next connection waits for everybody else's turn:
+			if (!queue.isEmpty())
+				clients.put(turn.getKey(), queue);
+			return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the connections that were accepted before the given time.
+	 * @param acceptedBefore System.nanoTime() bound.
+	 * @return the removed connections; empty if none.
+	 */
+	List<Entry> removeExpired(long acceptedBefore) {
+		List<Entry> expired = new ArrayList<Entry>(0);
+		Iterator<ArrayDeque<Entry>> queues = clients.values().iterator();
+		while (queues.hasNext()) {
+			ArrayDeque<Entry> queue = queues.next();
+			while (!queue.isEmpty() && queue.peekFirst().acceptedAt - acceptedBefore < 0) {
+				expired.add(queue.pollFirst());
+				size--;
+			}
+			if (queue.isEmpty())
+				queues.remove();
+		}
+		return expired;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return # of clients with waiting connections.
+	 */
+	int numClients() {
+		return clients.size();
+	}
+
+	private ArrayDeque<Entry> longestQueue() {
+		ArrayDeque<Entry> longest = null;
+		for (ArrayDeque<Entry> queue : clients.values())
+			if (longest == null || queue.size() > longest.size())
+				longest = queue;
+		return longest;
+	}
+}
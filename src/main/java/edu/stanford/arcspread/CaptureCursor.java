@@ -0,0 +1,159 @@
+package edu.stanford.arcspread;
+
+/**
+ * Forward-only cursor over the captures of one URI, in ascending
+ * time order, optionally restricted to a time range. Returned by
+ * WBIndex.getCaptures(). Reading a capture creates no objects, so
+ * callers such as the TimeMap resource can stream any number of
+ * captures in constant memory beyond the URI's index row itself.
+ *
+ * Typical use:
+ *
+ *   CaptureCursor cursor = index.getCaptures(uri, from, until);
+ *   try {
+ *       while (cursor.next())
+ *           emit(cursor.getTime(), cursor.getCrawlShortName());
+ *   } finally {
+ *       cursor.close();
+ *   }
+ *
+ * Like the WBIndex it came from, a cursor must only be used on the
+ * index's thread.
+ *
+ * @author Paepcke
+ *
+ */
+public class CaptureCursor {
+
+	private final String uri;
+	// Packed captures of the URI; see PackedCaptures. Null if the
+	// captures are held in the arrays below instead:
+	private final byte[] timesBlob;
+	private final byte[] crawlIDsBlob;
+	// Captures of a text-layout row, sorted by time; null if packed:
+	private final long[] times;
+	private final int[] crawlIDs;
+	// Range of capture indexes within [from, until]:
+	private final int rangeStart;
+	private final int rangeEnd;
+	private int pos;
+
+	CaptureCursor(String theURI, byte[] theTimesBlob, byte[] theCrawlIDsBlob, long from, long until) {
+		uri = theURI;
+		timesBlob = theTimesBlob;
+		crawlIDsBlob = theCrawlIDsBlob;
+		times = null;
+		crawlIDs = null;
+		rangeStart = PackedCaptures.lowerBound(timesBlob, from);
+		rangeEnd = (until == Long.MAX_VALUE) ? 
+				PackedCaptures.numCaptures(timesBlob) : 
+				PackedCaptures.lowerBound(timesBlob, until + 1);
+		pos = rangeStart - 1;
+	}
+
+	/**
+	 * Cursor over captures parsed from a text-layout row, which need not
+	 * be packed into blobs first.
+	 * @param theTimes epoch seconds of each capture, sorted ascending.
+	 * @param theCrawlIDs crawl short-name of each capture, parallel to theTimes.
+	 */
+	CaptureCursor(String theURI, long[] theTimes, int[] theCrawlIDs, long from, long until) {
+		uri = theURI;
+		timesBlob = null;
+		crawlIDsBlob = null;
+		times = theTimes;
+		crawlIDs = theCrawlIDs;
+		rangeStart = PackedCaptures.lowerBound(times, from);
+		rangeEnd = (until == Long.MAX_VALUE) ? times.length : PackedCaptures.lowerBound(times, until + 1);
+		pos = rangeStart - 1;
+	}
+
+	/**
+	 * Advance to the next capture.
+	 * @return false if there are no more captures in the range.
+	 */
+	public boolean next() {
+		if (pos >= rangeEnd)
+			return false;
+		pos++;
+		return pos < rangeEnd;
+	}
+
+	public String getURI() {
+		return uri;
+	}
+
+	/**
+	 * @return epoch seconds of the current capture.
+	 */
+	public long getTime() {
+		return timeAt(pos);
+	}
+
+	/**
+	 * @return integer short-name of the current capture's crawl.
+	 */
+	public int getCrawlShortName() {
+		return (crawlIDs != null) ? crawlIDs[pos] : PackedCaptures.crawlIDAt(crawlIDsBlob, pos);
+	}
+
+	/**
+	 * @return true if the current capture is the URI's earliest, regardless of range.
+	 */
+	public boolean isFirst() {
+		return pos == 0;
+	}
+
+	/**
+	 * @return true if the current capture is the URI's latest, regardless of range.
+	 */
+	public boolean isLast() {
+		return pos == getNumTotal() - 1;
+	}
+
+	/**
+	 * @return number of captures in the requested range.
+	 */
+	public int getNumInRange() {
+		return rangeEnd - rangeStart;
+	}
+
+	/**
+	 * @return number of captures not yet visited, counting the current one.
+	 */
+	public int getNumRemaining() {
+		return rangeEnd - Math.max(pos, rangeStart);
+	}
+
+	/**
+	 * @return number of captures of the URI, regardless of range.
+	 */
+	public int getNumTotal() {
+		return (times != null) ? times.length : PackedCaptures.numCaptures(timesBlob);
+	}
+
+	/**
+	 * @return epoch seconds of the URI's earliest capture, regardless of range.
+	 */
+	public long getFirstTime() {
+		return (getNumTotal() == 0) ? WBDateTime.NO_TIME : timeAt(0);
+	}
+
+	/**
+	 * @return epoch seconds of the URI's latest capture, regardless of range.
+	 */
+	public long getLastTime() {
+		return (getNumTotal() == 0) ? WBDateTime.NO_TIME : timeAt(getNumTotal() - 1);
+	}
+
+	private long timeAt(int index) {
+		return (times != null) ? times[index] : PackedCaptures.timeAt(timesBlob, index);
+	}
+
+	/**
+	 * Release the cursor's resources. Safe to call more than once.
+	 */
+	public void close() {
+		pos = rangeEnd;
+	}
+}
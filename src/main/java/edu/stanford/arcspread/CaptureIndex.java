@@ -0,0 +1,67 @@
+package edu.stanford.arcspread;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteException;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+import edu.stanford.arcspread.WBIndex.ResourceSpec;
+
+/**
+ * The lookups that the TimeGate and TimeMap resources make against a
+ * WebBase index. Implemented by WBIndex, over the SQLite index, and by
+ * MappedURLIndex, over an index compiled into a memory-mapped file by
+ * MappedIndexCompiler. WBIndexPool.getIndex() hands out whichever
+ * matches the index file.
+ *
+ * Times are epoch seconds (UTC). The SQLiteException in the signatures
+ * is what callers already handle for busy or broken indexes; backends
+ * that do not use SQLite report those conditions the same way.
+ *
+ * @author Paepcke
+ *
+ */
+public interface CaptureIndex {
+
+	/**
+	 * Find the capture of the given URI that is closest in time to the
+	 * given reference time.
+	 * @return closest capture, or null if the URI is not in the index.
+	 */
+	public ResourceSpec getClosestURLCrawl(String uri, long referenceTime) throws SQLiteException, DataFormatException;
+
+	/**
+	 * Resolve a set of URIs against one reference time.
+	 * @return one result per input URI, in input order. URIs that are not
+	 * in the index get a result whose isFound() is false.
+	 */
+	public List<ResourceSpec> getClosestURLCrawls(Collection<String> uris, long referenceTime)
+			throws SQLiteException, DataFormatException;
+
+	/**
+	 * Open a cursor over the captures of the given URI, in ascending
+	 * time order, restricted to [from, until].
+	 * @return cursor, or null if the URI is not in the index.
+	 */
+	public CaptureCursor getCaptures(String uri, long from, long until) throws SQLiteException, DataFormatException;
+
+	/**
+	 * @return capture times of the given URI; null if the URI is not
+	 * in the index.
+	 */
+	public long[] getAllURLCrawlTimes(String uri) throws SQLiteException;
+
+	/**
+	 * @param shortName integer crawl short-name.
+	 * @return the crawl, or null if the index has no such crawl.
+	 */
+	public CrawlSpec getCrawlSpec(int shortName) throws SQLiteException, DataFormatException;
+
+	public String getIndexPath();
+
+	public boolean isOpen();
+
+	public void close();
+}
@@ -0,0 +1,204 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Converts an existing WebBase index to the normalized capture layout:
+ *
+ *   URLDictionary(urlID INTEGER PRIMARY KEY, url TEXT UNIQUE [, surt TEXT])
+ *   Captures(urlID INTEGER, crawlID INTEGER, captureTime INTEGER)
+ *
+ * with one Captures row per capture, captureTime in epoch seconds, and
+ * crawlID the crawl's short-name. The unique index Captures_urlID_time
+ * on (urlID, captureTime, crawlID) serves closest-capture lookups as a
+ * range probe, and makes adding a crawl an append: CrawlIngester then
+ * inserts Captures rows, rather than rewriting the ever longer
+ * datesCrawled and crawlIDs strings of every URL the crawl touched.
+ *
+ * The URLs table is read, and left in place, so older readers keep
+ * working until the next crawl is added. WBIndex switches to the new
+ * tables once the Captures index exists; it is built last, so that an
+ * interrupted migration leaves the index in its old layout. Servers
+ * see the new layout when they reopen the index.
+ *
+ * The migration is idempotent: URLs already in URLDictionary are
+ * skipped, so an interrupted run picks up where it stopped.
+ *
+ * Usage: CapturesMigrator [indexPath]
+ *
+ * @author Paepcke
+ *
+ */
+public class CapturesMigrator {
+
+	/* # of URL rows converted per transaction */
+	static int BATCH_SIZE = 10000;
+
+	static final String CREATE_URL_DICTIONARY =
+			"CREATE TABLE IF NOT EXISTS " + WBIndex.URL_DICTIONARY_TABLE +
+			"\n(urlID INTEGER PRIMARY KEY,\nurl TEXT(4096) NOT NULL UNIQUE%s)";
+	static final String CREATE_CAPTURES =
+			"CREATE TABLE IF NOT EXISTS " + WBIndex.CAPTURES_TABLE +
+			"\n(urlID INTEGER NOT NULL,\ncrawlID INTEGER NOT NULL,\ncaptureTime INTEGER NOT NULL)";
+	static final String CREATE_CAPTURES_INDEX =
+			"CREATE UNIQUE INDEX IF NOT EXISTS " + WBIndex.CAPTURES_INDEX_NAME +
+			" ON " + WBIndex.CAPTURES_TABLE + "(urlID,captureTime,crawlID)";
+
+	private static final String NEXT_BATCH_QUERY =
+			"SELECT rowid,url,datesCrawled,crawlIDs%s FROM URLs WHERE rowid > ? ORDER BY rowid LIMIT ?";
+	private static final int NEXT_BATCH_AFTER_BIND_POS = 1;
+	private static final int NEXT_BATCH_LIMIT_BIND_POS = 2;
+	private static final int NEXT_BATCH_ROWID_POS = 0;
+	private static final int NEXT_BATCH_URL_POS = 1;
+	private static final int NEXT_BATCH_DATES_POS = 2;
+	private static final int NEXT_BATCH_CRAWL_IDS_POS = 3;
+	private static final int NEXT_BATCH_SURT_POS = 4;
+
+	private static final String INSERT_URL = "INSERT OR IGNORE INTO URLDictionary(url%s) VALUES(?%s)";
+	private static final int INSERT_URL_URL_BIND_POS = 1;
+	private static final int INSERT_URL_SURT_BIND_POS = 2;
+
+	private static final String INSERT_CAPTURE = "INSERT INTO Captures(urlID,crawlID,captureTime) VALUES(?,?,?)";
+	private static final int INSERT_CAPTURE_URL_ID_BIND_POS = 1;
+	private static final int INSERT_CAPTURE_CRAWL_ID_BIND_POS = 2;
+	private static final int INSERT_CAPTURE_TIME_BIND_POS = 3;
+
+	WBIndex index = null;
+	private long numCaptures = 0;
+
+	public CapturesMigrator(String indexPath) throws SQLiteException {
+		index = new WBIndex(indexPath, false);
+	}
+
+	/**
+	 * Create the URLDictionary and Captures tables if necessary, fill
+	 * them from the URLs rows they do not hold yet, and index them.
+	 * @return number of URLs added to URLDictionary.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if a row has fewer crawl IDs than crawl dates.
+	 */
+	public long migrate() throws SQLiteException, DataFormatException {
+		if (index.hasNormalizedCaptures()) {
+			// The URLs table is no longer maintained; nothing to take over:
+			return 0;
+		}
+		boolean withSURTs = index.hasURLsColumn(WBIndex.SURT_COL);
+		String surtCol = withSURTs ? "," + WBIndex.SURT_COL : "";
+		index.indexDB.exec(String.format(CREATE_URL_DICTIONARY, withSURTs ? ",\n" + WBIndex.SURT_COL + " TEXT" : ""));
+		index.indexDB.exec(CREATE_CAPTURES);
+
+		long numMigrated = 0;
+		long lastRowID = Long.MIN_VALUE;
+		ArrayList<String> urls = new ArrayList<String>();
+		ArrayList<String> surts = new ArrayList<String>();
+		ArrayList<byte[][]> packedRows = new ArrayList<byte[][]>();
+		SQLiteStatement batchQuery = index.indexDB.prepare(String.format(NEXT_BATCH_QUERY, surtCol), false);
+		SQLiteStatement insertURL = index.indexDB.prepare(String.format(INSERT_URL, surtCol, withSURTs ? ",?" : ""), false);
+		SQLiteStatement insertCapture = index.indexDB.prepare(INSERT_CAPTURE, false);
+		try {
+			while (true) {
+				urls.clear();
+				surts.clear();
+				packedRows.clear();
+				batchQuery.reset(true);
+				batchQuery.bind(NEXT_BATCH_AFTER_BIND_POS, lastRowID);
+				batchQuery.bind(NEXT_BATCH_LIMIT_BIND_POS, BATCH_SIZE);
+				while (batchQuery.step()) {
+					lastRowID = batchQuery.columnLong(NEXT_BATCH_ROWID_POS);
+					String url = batchQuery.columnString(NEXT_BATCH_URL_POS);
+					urls.add(url);
+					surts.add(withSURTs ? batchQuery.columnString(NEXT_BATCH_SURT_POS) : null);
+					// Packing sorts the captures by time:
+					packedRows.add(PackedCaptures.packText(url,
+							batchQuery.columnString(NEXT_BATCH_DATES_POS),
+							batchQuery.columnString(NEXT_BATCH_CRAWL_IDS_POS)));
+				}
+				if (urls.isEmpty())
+					break;
+				index.indexDB.exec("BEGIN");
+				try {
+					for (int i = 0; i < urls.size(); i++) {
+						insertURL.reset(true);
+						insertURL.bind(INSERT_URL_URL_BIND_POS, urls.get(i));
+						if (withSURTs)
+							insertURL.bind(INSERT_URL_SURT_BIND_POS, surts.get(i));
+						insertURL.stepThrough();
+						// A URL and its captures are committed together, so
+						// a URL already in the dictionary has them all:
+						if (index.indexDB.getChanges() == 0)
+							continue;
+						insertCaptures(insertCapture, index.indexDB.getLastInsertId(), packedRows.get(i));
+						numMigrated++;
+					}
+					index.indexDB.exec("COMMIT");
+				} catch (SQLiteException e) {
+					index.indexDB.exec("ROLLBACK");
+					throw e;
+				}
+				if (index.verbose > 0)
+					System.out.println("Moved " + numMigrated + " URLs, " + numCaptures + " captures...");
+			}
+		} finally {
+			batchQuery.dispose();
+			insertURL.dispose();
+			insertCapture.dispose();
+		}
+		if (withSURTs)
+			index.indexDB.exec("CREATE INDEX IF NOT EXISTS " + SURTMigrator.NORMALIZED_SURT_INDEX_NAME +
+							   " ON " + WBIndex.URL_DICTIONARY_TABLE + "(" + WBIndex.SURT_COL + ")");
+		// Last, as it switches readers to the new layout:
+		index.indexDB.exec(CREATE_CAPTURES_INDEX);
+		return numMigrated;
+	}
+
+	/**
+	 * Insert one URL's captures, less any that repeat an earlier one
+	 * exactly; the Captures index admits each (time, crawl) only once.
+	 */
+	private void insertCaptures(SQLiteStatement insertCapture, long urlID, byte[][] packed) throws SQLiteException {
+		byte[] timesBlob = packed[0];
+		byte[] crawlIDsBlob = packed[1];
+		int n = PackedCaptures.numCaptures(timesBlob);
+		for (int i = 0; i < n; i++) {
+			long time = PackedCaptures.timeAt(timesBlob, i);
+			int crawlID = PackedCaptures.crawlIDAt(crawlIDsBlob, i);
+			boolean repeat = false;
+			for (int j = i - 1; j >= 0 && PackedCaptures.timeAt(timesBlob, j) == time; j--)
+				repeat |= PackedCaptures.crawlIDAt(crawlIDsBlob, j) == crawlID;
+			if (repeat)
+				continue;
+			insertCapture.reset(true);
+			insertCapture.bind(INSERT_CAPTURE_URL_ID_BIND_POS, urlID);
+			insertCapture.bind(INSERT_CAPTURE_CRAWL_ID_BIND_POS, crawlID);
+			insertCapture.bind(INSERT_CAPTURE_TIME_BIND_POS, time);
+			insertCapture.stepThrough();
+			numCaptures++;
+		}
+	}
+
+	/**
+	 * @return number of Captures rows written by migrate().
+	 */
+	public long getNumCaptures() {
+		return numCaptures;
+	}
+
+	public void close() {
+		index.close();
+	}
+
+	public static void main(String[] args) throws SQLiteException, DataFormatException {
+		CapturesMigrator migrator = new CapturesMigrator((args.length > 0) ? args[0] : null);
+		try {
+			long numMigrated = migrator.migrate();
+			System.out.println("Moved " + numMigrated + " URLs with " + migrator.getNumCaptures() +
+							   " captures into the Captures table of " + migrator.index.getIndexPath());
+		} finally {
+			migrator.close();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a response body of unknown length in HTTP/1.1 chunked transfer
+ * encoding (RFC 7230, section 4.1). Bytes collect in a fixed-size buffer;
+ * each time the buffer fills, it goes out as one chunk. close() sends
+ * the last chunk and the terminating zero-length chunk, but leaves the
+ * underlying socket stream open. Room for the chunk framing is kept
+ * around the buffered bytes, so that each chunk goes to the socket
+ * with a single write.
+ *
+ * For HTTP/1.0 clients, construct with chunked == false: the body is
+ * then sent unframed, and the end of the body is signalled by closing
+ * the connection.
+ *
+ * @author Paepcke
+ *
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+	static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	// Chunk-size line in front of the data: up to 8 hex digits plus CRLF:
+	private static final int SIZE_LINE_ROOM = 10;
+	// CRLF after the data:
+	private static final int TRAILER_ROOM = 2;
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final OutputStream out;
+	private final boolean chunked;
+	// [size line room][chunk data][trailer room]:
+	private final byte[] buf;
+	private final int dataEnd;
+	private int pos = SIZE_LINE_ROOM;
+	private boolean closed = false;
+
+	ChunkedOutputStream(OutputStream theOut, boolean isChunked) {
+		this(theOut, isChunked, DEFAULT_CHUNK_SIZE);
+	}
+
+	ChunkedOutputStream(OutputStream theOut, boolean isChunked, int chunkSize) {
+		out = theOut;
+		chunked = isChunked;
+		buf = new byte[SIZE_LINE_ROOM + chunkSize + TRAILER_ROOM];
+		dataEnd = SIZE_LINE_ROOM + chunkSize;
+	}
+
+	public void write(int b) throws IOException {
+		if (pos == dataEnd)
+			sendChunk();
+		buf[pos++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (pos == dataEnd)
+				sendChunk();
+			int n = Math.min(len, dataEnd - pos);
+			System.arraycopy(b, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Append text, one byte per character, as ISO-8859-1; characters
+	 * outside it are sent as '?'.
+	 */
+	ChunkedOutputStream append(CharSequence text) throws IOException {
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			if (pos == dataEnd)
+				sendChunk();
+			char c = text.charAt(i);
+			buf[pos++] = (c < 256) ? (byte) c : (byte) '?';
+		}
+		return this;
+	}
+
+	/**
+	 * Send what is buffered as a chunk, and flush the socket.
+	 */
+	public void flush() throws IOException {
+		sendChunk();
+		out.flush();
+	}
+
+	/**
+	 * Send any buffered bytes and end the body. Does not close
+	 * the underlying stream.
+	 */
+	public void close() throws IOException {
+		close(null);
+	}
+
+	/**
+	 * Like close(), but send trailer fields after the last chunk.
+	 * @param trailerLines header lines, each ending in CRLF; null for
+	 *        none. Dropped if the body is not chunked.
+	 */
+	void close(CharSequence trailerLines) throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		sendChunk();
+		if (chunked) {
+			if (trailerLines == null || trailerLines.length() == 0) {
+				out.write(LAST_CHUNK);
+			} else {
+				out.write(LAST_CHUNK, 0, 3);
+				for (int i = 0; i < trailerLines.length(); i++)
+					out.write(trailerLines.charAt(i));
+				out.write(LAST_CHUNK, 3, 2);
+			}
+		}
+		out.flush();
+	}
+
+	private void sendChunk() throws IOException {
+		int count = pos - SIZE_LINE_ROOM;
+		if (count == 0)
+			return;
+		if (chunked) {
+			int start = SIZE_LINE_ROOM;
+			buf[--start] = '\n';
+			buf[--start] = '\r';
+			int size = count;
+			do {
+				buf[--start] = (byte) HEX_DIGITS[size & 0xf];
+				size >>>= 4;
+			} while (size != 0);
+			buf[pos] = '\r';
+			buf[pos + 1] = '\n';
+			out.write(buf, start, pos + TRAILER_ROOM - start);
+		} else {
+			out.write(buf, SIZE_LINE_ROOM, count);
+		}
+		pos = SIZE_LINE_ROOM;
+	}
+}
@@ -1,8 +1,12 @@
 package edu.stanford.arcspread;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -11,90 +15,471 @@ import java.util.Set;
  * message. The API is a HashMap. Keys are command
  * arguments; values are the respective actual parameters.
  * The command name is available as well.
+ *
+ * Commands that arrive via HTTP are filled in by HTTPRequestParser,
+ * and reused from one request to the next. Arguments and headers are
+ * then stored as slices (start/end offsets) into the request buffer, in
+ * flat arrays, and turned into Strings only when asked for. Such a
+ * command, and the Strings it hands out, are only valid while its
+ * request is being answered; listeners that need them longer must
+ * copy them.
+ *
  * @author Paepcke
  *
  */
-public class Command implements Map<String,String> {
-	
+public class Command extends AbstractMap<String,String> {
+
+	static final Charset ARG_CHARSET = Charset.forName("UTF-8");
+	static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+	// Slice offsets of an entry given as Strings rather than as a slice:
+	private static final int NO_SLICE = -1;
+	private static final int INITIAL_SLOTS = 8;
+
 	String commandName = null;
-	HashMap<String,String> args = new HashMap<String,String>();
-	
+	// For commands that arrive via HTTP:
+	String method = null;
+	// e.g. "HTTP/1.1"; null for HTTP/0.9 style request lines:
+	String protocol = null;
+	// Raw remainder of the request target after "/<commandName>/",
+	// e.g. the URI-R in "/timegate/http://foo.org/bar?x=1". Either
+	// a String, or a slice of src:
+	String pathInfo = null;
+	int pathInfoStart = NO_SLICE;
+	int pathInfoEnd = NO_SLICE;
+	// Whether the connection stays open after the response:
+	boolean keepAlive = false;
+
+	// Bytes the slices point into; the request buffer:
+	byte[] src = null;
+	// Arguments. Entry i: argSlices[4i..4i+3] hold key start/end and value
+	// start/end in src, percent-decoded; argStrings[2i], argStrings[2i+1] hold
+	// the key and value Strings once created:
+	int[] argSlices = new int[4 * INITIAL_SLOTS];
+	String[] argStrings = new String[2 * INITIAL_SLOTS];
+	int numArgs = 0;
+	// Request headers, stored like the arguments. Names match case-insensitively:
+	int[] headerSlices = new int[4 * INITIAL_SLOTS];
+	String[] headerStrings = new String[2 * INITIAL_SLOTS];
+	int numHeaders = 0;
+
 	public Command(String theCommandName, String[] attr_eq_val_strings) {
 		this.commandName = theCommandName;
 		for (String attrVal : attr_eq_val_strings) {
-			String [] attrAndVal = attrVal.split("=");
-			args.put(attrAndVal[0], attrAndVal[1]);
+			int eq = attrVal.indexOf('=');
+			put(attrVal.substring(0, eq), attrVal.substring(eq + 1));
 		}
 	}
 
 	public Command() {
-		
+
+	}
+
+	/**
+	 * Empty the command for the next request, whose slices will
+	 * point into the given buffer. Keeps the slice arrays.
+	 */
+	void reset(byte[] theSrc) {
+		src = theSrc;
+		commandName = null;
+		method = null;
+		protocol = null;
+		pathInfo = null;
+		pathInfoStart = NO_SLICE;
+		pathInfoEnd = NO_SLICE;
+		keepAlive = false;
+		Arrays.fill(argStrings, 0, 2 * numArgs, null);
+		numArgs = 0;
+		Arrays.fill(headerStrings, 0, 2 * numHeaders, null);
+		numHeaders = 0;
+	}
+
+	/**
+	 * @return a copy of this command that does not point into the request
+	 * buffer, and so stays valid after the request was answered; for
+	 * handlers that finish their work on other threads.
+	 */
+	public Command detach() {
+		Command copy = new Command();
+		copy.commandName = commandName;
+		copy.method = method;
+		copy.protocol = protocol;
+		copy.pathInfo = getPathInfo();
+		copy.keepAlive = keepAlive;
+		for (int i = 0; i < numArgs; i++) {
+			copy.addArg(NO_SLICE, NO_SLICE, NO_SLICE, NO_SLICE);
+			copy.argStrings[2 * i] = argKey(i);
+			copy.argStrings[2 * i + 1] = argValue(i);
+		}
+		for (int i = 0; i < numHeaders; i++) {
+			copy.addHeader(NO_SLICE, NO_SLICE, NO_SLICE, NO_SLICE);
+			copy.headerStrings[2 * i] = headerName(i);
+			copy.headerStrings[2 * i + 1] = headerValue(i);
+		}
+		return copy;
 	}
-	
+
 	public void setCommandName(String name) {
 		commandName = name;
 	}
-	
+
 	public String getCommandName() {
 		return commandName;
 	}
-	
-	public void clear() {
-		args.clear();
+
+	public void setMethod(String theMethod) {
+		method = theMethod;
 	}
 
-	public boolean containsKey(Object key) {
-		return args.containsKey((String) key);
+	/**
+	 * @return HTTP method, e.g. "GET"; null if command did not arrive via HTTP.
+	 */
+	public String getMethod() {
+		return method;
 	}
 
-	public boolean containsValue(Object value) {
-		return args.containsValue((String) value);
+	public void setProtocol(String theProtocol) {
+		protocol = theProtocol;
 	}
 
-	public Set<java.util.Map.Entry<String, String>> entrySet() {
-		return args.entrySet();
+	/**
+	 * @return protocol version from the request line, e.g. "HTTP/1.1";
+	 * null if the request line named none.
+	 */
+	public String getProtocol() {
+		return protocol;
 	}
 
-	public String get(Object key) {
-		return args.get(key);
+	/**
+	 * @return true if the client speaks HTTP/1.1 or later, and so
+	 * accepts chunked transfer encoding.
+	 */
+	public boolean isHttp11() {
+		return protocol != null && protocol.startsWith("HTTP/1.") && !protocol.equals("HTTP/1.0");
 	}
 
-	public boolean isEmpty() {
-		return args.isEmpty();
+	/**
+	 * The dispatcher sets this from the request's protocol, its
+	 * Connection header, and the connection limits. A resource that
+	 * cannot delimit its response may clear it; the connection is
+	 * then closed after the response.
+	 */
+	public void setKeepAlive(boolean keep) {
+		keepAlive = keep;
 	}
 
-	public Set<String> keySet() {
-		return args.keySet();
+	/**
+	 * @return true if the connection stays open for further requests;
+	 * the response must then carry a Content-Length or be chunked.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setPathInfo(String thePathInfo) {
+		pathInfo = thePathInfo;
+		pathInfoStart = NO_SLICE;
+	}
+
+	void setPathInfo(int start, int end) {
+		pathInfo = null;
+		pathInfoStart = start;
+		pathInfoEnd = end;
+	}
+
+	public String getPathInfo() {
+		if (pathInfo == null && pathInfoStart != NO_SLICE)
+			pathInfo = new String(src, pathInfoStart, pathInfoEnd - pathInfoStart, HEADER_CHARSET);
+		return pathInfo;
+	}
+
+	public void putHeader(String name, String value) {
+		int i = findHeader(name);
+		if (i < 0) {
+			i = numHeaders;
+			addHeader(NO_SLICE, NO_SLICE, NO_SLICE, NO_SLICE);
+			headerStrings[2 * i] = name;
+		}
+		headerStrings[2 * i + 1] = value;
+	}
+
+	/**
+	 * @param name header name; case-insensitive.
+	 * @return the header's value, or null if the request had no such header.
+	 */
+	public String getHeader(String name) {
+		int i = findHeader(name);
+		return (i < 0) ? null : headerValue(i);
+	}
+
+	private String headerName(int i) {
+		if (headerStrings[2 * i] == null) {
+			int nameStart = headerSlices[4 * i];
+			headerStrings[2 * i] = new String(src, nameStart, headerSlices[4 * i + 1] - nameStart, HEADER_CHARSET);
+		}
+		return headerStrings[2 * i];
+	}
+
+	private String headerValue(int i) {
+		if (headerStrings[2 * i + 1] == null) {
+			int valueStart = headerSlices[4 * i + 2];
+			headerStrings[2 * i + 1] = new String(src, valueStart, headerSlices[4 * i + 3] - valueStart, HEADER_CHARSET);
+		}
+		return headerStrings[2 * i + 1];
+	}
+
+	/**
+	 * Append a header whose name and value are slices of src.
+	 */
+	void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		if (4 * numHeaders == headerSlices.length) {
+			headerSlices = Arrays.copyOf(headerSlices, 2 * headerSlices.length);
+			headerStrings = Arrays.copyOf(headerStrings, 2 * headerStrings.length);
+		}
+		int pos = 4 * numHeaders++;
+		headerSlices[pos] = nameStart;
+		headerSlices[pos + 1] = nameEnd;
+		headerSlices[pos + 2] = valueStart;
+		headerSlices[pos + 3] = valueEnd;
+	}
+
+	/**
+	 * Extend the value of the most recently added header to end at
+	 * valueEnd; for folded header lines.
+	 */
+	void extendLastHeader(int valueEnd) {
+		headerSlices[4 * (numHeaders - 1) + 3] = valueEnd;
+	}
+
+	/**
+	 * @return end offset in src of the most recently added header's value.
+	 */
+	int lastHeaderValueEnd() {
+		return headerSlices[4 * (numHeaders - 1) + 3];
+	}
+
+	private int findHeader(String name) {
+		for (int i = 0; i < numHeaders; i++) {
+			String str = headerStrings[2 * i];
+			if (str != null ? str.equalsIgnoreCase(name) :
+							  sliceEqualsIgnoreCase(headerSlices[4 * i], headerSlices[4 * i + 1], name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Append an argument whose key and value are slices of src. If an
+	 * argument with the same key was added before, as in "foo=1&foo=2",
+	 * its value is replaced instead: the last value wins.
+	 */
+	void addArg(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+		int i = (keyStart == NO_SLICE) ? -1 : findArg(keyStart, keyEnd);
+		if (i >= 0) {
+			argSlices[4 * i + 2] = valueStart;
+			argSlices[4 * i + 3] = valueEnd;
+			argStrings[2 * i + 1] = null;
+			return;
+		}
+		if (4 * numArgs == argSlices.length) {
+			argSlices = Arrays.copyOf(argSlices, 2 * argSlices.length);
+			argStrings = Arrays.copyOf(argStrings, 2 * argStrings.length);
+		}
+		int pos = 4 * numArgs++;
+		argSlices[pos] = keyStart;
+		argSlices[pos + 1] = keyEnd;
+		argSlices[pos + 2] = valueStart;
+		argSlices[pos + 3] = valueEnd;
+	}
+
+	private int findArg(Object key) {
+		if (!(key instanceof String))
+			return -1;
+		String name = (String) key;
+		for (int i = 0; i < numArgs; i++) {
+			String str = argStrings[2 * i];
+			if (str == null && !sliceIsASCII(argSlices[4 * i], argSlices[4 * i + 1]))
+				str = argKey(i);
+			if (str != null ? str.equals(name) : sliceEquals(argSlices[4 * i], argSlices[4 * i + 1], name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the argument whose key equals src[keyStart..keyEnd).
+	 */
+	private int findArg(int keyStart, int keyEnd) {
+		if (!sliceIsASCII(keyStart, keyEnd))
+			return findArg(new String(src, keyStart, keyEnd - keyStart, ARG_CHARSET));
+		for (int i = 0; i < numArgs; i++) {
+			String str = argStrings[2 * i];
+			if (str != null ? sliceEquals(keyStart, keyEnd, str) :
+							  sliceEquals(argSlices[4 * i], argSlices[4 * i + 1], keyStart, keyEnd))
+				return i;
+		}
+		return -1;
+	}
+
+	private String argKey(int i) {
+		if (argStrings[2 * i] == null) {
+			int keyStart = argSlices[4 * i];
+			argStrings[2 * i] = new String(src, keyStart, argSlices[4 * i + 1] - keyStart, ARG_CHARSET);
+		}
+		return argStrings[2 * i];
+	}
+
+	private String argValue(int i) {
+		if (argStrings[2 * i + 1] == null) {
+			int valueStart = argSlices[4 * i + 2];
+			argStrings[2 * i + 1] = new String(src, valueStart, argSlices[4 * i + 3] - valueStart, ARG_CHARSET);
+		}
+		return argStrings[2 * i + 1];
+	}
+
+	private boolean sliceEquals(int start, int end, String str) {
+		if (end - start != str.length())
+			return false;
+		for (int i = start; i < end; i++)
+			if ((src[i] & 0xff) != str.charAt(i - start))
+				return false;
+		return true;
+	}
+
+	private boolean sliceEquals(int start, int end, int otherStart, int otherEnd) {
+		if (end - start != otherEnd - otherStart)
+			return false;
+		for (int i = start; i < end; i++)
+			if (src[i] != src[otherStart + i - start])
+				return false;
+		return true;
+	}
+
+	private boolean sliceEqualsIgnoreCase(int start, int end, String str) {
+		if (end - start != str.length())
+			return false;
+		for (int i = start; i < end; i++) {
+			int b = src[i] & 0xff;
+			int c = str.charAt(i - start);
+			if (b != c && Character.toLowerCase(b) != Character.toLowerCase(c))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean sliceIsASCII(int start, int end) {
+		for (int i = start; i < end; i++)
+			if (src[i] < 0)
+				return false;
+		return true;
+	}
+
+	private void removeArg(int i) {
+		int numAfter = numArgs - i - 1;
+		System.arraycopy(argSlices, 4 * (i + 1), argSlices, 4 * i, 4 * numAfter);
+		System.arraycopy(argStrings, 2 * (i + 1), argStrings, 2 * i, 2 * numAfter);
+		numArgs--;
+		argStrings[2 * numArgs] = null;
+		argStrings[2 * numArgs + 1] = null;
+	}
+
+	public void clear() {
+		Arrays.fill(argStrings, 0, 2 * numArgs, null);
+		numArgs = 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return findArg(key) >= 0;
+	}
+
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String,String>>() {
+			public int size() {
+				return numArgs;
+			}
+			public Iterator<Map.Entry<String,String>> iterator() {
+				return new Iterator<Map.Entry<String,String>>() {
+					int next = 0;
+					boolean canRemove = false;
+					public boolean hasNext() {
+						return next < numArgs;
+					}
+					public Map.Entry<String,String> next() {
+						if (next >= numArgs)
+							throw new NoSuchElementException();
+						canRemove = true;
+						final int i = next++;
+						return new SimpleEntry<String,String>(argKey(i), argValue(i)) {
+							private static final long serialVersionUID = 1L;
+							public String setValue(String value) {
+								super.setValue(value);
+								return put(getKey(), value);
+							}
+						};
+					}
+					public void remove() {
+						if (!canRemove)
+							throw new IllegalStateException();
+						canRemove = false;
+						removeArg(--next);
+					}
+				};
+			}
+		};
+	}
+
+	public String get(Object key) {
+		int i = findArg(key);
+		return (i < 0) ? null : argValue(i);
+	}
+
+	public boolean isEmpty() {
+		return numArgs == 0;
 	}
 
 	public String remove(Object key) {
-		return args.remove(key);
+		int i = findArg(key);
+		if (i < 0)
+			return null;
+		String old = argValue(i);
+		removeArg(i);
+		return old;
 	}
 
 	public int size() {
-		return args.size();
+		return numArgs;
 	}
 
-	public Collection<String> values() {
-		return args.values();
+	public String put(String key, String value) {
+		int i = findArg(key);
+		String old = null;
+		if (i < 0) {
+			i = numArgs;
+			addArg(NO_SLICE, NO_SLICE, NO_SLICE, NO_SLICE);
+			argStrings[2 * i] = key;
+		} else
+			old = argValue(i);
+		argStrings[2 * i + 1] = value;
+		return old;
 	}
 
-	public String put(String key, String value) {
-		return args.put(key, value);
+	// A Command is a request, not a value; keep identity semantics:
+	public boolean equals(Object other) {
+		return this == other;
 	}
 
-	public void putAll(Map<? extends String, ? extends String> theMap) {
-		args.putAll(theMap);
+	public int hashCode() {
+		return System.identityHashCode(this);
 	}
-	
+
 	public String toString() {
 		String res = "Command[" + getCommandName() + ": ";
-		for (String key : args.keySet()) {
-			res += key + "=" + args.get(key)  + " ";
+		for (int i = 0; i < numArgs; i++) {
+			res += argKey(i) + "=" + argValue(i)  + " ";
 		}
 		res = res.trim();
 		res += "]";
 		return res;
 	}
-	
+
 }
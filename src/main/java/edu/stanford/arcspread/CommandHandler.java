@@ -0,0 +1,46 @@
+package edu.stanford.arcspread;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Answers requests for one command, "/<command>?arg=value&...", on
+ * HTTPCommandDispatcher; see HTTPCommandDispatcher.addHandler().
+ *
+ * Unlike a command listener, a handler writes its own response, and
+ * need not have it ready when handle() returns: the dispatcher writes
+ * the response when the returned future completes. A handler with
+ * slow work, such as an index scan, can therefore run it on the
+ * dispatcher's handler executor (see getHandlerExecutor()), or any
+ * other, and return at once:
+ *
+ *   public CompletableFuture<CommandResponse> handle(final Command request) {
+ *       return CompletableFuture.supplyAsync(new Supplier<CommandResponse>() {
+ *           public CommandResponse get() {
+ *               return CommandResponse.ok("text/plain", lookUp(request.get("url")));
+ *           }
+ *       }, dispatcher.getHandlerExecutor());
+ *   }
+ *
+ * Meanwhile NioConnectionEngine's worker thread goes on serving other
+ * connections. Engines with a thread per connection wait for the
+ * response on that thread.
+ *
+ * Handlers are called on the dispatcher's threads, several at a time,
+ * and must therefore be thread safe.
+ *
+ * @author Paepcke
+ *
+ */
+public interface CommandHandler {
+
+	/**
+	 * Start answering one request.
+	 * @param request the request: command name, arguments, method and
+	 *        headers. A copy that stays valid after handle() returns.
+	 * @return future of the response. A future that completes
+	 *         exceptionally, or does not complete within
+	 *         HTTPCommandDispatcher.HANDLER_TIMEOUT msecs, is answered
+	 *         with an error status.
+	 */
+	public CompletableFuture<CommandResponse> handle(Command request);
+}
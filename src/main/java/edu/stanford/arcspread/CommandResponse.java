@@ -0,0 +1,204 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Response of a CommandHandler: status, header fields, and a body that
+ * is either given whole or streamed by a BodyWriter. The dispatcher adds
+ * the Date and Connection headers and the body framing: Content-Length
+ * for a whole body; chunked transfer encoding for a streamed one, or,
+ * for HTTP/1.0 clients, closing the connection after it.
+ *
+ *   return CompletableFuture.completedFuture(
+ *       CommandResponse.ok("text/plain", "pong").header("Cache-Control", "no-cache"));
+ *
+ * @author Paepcke
+ *
+ */
+public class CommandResponse {
+
+	static final Charset BODY_CHARSET = Charset.forName("UTF-8");
+	private static final byte[] NO_BODY = new byte[0];
+
+	/**
+	 * Writes a response body piece by piece, e.g. while walking a cursor.
+	 */
+	public interface BodyWriter {
+		/**
+		 * @param body stream for the body; framed, and closed, by the caller.
+		 * @throws IOException if writing to the client fails.
+		 */
+		public void writeBody(OutputStream body) throws IOException;
+	}
+
+	final int status;
+	final String reason;
+	String contentType = null;
+	private byte[] body = NO_BODY;
+	private BodyWriter bodyWriter = null;
+	// Extra header lines, each ending in CRLF; null for none:
+	private StringBuilder headerLines = null;
+	// Trailer field names declared, and trailer lines set by the body writer; null for none:
+	private String trailerNames = null;
+	private StringBuilder trailerLines = null;
+	// Run once the response is sent, or failed to be; null for none:
+	private Runnable whenSent = null;
+
+	/**
+	 * A response without a body, until one is set.
+	 * @param theStatus status code, e.g. HttpConstants.HTTP_OK.
+	 * @param theReason reason phrase, e.g. "OK".
+	 */
+	public CommandResponse(int theStatus, String theReason) {
+		status = theStatus;
+		reason = theReason;
+	}
+
+	/**
+	 * @return a 200 response with the given body, sent as UTF-8.
+	 */
+	public static CommandResponse ok(String contentType, String body) {
+		return new CommandResponse(HttpConstants.HTTP_OK, "OK").body(contentType, body);
+	}
+
+	/**
+	 * Set the body; sent as UTF-8.
+	 * @param theContentType value of the Content-Type header.
+	 * @param text the body; null for none.
+	 */
+	public CommandResponse body(String theContentType, String text) {
+		return body(theContentType, (text == null) ? NO_BODY : text.getBytes(BODY_CHARSET));
+	}
+
+	public CommandResponse body(String theContentType, byte[] bytes) {
+		contentType = theContentType;
+		body = (bytes == null) ? NO_BODY : bytes;
+		bodyWriter = null;
+		return this;
+	}
+
+	/**
+	 * Stream the body: the writer is called once the status line and
+	 * headers are out, on the thread that sends the response.
+	 */
+	public CommandResponse stream(String theContentType, BodyWriter writer) {
+		contentType = theContentType;
+		body = NO_BODY;
+		bodyWriter = writer;
+		return this;
+	}
+
+	/**
+	 * Add a header field. Date, Connection, Content-Length, Content-Type
+	 * and Transfer-Encoding are set by the dispatcher.
+	 */
+	public CommandResponse header(String name, String value) {
+		if (headerLines == null)
+			headerLines = new StringBuilder(128);
+		headerLines.append(name).append(": ").append(value).append(ResponseBuilder.CRLF);
+		return this;
+	}
+
+	/**
+	 * Announce a trailer field, whose value the body writer sets with
+	 * setTrailer() once the body is out, e.g. a checksum or a resumption
+	 * point. Trailers are only sent with a chunked body; clients are
+	 * free to ignore them.
+	 */
+	public CommandResponse trailer(String name) {
+		trailerNames = (trailerNames == null) ? name : trailerNames + ", " + name;
+		return this;
+	}
+
+	/**
+	 * Set the value of an announced trailer field. For the body writer.
+	 */
+	public void setTrailer(String name, String value) {
+		if (trailerLines == null)
+			trailerLines = new StringBuilder(128);
+		trailerLines.append(name).append(": ").append(value).append(ResponseBuilder.CRLF);
+	}
+
+	/**
+	 * Run the given action once the response is sent, whether or not
+	 * sending succeeds, and even if the body is never asked for, as for
+	 * HEAD requests. For releasing what a streamed body would have used.
+	 */
+	public CommandResponse whenSent(Runnable action) {
+		whenSent = action;
+		return this;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Send the response.
+	 * @param request the request; its keep-alive flag is cleared if only
+	 *        closing the connection can end the body.
+	 * @param out the client connection; flushed, but not closed.
+	 * @param includeBody false for HEAD requests: send the headers only.
+	 * @throws IOException if writing to the client fails, or the body writer fails part way.
+	 */
+	void writeTo(Command request, OutputStream out, boolean includeBody) throws IOException {
+		try {
+			writeResponse(request, out, includeBody);
+		} finally {
+			if (whenSent != null)
+				whenSent.run();
+		}
+	}
+
+	private void writeResponse(Command request, OutputStream out, boolean includeBody) throws IOException {
+		boolean chunked = false;
+		if (bodyWriter != null) {
+			chunked = request.isHttp11();
+			if (!chunked)
+				request.setKeepAlive(false);
+		}
+		ResponseBuilder response = ResponseBuilder.forThread();
+		response.statusLine(status, reason).dateHeader();
+		if (headerLines != null)
+			response.headerLines(headerLines);
+		if (bodyWriter != null) {
+			response.header("Content-Type", contentType);
+			if (chunked) {
+				response.header("Transfer-Encoding", "chunked");
+				if (trailerNames != null)
+					response.header("Trailer", trailerNames);
+			}
+		} else {
+			if (body.length > 0)
+				response.header("Content-Type", contentType);
+			response.header("Content-Length", body.length);
+		}
+		response.connection(request).endHeaders();
+		response.writeTo(out);
+		if (!includeBody)
+			return;
+		if (bodyWriter == null) {
+			if (body.length > 0) {
+				out.write(body);
+				out.flush();
+			}
+			return;
+		}
+		ChunkedOutputStream bodyOut = new ChunkedOutputStream(out, chunked);
+		try {
+			bodyWriter.writeBody(bodyOut);
+		} catch (RuntimeException e) {
+			// The client has part of a body; only closing tells it that's all:
+			request.setKeepAlive(false);
+			throw new IOException("Body writer failed: " + e, e);
+		}
+		bodyOut.close(trailerLines);
+		out.flush();
+	}
+
+	public String toString() {
+		return "CommandResponse[" + status + " " + reason + "]";
+	}
+}
@@ -0,0 +1,39 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+
+/**
+ * Accepts client connections for HTTPCommandDispatcher, reads each
+ * request's head (request line and headers), and passes it to the
+ * dispatcher's handleRequest(). Engines differ in how connections are
+ * mapped onto threads:
+ *
+ *   - the default engine: a blocking accept loop feeding a pool of
+ *     worker threads, plus one new thread per connection when all
+ *     workers are busy;
+ *   - NioConnectionEngine: a few Selector-driven I/O threads read and
+ *     write for all connections, and a pool of workers answers the
+ *     requests; slow clients cost a key, not a thread;
+ *   - VirtualThreadConnectionEngine: one virtual thread per connection.
+ *
+ * Choose the engine with HTTPCommandDispatcher.getInstance(engine).
+ *
+ * @author Paepcke
+ *
+ */
+public interface ConnectionEngine {
+
+	/**
+	 * Start accepting connections in the background.
+	 * @param dispatcher dispatcher whose handleRequest() answers the requests.
+	 * @param port port to listen on.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	public void start(HTTPCommandDispatcher dispatcher, int port) throws IOException;
+
+	/**
+	 * Stop accepting connections and release the engine's threads.
+	 * Requests already being answered may still complete.
+	 */
+	public void shutdown();
+}
@@ -0,0 +1,250 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+
+/**
+ * In-memory copy of a WebBase index's Crawls table. The table is tiny
+ * and rarely changes, yet every closest-capture lookup needs the full
+ * name of the capture's crawl. The catalog loads all crawls once into
+ * a Table keyed by integer shortName, so that resolving a crawl costs
+ * neither a query nor date parsing. CrawlSpecs are immutable, so the
+ * catalog hands out the instances it holds.
+ *
+ * A table is never modified after loading. When the index file, or
+ * its write-ahead log, changes size or modification time, the next
+ * lookup loads a fresh table. The file is checked at most once every
+ * REFRESH_CHECK_INTERVAL msecs. (The bundled SQLite predates
+ * PRAGMA data_version, so file metadata is what we have to go on.)
+ * The file of an immutable index (see SQLiteProfile) is not checked.
+ *
+ * Belongs to one WBIndex, and is confined to that index's thread.
+ *
+ * @author Paepcke
+ *
+ */
+class CrawlCatalog {
+
+	/* Min msecs between checks of the index file for changes */
+	static long REFRESH_CHECK_INTERVAL = 1000;
+
+	private static final String ALL_CRAWLS_QUERY = "SELECT shortName,crawlName,startDate,endDate FROM Crawls";
+	private static final int ALL_CRAWLS_SHORT_NAME_POS = 0;
+	private static final int ALL_CRAWLS_NAME_POS = 1;
+	private static final int ALL_CRAWLS_START_DATE_POS = 2;
+	private static final int ALL_CRAWLS_END_DATE_POS = 3;
+
+	private final WBIndex index;
+	private final File indexFile;
+	private final File walFile;
+
+	private Table crawls = Table.EMPTY;
+	private boolean loaded = false;
+	private long loadedModTime = 0;
+	private long loadedLength = 0;
+	private long loadedWalModTime = 0;
+	private long loadedWalLength = 0;
+	private long nextCheckNanos = 0;
+	private long numLoads = 0;
+
+	CrawlCatalog(WBIndex theIndex) {
+		index = theIndex;
+		indexFile = new File(theIndex.getIndexPath());
+		walFile = new File(theIndex.getIndexPath() + "-wal");
+	}
+
+	/**
+	 * @param shortName integer crawl short-name, as stored in the URLs table.
+	 * @return the crawl, or null if the Crawls table has no such shortName.
+	 * @throws SQLiteException if the catalog had to be (re)loaded and the query failed.
+	 * @throws DataFormatException if the (re)loaded Crawls table has a crawl without a name.
+	 */
+	CrawlSpec get(int shortName) throws SQLiteException, DataFormatException {
+		refreshIfStale();
+		return crawls.get(shortName);
+	}
+
+	/**
+	 * @return all crawls in the catalog, in shortName order.
+	 */
+	List<CrawlSpec> getAll() throws SQLiteException, DataFormatException {
+		refreshIfStale();
+		return crawls.getAll();
+	}
+
+	/**
+	 * Reload the Crawls table if this is the first use, or if the index
+	 * file changed since the last load. Cheap when called more often than
+	 * once every REFRESH_CHECK_INTERVAL msecs.
+	 */
+	void refreshIfStale() throws SQLiteException, DataFormatException {
+		if (loaded) {
+			if (index.immutable)
+				return;
+			long now = System.nanoTime();
+			if (now - nextCheckNanos < 0)
+				return;
+			nextCheckNanos = now + REFRESH_CHECK_INTERVAL * 1000000L;
+			if (indexFile.lastModified() == loadedModTime &&
+				indexFile.length() == loadedLength &&
+				walFile.lastModified() == loadedWalModTime &&
+				walFile.length() == loadedWalLength)
+				return;
+		}
+		load();
+	}
+
+	/**
+	 * Unconditionally read the whole Crawls table into a new Table.
+	 */
+	void load() throws SQLiteException, DataFormatException {
+		// Record file state before reading, so that a change made
+		// during the read triggers another load:
+		long modTime = indexFile.lastModified();
+		long length = indexFile.length();
+		long walModTime = walFile.lastModified();
+		long walLength = walFile.length();
+
+		ArrayList<CrawlSpec> found = new ArrayList<CrawlSpec>();
+		SQLiteStatement allCrawlsQuery = null;
+		try {
+			allCrawlsQuery = index.statementCache.checkOut(ALL_CRAWLS_QUERY);
+			while (StatementCache.step(allCrawlsQuery)) {
+				int shortName = allCrawlsQuery.columnInt(ALL_CRAWLS_SHORT_NAME_POS);
+				String fullName = allCrawlsQuery.columnString(ALL_CRAWLS_NAME_POS);
+				if (fullName == null || fullName.length() == 0)
+					throw new DataFormatException("Full crawl name is null or empty in table Crawls for crawlID " + shortName);
+				if (shortName < 0)
+					throw new DataFormatException("Negative shortName " + shortName + " in table Crawls for crawl " + fullName);
+				String earliestDate = allCrawlsQuery.columnString(ALL_CRAWLS_START_DATE_POS);
+				String latestDate = allCrawlsQuery.columnString(ALL_CRAWLS_END_DATE_POS);
+				long earliestTime = WBDateTime.NO_TIME;
+				long latestTime = WBDateTime.NO_TIME;
+				try {
+					if (earliestDate != null && earliestDate.length() > 0)
+						earliestTime = WBDateTime.parseEpochSeconds(earliestDate);
+					if (latestDate != null && latestDate.length() > 0)
+						latestTime = WBDateTime.parseEpochSeconds(latestDate);
+				} catch (NumberFormatException e) {
+					throw new DataFormatException(e.getMessage() + " Crawl: " + fullName);
+				}
+				found.add(new CrawlSpec(Integer.toString(shortName), fullName, earliestTime, latestTime));
+			}
+		} finally {
+			index.statementCache.checkIn(allCrawlsQuery);
+		}
+
+		crawls = new Table(found);
+		loadedModTime = modTime;
+		loadedLength = length;
+		loadedWalModTime = walModTime;
+		loadedWalLength = walLength;
+		nextCheckNanos = System.nanoTime() + REFRESH_CHECK_INTERVAL * 1000000L;
+		loaded = true;
+		numLoads++;
+	}
+
+	/**
+	 * @return number of times the Crawls table was read.
+	 */
+	long getNumLoads() {
+		return numLoads;
+	}
+
+	public String toString() {
+		return "CrawlCatalog[" + indexFile.getPath() + ": " + crawls.size() + " crawls, " + numLoads + " loads]";
+	}
+
+	/**
+	 * Immutable lookup table of crawls by integer shortName. ShortNames
+	 * are normally numbered from 0, so the table is an array indexed by
+	 * shortName. If they are sparse, e.g. a few crawls with large
+	 * shortNames, the table is a map instead, so that its size follows
+	 * the number of crawls rather than the largest shortName.
+	 */
+	static final class Table {
+
+		static final Table EMPTY = new Table(new ArrayList<CrawlSpec>());
+
+		/* Max array slots per crawl before the table switches to a map */
+		private static final int MAX_SLOTS_PER_CRAWL = 4;
+		/* Arrays of up to this many slots are used regardless of density */
+		private static final int MIN_ARRAY_SLOTS = 64;
+
+		// Exactly one of these is non-null:
+		private final CrawlSpec[] dense;
+		private final HashMap<Integer, CrawlSpec> sparse;
+		// In shortName order:
+		private final List<CrawlSpec> all;
+
+		/**
+		 * @param crawls crawls with non-negative integer shortNames, in any
+		 *        order. Of several crawls with the same shortName, the last wins.
+		 */
+		Table(List<CrawlSpec> crawls) {
+			HashMap<Integer, CrawlSpec> byShortName = new HashMap<Integer, CrawlSpec>();
+			int maxShortName = -1;
+			for (CrawlSpec crawl : crawls) {
+				int shortName = Integer.parseInt(crawl.shortName);
+				byShortName.put(shortName, crawl);
+				maxShortName = Math.max(maxShortName, shortName);
+			}
+			ArrayList<CrawlSpec> sorted = new ArrayList<CrawlSpec>(byShortName.values());
+			Collections.sort(sorted, new Comparator<CrawlSpec>() {
+				public int compare(CrawlSpec a, CrawlSpec b) {
+					return Integer.compare(Integer.parseInt(a.shortName), Integer.parseInt(b.shortName));
+				}
+			});
+			all = Collections.unmodifiableList(sorted);
+			long numSlots = (long) maxShortName + 1;
+			if (numSlots <= Math.max(MIN_ARRAY_SLOTS, (long) MAX_SLOTS_PER_CRAWL * sorted.size())) {
+				dense = new CrawlSpec[(int) numSlots];
+				for (CrawlSpec crawl : sorted)
+					dense[Integer.parseInt(crawl.shortName)] = crawl;
+				sparse = null;
+			} else {
+				dense = null;
+				sparse = byShortName;
+			}
+		}
+
+		/**
+		 * @return the crawl with the given shortName; null if there is none.
+		 */
+		CrawlSpec get(int shortName) {
+			if (dense == null)
+				return sparse.get(shortName);
+			if (shortName < 0 || shortName >= dense.length)
+				return null;
+			return dense[shortName];
+		}
+
+		/**
+		 * @return all crawls, in shortName order. The list is unmodifiable.
+		 */
+		List<CrawlSpec> getAll() {
+			return all;
+		}
+
+		int size() {
+			return all.size();
+		}
+
+		/**
+		 * @return true if the table is a map rather than an array.
+		 */
+		boolean isSparse() {
+			return dense == null;
+		}
+	}
+}
@@ -0,0 +1,939 @@
+package edu.stanford.arcspread;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Loads one crawl's log into a WebBase index: appends the log's lines
+ * to the crawl's Crawl_* table, registers the crawl in the Crawls
+ * table, and merges each capture into the URLs row of its URL.
+ *
+ * A crawl log has one capture per line: time, domain and path,
+ * separated by tabs, or else by commas, as in
+ *
+ *   2012-05-07 02:55:13,http://agr.wa.gov/Marketing,AgFairs
+ *
+ * Lines whose time does not parse, such as a CSV header, are skipped
+ * and counted. Without log files, the ingester reads the crawl's
+ * existing Crawl_* table instead, and only (re)builds URLs rows.
+ *
+ * The work is pipelined. The calling thread reads the log in one
+ * streaming pass, and hands blocks of BLOCK_SIZE lines to a pool of
+ * parser threads. These split the lines, parse the times, compute SURT
+ * keys if the index has them, and sort each block by URL. The calling
+ * thread collects parsed blocks into runs of about RUN_SIZE captures,
+ * and then merges each run into the URLs table as follows:
+ *
+ * - The run's sorted blocks are merged, so that each URL's captures
+ *   arrive together, in URL order.
+ * - This stream is joined with an ordered cursor over the URLs table,
+ *   which a second connection reads from a WAL snapshot. When the next
+ *   URL is not among the cursor's next MAX_MERGE_STEPS rows, the
+ *   cursor seeks instead, so that sparse runs do not scan the table.
+ * - Each URL's row is rewritten at most once per run, with all of its
+ *   new captures. Rows are located by the join rather than looked up.
+ *   Captures that the row already holds are not added twice, so URLs
+ *   rows survive a log being loaded again. (The Crawl_* table does
+ *   not; to rebuild URLs rows, run without log files.)
+ *
+ * On an index in the normalized layout (see CapturesMigrator) there is
+ * no row to rewrite: each URL's new captures are appended to the
+ * Captures table, and new URLs to URLDictionary. The Captures index
+ * turns away captures that are already there, and the URLs table is
+ * left alone.
+ *
+ * All writes go through one connection, in WAL mode, in transactions
+ * of TRANSACTION_SIZE rows. The packed capture columns and the surt
+ * column are maintained when the index has them. Throughput is
+ * reported in rows/sec every PROGRESS_INTERVAL msecs and at the end.
+ *
+ * Usage: CrawlIngester [-threads n] indexPath crawlName [logFile ...]
+ * crawlName is the Crawls table's name, e.g. state-05-2012-text, whose
+ * log table is Crawl_state_05_2012. Log files ending in .gz are
+ * decompressed; "-" reads standard input.
+ *
+ * @author Paepcke
+ *
+ */
+public class CrawlIngester {
+
+	/* # of log lines parsed as one unit by a parser thread */
+	static int BLOCK_SIZE = 8192;
+	/* # of captures collected before they are merged into URLs; bounds memory */
+	static int RUN_SIZE = 1 << 21;
+	/* # of rows written per transaction */
+	static int TRANSACTION_SIZE = 50000;
+	/* # of URLs rows the merge steps over before it seeks instead */
+	static int MAX_MERGE_STEPS = 32;
+	/* Msecs between progress reports */
+	static long PROGRESS_INTERVAL = 5000;
+
+	static final Charset LOG_CHARSET = Charset.forName("UTF-8");
+
+	private static final String CRAWL_QUERY = "SELECT shortName,startDate,endDate FROM Crawls WHERE crawlName=?";
+	private static final String MAX_SHORT_NAME_QUERY = "SELECT max(shortName) FROM Crawls";
+	private static final String INSERT_CRAWL = "INSERT INTO Crawls(crawlName,startDate,endDate,shortName) VALUES(?,?,?,?)";
+	private static final String UPDATE_CRAWL_DATES = "UPDATE Crawls SET startDate=?,endDate=? WHERE crawlName=?";
+
+	private static final String MERGE_QUERY = "SELECT rowid,url,datesCrawled,crawlIDs FROM URLs WHERE url >= ? ORDER BY url";
+	private static final int MERGE_ROWID_POS = 0;
+	private static final int MERGE_URL_POS = 1;
+	private static final int MERGE_DATES_POS = 2;
+	private static final int MERGE_CRAWL_IDS_POS = 3;
+
+	private static final String INSERT_CAPTURE = "INSERT OR IGNORE INTO Captures(urlID,crawlID,captureTime) VALUES(?,?,?)";
+
+	/**
+	 * One capture from the log. Ordered by URL, in the order SQLite's
+	 * BINARY collation gives the URLs table, then by time.
+	 */
+	static final class Capture implements Comparable<Capture> {
+		final String url;
+		// Null if the index has no SURT keys:
+		final String surt;
+		final long time;
+
+		Capture(String theURL, String theSURT, long theTime) {
+			url = theURL;
+			surt = theSURT;
+			time = theTime;
+		}
+
+		public int compareTo(Capture other) {
+			int cmp = compareURLs(url, other.url);
+			return (cmp != 0) ? cmp : Long.compare(time, other.time);
+		}
+	}
+
+	/**
+	 * A block of log lines after parsing: its captures, sorted, plus the
+	 * fields of the Crawl_* table rows that record them.
+	 */
+	static final class ParsedBlock {
+		final Capture[] captures;
+		// domain and path of each capture, in line order; null if the
+		// lines came from the Crawl_* table:
+		final String[] domains;
+		final String[] paths;
+		final long[] times;
+		final int numSkipped;
+
+		ParsedBlock(Capture[] theCaptures, String[] theDomains, String[] thePaths, long[] theTimes, int theNumSkipped) {
+			captures = theCaptures;
+			domains = theDomains;
+			paths = thePaths;
+			times = theTimes;
+			numSkipped = theNumSkipped;
+		}
+	}
+
+	/**
+	 * Source of log lines, read in blocks by the calling thread.
+	 */
+	interface LineSource {
+		/**
+		 * @return up to BLOCK_SIZE lines; null when the source is exhausted.
+		 */
+		String[] nextBlock() throws IOException, SQLiteException;
+
+		void close();
+	}
+
+	String indexPath;
+	String crawlName;
+	int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	// All writes; in WAL mode:
+	private WBIndex writer = null;
+	// Reads the URLs table for the merge, from the snapshot of the last commit:
+	private WBIndex reader = null;
+	private SQLiteStatement mergeQuery = null;
+	private boolean mergePositioned = false;
+	private boolean mergeExhausted = false;
+	private String mergeURL = null;
+
+	private SQLiteStatement insertLogRow = null;
+	private SQLiteStatement insertURL = null;
+	private SQLiteStatement updateURL = null;
+	// Normalized layout only:
+	private SQLiteStatement urlIDQuery = null;
+	private SQLiteStatement insertCapture = null;
+	private int numUncommitted = 0;
+	private boolean inTransaction = false;
+
+	private int crawlShortName;
+	private long earliestTime = Long.MAX_VALUE;
+	private long latestTime = Long.MIN_VALUE;
+
+	private long startNanos;
+	private long numLines = 0;
+	private long numSkipped = 0;
+	private long numCaptures = 0;
+	private long numDuplicates = 0;
+	private long numNewURLs = 0;
+	private long numUpdatedURLs = 0;
+
+	public CrawlIngester(String theIndexPath, String theCrawlName) {
+		indexPath = theIndexPath;
+		crawlName = theCrawlName;
+	}
+
+	public void setNumThreads(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("Need at least one parser thread; was " + n);
+		numThreads = n;
+	}
+
+	/**
+	 * @param crawlName e.g. "state-05-2012-text".
+	 * @return name of the crawl's log table, e.g. "Crawl_state_05_2012".
+	 */
+	static String crawlTableName(String crawlName) {
+		String name = crawlName.endsWith("-text") ? crawlName.substring(0, crawlName.length() - 5) : crawlName;
+		StringBuilder result = new StringBuilder("Crawl_");
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			result.append((Character.isLetterOrDigit(c) && c < 128) ? c : '_');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Ingest the given crawl logs, or, if there are none, the crawl's
+	 * Crawl_* table.
+	 * @return number of captures ingested, duplicates included.
+	 * @throws SQLiteException
+	 * @throws IOException if a log file cannot be read.
+	 * @throws DataFormatException if an existing URLs row is malformed.
+	 */
+	public long ingest(List<String> logFiles) throws SQLiteException, IOException, DataFormatException {
+		startNanos = System.nanoTime();
+		boolean fromTable = logFiles.isEmpty();
+		String tableName = crawlTableName(crawlName);
+		writer = new WBIndex(indexPath, false);
+		writer.verbose = 0;
+		writer.indexDB.exec("PRAGMA journal_mode=WAL");
+		writer.indexDB.exec("PRAGMA synchronous=NORMAL");
+		reader = new WBIndex(indexPath, true);
+		reader.verbose = 0;
+		LineSource source = null;
+		ExecutorService parsers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private int n = 0;
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ingest parser #" + n++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			crawlShortName = registerCrawl();
+			if (fromTable) {
+				source = new TableSource(tableName);
+			} else {
+				writer.indexDB.exec("CREATE TABLE IF NOT EXISTS " + tableName +
+									"\n(time INTEGER(8),\ndomain TEXT(128),\nurl TEXT(4096))");
+				insertLogRow = writer.indexDB.prepare("INSERT INTO " + tableName + "(time,domain,url) VALUES(?,?,?)", false);
+				source = new FileSource(logFiles);
+			}
+			if (writer.hasNormalizedCaptures())
+				prepareCaptureWrites();
+			else
+				prepareURLWrites();
+
+			final boolean withSURTs = writer.hasSURTKeys();
+			final boolean keepLogFields = !fromTable;
+			ArrayDeque<Future<ParsedBlock>> pending = new ArrayDeque<Future<ParsedBlock>>();
+			ArrayList<ParsedBlock> run = new ArrayList<ParsedBlock>();
+			int runSize = 0;
+			long nextReport = System.currentTimeMillis() + PROGRESS_INTERVAL;
+			boolean sourceDone = false;
+			while (true) {
+				// Keep every parser busy, and a block in reserve for each:
+				while (!sourceDone && pending.size() < 2 * numThreads) {
+					final String[] lines = source.nextBlock();
+					if (lines == null) {
+						sourceDone = true;
+						break;
+					}
+					numLines += lines.length;
+					pending.add(parsers.submit(new Callable<ParsedBlock>() {
+						public ParsedBlock call() {
+							return parseBlock(lines, withSURTs, keepLogFields);
+						}
+					}));
+				}
+				if (pending.isEmpty())
+					break;
+				ParsedBlock block = await(pending.poll());
+				numSkipped += block.numSkipped;
+				numCaptures += block.captures.length;
+				if (keepLogFields)
+					appendLogRows(block);
+				for (long time : block.times) {
+					earliestTime = Math.min(earliestTime, time);
+					latestTime = Math.max(latestTime, time);
+				}
+				run.add(block);
+				runSize += block.captures.length;
+				if (runSize >= RUN_SIZE) {
+					mergeRun(run);
+					run.clear();
+					runSize = 0;
+				}
+				if (System.currentTimeMillis() >= nextReport) {
+					report("Ingesting");
+					nextReport = System.currentTimeMillis() + PROGRESS_INTERVAL;
+				}
+			}
+			mergeRun(run);
+			updateCrawlDates();
+			commit();
+			writer.indexDB.exec("PRAGMA wal_checkpoint");
+			report("Ingested");
+			return numCaptures;
+		} finally {
+			parsers.shutdownNow();
+			if (source != null)
+				source.close();
+			if (inTransaction) {
+				try {
+					writer.indexDB.exec("ROLLBACK");
+				} catch (SQLiteException e) {
+					// Already reported by whatever left the transaction open
+				}
+			}
+			for (SQLiteStatement st : new SQLiteStatement[] { insertLogRow, insertURL, updateURL, mergeQuery,
+															  urlIDQuery, insertCapture })
+				if (st != null)
+					st.dispose();
+			reader.close();
+			writer.close();
+		}
+	}
+
+	private static ParsedBlock await(Future<ParsedBlock> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a parser thread.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("Parser thread failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Parse one block of log lines. Runs on a parser thread.
+	 */
+	static ParsedBlock parseBlock(String[] lines, boolean withSURTs, boolean keepLogFields) {
+		Capture[] captures = new Capture[lines.length];
+		String[] domains = keepLogFields ? new String[lines.length] : null;
+		String[] paths = keepLogFields ? new String[lines.length] : null;
+		long[] times = new long[lines.length];
+		int numParsed = 0;
+		for (String line : lines) {
+			char separator = (line.indexOf('\t') >= 0) ? '\t' : ',';
+			int timeEnd = line.indexOf(separator);
+			if (timeEnd < 0)
+				continue;
+			int domainEnd = line.indexOf(separator, timeEnd + 1);
+			long time;
+			try {
+				time = WBDateTime.parseEpochSeconds(unquote(line.substring(0, timeEnd)));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			String domain = unquote((domainEnd < 0) ? line.substring(timeEnd + 1) : line.substring(timeEnd + 1, domainEnd));
+			String path = (domainEnd < 0) ? "" : unquote(line.substring(domainEnd + 1));
+			if (domain.length() == 0)
+				continue;
+			String url = joinURL(domain, path);
+			captures[numParsed] = new Capture(url, withSURTs ? SURT.canonicalize(url) : null, time);
+			times[numParsed] = time;
+			if (keepLogFields) {
+				domains[numParsed] = domain;
+				paths[numParsed] = path;
+			}
+			numParsed++;
+		}
+		if (numParsed < lines.length) {
+			captures = Arrays.copyOf(captures, numParsed);
+			times = Arrays.copyOf(times, numParsed);
+		}
+		Arrays.sort(captures);
+		return new ParsedBlock(captures, domains, paths, times, lines.length - numParsed);
+	}
+
+	private static String unquote(String field) {
+		String s = field.trim();
+		if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"')
+			s = s.substring(1, s.length() - 1).replace("\"\"", "\"");
+		return s;
+	}
+
+	/**
+	 * @return the URL a log line's domain and path stand for; e.g.
+	 * "http://agr.wa.gov/Marketing" and "AgFairs" make
+	 * "http://agr.wa.gov/Marketing/AgFairs", and an empty path leaves
+	 * the domain as is.
+	 */
+	static String joinURL(String domain, String path) {
+		if (path.length() == 0)
+			return domain;
+		boolean domainSlash = domain.endsWith("/");
+		boolean pathSlash = path.startsWith("/");
+		if (domainSlash && pathSlash)
+			return domain + path.substring(1);
+		if (domainSlash || pathSlash)
+			return domain + path;
+		return domain + '/' + path;
+	}
+
+	/**
+	 * Compare URLs in the order of SQLite's BINARY collation on their
+	 * UTF-8 encodings, i.e. by code point. String.compareTo() differs
+	 * where surrogate pairs meet chars above U+D7FF.
+	 */
+	static int compareURLs(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		for (int i = 0; i < n; i++) {
+			char ca = a.charAt(i);
+			char cb = b.charAt(i);
+			if (ca != cb) {
+				// A surrogate stands for a code point above every other char:
+				boolean surrogateA = Character.isSurrogate(ca);
+				if (surrogateA != Character.isSurrogate(cb))
+					return surrogateA ? 1 : -1;
+				return ca - cb;
+			}
+		}
+		return a.length() - b.length();
+	}
+
+	private void appendLogRows(ParsedBlock block) throws SQLiteException {
+		for (int i = 0; i < block.times.length; i++) {
+			insertLogRow.reset(true);
+			insertLogRow.bind(1, WBDateTime.formatDateTime(block.times[i]));
+			insertLogRow.bind(2, block.domains[i]);
+			insertLogRow.bind(3, block.paths[i]);
+			insertLogRow.stepThrough();
+			rowWritten();
+		}
+	}
+
+	/**
+	 * A ParsedBlock's position during the merge of a run.
+	 */
+	private static final class BlockCursor implements Comparable<BlockCursor> {
+		final Capture[] captures;
+		int pos = 0;
+
+		BlockCursor(Capture[] theCaptures) {
+			captures = theCaptures;
+		}
+
+		public int compareTo(BlockCursor other) {
+			return captures[pos].compareTo(other.captures[other.pos]);
+		}
+	}
+
+	/**
+	 * Merge the captures of a run of parsed blocks into the URLs table,
+	 * or, on a normalized index, append them to the Captures table.
+	 */
+	private void mergeRun(List<ParsedBlock> run) throws SQLiteException, DataFormatException {
+		boolean normalized = writer.hasNormalizedCaptures();
+		PriorityQueue<BlockCursor> heap = new PriorityQueue<BlockCursor>(Math.max(1, run.size()));
+		for (ParsedBlock block : run)
+			if (block.captures.length > 0)
+				heap.add(new BlockCursor(block.captures));
+		if (heap.isEmpty())
+			return;
+
+		if (!normalized) {
+			// The reader must see everything written so far:
+			commit();
+			reader.indexDB.exec("BEGIN");
+		}
+		mergePositioned = false;
+		mergeExhausted = false;
+		try {
+			String url = null;
+			String surt = null;
+			long[] times = new long[16];
+			int numTimes = 0;
+			while (!heap.isEmpty()) {
+				BlockCursor cursor = heap.poll();
+				Capture capture = cursor.captures[cursor.pos++];
+				if (cursor.pos < cursor.captures.length)
+					heap.add(cursor);
+				if (url != null && !url.equals(capture.url)) {
+					if (normalized)
+						appendCaptures(url, surt, times, numTimes);
+					else
+						mergeURL(url, surt, times, numTimes);
+					numTimes = 0;
+				}
+				url = capture.url;
+				surt = capture.surt;
+				// Captures of a URL arrive in time order; drop repeats:
+				if (numTimes > 0 && times[numTimes - 1] == capture.time) {
+					numDuplicates++;
+					continue;
+				}
+				if (numTimes == times.length)
+					times = Arrays.copyOf(times, 2 * numTimes);
+				times[numTimes++] = capture.time;
+			}
+			if (normalized)
+				appendCaptures(url, surt, times, numTimes);
+			else
+				mergeURL(url, surt, times, numTimes);
+		} finally {
+			if (!normalized) {
+				if (mergeQuery != null)
+					mergeQuery.reset(true);
+				reader.indexDB.exec("COMMIT");
+			}
+		}
+		commit();
+	}
+
+	/**
+	 * Append the capture times of one URL to the Captures table, entering
+	 * the URL into URLDictionary if it is not there yet.
+	 */
+	private void appendCaptures(String url, String surt, long[] times, int numTimes) throws SQLiteException {
+		long urlID = -1;
+		urlIDQuery.reset(true);
+		urlIDQuery.bind(1, url);
+		if (urlIDQuery.step())
+			urlID = urlIDQuery.columnLong(0);
+		urlIDQuery.reset(true);
+		boolean isNew = (urlID < 0);
+		if (isNew) {
+			insertURL.reset(true);
+			insertURL.bind(1, url);
+			if (writer.hasSURTKeys())
+				insertURL.bind(2, (surt != null) ? surt : SURT.canonicalize(url));
+			insertURL.stepThrough();
+			urlID = writer.indexDB.getLastInsertId();
+			rowWritten();
+		}
+		int numAdded = 0;
+		for (int i = 0; i < numTimes; i++) {
+			insertCapture.reset(true);
+			insertCapture.bind(1, urlID);
+			insertCapture.bind(2, crawlShortName);
+			insertCapture.bind(3, times[i]);
+			insertCapture.stepThrough();
+			if (writer.indexDB.getChanges() == 0) {
+				numDuplicates++;
+				continue;
+			}
+			numAdded++;
+			rowWritten();
+		}
+		if (isNew)
+			numNewURLs++;
+		else if (numAdded > 0)
+			numUpdatedURLs++;
+	}
+
+	/**
+	 * Add the new capture times of one URL to its URLs row, creating the
+	 * row if there is none.
+	 */
+	private void mergeURL(String url, String surt, long[] times, int numTimes) throws SQLiteException, DataFormatException {
+		boolean exists = seek(url);
+		String datesStr = exists ? mergeQuery.columnString(MERGE_DATES_POS) : null;
+		String crawlIDsStr = exists ? mergeQuery.columnString(MERGE_CRAWL_IDS_POS) : null;
+		long[] oldTimes;
+		int[] oldCrawlIDs;
+		try {
+			oldTimes = (datesStr == null) ? new long[0] : WBIndex.parseWBIndexTimeChain(datesStr);
+			oldCrawlIDs = parseCrawlIDs(crawlIDsStr, oldTimes.length);
+		} catch (NumberFormatException e) {
+			throw new DataFormatException(e.getMessage() + " URI: " + url + "; datesCrawled: " + datesStr +
+										  "; crawlIDs: " + crawlIDsStr);
+		}
+		StringBuilder newDates = new StringBuilder((datesStr == null) ? "" : datesStr.trim());
+		StringBuilder newCrawlIDs = new StringBuilder((crawlIDsStr == null) ? "" : crawlIDsStr.trim());
+		int numAdded = appendNewCaptures(oldTimes, oldCrawlIDs, times, numTimes, crawlShortName, newDates, newCrawlIDs);
+		numDuplicates += numTimes - numAdded;
+		if (numAdded == 0)
+			return;
+
+		SQLiteStatement write = exists ? updateURL : insertURL;
+		write.reset(true);
+		int pos = 1;
+		if (!exists)
+			write.bind(pos++, url);
+		write.bind(pos++, newDates.toString());
+		write.bind(pos++, newCrawlIDs.toString());
+		if (writer.hasPackedCaptures()) {
+			byte[][] packed = PackedCaptures.packText(url, newDates.toString(), newCrawlIDs.toString());
+			write.bind(pos++, packed[0]);
+			write.bind(pos++, packed[1]);
+		}
+		if (writer.hasSURTKeys())
+			write.bind(pos++, (surt != null) ? surt : SURT.canonicalize(url));
+		if (exists)
+			write.bind(pos++, mergeQuery.columnLong(MERGE_ROWID_POS));
+		write.stepThrough();
+		if (exists)
+			numUpdatedURLs++;
+		else
+			numNewURLs++;
+		rowWritten();
+	}
+
+	/**
+	 * Move the merge cursor to the given URL's row, or just past where
+	 * it would be. URLs must be asked for in ascending order.
+	 * @return true if the URLs table has a row for the URL.
+	 */
+	private boolean seek(String url) throws SQLiteException {
+		if (mergePositioned) {
+			if (mergeExhausted)
+				return false;
+			for (int steps = 0; compareURLs(mergeURL, url) < 0; steps++) {
+				if (steps == MAX_MERGE_STEPS) {
+					mergePositioned = false;
+					break;
+				}
+				if (!mergeQuery.step()) {
+					mergeExhausted = true;
+					return false;
+				}
+				mergeURL = mergeQuery.columnString(MERGE_URL_POS);
+			}
+			if (mergePositioned)
+				return mergeURL.equals(url);
+		}
+		// Seek through the primary key index:
+		if (mergeQuery == null)
+			mergeQuery = reader.indexDB.prepare(MERGE_QUERY, false);
+		mergeQuery.reset(true);
+		mergeQuery.bind(1, url);
+		mergePositioned = true;
+		if (!mergeQuery.step()) {
+			mergeExhausted = true;
+			return false;
+		}
+		mergeURL = mergeQuery.columnString(MERGE_URL_POS);
+		return mergeURL.equals(url);
+	}
+
+	private static int[] parseCrawlIDs(String crawlIDsStr, int numExpected) {
+		int[] result = new int[numExpected];
+		if (crawlIDsStr == null)
+			return result;
+		String[] ids = crawlIDsStr.split(";");
+		for (int i = 0; i < numExpected && i < ids.length; i++)
+			result[i] = Integer.parseInt(ids[i].trim());
+		return result;
+	}
+
+	/**
+	 * Append to a URLs row's date and crawl ID chains the new captures
+	 * that the row does not hold yet. The row's captures are sorted by
+	 * time, then walked once alongside the new times.
+	 * @param oldTimes times the row holds; sorted in place.
+	 * @param oldCrawlIDs crawl IDs the row holds, parallel to oldTimes; sorted along.
+	 * @param times new capture times, ascending, without repeats.
+	 * @param crawlID crawl short-name of the new captures.
+	 * @return number of captures appended; the others were duplicates.
+	 */
+	static int appendNewCaptures(long[] oldTimes, int[] oldCrawlIDs, long[] times, int numTimes, int crawlID,
+								 StringBuilder dates, StringBuilder crawlIDs) {
+		PackedCaptures.sortByTime(oldTimes, oldCrawlIDs);
+		int numAdded = 0;
+		int j = 0;
+		for (int i = 0; i < numTimes; i++) {
+			long time = times[i];
+			while (j < oldTimes.length && oldTimes[j] < time)
+				j++;
+			boolean held = false;
+			for (int k = j; k < oldTimes.length && oldTimes[k] == time; k++) {
+				if (oldCrawlIDs[k] == crawlID) {
+					held = true;
+					break;
+				}
+			}
+			if (held)
+				continue;
+			if (dates.length() > 0) {
+				dates.append(';');
+				crawlIDs.append(';');
+			}
+			WBDateTime.appendDateTime(time, dates);
+			crawlIDs.append(crawlID);
+			numAdded++;
+		}
+		return numAdded;
+	}
+
+	private void prepareURLWrites() throws SQLiteException {
+		StringBuilder cols = new StringBuilder("datesCrawled,crawlIDs");
+		if (writer.hasPackedCaptures())
+			cols.append(',').append(WBIndex.PACKED_TIMES_COL).append(',').append(WBIndex.PACKED_CRAWL_IDS_COL);
+		if (writer.hasSURTKeys())
+			cols.append(',').append(WBIndex.SURT_COL);
+		String[] colNames = cols.toString().split(",");
+		StringBuilder insert = new StringBuilder("INSERT INTO URLs(url,").append(cols).append(") VALUES(?");
+		StringBuilder update = new StringBuilder("UPDATE URLs SET ");
+		for (int i = 0; i < colNames.length; i++) {
+			insert.append(",?");
+			update.append((i == 0) ? "" : ",").append(colNames[i]).append("=?");
+		}
+		insert.append(')');
+		update.append(" WHERE rowid=?");
+		insertURL = writer.indexDB.prepare(insert.toString(), false);
+		updateURL = writer.indexDB.prepare(update.toString(), false);
+	}
+
+	private void prepareCaptureWrites() throws SQLiteException {
+		boolean withSURTs = writer.hasSURTKeys();
+		urlIDQuery = writer.indexDB.prepare("SELECT urlID FROM URLDictionary WHERE url=?", false);
+		insertURL = writer.indexDB.prepare("INSERT INTO URLDictionary(url" + (withSURTs ? "," + WBIndex.SURT_COL : "") +
+										   ") VALUES(?" + (withSURTs ? ",?" : "") + ")", false);
+		insertCapture = writer.indexDB.prepare(INSERT_CAPTURE, false);
+	}
+
+	/**
+	 * @return the crawl's short-name; a new one if the Crawls table does
+	 * not list the crawl yet.
+	 */
+	private int registerCrawl() throws SQLiteException {
+		SQLiteStatement query = writer.indexDB.prepare(CRAWL_QUERY, false);
+		try {
+			query.bind(1, crawlName);
+			if (query.step()) {
+				String startDate = query.columnString(1);
+				String endDate = query.columnString(2);
+				try {
+					if (startDate != null && startDate.length() > 0)
+						earliestTime = WBDateTime.parseEpochSeconds(startDate);
+					if (endDate != null && endDate.length() > 0)
+						latestTime = WBDateTime.parseEpochSeconds(endDate);
+				} catch (NumberFormatException e) {
+					// Replaced by the dates of the captures ingested
+				}
+				return query.columnInt(0);
+			}
+		} finally {
+			query.dispose();
+		}
+		int shortName = 0;
+		query = writer.indexDB.prepare(MAX_SHORT_NAME_QUERY, false);
+		try {
+			if (query.step() && !query.columnNull(0))
+				shortName = query.columnInt(0) + 1;
+		} finally {
+			query.dispose();
+		}
+		SQLiteStatement insert = writer.indexDB.prepare(INSERT_CRAWL, false);
+		try {
+			insert.bind(1, crawlName);
+			insert.bindNull(2);
+			insert.bindNull(3);
+			insert.bind(4, shortName);
+			insert.stepThrough();
+		} finally {
+			insert.dispose();
+		}
+		System.out.println("Registered crawl " + crawlName + " under short-name " + shortName + ".");
+		return shortName;
+	}
+
+	private void updateCrawlDates() throws SQLiteException {
+		if (earliestTime > latestTime)
+			return;
+		SQLiteStatement update = writer.indexDB.prepare(UPDATE_CRAWL_DATES, false);
+		try {
+			update.bind(1, WBDateTime.formatDateTime(earliestTime));
+			update.bind(2, WBDateTime.formatDateTime(latestTime));
+			update.bind(3, crawlName);
+			update.stepThrough();
+		} finally {
+			update.dispose();
+		}
+	}
+
+	private void rowWritten() throws SQLiteException {
+		if (!inTransaction) {
+			writer.indexDB.exec("BEGIN");
+			inTransaction = true;
+		}
+		if (++numUncommitted >= TRANSACTION_SIZE)
+			commit();
+	}
+
+	private void commit() throws SQLiteException {
+		if (!inTransaction)
+			return;
+		writer.indexDB.exec("COMMIT");
+		inTransaction = false;
+		numUncommitted = 0;
+	}
+
+	private void report(String what) {
+		double secs = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-3);
+		System.out.println(String.format("%s %s: %d lines (%d skipped), %d captures (%d already present), " +
+				"%d new and %d updated URLs in %.1f s; %.0f lines/sec, %.0f URL rows/sec",
+				what, crawlName, numLines, numSkipped, numCaptures, numDuplicates, numNewURLs, numUpdatedURLs,
+				secs, numLines / secs, (numNewURLs + numUpdatedURLs) / secs));
+	}
+
+	public long getNumLines() {
+		return numLines;
+	}
+
+	public long getNumSkipped() {
+		return numSkipped;
+	}
+
+	public long getNumCaptures() {
+		return numCaptures;
+	}
+
+	public long getNumDuplicates() {
+		return numDuplicates;
+	}
+
+	public long getNumNewURLs() {
+		return numNewURLs;
+	}
+
+	public long getNumUpdatedURLs() {
+		return numUpdatedURLs;
+	}
+
+	/**
+	 * Reads log files one after the other, line by line.
+	 */
+	private static final class FileSource implements LineSource {
+		private final ArrayDeque<String> files;
+		private BufferedReader in = null;
+
+		FileSource(List<String> logFiles) {
+			files = new ArrayDeque<String>(logFiles);
+		}
+
+		public String[] nextBlock() throws IOException {
+			ArrayList<String> lines = new ArrayList<String>(BLOCK_SIZE);
+			while (lines.size() < BLOCK_SIZE) {
+				if (in == null) {
+					if (files.isEmpty())
+						break;
+					in = open(files.poll());
+				}
+				String line = in.readLine();
+				if (line == null) {
+					in.close();
+					in = null;
+					continue;
+				}
+				lines.add(line);
+			}
+			return lines.isEmpty() ? null : lines.toArray(new String[lines.size()]);
+		}
+
+		private static BufferedReader open(String path) throws IOException {
+			InputStream stream = "-".equals(path) ? System.in : new FileInputStream(new File(path));
+			if (path.endsWith(".gz"))
+				stream = new GZIPInputStream(stream, 1 << 16);
+			return new BufferedReader(new InputStreamReader(stream, LOG_CHARSET), 1 << 16);
+		}
+
+		public void close() {
+			if (in == null)
+				return;
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing left to read from it anyway
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows of a Crawl_* table, in storage order, as tab-separated
+	 * lines. Uses its own connection.
+	 */
+	private final class TableSource implements LineSource {
+		private final WBIndex tableIndex;
+		private final SQLiteStatement rows;
+		// Stepping a finished statement would start it over:
+		private boolean done = false;
+
+		TableSource(String tableName) throws SQLiteException {
+			tableIndex = new WBIndex(indexPath, true);
+			rows = tableIndex.indexDB.prepare("SELECT time,domain,url FROM " + tableName, false);
+		}
+
+		public String[] nextBlock() throws SQLiteException {
+			ArrayList<String> lines = new ArrayList<String>(BLOCK_SIZE);
+			StringBuilder line = new StringBuilder();
+			while (!done && lines.size() < BLOCK_SIZE) {
+				if (!rows.step()) {
+					done = true;
+					break;
+				}
+				line.setLength(0);
+				for (int col = 0; col < 3; col++) {
+					String value = rows.columnString(col);
+					line.append((col == 0) ? "" : "\t").append((value == null) ? "" : value);
+				}
+				lines.add(line.toString());
+			}
+			return lines.isEmpty() ? null : lines.toArray(new String[lines.size()]);
+		}
+
+		public void close() {
+			rows.dispose();
+			tableIndex.close();
+		}
+	}
+
+	public static void main(String[] args) throws SQLiteException, IOException, DataFormatException {
+		int argPos = 0;
+		int numThreads = -1;
+		if (args.length > 1 && "-threads".equals(args[0])) {
+			numThreads = Integer.parseInt(args[1]);
+			argPos = 2;
+		}
+		if (args.length - argPos < 2) {
+			System.out.println("Usage: CrawlIngester [-threads n] indexPath crawlName [logFile ...]");
+			return;
+		}
+		CrawlIngester ingester = new CrawlIngester(args[argPos], args[argPos + 1]);
+		if (numThreads > 0)
+			ingester.setNumThreads(numThreads);
+		ingester.ingest(Arrays.asList(args).subList(argPos + 2, args.length));
+	}
+}
@@ -10,39 +10,64 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 
 public class HTTPCommandDispatcher implements HttpConstants,
 		PropertyChangeListener {
 
 	// For initiating shutdown:
-	private static boolean keepRunning = true; 
-	
+	private static volatile boolean keepRunning = true;
+
 	/* timeout on client connections */
 	static int CLIENT_CONNECTION_TIMEOUT = 0;
+	/* msecs a persistent connection may sit idle between requests */
+	static int KEEP_ALIVE_TIMEOUT = 5000;
+	/* max # requests answered on one connection before it is closed */
+	static int MAX_REQUESTS_PER_CONNECTION = 100;
 	/* max # worker threads */
 	static int NUM_WORKERS = 5;
+	/* max # connections the default engine serves at once: its workers plus additional ones */
+	static int MAX_CONCURRENCY = 50;
+	/* max # accepted connections that wait for a worker once MAX_CONCURRENCY are served */
+	static int MAX_QUEUED_CONNECTIONS = 1000;
+	/* max msecs a connection waits for a worker before it is shed with a 503; 0 for no limit */
+	static long MAX_QUEUE_WAIT = 2000;
+	/* secs that shed clients are asked to wait before they retry */
+	static int RETRY_AFTER_SECS = 1;
+	/* true to serve waiting connections by client address in turn; false for arrival order */
+	static boolean FAIR_QUEUEING = true;
 	static int PORT = 8080;
+	/* # threads of the executor for slow command handler work; see getHandlerExecutor() */
+	static int NUM_HANDLER_THREADS = NUM_WORKERS;
+	/* max msecs to wait for a command handler's response */
+	static long HANDLER_TIMEOUT = 30000;
 
-	final static int HTTP_TOKEN_POS_COMMAND = 0; // e.g. ["GET",
-	// "usrCmd?foo=10&bar=baz"]
-	final static int HTTP_TOKEN_POS_ALL_ARGS = 1;
-	final static int HTTP_TOKEN_POS_USER_COMMAND = 0; // e.g. ["usrCmd",
-	// "foo=10&bar=baz]
-	final static int HTTP_TOKEN_POS_USER_ARGS = 1;
-	final static int HTTP_TOKEN_POS_KEY = 0; // e.g. ["foo",10]
-	final static int HTTP_TOKEN_POS_VALUE = 1;
-
-	final static String HTTP_TOKEN_SEP = " ";
-	final static String HTTP_COMMAND_SEP = "\\?";
-	final static String HTTP_ARGS_SEP = "&";
-	final static String HTTP_ATTR_VAL_SEP = "=";
+	/* initial size of request buffers; see HTTPRequestParser.MAX_HEAD_SIZE */
+	final static int BUF_SIZE = 2048;
+	final static byte[] EOL = { (byte) '\r', (byte) '\n' };
 
 	final static String HTTP_RESPONSE_OPENING = "<html><body><h2>";
 	final static String HTTP_RESPONSE_HEADER_CLOSING = "</h2>";
@@ -51,31 +76,104 @@ public class HTTPCommandDispatcher implements HttpConstants,
 			+ HTTP_RESPONSE_HEADER_CLOSING.length()
 			+ HTTP_RESPONSE_CLOSING.length();
 
+	// What answerRequest() leaves the connection to:
+	private final static int CLOSE = 0;
+	private final static int KEEP_OPEN = 1;
+	// A handler's response is still to come; see ResponseDeferrer:
+	private final static int DEFERRED = 2;
+
+	final static String REQUEST_LATENCY_METRIC = "dispatcher_request_seconds";
+	final static String REQUEST_LATENCY_HELP = "Time to answer a request, by command; _count is the number of requests.";
+
 	private static HTTPCommandDispatcher soleInstance = null;
-	private static SocketListener sl;
 
-	/* Where worker threads stand idle */
+	/* Where worker threads stand idle. Also guards admission and numWorkerThreads */
 	protected Vector<Worker> threads = new Vector<Worker>();
+	/* Connections waiting for a worker; see SocketListener */
+	AdmissionQueue admission = null;
+	/* Live worker threads, idle or busy */
+	int numWorkerThreads = 0;
 	//protected static PropertyChangeSupport pcs = MediaController.getPropertyChangeSupport();
 	PropertyChangeSupport pcs = null;
-		
+	/* Thread-confined WebBase index connections for listeners running on worker threads */
+	WBIndexPool indexPool = null;
+	/* Command handlers by command name; commands with listeners map to listenerAdapter */
+	ConcurrentHashMap<String,CommandHandler> handlers = new ConcurrentHashMap<String,CommandHandler>();
+	private final ListenerAdapter listenerAdapter = new ListenerAdapter();
+	/* Runs slow handler work; created on first use */
+	private ExecutorService handlerExecutor = null;
+	/* Resources that write their own responses, by name */
+	ConcurrentHashMap<String,HTTPResource> resources = new ConcurrentHashMap<String,HTTPResource>();
+	/* Snapshot of 'resources', for lookups straight from request bytes */
+	private volatile ResourceTable resourceTable = new ResourceTable(new String[0], new HTTPResource[0]);
+	/* Accepts connections and runs their requests through handleRequest() */
+	ConnectionEngine engine = null;
+
+	/* Latency of each resource's and command's requests, by name; see Metrics */
+	private final ConcurrentHashMap<String,LatencyHistogram> commandLatencies =
+		new ConcurrentHashMap<String,LatencyHistogram>();
+	/* Latency of requests for the web page, i.e. without a command */
+	private final LatencyHistogram pageLatency = new LatencyHistogram();
+	/* Latency of requests that name no known command, or are malformed */
+	private final LatencyHistogram otherLatency = new LatencyHistogram();
+	private final LongAdder requestsInFlight = new LongAdder();
+	/* Workers of the default engine that are serving a connection */
+	private final AtomicInteger busyWorkers = new AtomicInteger();
+	/* Connections turned away with a 503, by reason */
+	private final LongAdder shedQueueFull = new LongAdder();
+	private final LongAdder shedQueueTimeout = new LongAdder();
+
 	String webPage = null;
 
 	public static HTTPCommandDispatcher getInstance() {
+		return getInstance(null);
+	}
+
+	/**
+	 * Return the dispatcher, creating it, and starting the given
+	 * connection engine on PORT, if this is the first call.
+	 * @param theEngine engine that accepts and runs connections; null
+	 *        for the default engine of blocking worker threads. Ignored
+	 *        if the dispatcher already exists.
+	 */
+	public static synchronized HTTPCommandDispatcher getInstance(ConnectionEngine theEngine) {
 		if (soleInstance != null)
 			return soleInstance;
-		soleInstance = new HTTPCommandDispatcher(); 
+		soleInstance = new HTTPCommandDispatcher(theEngine);
 		return soleInstance;
 	}
 
-	private HTTPCommandDispatcher() {
+	private HTTPCommandDispatcher(ConnectionEngine theEngine) {
 		initDataStructs();
-		// The -1 causes the default port to be used:
-		sl= new SocketListener(-1);
+		if (theEngine == null) {
+			// The -1 causes the default port to be used:
+			theEngine = new SocketListener(-1);
+		}
+		engine = theEngine;
 		@SuppressWarnings("unused")
 		PropertyChangeSupport pcs = new PropertyChangeSupport(this);
+		registerMetrics();
 
-		new Thread(sl).start();
+		try {
+			engine.start(this, PORT);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Create a connection engine by name.
+	 * @param name "blocking" (the default worker pool), "nio", or "virtual".
+	 * @return the engine, not yet started; null for "blocking".
+	 */
+	public static ConnectionEngine newEngine(String name) {
+		if (name == null || name.equals("blocking"))
+			return null;
+		if (name.equals("nio"))
+			return new NioConnectionEngine();
+		if (name.equals("virtual"))
+			return new VirtualThreadConnectionEngine();
+		throw new IllegalArgumentException("Unknown connection engine '" + name + "'; use blocking, nio, or virtual.");
 	}
 
 	public void initDataStructs() {
@@ -90,12 +188,195 @@ public class HTTPCommandDispatcher implements HttpConstants,
 		// We don't listen to any property changes
 	}
 
+	/**
+	 * Notify the listener of each request for the given command, via
+	 * a PropertyChangeEvent whose new value is the Command, on the
+	 * thread that serves the request. The client gets the web page.
+	 * Listeners are called through an adapter CommandHandler; if the
+	 * command has a handler of its own, they are not called.
+	 */
 	public void addListener(String command, PropertyChangeListener listener) {
 		pcs.addPropertyChangeListener(command, listener);
+		handlers.putIfAbsent(command, listenerAdapter);
+		registerCommand(command);
 	}
 
 	public void removeListener(PropertyChangeListener listener) {
 		pcs.removePropertyChangeListener(listener);
+		for (Map.Entry<String,CommandHandler> entry : handlers.entrySet()) {
+			if (entry.getValue() == listenerAdapter && !pcs.hasListeners(entry.getKey()))
+				handlers.remove(entry.getKey(), listenerAdapter);
+		}
+	}
+
+	/**
+	 * Answer requests for "/<command>?arg=value&..." with the given
+	 * handler, in place of the command's listeners, if any.
+	 */
+	public void addHandler(String command, CommandHandler handler) {
+		handlers.put(command, handler);
+		registerCommand(command);
+	}
+
+	/**
+	 * Stop answering the command with its handler. Its listeners, if
+	 * any, are called again.
+	 */
+	public void removeHandler(String command) {
+		handlers.remove(command);
+		if (pcs.hasListeners(command))
+			handlers.putIfAbsent(command, listenerAdapter);
+	}
+
+	public CommandHandler getHandler(String command) {
+		return handlers.get(command);
+	}
+
+	/**
+	 * @return executor on which command handlers may run slow work, such
+	 * as index lookups, off the connection engine's threads. Its
+	 * NUM_HANDLER_THREADS threads take WebBase index connections from
+	 * the index pool like the workers do, and return them after each
+	 * task.
+	 */
+	public synchronized ExecutorService getHandlerExecutor() {
+		if (handlerExecutor == null) {
+			handlerExecutor = new ThreadPoolExecutor(NUM_HANDLER_THREADS, NUM_HANDLER_THREADS,
+					0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private int numThreads = 0;
+
+				public synchronized Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "command handler #" + numThreads++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			}) {
+				@Override
+				protected void afterExecute(Runnable task, Throwable failure) {
+					releaseIndex();
+				}
+			};
+		}
+		return handlerExecutor;
+	}
+
+	/**
+	 * Answers the commands that have listeners rather than handlers:
+	 * notifies the listeners, before returning, and answers with the
+	 * web page.
+	 */
+	private final class ListenerAdapter implements CommandHandler {
+		public CompletableFuture<CommandResponse> handle(Command request) {
+			pcs.firePropertyChange(request.getCommandName(), null, request);
+			return CompletableFuture.completedFuture(new CommandResponse(HTTP_OK, "OK").body("text/html", webPage));
+		}
+	}
+
+	/**
+	 * Serve the given resource for all request targets of the form
+	 * "/<name>" or "/<name>/...". Resources take precedence over
+	 * command listeners of the same name.
+	 * @param name first path segment that selects the resource, e.g. "timegate".
+	 * @param resource the resource.
+	 */
+	public synchronized void addResource(String name, HTTPResource resource) {
+		resources.put(name, resource);
+		snapshotResources();
+		registerCommand(name);
+	}
+
+	public synchronized void removeResource(String name) {
+		resources.remove(name);
+		snapshotResources();
+	}
+
+	private void snapshotResources() {
+		String[] names = new String[resources.size()];
+		HTTPResource[] handlers = new HTTPResource[names.length];
+		int i = 0;
+		for (java.util.Map.Entry<String,HTTPResource> entry : resources.entrySet()) {
+			names[i] = entry.getKey();
+			handlers[i++] = entry.getValue();
+		}
+		resourceTable = new ResourceTable(names, handlers);
+	}
+
+	private static final class ResourceTable {
+		final String[] names;
+		final HTTPResource[] handlers;
+
+		ResourceTable(String[] theNames, HTTPResource[] theHandlers) {
+			names = theNames;
+			handlers = theHandlers;
+		}
+	}
+
+	/**
+	 * Register the dispatcher's instruments with Metrics: per-command
+	 * request latencies, requests in flight, and, for the default
+	 * engine, idle and busy worker counts.
+	 */
+	private void registerMetrics() {
+		Metrics.addHistogram(REQUEST_LATENCY_METRIC, REQUEST_LATENCY_HELP, Metrics.label("command", "/"), pageLatency);
+		Metrics.addHistogram(REQUEST_LATENCY_METRIC, REQUEST_LATENCY_HELP, Metrics.label("command", "other"), otherLatency);
+		Metrics.addGauge("dispatcher_requests_in_flight", "Requests being answered.", null, new LongSupplier() {
+			public long getAsLong() {
+				return requestsInFlight.sum();
+			}
+		});
+		if (!(engine instanceof SocketListener))
+			return;
+		Metrics.addGauge("dispatcher_workers", "Worker threads of the default engine.", Metrics.label("state", "idle"),
+				new LongSupplier() {
+					public long getAsLong() {
+						return threads.size();
+					}
+				});
+		Metrics.addGauge("dispatcher_workers", "Worker threads of the default engine.", Metrics.label("state", "busy"),
+				new LongSupplier() {
+					public long getAsLong() {
+						return busyWorkers.get();
+					}
+				});
+		Metrics.addGauge("dispatcher_queued_connections", "Connections waiting for a worker of the default engine.", null,
+				new LongSupplier() {
+					public long getAsLong() {
+						synchronized (threads) {
+							return (admission == null) ? 0 : admission.size();
+						}
+					}
+				});
+		Metrics.addGauge("dispatcher_queued_clients", "Client addresses with connections waiting for a worker.", null,
+				new LongSupplier() {
+					public long getAsLong() {
+						synchronized (threads) {
+							return (admission == null) ? 0 : admission.numClients();
+						}
+					}
+				});
+		String shedHelp = "Connections turned away with a 503 before a worker served them.";
+		Metrics.addCounter("dispatcher_shed_connections_total", shedHelp, Metrics.label("reason", "queue_full"), shedQueueFull);
+		Metrics.addCounter("dispatcher_shed_connections_total", shedHelp, Metrics.label("reason", "queue_timeout"), shedQueueTimeout);
+	}
+
+	private void registerCommand(String name) {
+		if (commandLatencies.containsKey(name))
+			return;
+		LatencyHistogram latency = new LatencyHistogram();
+		if (commandLatencies.putIfAbsent(name, latency) == null)
+			Metrics.addHistogram(REQUEST_LATENCY_METRIC, REQUEST_LATENCY_HELP, Metrics.label("command", name), latency);
+	}
+
+	/**
+	 * @return the histogram that times requests for the given command.
+	 */
+	private LatencyHistogram latencyOf(String commandName) {
+		if (commandName == null)
+			return otherLatency;
+		if (commandName.isEmpty())
+			return pageLatency;
+		LatencyHistogram latency = commandLatencies.get(commandName);
+		return (latency == null) ? otherLatency : latency;
 	}
 
 	public void setWebPage(String page) {
@@ -126,55 +407,141 @@ public class HTTPCommandDispatcher implements HttpConstants,
 	public String getWebPage() {
 		return webPage;
 	}
-	
-	
-	private class SocketListener implements Runnable {
-		
+
+	/**
+	 * Make a WebBase index available to command listeners. Listeners
+	 * are called on the worker threads, and obtain the calling worker's
+	 * own read-only connection via getIndexPool().getIndex(). Queries
+	 * from different workers then run concurrently. The connection goes
+	 * back to the pool when the request is answered, so a worker that
+	 * waits for its client's next request holds none.
+	 * @param pool pool over the WebBase index file to serve.
+	 */
+	public void setIndexPool(WBIndexPool pool) {
+		indexPool = pool;
+	}
+
+	public WBIndexPool getIndexPool() {
+		return indexPool;
+	}
+
+
+	/**
+	 * The default connection engine: one blocking accept loop that hands
+	 * each connection to an idle Worker from the 'threads' pool, or to a
+	 * new "additional worker" thread when none is idle, up to
+	 * MAX_CONCURRENCY threads in all. Beyond that, connections wait in
+	 * the admission queue, which workers serve before they go idle. A
+	 * connection that finds MAX_QUEUED_CONNECTIONS waiting, or that waits
+	 * longer than MAX_QUEUE_WAIT msecs, is shed: it gets a 503 with a
+	 * Retry-After header, and is closed. A traffic spike thus costs a
+	 * bounded number of threads, and clients learn early to come back,
+	 * rather than late that they timed out. With FAIR_QUEUEING, one
+	 * client's many connections do not crowd out other clients'; see
+	 * AdmissionQueue.
+	 */
+	private class SocketListener implements ConnectionEngine, Runnable {
+
 		int port = PORT;
+		ServerSocket ss = null;
+
 		public SocketListener(int thePort) {
 			if (thePort > 0)
 				port = thePort;
 		}
 
+		public void start(HTTPCommandDispatcher dispatcher, int thePort) {
+			if (thePort > 0)
+				port = thePort;
+			new Thread(this, "socket listener").start();
+		}
+
+		public void shutdown() {
+			keepRunning = false;
+			try {
+				if (ss != null)
+					ss.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+
 	public void dispatchLoop() {
 
 		/* start worker threads */
-		for (int i = 0; i < NUM_WORKERS; ++i) {
-			Worker w = new Worker();
-			(new Thread(w, "worker #" + i)).start();
-			threads.addElement(w);
+		synchronized (threads) {
+			admission = new AdmissionQueue(MAX_QUEUED_CONNECTIONS, FAIR_QUEUEING);
+			for (int i = 0; i < NUM_WORKERS; ++i) {
+				Worker w = new Worker();
+				(new Thread(w, "worker #" + i)).start();
+				threads.addElement(w);
+				numWorkerThreads++;
+			}
 		}
-		ServerSocket ss = null;
+		// Wake up now and then to shed connections that waited too long:
+		int expiryCheckInterval = (int) Math.max(10, Math.min(1000, MAX_QUEUE_WAIT / 4));
+		long nextExpiryCheck = System.currentTimeMillis() + expiryCheckInterval;
 		try {
 			ss = new ServerSocket(port);
+			if (MAX_QUEUE_WAIT > 0)
+				ss.setSoTimeout(expiryCheckInterval);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		while (keepRunning) {
+			if (MAX_QUEUE_WAIT > 0 && System.currentTimeMillis() >= nextExpiryCheck) {
+				shedExpired();
+				nextExpiryCheck = System.currentTimeMillis() + expiryCheckInterval;
+			}
 			Socket s = null;
 			try {
 				s = ss.accept();
+			} catch (SocketTimeoutException e) {
+				continue;
 			} catch (IOException e) {
+				if (!keepRunning)
+					break;
 				e.printStackTrace();
+				continue;
 			}
+			long acceptedAt = System.nanoTime();
 			Worker w = null;
+			AdmissionQueue.Entry shed = null;
 			synchronized (threads) {
-				if (threads.isEmpty()) {
+				if (!threads.isEmpty()) {
+					w = (Worker) threads.elementAt(0);
+					threads.removeElementAt(0);
+					w.setSocket(s, acceptedAt);
+				} else if (numWorkerThreads < MAX_CONCURRENCY) {
 					Worker ws = new Worker();
-					ws.setSocket(s);
+					ws.setSocket(s, acceptedAt);
 					(new Thread(ws, "additional worker")).start();
+					numWorkerThreads++;
 				} else {
-					w = (Worker) threads.elementAt(0);
-					threads.removeElementAt(0);
-					w.setSocket(s);
+					shed = admission.add(s, acceptedAt);
 				}
 			}
+			if (shed != null)
+				shedConnection(shed.socket, shedQueueFull);
 		} // while (true)
 	} // end dispatchLoop()
 
+	/**
+	 * Shed the queued connections that have waited longer than
+	 * MAX_QUEUE_WAIT msecs.
+	 */
+	private void shedExpired() {
+		List<AdmissionQueue.Entry> expired;
+		synchronized (threads) {
+			expired = admission.removeExpired(System.nanoTime() - MAX_QUEUE_WAIT * 1000000);
+		}
+		for (AdmissionQueue.Entry entry : expired)
+			shedConnection(entry.socket, shedQueueTimeout);
+	}
+
 	public void run() {
 		dispatchLoop();
-		
+
 	}
 	} // end class SocketListener
 
@@ -183,21 +550,21 @@ public class HTTPCommandDispatcher implements HttpConstants,
 
 	class Worker implements HttpConstants, Runnable {
 
-		final static int BUF_SIZE = 2048;
-		final byte[] EOL = { (byte) '\r', (byte) '\n' };
-
-		/* buffer to use for requests */
-		byte[] buf;
+		/* parses this worker's requests, in its own buffer */
+		HTTPRequestParser parser;
 		/* Socket to client we're handling */
 		private Socket sock;
+		/* System.nanoTime() when sock was accepted */
+		private long acceptedAt;
 
 		Worker() {
-			buf = new byte[BUF_SIZE];
+			parser = new HTTPRequestParser();
 			sock = null;
 		}
 
-		synchronized void setSocket(Socket s) {
+		synchronized void setSocket(Socket s, long theAcceptedAt) {
 			this.sock = s;
+			acceptedAt = theAcceptedAt;
 			notify();
 		}
 
@@ -212,356 +579,676 @@ public class HTTPCommandDispatcher implements HttpConstants,
 						continue;
 					}
 				}
+				Metrics.QUEUE_TIME.recordNanos(System.nanoTime() - acceptedAt);
+				busyWorkers.incrementAndGet();
 				try {
 					handleClient();
 				} catch (Exception e) {
 					e.printStackTrace();
+				} finally {
+					busyWorkers.decrementAndGet();
 				}
 				/*
-				 * go back in wait queue if there's fewer than NUM_WORKERS
+				 * serve the next waiting connection, if any; else go back
+				 * in wait queue if there's fewer than NUM_WORKERS
 				 * connections.
 				 */
 				sock = null;
 				Vector<Worker> pool = threads;
-				synchronized (pool) {
-					if (pool.size() >= HTTPCommandDispatcher.NUM_WORKERS) {
-						/* too many threads, exit this one */
-						return;
+				while (sock == null) {
+					AdmissionQueue.Entry next;
+					synchronized (pool) {
+						next = admission.poll();
+						if (next == null) {
+							if (pool.size() >= HTTPCommandDispatcher.NUM_WORKERS) {
+								/* too many threads, exit this one */
+								numWorkerThreads--;
+								releaseIndex();
+								return;
+							}
+							pool.addElement(this);
+							break;
+						}
+					}
+					if (MAX_QUEUE_WAIT > 0 && System.nanoTime() - next.acceptedAt > MAX_QUEUE_WAIT * 1000000) {
+						shedConnection(next.socket, shedQueueTimeout);
 					} else {
-						pool.addElement(this);
+						sock = next.socket;
+						acceptedAt = next.acceptedAt;
 					}
 				}
 			}
 		}
 
 		void handleClient() throws IOException {
+			serveConnection(sock, parser);
+		}
+	} // end Worker
 
-			InputStream is = new BufferedInputStream(sock.getInputStream());
-			PrintStream ps = new PrintStream(sock.getOutputStream());
-			String httpMsg = null;
-			/*
-			 * we will only block in read for this many milliseconds before we
-			 * fail with java.io.InterruptedIOException, at which point we will
-			 * abandon the connection.
-			 */
-			sock.setSoTimeout(HTTPCommandDispatcher.CLIENT_CONNECTION_TIMEOUT);
-
-			// Zero the read buffer:
-			for (int i = 0; i < buf.length; i++)
-				buf[i] = 0;
-			try {
-				/*
-				 * We only support HTTP GET/HEAD, and don't support any fancy
-				 * HTTP options, so we're only interested really in the first
-				 * line.
-				 */
-				int numCharsRead = 0, actuallyRead = 0;
-				// Read one line from client connection:
-				outerloop: while (numCharsRead < BUF_SIZE) {
-					actuallyRead = is.read(buf, numCharsRead, BUF_SIZE
-							- numCharsRead);
-					if (actuallyRead == -1) {
-						/* EOF */
+	/**
+	 * Answer the requests that arrive on one blocking connection, in
+	 * order, until the client closes it, asks for it to be closed, or
+	 * sends nothing for KEEP_ALIVE_TIMEOUT msecs between requests, or
+	 * until MAX_REQUESTS_PER_CONNECTION requests were answered. Bytes
+	 * read beyond one request's head are the start of the next,
+	 * pipelined request. Closes the socket.
+	 * @param sock connection to the client.
+	 * @param parser request parser and buffer, owned by the calling thread.
+	 */
+	void serveConnection(Socket sock, HTTPRequestParser parser) throws IOException {
+		InputStream is = new BufferedInputStream(sock.getInputStream());
+		OutputStream out = sock.getOutputStream();
+		/*
+		 * we will only block in read for this many milliseconds before we
+		 * fail with java.io.InterruptedIOException, at which point we will
+		 * abandon the connection.
+		 */
+		sock.setSoTimeout(HTTPCommandDispatcher.CLIENT_CONNECTION_TIMEOUT);
+		// Responses go out in several writes, e.g. TimeMap chunks; don't let
+		// Nagle's algorithm hold them back for the client's delayed ACK:
+		sock.setTcpNoDelay(true);
+		int numBuffered = 0;
+		int numRequests = 0;
+		try {
+			while (true) {
+				int numRead;
+				try {
+					numRead = readRequestHead(is, parser, numBuffered);
+				} catch (SocketTimeoutException e) {
+					// Idle too long
+					return;
+				}
+				if (numRead == 0)
+					return;
+				byte[] buf = parser.getBuffer();
+				int headerEnd = findHeaderEnd(buf, 0, numRead);
+				if (headerEnd < 0) {
+					if (numRead == buf.length) {
+						sendHeadTooLarge(out);
 						return;
 					}
-					int i = numCharsRead;
-					numCharsRead += actuallyRead;
-					for (; i < numCharsRead; i++) {
-						if (buf[i] == (byte) '\n' || buf[i] == (byte) '\r') {
-							// Read one line:
-							break outerloop;
-						}
-					}
+					// Client closed its side after the head:
+					headerEnd = numRead;
 				}
-
-				/*
-				 * Get something like: GET /play?file=help.mp3&volume=14
-				 * HTTP/1.1 Host: 192.168.0.36:8080 User-Agent: Mozilla/5.0
-				 * (Windows; U; Windows NT 6.0; en-US; rv:1.9.1.7)
-				 * Gecko/20091221 Firefox/3.5.7 GTB6 (.NET CLR 3.5.30729)
-				 * Accept:
-				 * text/html,application/xhtml+xml,application/xml;q=0.9,...
-				 * Accept-Language: en-us,en;q=0.5 Accept-Encoding: gzip,deflate
-				 * Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7 Keep-Alive:
-				 * 300 Connection: keep-alive
-				 */
-				httpMsg = new String(buf, 0, numCharsRead);
-
-				/* Are we doing a GET or just a HEAD? */
-				boolean doingGet;
-
-				String[] urlComponents = httpMsg.split(HTTP_TOKEN_SEP); // " "
-				String urlCommand = urlComponents[HTTP_TOKEN_POS_COMMAND];
-				if (urlCommand.equals("GET"))
-					doingGet = true;
-				else if (urlCommand.equals("HEAD"))
-					doingGet = false;
-				else {
-					/* we don't support this method */
-					ps.print("HTTP/1.0 " + HTTP_BAD_METHOD
-							+ " unsupported method type: ");
-					ps.print(urlCommand);
-					ps.write(EOL);
-					ps.flush();
-					sock.close();
+				if (!handleRequest(parser, headerEnd, out, ++numRequests))
 					return;
-				}
+				// Keep whatever the client pipelined behind this request:
+				numBuffered = numRead - headerEnd;
+				System.arraycopy(buf, headerEnd, buf, 0, numBuffered);
+				sock.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			}
+		} finally {
+			sock.close();
+		}
+	}
 
-				// Get a command object for the property change firing:
-				Command command = new Command();
-
-				// Get the "myCommand?foo=10&bar=baz&..." part:
-				String allArgs = urlComponents[HTTP_TOKEN_POS_ALL_ARGS];
-				// Get ["myCommand", "foo=10&bar=baz&..."]:
-				String[] userCommandAndArgs = allArgs.split(HTTP_COMMAND_SEP); // "?"
-				// Get "myCommand":
-				command.setCommandName(userCommandAndArgs[HTTP_TOKEN_POS_USER_COMMAND]
-				                                          .substring(1));
-				ArrayList<String> parmVals = null;
-				// Add any parameter key/value pairs to the command object;
-				// If the URL command portion is mal-formed the parseCommandArgs()
-				// function will return null (if there just aren't any parms,
-				// the return will be an empty ArrayList:
-				parmVals = parseCommandArgs(command, userCommandAndArgs);
-
-				if (parmVals == null) {
-					String cmdName = 
-						command.getCommandName().isEmpty() ? 
-								"[noCmdName]" : command.getCommandName();    
-					sendNoListenerWarning(
-							ps, 
-							cmdName,
-							parmVals,
-							HTTP_BAD_REQUEST,
-							"Malformed MediaController Request",
-							"MediaController command was malformed: ");
-					return;
-				}
+	/**
+	 * Read from the client until the request line and headers are in
+	 * the parser's buffer, i.e. through the blank line that ends the
+	 * header section. Grows the buffer as needed, up to
+	 * HTTPRequestParser.MAX_HEAD_SIZE.
+	 * @param is stream from the client.
+	 * @param parser owner of the buffer for the request bytes.
+	 * @param numBuffered number of bytes of the request already at the
+	 *        start of the buffer, e.g. because they were pipelined behind
+	 *        the previous request.
+	 * @return number of valid bytes in the buffer; 0 if the client closed
+	 * the connection without sending anything. If the head is not complete
+	 * and the buffer is full, the head is too large.
+	 */
+	static int readRequestHead(InputStream is, HTTPRequestParser parser, int numBuffered) throws IOException {
+		byte[] buf = parser.getBuffer();
+		int numCharsRead = numBuffered, actuallyRead = 0;
+		int headerEnd = findHeaderEnd(buf, 0, numBuffered);
+		while (headerEnd < 0) {
+			if (numCharsRead == buf.length) {
+				if (!parser.grow())
+					break;
+				buf = parser.getBuffer();
+			}
+			actuallyRead = is.read(buf, numCharsRead, buf.length - numCharsRead);
+			if (actuallyRead == -1) {
+				/* EOF */
+				break;
+			}
+			int searchFrom = Math.max(0, numCharsRead - 3);
+			numCharsRead += actuallyRead;
+			headerEnd = findHeaderEnd(buf, searchFrom, numCharsRead);
+		}
+		return numCharsRead;
+	}
 
-				if (command.getCommandName().isEmpty()) {
-					// No command in the URL, just send the Web page,
-					// if one was defined:
-					if (doingGet)
-						sendOK(ps);
-					return;
-				}
-				else if (!pcs.hasListeners(command.getCommandName()) && doingGet) {
-					// URL contains a command, but nobody is listening to it:
-					sendNoListenerWarning(
-							ps, 
-							command.getCommandName(), 
-							parmVals,
-							HTTP_BAD_METHOD,
-							"No Command Handler Running",
-							"The MediaController server has no command handler running for: ");
-					return;
-				}
-				pcs.firePropertyChange(command.getCommandName(), null, command);
-				if (doingGet)
-					sendOK(ps);
+	/**
+	 * Answer one request. Called by the connection engine, on whatever
+	 * thread it runs its connections, once the request line and headers
+	 * are in the parser's buffer.
+	 * @param parser parser whose buffer starts with the request line.
+	 * @param headerEnd end of the request head in the buffer.
+	 * @param out stream to the client. Not closed here.
+	 * @param requestNumber 1 for the first request on the connection, 2 for the next, etc.
+	 * @return true if the connection stays open for another request; false
+	 * if the engine must close it.
+	 */
+	boolean handleRequest(HTTPRequestParser parser, int headerEnd, OutputStream out, int requestNumber) throws IOException {
+		return handleRequest(parser, headerEnd, out, requestNumber, null);
+	}
 
-				// 
-			} finally {
-				sock.close();
+	/**
+	 * Like handleRequest(parser, headerEnd, out, requestNumber), but
+	 * instead of waiting for a command handler's response, hand it to
+	 * the given deferrer if it is not ready.
+	 * @param deferrer takes over responses that are not ready; null to wait for them.
+	 * @return true if the connection stays open; if the response was
+	 * deferred, once it is sent.
+	 */
+	boolean handleRequest(HTTPRequestParser parser, int headerEnd, OutputStream out, int requestNumber,
+						  ResponseDeferrer deferrer) throws IOException {
+		long start = System.nanoTime();
+		requestsInFlight.increment();
+		int outcome = CLOSE;
+		try {
+			outcome = answerRequest(parser, headerEnd, out, requestNumber, deferrer, start);
+			return outcome != CLOSE;
+		} finally {
+			// A deferred request is done when its response is sent:
+			if (outcome != DEFERRED) {
+				requestsInFlight.decrement();
+				latencyOf(parser.command.getCommandName()).recordNanos(System.nanoTime() - start);
 			}
+			releaseIndex();
+		}
+	}
+
+	/**
+	 * Return the calling thread's WebBase index connection, if it took
+	 * one, to the index pool.
+	 */
+	private void releaseIndex() {
+		if (indexPool != null)
+			indexPool.releaseIndex();
+	}
+
+	private int answerRequest(HTTPRequestParser parser, int headerEnd, OutputStream out, int requestNumber,
+							  ResponseDeferrer deferrer, long start) throws IOException {
+		/*
+		 * We only support HTTP GET/HEAD, and don't support any fancy
+		 * HTTP options. Get something like:
+		 *
+		 *   GET /play?file=help.mp3&volume=14 HTTP/1.1
+		 *   Host: 192.168.0.36:8080
+		 *   Connection: keep-alive
+		 */
+		Command command = parser.parse(headerEnd);
+
+		/* Are we doing a GET or just a HEAD? */
+		boolean doingGet;
+		String urlCommand = parser.command.getMethod();
+		if (urlCommand == HTTPRequestParser.GET)
+			doingGet = true;
+		else if (urlCommand == HTTPRequestParser.HEAD)
+			doingGet = false;
+		else {
+			/* we don't support this method */
+			PrintStream ps = new PrintStream(out);
+			ps.print("HTTP/1.0 " + HTTP_BAD_METHOD
+					+ " unsupported method type: ");
+			ps.print(urlCommand);
+			ps.write(EOL);
+			ps.flush();
+			return CLOSE;
+		}
+
+		if (command == null) {
+			command = parser.command;
+			command.setKeepAlive(false);
+			PrintStream ps = new PrintStream(out);
+			sendResponse(ps, HTTP_BAD_REQUEST, "Bad Request", "Request line has no target.", command);
+			ps.flush();
+			return CLOSE;
+		}
+		command.setKeepAlive(keepRunning &&
+							 requestNumber < MAX_REQUESTS_PER_CONNECTION &&
+							 wantsKeepAlive(command));
+
+		// Requests for resources go straight to the resource,
+		// with the rest of the target left as is. The resource
+		// may veto keeping the connection:
+		HTTPResource resource = findResource(parser);
+		if (resource != null) {
+			resource.handle(command, out);
+			return command.isKeepAlive() ? KEEP_OPEN : CLOSE;
+		}
+		// Get "myCommand" from "/myCommand?foo=10&bar=baz&...":
+		command.setCommandName(parser.commandName());
+		// Add any parameter key/value pairs to the command object.
+		// A query without a command name, or an argument without
+		// value, makes the command malformed:
+		boolean malformed = (command.getCommandName().isEmpty() && parser.hasQuery()) || !parser.parseQuery();
+		CommandHandler handler = malformed ? null : handlers.get(command.getCommandName());
+		if (handler != null)
+			return answerWithHandler(handler, command, doingGet, out, deferrer, start);
+
+		// Without a handler, HEAD is answered with nothing; only
+		// closing the connection tells the client so:
+		if (!doingGet)
+			command.setKeepAlive(false);
+		PrintStream ps = new PrintStream(out);
+		if (malformed) {
+			if (parser.malformedArg != null)
+				TimeGate.log(
+						"HTTPDispatcher: argument name without argument value. Command: " +
+						command.getCommandName() +
+						". Argument without value: " + parser.malformedArg);
+			String cmdName =
+				command.getCommandName().isEmpty() ?
+						"[noCmdName]" : command.getCommandName();
+			sendNoListenerWarning(
+					ps,
+					cmdName,
+					null,
+					HTTP_BAD_REQUEST,
+					"Malformed MediaController Request",
+					"MediaController command was malformed: ",
+					command);
+			ps.flush();
+			return command.isKeepAlive() ? KEEP_OPEN : CLOSE;
+		}
+
+		if (command.getCommandName().isEmpty()) {
+			// No command in the URL, just send the Web page,
+			// if one was defined:
+			if (doingGet)
+				sendOK(ps, command);
+			ps.flush();
+			return command.isKeepAlive() ? KEEP_OPEN : CLOSE;
+		}
+		if (doingGet) {
+			// URL contains a command, but nobody handles it:
+			sendNoListenerWarning(
+					ps,
+					command.getCommandName(),
+					new ArrayList<String>(command.values()),
+					HTTP_BAD_METHOD,
+					"No Command Handler Running",
+					"The MediaController server has no command handler running for: ",
+					command);
+		}
+		ps.flush();
+		return command.isKeepAlive() ? KEEP_OPEN : CLOSE;
+	}
+
+	/**
+	 * Pass a request to its command handler, and send the response, or
+	 * leave that to the deferrer if the response is not ready.
+	 * @param includeBody false for HEAD requests.
+	 * @param start System.nanoTime() when the request began.
+	 */
+	private int answerWithHandler(CommandHandler handler, Command command, boolean includeBody, OutputStream out,
+								  ResponseDeferrer deferrer, long start) throws IOException {
+		// Listeners are done with the request once notified; other
+		// handlers may still use it after the next request came in:
+		Command request = (handler == listenerAdapter) ? command : command.detach();
+		CompletableFuture<CommandResponse> response;
+		try {
+			response = handler.handle(request);
+		} catch (RuntimeException e) {
+			response = new CompletableFuture<CommandResponse>();
+			response.completeExceptionally(e);
+		}
+		if (response == null)
+			response = CompletableFuture.completedFuture(null);
+		if (deferrer != null && !response.isDone()) {
+			deferrer.defer(new PendingResponse(response, request, includeBody,
+											   latencyOf(command.getCommandName()), start));
+			return DEFERRED;
 		}
+		return sendHandlerResponse(response, request, includeBody, out, HANDLER_TIMEOUT) ? KEEP_OPEN : CLOSE;
+	}
 
+	/**
+	 * Wait for a handler's response, and send it. A handler that failed,
+	 * returned null, or timed out gets an error response sent instead.
+	 * @param timeout max msecs to wait.
+	 * @return true if the connection stays open.
+	 */
+	private boolean sendHandlerResponse(CompletableFuture<CommandResponse> future, Command request,
+										boolean includeBody, OutputStream out, long timeout) throws IOException {
+		CommandResponse response = null;
+		Throwable failure = null;
+		try {
+			response = future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (TimeoutException e) {
+			failure = e;
+		} catch (CancellationException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = e;
+		}
+		if (failure instanceof TimeoutException) {
+			TimeGate.log("HTTPDispatcher: no response from the handler of '" + request.getCommandName() +
+						 "' within " + HANDLER_TIMEOUT + " msecs.");
+			response = new CommandResponse(HTTP_UNAVAILABLE, "Service Unavailable").header("Retry-After", "1")
+					.body("text/plain", "Command handler timed out.");
+		} else if (failure != null || response == null) {
+			TimeGate.log("HTTPDispatcher: handler of '" + request.getCommandName() + "' failed: " +
+						 ((failure == null) ? "no response" : failure.toString()));
+			response = new CommandResponse(HTTP_SERVER_ERROR, "Internal Server Error")
+					.body("text/plain", "Command handler failed.");
+		}
+		response.writeTo(request, out, includeBody);
+		return request.isKeepAlive();
+	}
+
+	/**
+	 * Takes over command handler responses that are not ready when
+	 * handleRequest() returns, for engines whose threads must not wait
+	 * for them; see NioConnectionEngine.
+	 */
+	interface ResponseDeferrer {
 		/**
-		 * Add the parm key/val instance vars to the command obj.
-		 * @param command
-		 * @param userCommandAndArgs
-		 * @return null if passed-inuserCommandAndArgs was malformed.
-		 * 		   Else ArrayList of parameter values for use in
-		 *         possibly necessary error messages later on. If
-		 *         no parameters are included, the ArrayList will 
-		 *         be empty. 
+		 * Send the response with PendingResponse.send() once it is ready,
+		 * and until then read no further requests from its connection.
 		 */
-		private ArrayList<String> parseCommandArgs(Command command,
-				String[] userCommandAndArgs) {
-			
-			ArrayList<String> parmVals = new ArrayList<String>();
-			
-			if (!sanityCheckUrlCommand(userCommandAndArgs))
-				return null;
-			
-			// If no parameters present, return the empty parmVals
-			// ArrayList:
-			if (userCommandAndArgs.length < 2)
-				return parmVals;
-			
-			String allUserArgs = userCommandAndArgs[HTTP_TOKEN_POS_USER_ARGS];
-			// Get ["foo=10", "bar=baz", ...]:
-			String[] argUserVals = allUserArgs.split(HTTP_ARGS_SEP);
-
-			// Go through all the foo=10, bar=baz, ... elements
-			// and get the keys and values:
-			for (String argVal : argUserVals) {
-				String[] keyVal = argVal.split(HTTP_ATTR_VAL_SEP);
-				if (keyVal.length != 2) {
-					TimeGate.log(
-							"HTTPDispatcher: argument name without argument value. Command: " + 
-							command.getCommandName() +
-							". Argument without value: " +
-							(keyVal.length == 1 ? keyVal[0] : "none."));
-					return null;
+		void defer(PendingResponse response);
+	}
+
+	/**
+	 * A command handler's response that was not ready when
+	 * handleRequest() returned.
+	 */
+	final class PendingResponse {
+		private final CompletableFuture<CommandResponse> future;
+		private final Command request;
+		private final boolean includeBody;
+		private final LatencyHistogram latency;
+		private final long start;
+
+		PendingResponse(CompletableFuture<CommandResponse> theFuture, Command theRequest, boolean isIncludeBody,
+						LatencyHistogram theLatency, long theStart) {
+			future = theFuture;
+			request = theRequest;
+			includeBody = isIncludeBody;
+			latency = theLatency;
+			start = theStart;
+		}
+
+		/**
+		 * Run the given action once the response is ready, on the thread
+		 * that completes it; or at once if it is ready already.
+		 */
+		void whenReady(final Runnable action) {
+			future.whenComplete(new BiConsumer<CommandResponse, Throwable>() {
+				public void accept(CommandResponse response, Throwable failure) {
+					action.run();
 				}
-				String key = keyVal[HTTP_TOKEN_POS_KEY];
-				String val = keyVal[HTTP_TOKEN_POS_VALUE];
-				command.put(key, val);
-				// Collect the parameter values for better error messages
-				// later:
-				parmVals.add(val);
-			}
-			return parmVals;
+			});
 		}
 
+		/**
+		 * @return System.nanoTime() when the request began.
+		 */
+		long getStartNanos() {
+			return start;
+		}
 
 		/**
-		 * Given an array of the partially parsed command portion
-		 * of the URL, return true if the info makes sense. Examples
-		 * for healthy:
-		 *    ["/"],                ;; ok
-		 *    ["/ping"],            ;; ok
-		 *    ["/", "ping"],        ;; bad
-		 *    ["/play", "file=foo"] ;; ok
-		 * @param userCommandAndArgs Array of strings w/ partially parsed URL command portion
-		 * @return true if command seems ok so far.
+		 * Give up on the handler: the response becomes a timeout error.
 		 */
-		private boolean sanityCheckUrlCommand(String[] userCommandAndArgs) {
-			if ((userCommandAndArgs.length > 1) &&
-				(userCommandAndArgs[0].length() < 2))
-				return false;
-			
-			return true;
+		void timeOut() {
+			future.completeExceptionally(new TimeoutException("No response within " + HANDLER_TIMEOUT + " msecs"));
+		}
+
+		/**
+		 * Send the response, which must be ready.
+		 * @param out the client connection.
+		 * @return true if the connection stays open.
+		 */
+		boolean send(OutputStream out) throws IOException {
+			try {
+				return sendHandlerResponse(future, request, includeBody, out, 0);
+			} finally {
+				requestsInFlight.decrement();
+				latency.recordNanos(System.nanoTime() - start);
+				releaseIndex();
+			}
 		}
-		
-		private String getDateTime() {
-			Calendar cal = Calendar.getInstance();
-			SimpleDateFormat dateFormat = new SimpleDateFormat(
-					"dw, dd MM yyyy hh:mm:ss zzz");
-			return dateFormat.format(cal.getTime());
+	}
+
+	/**
+	 * Find the end of the header section, i.e. the blank line
+	 * that follows the request line and headers.
+	 * @param buf request bytes.
+	 * @param from where to start looking.
+	 * @param to end of valid bytes in buf.
+	 * @return index just past the blank line, or -1 if not (yet) in buf.
+	 */
+	static int findHeaderEnd(byte[] buf, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] != (byte) '\n')
+				continue;
+			if (i + 1 < to && buf[i + 1] == (byte) '\n')
+				return i + 2;
+			if (i + 2 < to && buf[i + 1] == (byte) '\r' && buf[i + 2] == (byte) '\n')
+				return i + 3;
 		}
+		return -1;
+	}
 
-		private void sendResponse(PrintStream ps, int retCode,
-				String httpShortMsg, String htmlBody) throws IOException {
+	/**
+	 * If the parsed request target names a registered resource, set up
+	 * the command for it.
+	 * @param parser parser holding the request; its command gets the
+	 *        command name and path info.
+	 * @return the resource, or null if the target names none.
+	 */
+	private HTTPResource findResource(HTTPRequestParser parser) {
+		ResourceTable table = resourceTable;
+		int nameEnd = parser.firstSegmentEnd();
+		for (int i = 0; i < table.names.length; i++) {
+			if (!parser.sliceEquals(parser.targetStart + 1, nameEnd, table.names[i]))
+				continue;
+			parser.command.setCommandName(table.names[i]);
+			if (nameEnd < parser.targetEnd && parser.buf[nameEnd] == (byte) '/')
+				nameEnd++;
+			parser.command.setPathInfo(nameEnd, parser.targetEnd);
+			return table.handlers[i];
+		}
+		return null;
+	}
 
-			ps.print("HTTP/1.1 " + retCode + " " + httpShortMsg);
-			ps.write(EOL);
-			if (htmlBody == null) {
-				// End of return header:
-				ps.write(EOL);
-				return;
+	/**
+	 * Turn away a connection that no worker could serve in time: answer
+	 * 503 with Retry-After, whatever the request, and close it.
+	 * @param counter count of connections shed for the reason at hand.
+	 */
+	private void shedConnection(Socket sock, LongAdder counter) {
+		counter.increment();
+		try {
+			OutputStream out = sock.getOutputStream();
+			out.write(("HTTP/1.1 " + HTTP_UNAVAILABLE + " Service Unavailable\r\nRetry-After: " + RETRY_AFTER_SECS +
+					   "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			// Closing with unread request bytes would reset the connection,
+			// and the client might lose the response:
+			InputStream is = sock.getInputStream();
+			int numUnread = is.available();
+			if (numUnread > 0)
+				is.skip(numUnread);
+			sock.shutdownOutput();
+		} catch (IOException e) {
+			// Client went away already
+		} finally {
+			try {
+				sock.close();
+			} catch (IOException e) {
+				// Closing anyway
 			}
-			// Was some kind of error, or all OK, and a web page will be
-			// returned;
-			// generate an html error response page:
-			ps.print(getDateTime());
-			ps.write(EOL);
-			ps.print("Content-Type: text/html");
-			ps.write(EOL);
-			int contentLen = 0;
-			contentLen += HTTP_RESPONSE_OVERHEAD + htmlBody.length();
-			ps.print("Content-Length: " + contentLen);
+		}
+	}
+
+	/**
+	 * Tell the client that its request line and headers exceed
+	 * HTTPRequestParser.MAX_HEAD_SIZE. The connection must be closed.
+	 */
+	static void sendHeadTooLarge(OutputStream out) throws IOException {
+		out.write(HEAD_TOO_LARGE_RESPONSE);
+		out.flush();
+	}
+
+	private static final byte[] HEAD_TOO_LARGE_RESPONSE =
+		("HTTP/1.1 " + HTTP_HEADERS_TOO_LARGE + " Request Header Fields Too Large\r\n" +
+		 "Connection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+
+	private String getDateTime() {
+		return WBDateTime.appendHttpDate(System.currentTimeMillis() / 1000,
+										 new StringBuilder("Date: ")).toString();
+	}
+
+	private void sendResponse(PrintStream ps, int retCode,
+			String httpShortMsg, String htmlBody, Command request) throws IOException {
+
+		ps.print("HTTP/1.1 " + retCode + " " + httpShortMsg);
+		ps.write(EOL);
+		String connectionHeader = connectionHeader(request);
+		if (connectionHeader != null) {
+			ps.print(connectionHeader);
 			ps.write(EOL);
+		}
+		if (htmlBody == null) {
+			// End of return header; on a persistent connection
+			// the client must be told there is no body:
+			ps.print("Content-Length: 0");
 			ps.write(EOL);
-			ps.print(htmlBody);
 			ps.write(EOL);
+			return;
 		}
+		// Was some kind of error, or all OK, and a web page will be
+		// returned;
+		// generate an html error response page:
+		ps.print(getDateTime());
+		ps.write(EOL);
+		ps.print("Content-Type: text/html");
+		ps.write(EOL);
+		// The page, plus the EOL that follows it. Must be exact,
+		// or a persistent connection gets out of step:
+		byte[] body = htmlBody.getBytes();
+		ps.print("Content-Length: " + (body.length + EOL.length));
+		ps.write(EOL);
+		ps.write(EOL);
+		ps.write(body);
+		ps.write(EOL);
+	}
 
-		void sendOK(PrintStream ps) throws IOException {
-			sendResponse(ps, HTTP_OK, " OK", webPage);
-		}
+	void sendOK(PrintStream ps, Command request) throws IOException {
+		sendResponse(ps, HTTP_OK, " OK", webPage, request);
+	}
 
-		void sendNoListenerWarning(
-				PrintStream ps, 
-				String commandName,
-				ArrayList<String> parmVals,
-				int HTTPErrorCode,
-				String shortDescription,
-				String detailedDescription) throws IOException {
-			
-			// Build a string "commandName(parm1Name, parm2Name,...)":
-			String commandString = constructCommandString(commandName,
-					parmVals);
-			
-			String htmlBody = "<html><page><h2>" + shortDescription + "</h2>\n"
-					+ detailedDescription
-					+ commandString + ".\n</body></html>";
-			sendResponse(ps, HTTPErrorCode, shortDescription, htmlBody);
-		}
+	void sendNoListenerWarning(
+			PrintStream ps,
+			String commandName,
+			ArrayList<String> parmVals,
+			int HTTPErrorCode,
+			String shortDescription,
+			String detailedDescription,
+			Command request) throws IOException {
 
-		/**
-		 * Build a string that reflects the URL's command portion
-		 * expressed as a function call:
-		 * Example: "play(10, bluebell)"
-		 * @param commandName Name of the MediaController command
-		 * @param parmValues
-		 * @return Command string in the syntax of a function call.
-		 */
-		private String constructCommandString(String commandName,
-				ArrayList<String> parmVals) {
-			String commandString = commandName + "(";
-			if (parmVals != null)
-				for (String parmName : parmVals)
-					commandString += parmName + ",";
-			// Strip any trailing comma and close the parens:
-			if (commandString.endsWith(","))
-				commandString = commandString.substring(0, commandString
-						.length() - 1)
-						+ ")";
-			else
-				commandString += ")";
-			return commandString;
+		// Build a string "commandName(parm1Name, parm2Name,...)":
+		String commandString = constructCommandString(commandName,
+				parmVals);
+
+		String htmlBody = "<html><page><h2>" + shortDescription + "</h2>\n"
+				+ detailedDescription
+				+ commandString + ".\n</body></html>";
+		sendResponse(ps, HTTPErrorCode, shortDescription, htmlBody, request);
+	}
+
+	/**
+	 * Build a string that reflects the URL's command portion
+	 * expressed as a function call:
+	 * Example: "play(10, bluebell)"
+	 * @param commandName Name of the MediaController command
+	 * @param parmValues
+	 * @return Command string in the syntax of a function call.
+	 */
+	private String constructCommandString(String commandName,
+			ArrayList<String> parmVals) {
+		String commandString = commandName + "(";
+		if (parmVals != null)
+			for (String parmName : parmVals)
+				commandString += parmName + ",";
+		// Strip any trailing comma and close the parens:
+		if (commandString.endsWith(","))
+			commandString = commandString.substring(0, commandString
+					.length() - 1)
+					+ ")";
+		else
+			commandString += ")";
+		return commandString;
+	}
+
+	/**
+	 * @return true if the client asked for its connection to stay open
+	 * after this request: HTTP/1.1 unless it sent "Connection: close";
+	 * HTTP/1.0 only if it sent "Connection: keep-alive".
+	 */
+	static boolean wantsKeepAlive(Command request) {
+		String connection = request.getHeader("Connection");
+		if (request.isHttp11())
+			return !hasToken(connection, "close");
+		return hasToken(connection, "keep-alive");
+	}
+
+	/**
+	 * @return the Connection header line that the response to the given
+	 * request needs, or null if the protocol default applies.
+	 */
+	static String connectionHeader(Command request) {
+		if (!request.isKeepAlive())
+			return "Connection: close";
+		if (!request.isHttp11())
+			return "Connection: keep-alive";
+		return null;
+	}
+
+	/**
+	 * @param headerValue comma-separated list of tokens, as in the Connection header; may be null.
+	 * @param token token to look for; case-insensitive.
+	 * @return true if headerValue lists the token.
+	 */
+	static boolean hasToken(String headerValue, String token) {
+		if (headerValue == null)
+			return false;
+		int start = 0;
+		int len = headerValue.length();
+		while (start < len) {
+			int end = headerValue.indexOf(',', start);
+			if (end < 0)
+				end = len;
+			int tokenStart = start;
+			int tokenEnd = end;
+			while (tokenStart < tokenEnd && headerValue.charAt(tokenStart) == ' ')
+				tokenStart++;
+			while (tokenEnd > tokenStart && headerValue.charAt(tokenEnd - 1) == ' ')
+				tokenEnd--;
+			if (tokenEnd - tokenStart == token.length() &&
+				headerValue.regionMatches(true, tokenStart, token, 0, token.length()))
+				return true;
+			start = end + 1;
 		}
-	} // end Worker
-	
+		return false;
+	}
+
 	public void shutdown() {
 		keepRunning = false;
+		engine.shutdown();
+		synchronized (this) {
+			if (handlerExecutor != null)
+				handlerExecutor.shutdown();
+		}
 	}
-	
-} // end HTTPCommandDispatcher
 
-interface HttpConstants {
-	/** 2XX: generally "OK" */
-	public static final int HTTP_OK = 200;
-	public static final int HTTP_CREATED = 201;
-	public static final int HTTP_ACCEPTED = 202;
-	public static final int HTTP_NOT_AUTHORITATIVE = 203;
-	public static final int HTTP_NO_CONTENT = 204;
-	public static final int HTTP_RESET = 205;
-	public static final int HTTP_PARTIAL = 206;
-
-	/** 3XX: relocation/redirect */
-	public static final int HTTP_MULT_CHOICE = 300;
-	public static final int HTTP_MOVED_PERM = 301;
-	public static final int HTTP_MOVED_TEMP = 302;
-	public static final int HTTP_SEE_OTHER = 303;
-	public static final int HTTP_NOT_MODIFIED = 304;
-	public static final int HTTP_USE_PROXY = 305;
-
-	/** 4XX: client error */
-	public static final int HTTP_BAD_REQUEST = 400;
-	public static final int HTTP_UNAUTHORIZED = 401;
-	public static final int HTTP_PAYMENT_REQUIRED = 402;
-	public static final int HTTP_FORBIDDEN = 403;
-	public static final int HTTP_NOT_FOUND = 404;
-	public static final int HTTP_BAD_METHOD = 405;
-	public static final int HTTP_NOT_ACCEPTABLE = 406;
-	public static final int HTTP_PROXY_AUTH = 407;
-	public static final int HTTP_CLIENT_TIMEOUT = 408;
-	public static final int HTTP_CONFLICT = 409;
-	public static final int HTTP_GONE = 410;
-	public static final int HTTP_LENGTH_REQUIRED = 411;
-	public static final int HTTP_PRECON_FAILED = 412;
-	public static final int HTTP_ENTITY_TOO_LARGE = 413;
-	public static final int HTTP_REQ_TOO_LONG = 414;
-	public static final int HTTP_UNSUPPORTED_TYPE = 415;
-
-	/** 5XX: server error */
-	public static final int HTTP_SERVER_ERROR = 500;
-	public static final int HTTP_INTERNAL_ERROR = 501;
-	public static final int HTTP_BAD_GATEWAY = 502;
-	public static final int HTTP_UNAVAILABLE = 503;
-	public static final int HTTP_GATEWAY_TIMEOUT = 504;
-	public static final int HTTP_VERSION = 505;
-}
+} // end HTTPCommandDispatcher
@@ -0,0 +1,313 @@
+package edu.stanford.arcspread;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass parser for HTTP request heads. Owns the buffer into which
+ * a connection engine reads the request line and headers, and one
+ * Command that it fills from the buffer for each request. The Command's
+ * arguments, headers, and path info are slices of the buffer; nothing
+ * is copied into Strings unless a listener or resource asks for it.
+ * Method and protocol names are the shared constants below. After the
+ * first few requests, parsing a request therefore allocates nothing.
+ *
+ * The buffer starts at HTTPCommandDispatcher.BUF_SIZE bytes, and grows,
+ * on demand, to at most MAX_HEAD_SIZE. One parser serves one connection
+ * at a time, on one thread.
+ *
+ *     GET /play?file=help%20me.mp3&volume=14 HTTP/1.1
+ *     Host: 192.168.0.36:8080
+ *     Connection: keep-alive
+ *
+ * becomes method "GET", protocol "HTTP/1.1", target "/play?file=...",
+ * and headers Host and Connection. Query arguments are only split off
+ * and percent-decoded when the dispatcher asks for them, via
+ * parseQuery(): resources receive the target as sent.
+ *
+ * @author Paepcke
+ *
+ */
+final class HTTPRequestParser {
+
+	/* Max size of a request line plus headers */
+	static int MAX_HEAD_SIZE = 65536;
+
+	static final String GET = "GET";
+	static final String HEAD = "HEAD";
+	static final String HTTP_1_0 = "HTTP/1.0";
+	static final String HTTP_1_1 = "HTTP/1.1";
+
+	private static final byte SP = (byte) ' ';
+	private static final byte HT = (byte) '\t';
+	private static final byte CR = (byte) '\r';
+	private static final byte LF = (byte) '\n';
+
+	byte[] buf;
+	final Command command = new Command();
+	// Request target, e.g. "/timegate/http://foo.org/", in buf:
+	int targetStart = 0;
+	int targetEnd = 0;
+	// Index of the '?' in the target; targetEnd if none:
+	int queryStart = 0;
+	// Set by parseQuery() when an argument is malformed:
+	String malformedArg = null;
+	// Last command name handed out, reused while clients repeat it:
+	private String lastCommandName = "";
+
+	HTTPRequestParser() {
+		buf = new byte[HTTPCommandDispatcher.BUF_SIZE];
+	}
+
+	byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Double the buffer, keeping its content.
+	 * @return false if the buffer already holds MAX_HEAD_SIZE bytes.
+	 */
+	boolean grow() {
+		if (buf.length >= MAX_HEAD_SIZE)
+			return false;
+		buf = Arrays.copyOf(buf, Math.min(2 * buf.length, MAX_HEAD_SIZE));
+		return true;
+	}
+
+	/**
+	 * Make the buffer at least minSize bytes long, keeping its content.
+	 */
+	void ensureCapacity(int minSize) {
+		if (buf.length < minSize)
+			buf = Arrays.copyOf(buf, minSize);
+	}
+
+	/**
+	 * Parse the request line and headers in buf[0..headEnd) into the
+	 * command: method, protocol, and headers. Header names and values
+	 * have surrounding white space removed; folded header lines are
+	 * joined with spaces. Lines without a colon are ignored. Empty
+	 * lines before the request line are skipped.
+	 * @param headEnd end of the head, e.g. just past its blank line.
+	 * @return the command, reset and filled in, or null if the request
+	 * line has no target. The method is set in either case.
+	 */
+	Command parse(int headEnd) {
+		command.reset(buf);
+		malformedArg = null;
+		int pos = 0;
+		while (pos < headEnd && (buf[pos] == CR || buf[pos] == LF))
+			pos++;
+
+		// Method:
+		int start = pos;
+		while (pos < headEnd && buf[pos] != SP && buf[pos] != CR && buf[pos] != LF)
+			pos++;
+		command.setMethod(method(start, pos));
+		pos = skipBlanks(pos, headEnd);
+
+		// Target:
+		targetStart = pos;
+		queryStart = -1;
+		while (pos < headEnd && buf[pos] != SP && buf[pos] != CR && buf[pos] != LF) {
+			if (buf[pos] == (byte) '?' && queryStart < 0)
+				queryStart = pos;
+			pos++;
+		}
+		targetEnd = pos;
+		if (queryStart < 0)
+			queryStart = targetEnd;
+		pos = skipBlanks(pos, headEnd);
+
+		// Protocol; none for HTTP/0.9 style request lines:
+		start = pos;
+		while (pos < headEnd && buf[pos] != CR && buf[pos] != LF)
+			pos++;
+		int end = pos;
+		while (end > start && (buf[end - 1] == SP || buf[end - 1] == HT))
+			end--;
+		if (end > start)
+			command.setProtocol(protocol(start, end));
+
+		parseHeaders(pos, headEnd);
+		return (targetEnd > targetStart) ? command : null;
+	}
+
+	private void parseHeaders(int pos, int headEnd) {
+		boolean inHeader = false;
+		while (pos < headEnd) {
+			// Step over the line end:
+			if (buf[pos] == CR)
+				pos++;
+			if (pos < headEnd && buf[pos] == LF)
+				pos++;
+			int lineStart = pos;
+			int lineEnd = lineStart;
+			int colon = -1;
+			while (lineEnd < headEnd && buf[lineEnd] != CR && buf[lineEnd] != LF) {
+				if (colon < 0 && buf[lineEnd] == (byte) ':')
+					colon = lineEnd;
+				lineEnd++;
+			}
+			pos = lineEnd;
+			if (lineEnd == lineStart)
+				break;
+			if (buf[lineStart] == SP || buf[lineStart] == HT) {
+				// obs-fold: continuation of the previous header's value
+				if (inHeader) {
+					int contStart = skipBlanks(lineStart, lineEnd);
+					int contEnd = trimEnd(contStart, lineEnd);
+					if (contStart < contEnd) {
+						// Move the continuation up against the value, behind one space:
+						int to = command.lastHeaderValueEnd();
+						buf[to++] = SP;
+						System.arraycopy(buf, contStart, buf, to, contEnd - contStart);
+						command.extendLastHeader(to + contEnd - contStart);
+					}
+				}
+				continue;
+			}
+			inHeader = colon > lineStart;
+			if (!inHeader)
+				continue;
+			int nameEnd = trimEnd(lineStart, colon);
+			int valueStart = skipBlanks(colon + 1, lineEnd);
+			command.addHeader(lineStart, nameEnd, valueStart, trimEnd(valueStart, lineEnd));
+		}
+	}
+
+	/**
+	 * @return the target's first path segment, e.g. "timegate" for
+	 * "/timegate/http://foo.org/", as a slice: [targetStart + 1, return value).
+	 * Equals targetStart + 1 if the target does not start with '/'.
+	 */
+	int firstSegmentEnd() {
+		if (targetEnd == targetStart || buf[targetStart] != (byte) '/')
+			return targetStart + 1;
+		int end = targetStart + 1;
+		while (end < targetEnd && buf[end] != (byte) '/' && buf[end] != (byte) '?')
+			end++;
+		return end;
+	}
+
+	/**
+	 * @return true if buf[start..end) holds exactly the given ASCII name.
+	 */
+	boolean sliceEquals(int start, int end, String name) {
+		if (end - start != name.length())
+			return false;
+		for (int i = start; i < end; i++)
+			if (buf[i] != (byte) name.charAt(i - start))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the command name of a legacy command request: the target's
+	 * path up to any '?', without the leading '/'. "" if there is none.
+	 */
+	String commandName() {
+		int start = Math.min(targetStart + 1, queryStart);
+		if (sliceEquals(start, queryStart, lastCommandName))
+			return lastCommandName;
+		lastCommandName = new String(buf, start, queryStart - start, Command.HEADER_CHARSET);
+		return lastCommandName;
+	}
+
+	/**
+	 * @return true if the target has a query with at least one character.
+	 */
+	boolean hasQuery() {
+		return targetEnd - queryStart > 1;
+	}
+
+	/**
+	 * Add the target's query arguments, "foo=10&bar=baz", to the command,
+	 * decoding '+' and %XX escapes in place. Values may contain '='; empty
+	 * arguments, as in "foo=10&&bar=baz", are skipped. Of a repeated
+	 * argument, the last value counts.
+	 * @return false if an argument has no '=', or no name. malformedArg
+	 * then holds it, as sent.
+	 */
+	boolean parseQuery() {
+		int pos = queryStart + 1;
+		while (pos < targetEnd) {
+			int argEnd = pos;
+			int eq = -1;
+			while (argEnd < targetEnd && buf[argEnd] != (byte) '&') {
+				if (eq < 0 && buf[argEnd] == (byte) '=')
+					eq = argEnd;
+				argEnd++;
+			}
+			if (argEnd > pos) {
+				if (eq <= pos) {
+					malformedArg = new String(buf, pos, argEnd - pos, Command.HEADER_CHARSET);
+					return false;
+				}
+				int keyEnd = decode(pos, eq);
+				int valueEnd = decode(eq + 1, argEnd);
+				command.addArg(pos, keyEnd, eq + 1, valueEnd);
+			}
+			pos = argEnd + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Percent-decode buf[start..end) in place; '+' becomes a space.
+	 * Malformed escapes are left as they are.
+	 * @return end of the decoded bytes.
+	 */
+	private int decode(int start, int end) {
+		int to = start;
+		for (int from = start; from < end; from++) {
+			byte b = buf[from];
+			if (b == (byte) '+')
+				b = SP;
+			else if (b == (byte) '%' && from + 2 < end) {
+				int hi = Character.digit(buf[from + 1], 16);
+				int lo = Character.digit(buf[from + 2], 16);
+				if (hi >= 0 && lo >= 0) {
+					b = (byte) ((hi << 4) | lo);
+					from += 2;
+				}
+			}
+			buf[to++] = b;
+		}
+		return to;
+	}
+
+	/**
+	 * @return the request target as sent; for error messages.
+	 */
+	String getTarget() {
+		return new String(buf, targetStart, targetEnd - targetStart, Command.HEADER_CHARSET);
+	}
+
+	private String method(int start, int end) {
+		if (sliceEquals(start, end, GET))
+			return GET;
+		if (sliceEquals(start, end, HEAD))
+			return HEAD;
+		return new String(buf, start, end - start, Command.HEADER_CHARSET);
+	}
+
+	private String protocol(int start, int end) {
+		if (sliceEquals(start, end, HTTP_1_1))
+			return HTTP_1_1;
+		if (sliceEquals(start, end, HTTP_1_0))
+			return HTTP_1_0;
+		return new String(buf, start, end - start, Command.HEADER_CHARSET);
+	}
+
+	private int skipBlanks(int pos, int end) {
+		while (pos < end && (buf[pos] == SP || buf[pos] == HT))
+			pos++;
+		return pos;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (buf[end - 1] == SP || buf[end - 1] == HT))
+			end--;
+		return end;
+	}
+}
@@ -0,0 +1,30 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A resource served by HTTPCommandDispatcher under "/<name>/...".
+ * Unlike command listeners, which are notified via property changes
+ * and all answer with the dispatcher's one web page, a resource
+ * writes its own complete response: status line, headers and body.
+ *
+ * Resources are called on the dispatcher's worker threads, several
+ * at a time, and must therefore be thread safe.
+ *
+ * @author Paepcke
+ *
+ */
+public interface HTTPResource {
+
+	/**
+	 * Answer one request.
+	 * @param request the request. Its command name is the resource name,
+	 *        its path info the rest of the request target after "/<name>/",
+	 *        undecoded. Method and headers are available as well.
+	 * @param out the client connection. The resource writes a complete HTTP
+	 *        response to it, and flushes it.
+	 * @throws IOException if writing to the client fails.
+	 */
+	public void handle(Command request, OutputStream out) throws IOException;
+}
@@ -0,0 +1,272 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * A WebBase index split into numShards SQLite files by URL hash, as
+ * Resharder writes it: a directory holding shard-000.db, shard-001.db,
+ * and so on. Each shard is a complete index of its URLs, in any of the
+ * layouts WBIndex reads, and carries a copy of the Crawls table.
+ * shardOf() says which shard holds a URL.
+ *
+ * One IndexShards object is shared by all ShardedWBIndex instances over
+ * the directory. It owns the worker threads on which those instances
+ * fan out queries: each shard has its own small thread pool, and every
+ * worker thread keeps a read-only connection to its shard, since
+ * sqlite4java connections are confined to the thread that opened
+ * them. Idle workers exit after WORKER_IDLE_TIMEOUT msecs, closing
+ * their connection on the way out.
+ *
+ * @author Paepcke
+ *
+ */
+public class IndexShards {
+
+	static final String SHARD_FILE_FORMAT = "shard-%03d.db";
+	/* Default # of fan-out worker threads per shard */
+	static int DEFAULT_THREADS_PER_SHARD = 2;
+	/* Msecs after which an idle worker thread exits */
+	static long WORKER_IDLE_TIMEOUT = 60000;
+
+	// Sets the shard hash apart from URLFilter's, which hashes the same
+	// URLs; a filter over one shard should see its bits evenly used:
+	private static final long SHARD_HASH_SEED = 0x5bd1e9955bd1e995L;
+
+	/**
+	 * Work to do against one shard, on one of its worker threads.
+	 */
+	interface ShardTask<T> {
+		T run(WBIndex shardIndex) throws SQLiteException, DataFormatException;
+	}
+
+	private final String dirPath;
+	private final String[] shardPaths;
+	private final ShardWorkers[] workers;
+	// One filter per shard file; null for none:
+	private volatile URLFilter[] urlFilters = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param theDirPath directory of shard files.
+	 * @throws SQLiteException if the directory holds no shard files, or a
+	 *         shard is missing from the sequence.
+	 */
+	public IndexShards(String theDirPath) throws SQLiteException {
+		this(theDirPath, DEFAULT_THREADS_PER_SHARD);
+	}
+
+	public IndexShards(String theDirPath, int threadsPerShard) throws SQLiteException {
+		dirPath = theDirPath;
+		File[] files = listShardFiles(new File(dirPath));
+		if (files.length == 0)
+			throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN,
+					"No WebBase index shards (" + String.format(SHARD_FILE_FORMAT, 0) + ", ...) in " + dirPath);
+		shardPaths = new String[files.length];
+		workers = new ShardWorkers[files.length];
+		for (int i = 0; i < files.length; i++) {
+			shardPaths[i] = files[i].getPath();
+			workers[i] = new ShardWorkers(i, threadsPerShard);
+		}
+	}
+
+	/**
+	 * @param dir a directory.
+	 * @return the shard files in dir, shard-000.db onwards, up to the first
+	 * one missing. Empty if dir holds none.
+	 * @throws SQLiteException if a later shard exists beyond the gap.
+	 */
+	static File[] listShardFiles(File dir) throws SQLiteException {
+		ArrayList<File> result = new ArrayList<File>();
+		while (true) {
+			File shard = new File(dir, String.format(SHARD_FILE_FORMAT, result.size()));
+			if (!shard.isFile())
+				break;
+			result.add(shard);
+		}
+		if (new File(dir, String.format(SHARD_FILE_FORMAT, result.size() + 1)).exists())
+			throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN,
+					"WebBase index shard " + String.format(SHARD_FILE_FORMAT, result.size()) + " is missing from " + dir);
+		return result.toArray(new File[result.size()]);
+	}
+
+	/**
+	 * @param url URL as stored in the index.
+	 * @param numShards number of shards.
+	 * @return number of the shard that holds the URL. Depends only on the
+	 * URL's chars, so that every JVM routes a URL the same way.
+	 */
+	public static int shardOf(String url, int numShards) {
+		long h = URLFilter.hash(url) ^ SHARD_HASH_SEED;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) ((h & Long.MAX_VALUE) % numShards);
+	}
+
+	public int shardOf(String url) {
+		return shardOf(url, shardPaths.length);
+	}
+
+	public int getNumShards() {
+		return shardPaths.length;
+	}
+
+	public String getShardPath(int shard) {
+		return shardPaths[shard];
+	}
+
+	public String getDirPath() {
+		return dirPath;
+	}
+
+	/**
+	 * @return the shard files, e.g. for watching them for changes.
+	 */
+	public File[] getShardFiles() {
+		File[] result = new File[shardPaths.length];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new File(shardPaths[i]);
+		return result;
+	}
+
+	/**
+	 * Put a Bloom filter over each shard's URLs in front of lookups; see
+	 * URLFilter. Loads or builds the filters on the calling thread.
+	 * @param falsePositiveRate as for URLFilter; 0 removes the filters.
+	 * @throws SQLiteException if a filter had to be built and its shard could not be read.
+	 */
+	public void enableURLFilters(double falsePositiveRate) throws SQLiteException {
+		if (falsePositiveRate <= 0) {
+			urlFilters = null;
+			return;
+		}
+		URLFilter[] filters = new URLFilter[shardPaths.length];
+		for (int i = 0; i < filters.length; i++)
+			filters[i] = new URLFilter(shardPaths[i], falsePositiveRate);
+		urlFilters = filters;
+	}
+
+	/**
+	 * @return the given shard's URL filter; null if filters are not enabled.
+	 */
+	public URLFilter getURLFilter(int shard) {
+		URLFilter[] filters = urlFilters;
+		return (filters == null) ? null : filters[shard];
+	}
+
+	/**
+	 * Run a task against a shard on one of the shard's worker threads.
+	 * @throws SQLiteException if the shards are closed.
+	 */
+	<T> Future<T> submit(final int shard, final ShardTask<T> task) throws SQLiteException {
+		if (closed)
+			throw new SQLiteException(SQLiteConstants.WRAPPER_NOT_OPENED,
+					"WebBase index shards in '" + dirPath + "' are closed.");
+		final ShardWorkers shardWorkers = workers[shard];
+		return shardWorkers.executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				return task.run(shardWorkers.getIndex());
+			}
+		});
+	}
+
+	/**
+	 * Wait for a task submitted with submit(), passing on its exception.
+	 */
+	static <T> T await(Future<T> future) throws SQLiteException, DataFormatException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			throw new SQLiteException(SQLiteConstants.SQLITE_INTERRUPT, "Interrupted while waiting for a WebBase index shard.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLiteException)
+				throw (SQLiteException) cause;
+			if (cause instanceof DataFormatException)
+				throw (DataFormatException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, "WebBase index shard query failed: " + cause);
+		}
+	}
+
+	/**
+	 * Stop the worker threads. Each closes its connection as it exits;
+	 * tasks already running are finished first.
+	 */
+	public void close() {
+		closed = true;
+		for (ShardWorkers shardWorkers : workers)
+			shardWorkers.executor.shutdown();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public String toString() {
+		return "IndexShards[" + dirPath + ": " + shardPaths.length + " shards]";
+	}
+
+	/**
+	 * The worker threads of one shard, each with its own connection.
+	 */
+	private final class ShardWorkers implements ThreadFactory {
+		final int shard;
+		final ThreadPoolExecutor executor;
+		private final ThreadLocal<WBIndex> threadIndex = new ThreadLocal<WBIndex>();
+		private int numThreads = 0;
+
+		ShardWorkers(int theShard, int threadsPerShard) {
+			shard = theShard;
+			executor = new ThreadPoolExecutor(threadsPerShard, threadsPerShard,
+											  WORKER_IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+											  new LinkedBlockingQueue<Runnable>(), this);
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		WBIndex getIndex() throws SQLiteException {
+			WBIndex index = threadIndex.get();
+			if (index == null || !index.isOpen()) {
+				index = new WBIndex(shardPaths[shard], true);
+				index.verbose = 0;
+				threadIndex.set(index);
+			}
+			index.setURLFilter(getURLFilter(shard));
+			return index;
+		}
+
+		public synchronized Thread newThread(final Runnable work) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work.run();
+					} finally {
+						// Only this thread may close its connection:
+						WBIndex index = threadIndex.get();
+						if (index != null && index.isOpen())
+							index.close();
+					}
+				}
+			}, "index shard " + shard + " worker #" + numThreads++);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package edu.stanford.arcspread;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds, in the manner of
+ * HdrHistogram: bucket boundaries are log-linear, with SUB_BUCKETS
+ * buckets per power of two, so that any recorded value is known to
+ * within 1/SUB_BUCKETS of itself (6.25%) from 1 usec up to MAX_VALUE.
+ * Values below 2 * SUB_BUCKETS usecs are counted exactly.
+ *
+ * record() costs one array increment plus two LongAdder updates, and
+ * does not allocate; any number of threads may record at once. Readers
+ * see a consistent enough picture for monitoring, but not an atomic
+ * snapshot: counts recorded while a percentile is being computed may
+ * or may not be included.
+ *
+ * @author Paepcke
+ *
+ */
+public final class LatencyHistogram {
+
+	/* log2 of the # of buckets per power of two */
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/* Largest value kept apart, in usecs (about 12.7 days); larger values count as this one */
+	static final long MAX_VALUE = (1L << 40) - 1;
+	static final int NUM_BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder totalValue = new LongAdder();
+
+	/**
+	 * Count one duration.
+	 * @param usecs duration in microseconds; negative values count as 0.
+	 */
+	public void record(long usecs) {
+		if (usecs < 0)
+			usecs = 0;
+		else if (usecs > MAX_VALUE)
+			usecs = MAX_VALUE;
+		counts.getAndIncrement(bucketOf(usecs));
+		totalCount.increment();
+		totalValue.add(usecs);
+	}
+
+	/**
+	 * Count a duration measured in nanoseconds, e.g. as the difference
+	 * of two System.nanoTime() readings.
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	/**
+	 * Count one duration, and correct for coordinated omission: a
+	 * client that waits for each response before sending its next
+	 * request sends no requests while the server stalls, so a stall
+	 * shows up as one slow sample instead of as the many that an
+	 * open stream of requests would have seen. Like HdrHistogram's
+	 * recordValueWithExpectedInterval(), record the samples that
+	 * were missed, had requests gone out every expectedInterval usecs.
+	 * @param usecs duration in microseconds.
+	 * @param expectedInterval usecs between requests without a stall; 0 to record usecs only.
+	 */
+	public void recordCorrected(long usecs, long expectedInterval) {
+		record(usecs);
+		if (expectedInterval <= 0)
+			return;
+		for (long missed = usecs - expectedInterval; missed >= expectedInterval; missed -= expectedInterval)
+			record(missed);
+	}
+
+	/**
+	 * Add all of another histogram's counts to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0)
+				counts.getAndAdd(i, n);
+		}
+		totalCount.add(other.totalCount.sum());
+		totalValue.add(other.totalValue.sum());
+	}
+
+	/**
+	 * Forget all counts. Counts recorded concurrently may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			counts.set(i, 0);
+		totalCount.reset();
+		totalValue.reset();
+	}
+
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	/**
+	 * @return sum of all recorded values, in usecs.
+	 */
+	public long getSum() {
+		return totalValue.sum();
+	}
+
+	/**
+	 * @return mean recorded value in usecs; 0 if there are none.
+	 */
+	public double getMean() {
+		long n = totalCount.sum();
+		return (n == 0) ? 0 : (double) totalValue.sum() / n;
+	}
+
+	/**
+	 * @return largest recorded value, to within the bucket precision; 0 if there are none.
+	 */
+	public long getMax() {
+		for (int i = NUM_BUCKETS - 1; i >= 0; i--)
+			if (counts.get(i) != 0)
+				return highestEquivalentValue(i);
+		return 0;
+	}
+
+	/**
+	 * @param percentile e.g. 99.9.
+	 * @return value in usecs that the given percentage of the recorded
+	 * values do not exceed, to within the bucket precision; 0 if there
+	 * are none.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			n += counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return highestEquivalentValue(i);
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return number of recorded values that are at most the given
+	 * bound, counting each bucket that lies entirely below it. Used for
+	 * the cumulative buckets of the Prometheus exposition.
+	 */
+	public long getCountAtOrBelow(long usecs) {
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS && highestEquivalentValue(i) <= usecs; i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	/**
+	 * @return index of the bucket that holds the given value.
+	 */
+	static int bucketOf(long usecs) {
+		if (usecs < SUB_BUCKETS)
+			return (int) usecs;
+		int shift = 63 - Long.numberOfLeadingZeros(usecs) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((usecs >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return largest value that falls into the given bucket.
+	 */
+	static long highestEquivalentValue(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	public String toString() {
+		return "LatencyHistogram[n=" + getCount() + "; p50=" + getValueAtPercentile(50) + "us, p99=" +
+			   getValueAtPercentile(99) + "us, max=" + getMax() + "us]";
+	}
+}
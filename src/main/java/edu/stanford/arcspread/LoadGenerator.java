@@ -0,0 +1,790 @@
+package edu.stanford.arcspread;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * Load test of HTTPCommandDispatcher. Starts the dispatcher in-process,
+ * serving a TimeGate over the test index or a given one (see
+ * TimeGate.serve()), and drives it over loopback from numThreads client
+ * threads, each with one connection at a time.
+ *
+ * Each request is one of a weighted mix of kinds:
+ *
+ *   timegate  TimeGate negotiation for a URL of the index, with a random
+ *             Accept-Datetime two times in three;
+ *   timemap   TimeMap of a URL of the index;
+ *   miss      TimeGate negotiation for a URL that is not in the index;
+ *   metrics   the /metrics page.
+ *
+ * Without a rate, the load is closed-loop: each thread sends its next
+ * request as soon as it has the response to the last. With a rate, the
+ * threads share out that many requests per second on a fixed schedule,
+ * and fall behind it when the server is slow. Either way, two latencies
+ * are reported. Service time runs from sending a request, including
+ * connecting if the thread has no connection, to reading its response.
+ * Response time corrects for coordinated omission, i.e. for the
+ * requests a waiting client did not send: with a rate, it runs from
+ * the time the schedule said to send the request; without one, each
+ * sample longer than the thread's mean service time is backfilled as
+ * in LatencyHistogram.recordCorrected().
+ *
+ * Requests sent during the warm-up are not counted. A run's statistics
+ * can be saved as a baseline, and a later run compared against it; the
+ * comparison flags statistics that got worse by more than a tolerance.
+ *
+ * Usage: LoadGenerator [-threads n] [-duration secs] [-warmup secs] [-rate reqsPerSec]
+ *                      [-mix timegate=80,timemap=10,miss=10,metrics=0] [-close]
+ *                      [-engine blocking|nio|virtual] [-workers n] [-keepAliveTimeout msecs]
+ *                      [-maxRequests n] [-clientTimeout msecs] [-port n]
+ *                      [-maxConcurrency n] [-maxQueued n] [-queueWait msecs] [-unfair]
+ *                      [-sqlite profile]
+ *                      [-save baseline.properties] [-compare baseline.properties] [-tolerance pct]
+ *                      [indexPath]
+ * -close sends every request on a new connection. -workers, -keepAliveTimeout,
+ * -maxRequests, -clientTimeout and -port set the dispatcher's NUM_WORKERS,
+ * KEEP_ALIVE_TIMEOUT, MAX_REQUESTS_PER_CONNECTION, CLIENT_CONNECTION_TIMEOUT
+ * and PORT; -maxConcurrency, -maxQueued, -queueWait and -unfair set the
+ * default engine's admission control: MAX_CONCURRENCY,
+ * MAX_QUEUED_CONNECTIONS, MAX_QUEUE_WAIT, and FAIR_QUEUEING off. Shed
+ * requests show up as 5xx responses. -sqlite sets the index connections'
+ * SQLiteProfile, e.g. "immutable=on,warmUp=on". Exits with status 1 if a comparison
+ * flags a regression.
+ *
+ * @author Paepcke
+ *
+ */
+public class LoadGenerator {
+
+	public static final String KIND_TIMEGATE = "timegate";
+	public static final String KIND_TIMEMAP = "timemap";
+	public static final String KIND_MISS = "miss";
+	public static final String KIND_METRICS = "metrics";
+	static final String[] KINDS = { KIND_TIMEGATE, KIND_TIMEMAP, KIND_MISS, KIND_METRICS };
+
+	static String DEFAULT_MIX = "timegate=80,timemap=10,miss=10";
+	static int DEFAULT_NUM_THREADS = 8;
+	static int DEFAULT_DURATION = 30;
+	static int DEFAULT_WARMUP = 5;
+	/* # of URLs of the index that requests pick from */
+	static int NUM_SAMPLE_URLS = 1000;
+	/* # of distinct Accept-Datetime values that requests pick from */
+	static int NUM_SAMPLE_DATES = 1024;
+	/* Msecs to back off after a failed connection attempt */
+	static long RECONNECT_DELAY = 10;
+	/* Msecs a client waits for response bytes before counting an error */
+	static int READ_TIMEOUT = 30000;
+	/* % by which a statistic may be worse than in the baseline before compare() flags it */
+	static double DEFAULT_TOLERANCE = 10;
+	static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private static final String SERVICE = "service";
+	private static final String RESPONSE = "response";
+	private static final String CONFIG_PREFIX = "config.";
+
+	String host = "localhost";
+	int port = HTTPCommandDispatcher.PORT;
+	int numThreads = DEFAULT_NUM_THREADS;
+	long durationMillis = DEFAULT_DURATION * 1000L;
+	long warmupMillis = DEFAULT_WARMUP * 1000L;
+	// Requests per second, all threads together; 0 for closed-loop:
+	double rate = 0;
+	boolean keepAlive = true;
+	String mix = DEFAULT_MIX;
+	// Cumulative weights, by position in KINDS:
+	int[] mixThresholds = parseMix(DEFAULT_MIX);
+
+	// What requests pick from:
+	String[] urls = new String[0];
+	String[] acceptDatetimes = new String[0];
+
+	final LatencyHistogram serviceTime = new LatencyHistogram();
+	final LatencyHistogram responseTime = new LatencyHistogram();
+	final LongAdder numRequests = new LongAdder();
+	final LongAdder numErrors = new LongAdder();
+	final LongAdder numConnections = new LongAdder();
+	// By status class: 1xx at 1 through 5xx at 5; 0 for unparseable:
+	final LongAdder[] numByStatusClass = new LongAdder[6];
+	final LongAdder[] numByKind = new LongAdder[KINDS.length];
+	double measuredSecs = 0;
+
+	public LoadGenerator() {
+		for (int i = 0; i < numByStatusClass.length; i++)
+			numByStatusClass[i] = new LongAdder();
+		for (int i = 0; i < numByKind.length; i++)
+			numByKind[i] = new LongAdder();
+	}
+
+	public void setTarget(String theHost, int thePort) {
+		host = theHost;
+		port = thePort;
+	}
+
+	public void setNumThreads(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("Need at least one client thread; was " + n);
+		numThreads = n;
+	}
+
+	public void setDuration(long secs) {
+		durationMillis = secs * 1000;
+	}
+
+	public void setWarmup(long secs) {
+		warmupMillis = secs * 1000;
+	}
+
+	/**
+	 * @param reqsPerSec requests per second, all threads together; 0 for closed-loop load.
+	 */
+	public void setRate(double reqsPerSec) {
+		rate = reqsPerSec;
+	}
+
+	public void setKeepAlive(boolean keep) {
+		keepAlive = keep;
+	}
+
+	/**
+	 * @param theMix weights of the request kinds, e.g. "timegate=80,timemap=10,miss=10";
+	 *        kinds not listed get weight 0.
+	 */
+	public void setMix(String theMix) {
+		mixThresholds = parseMix(theMix);
+		mix = theMix;
+	}
+
+	static int[] parseMix(String mix) {
+		int[] thresholds = new int[KINDS.length];
+		for (String part : mix.split(",")) {
+			int eq = part.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Mix entries have the form kind=weight; got '" + part + "'");
+			String kind = part.substring(0, eq).trim();
+			int weight = Integer.parseInt(part.substring(eq + 1).trim());
+			int k = 0;
+			while (k < KINDS.length && !KINDS[k].equals(kind))
+				k++;
+			if (k == KINDS.length)
+				throw new IllegalArgumentException("Unknown request kind '" + kind + "'; use timegate, timemap, miss, or metrics.");
+			if (weight < 0)
+				throw new IllegalArgumentException("Negative weight for " + kind);
+			thresholds[k] = weight;
+		}
+		for (int k = 1; k < KINDS.length; k++)
+			thresholds[k] += thresholds[k - 1];
+		if (thresholds[KINDS.length - 1] == 0)
+			throw new IllegalArgumentException("Request mix '" + mix + "' has no positive weight.");
+		return thresholds;
+	}
+
+	/**
+	 * Read the URLs that requests name, and the range of their capture
+	 * times, from the index that the pool serves. For a sharded index,
+	 * the URLs come from the first shard.
+	 */
+	public void loadRequestMaterial(WBIndexPool pool) throws SQLiteException {
+		WBIndex index = new WBIndex(pool.getIndexFiles()[0].getPath(), true);
+		ArrayList<String> sampled = new ArrayList<String>();
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		try {
+			index.verbose = 0;
+			QueryCursor rows = index.query("SELECT url FROM " + index.getURLTableName() + " LIMIT ?", NUM_SAMPLE_URLS);
+			try {
+				while (rows.next()) {
+					String url = rows.getString(0);
+					if (url == null || url.isEmpty() || !isSendable(url))
+						continue;
+					sampled.add(url);
+					for (long time : index.getAllURLCrawlTimes(url)) {
+						minTime = Math.min(minTime, time);
+						maxTime = Math.max(maxTime, time);
+					}
+				}
+			} finally {
+				rows.close();
+			}
+		} finally {
+			index.close();
+		}
+		if (sampled.isEmpty())
+			throw new IllegalStateException("Index '" + pool.getIndexFiles()[0] + "' holds no URLs to request.");
+		urls = sampled.toArray(new String[sampled.size()]);
+
+		// Datetimes from a year before the first capture to a year after the last:
+		long from = minTime - 365L * 24 * 3600;
+		long span = Math.max(1, maxTime + 365L * 24 * 3600 - from);
+		Random random = new Random(42);
+		acceptDatetimes = new String[NUM_SAMPLE_DATES];
+		for (int i = 0; i < acceptDatetimes.length; i++) {
+			long time = from + (long) (random.nextDouble() * span);
+			acceptDatetimes[i] = WBDateTime.appendHttpDate(time, new StringBuilder(32)).toString();
+		}
+	}
+
+	/**
+	 * @return true if the URL can go into a request line as is.
+	 */
+	private static boolean isSendable(String url) {
+		for (int i = 0; i < url.length(); i++) {
+			char c = url.charAt(i);
+			if (c <= ' ' || c >= 127)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run the load: warm up, then measure for the configured duration.
+	 * Statistics of an earlier run are discarded.
+	 */
+	public void run() throws InterruptedException {
+		serviceTime.reset();
+		responseTime.reset();
+		numRequests.reset();
+		numErrors.reset();
+		numConnections.reset();
+		for (LongAdder n : numByStatusClass)
+			n.reset();
+		for (LongAdder n : numByKind)
+			n.reset();
+
+		long start = System.nanoTime();
+		long measureFrom = start + warmupMillis * 1000000L;
+		long stopAt = measureFrom + durationMillis * 1000000L;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Client(i, start, measureFrom, stopAt), "load client #" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		measuredSecs = durationMillis / 1000.0;
+	}
+
+	/**
+	 * One client thread: sends requests on its connection, and measures them.
+	 */
+	private final class Client implements Runnable {
+
+		final Random random;
+		final long measureFrom;
+		final long stopAt;
+		// Nanos between this thread's scheduled requests; 0 for closed-loop:
+		final long interval;
+		long nextStart;
+
+		Socket sock = null;
+		InputStream in = null;
+		OutputStream out = null;
+		boolean serverClosing = false;
+		final StringBuilder request = new StringBuilder(512);
+		byte[] requestBytes = new byte[1024];
+		byte[] buf = new byte[16384];
+		int bufStart = 0;
+		int bufEnd = 0;
+
+		// For the closed-loop correction:
+		long numMeasured = 0;
+		long serviceSum = 0;
+
+		Client(int threadNum, long start, long theMeasureFrom, long theStopAt) {
+			random = new Random(4711 + threadNum);
+			measureFrom = theMeasureFrom;
+			stopAt = theStopAt;
+			interval = (rate > 0) ? (long) (numThreads * 1e9 / rate) : 0;
+			// Stagger the threads' schedules across one interval:
+			nextStart = start + interval * threadNum / numThreads;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					long intended;
+					if (interval > 0) {
+						intended = nextStart;
+						nextStart += interval;
+						long wait = intended - System.nanoTime();
+						if (wait > 0)
+							LockSupport.parkNanos(wait);
+					} else {
+						intended = System.nanoTime();
+					}
+					if (intended >= stopAt)
+						break;
+					sendOne(intended, intended >= measureFrom);
+				}
+			} finally {
+				disconnect();
+			}
+		}
+
+		private void sendOne(long intended, boolean measured) {
+			int kind = pickKind();
+			try {
+				// Connection setup counts toward the service time:
+				long sent = System.nanoTime();
+				if (sock == null)
+					connect();
+				int len = buildRequest(kind);
+				out.write(requestBytes, 0, len);
+				out.flush();
+				int status = readResponse();
+				long done = System.nanoTime();
+				if (measured) {
+					long service = (done - sent) / 1000;
+					if (interval > 0) {
+						serviceTime.record(service);
+						responseTime.record((done - intended) / 1000);
+					} else {
+						numMeasured++;
+						serviceSum += service;
+						serviceTime.record(service);
+						responseTime.recordCorrected(service, serviceSum / numMeasured);
+					}
+					numRequests.increment();
+					numByKind[kind].increment();
+					numByStatusClass[(status >= 100 && status < 600) ? status / 100 : 0].increment();
+				}
+				if (!keepAlive || serverClosing)
+					disconnect();
+			} catch (IOException e) {
+				if (measured)
+					numErrors.increment();
+				boolean connectFailed = (in == null);
+				disconnect();
+				if (connectFailed)
+					LockSupport.parkNanos(RECONNECT_DELAY * 1000000L);
+			}
+		}
+
+		private int pickKind() {
+			int r = random.nextInt(mixThresholds[KINDS.length - 1]);
+			int kind = 0;
+			while (r >= mixThresholds[kind])
+				kind++;
+			return kind;
+		}
+
+		private void connect() throws IOException {
+			sock = new Socket();
+			sock.setTcpNoDelay(true);
+			sock.setSoTimeout(READ_TIMEOUT);
+			sock.connect(new InetSocketAddress(host, port));
+			in = sock.getInputStream();
+			out = sock.getOutputStream();
+			bufStart = bufEnd = 0;
+			serverClosing = false;
+			numConnections.increment();
+		}
+
+		private void disconnect() {
+			if (sock != null) {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+			sock = null;
+			in = null;
+			out = null;
+		}
+
+		/**
+		 * Put the request text for the given kind into requestBytes.
+		 * @return its length.
+		 */
+		private int buildRequest(int kind) {
+			request.setLength(0);
+			String url = urls[random.nextInt(urls.length)];
+			request.append("GET /");
+			switch (kind) {
+			case 0:
+				request.append(TimeGate.RESOURCE_NAME).append('/').append(url);
+				break;
+			case 1:
+				request.append(TimeMap.RESOURCE_NAME).append('/').append(url);
+				break;
+			case 2:
+				request.append(TimeGate.RESOURCE_NAME).append("/http://load-miss-")
+					   .append(random.nextInt(1000000)).append(".example.org/");
+				break;
+			default:
+				request.append(MetricsResource.RESOURCE_NAME);
+			}
+			request.append(" HTTP/1.1\r\nHost: ").append(host).append(':').append(port).append("\r\n");
+			if (kind == 0 && random.nextInt(3) != 0)
+				request.append(TimeGate.ACCEPT_DATETIME_HEADER).append(": ")
+					   .append(acceptDatetimes[random.nextInt(acceptDatetimes.length)]).append("\r\n");
+			if (!keepAlive)
+				request.append("Connection: close\r\n");
+			request.append("\r\n");
+			int len = request.length();
+			if (requestBytes.length < len)
+				requestBytes = new byte[2 * len];
+			for (int i = 0; i < len; i++)
+				requestBytes[i] = (byte) request.charAt(i);
+			return len;
+		}
+
+		/**
+		 * Read one response, body included.
+		 * @return its status code.
+		 * @throws IOException if the connection fails, or the response is malformed.
+		 */
+		private int readResponse() throws IOException {
+			String statusLine = readLine();
+			if (statusLine == null)
+				throw new IOException("Server closed the connection without responding.");
+			int status = 0;
+			int sp = statusLine.indexOf(' ');
+			if (sp > 0 && statusLine.length() >= sp + 4)
+				status = Integer.parseInt(statusLine.substring(sp + 1, sp + 4));
+			long contentLength = -1;
+			boolean chunked = false;
+			serverClosing = statusLine.startsWith("HTTP/1.0");
+			String line;
+			while ((line = readLine()) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon < 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					contentLength = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = HTTPCommandDispatcher.hasToken(value, "chunked");
+				else if (name.equalsIgnoreCase("Connection"))
+					serverClosing = HTTPCommandDispatcher.hasToken(value, "close") ||
+									(serverClosing && !HTTPCommandDispatcher.hasToken(value, "keep-alive"));
+			}
+			if (line == null)
+				throw new IOException("Response head cut short.");
+			if (chunked) {
+				while (true) {
+					String sizeLine = readLine();
+					if (sizeLine == null)
+						throw new IOException("Chunked body cut short.");
+					int ext = sizeLine.indexOf(';');
+					long size = Long.parseLong((ext < 0) ? sizeLine.trim() : sizeLine.substring(0, ext).trim(), 16);
+					if (size == 0)
+						break;
+					skip(size);
+					readLine();
+				}
+				// Trailers, up to the blank line:
+				while ((line = readLine()) != null && !line.isEmpty())
+					;
+			} else if (contentLength >= 0) {
+				skip(contentLength);
+			} else {
+				// Body runs to the end of the connection:
+				while (fill())
+					bufStart = bufEnd;
+				serverClosing = true;
+			}
+			return status;
+		}
+
+		/**
+		 * @return next line of the response, without its line end; null at end of stream.
+		 */
+		private String readLine() throws IOException {
+			int scanned = 0;
+			while (true) {
+				for (int i = bufStart + scanned; i < bufEnd; i++) {
+					if (buf[i] == '\n') {
+						int end = (i > bufStart && buf[i - 1] == '\r') ? i - 1 : i;
+						String line = new String(buf, bufStart, end - bufStart, "ISO-8859-1");
+						bufStart = i + 1;
+						return line;
+					}
+				}
+				scanned = bufEnd - bufStart;
+				if (!fill())
+					return null;
+			}
+		}
+
+		private void skip(long n) throws IOException {
+			while (n > 0) {
+				if (bufStart == bufEnd && !fill())
+					throw new IOException("Response body cut short.");
+				int step = (int) Math.min(n, bufEnd - bufStart);
+				bufStart += step;
+				n -= step;
+			}
+		}
+
+		/**
+		 * Read more bytes behind the unread ones, moving those to the
+		 * start of the buffer, or growing it, as needed.
+		 * @return false at end of stream.
+		 */
+		private boolean fill() throws IOException {
+			if (bufStart > 0) {
+				System.arraycopy(buf, bufStart, buf, 0, bufEnd - bufStart);
+				bufEnd -= bufStart;
+				bufStart = 0;
+			}
+			if (bufEnd == buf.length) {
+				byte[] larger = new byte[2 * buf.length];
+				System.arraycopy(buf, 0, larger, 0, bufEnd);
+				buf = larger;
+			}
+			int n = in.read(buf, bufEnd, buf.length - bufEnd);
+			if (n < 0)
+				return false;
+			bufEnd += n;
+			return true;
+		}
+	}
+
+	/**
+	 * @return the run's statistics, and the settings it ran with under
+	 * "config." keys. Latencies are in msecs.
+	 */
+	public Properties getResults() {
+		Properties results = new Properties();
+		results.setProperty(CONFIG_PREFIX + "threads", String.valueOf(numThreads));
+		results.setProperty(CONFIG_PREFIX + "rate", String.valueOf(rate));
+		results.setProperty(CONFIG_PREFIX + "mix", mix);
+		results.setProperty(CONFIG_PREFIX + "keepAlive", String.valueOf(keepAlive));
+		results.setProperty(CONFIG_PREFIX + "durationSecs", String.valueOf(durationMillis / 1000));
+		results.setProperty(CONFIG_PREFIX + "workers", String.valueOf(HTTPCommandDispatcher.NUM_WORKERS));
+		results.setProperty(CONFIG_PREFIX + "keepAliveTimeout", String.valueOf(HTTPCommandDispatcher.KEEP_ALIVE_TIMEOUT));
+		results.setProperty(CONFIG_PREFIX + "maxRequests", String.valueOf(HTTPCommandDispatcher.MAX_REQUESTS_PER_CONNECTION));
+		results.setProperty(CONFIG_PREFIX + "maxConcurrency", String.valueOf(HTTPCommandDispatcher.MAX_CONCURRENCY));
+		results.setProperty(CONFIG_PREFIX + "maxQueued", String.valueOf(HTTPCommandDispatcher.MAX_QUEUED_CONNECTIONS));
+		results.setProperty(CONFIG_PREFIX + "queueWait", String.valueOf(HTTPCommandDispatcher.MAX_QUEUE_WAIT));
+		results.setProperty(CONFIG_PREFIX + "sqlite", WBIndex.readProfile.toString());
+		results.setProperty("throughput", format(getThroughput()));
+		results.setProperty("errors", String.valueOf(numErrors.sum()));
+		addLatencies(results, SERVICE, serviceTime);
+		addLatencies(results, RESPONSE, responseTime);
+		return results;
+	}
+
+	private static void addLatencies(Properties results, String prefix, LatencyHistogram histogram) {
+		for (double p : PERCENTILES)
+			results.setProperty(prefix + ".p" + percentileName(p), format(histogram.getValueAtPercentile(p) / 1000.0));
+		results.setProperty(prefix + ".max", format(histogram.getMax() / 1000.0));
+		results.setProperty(prefix + ".mean", format(histogram.getMean() / 1000.0));
+	}
+
+	private static String percentileName(double p) {
+		return (p == Math.rint(p)) ? String.valueOf((long) p) : String.valueOf(p);
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.3f", value);
+	}
+
+	/**
+	 * @return requests per second answered after the warm-up.
+	 */
+	public double getThroughput() {
+		return (measuredSecs > 0) ? numRequests.sum() / measuredSecs : 0;
+	}
+
+	public void report(PrintStream out) {
+		out.println("LoadGenerator: " + numThreads + " threads, " + (keepAlive ? "keep-alive" : "connection per request") +
+					", " + ((rate > 0) ? (format(rate) + " requests/s") : "closed loop") + ", mix " + mix + ", " +
+					(durationMillis / 1000) + " s after " + (warmupMillis / 1000) + " s warm-up");
+		out.println("Requests: " + numRequests.sum() + " = " + format(getThroughput()) + "/s over " +
+					numConnections.sum() + " connections; " + numErrors.sum() + " errors");
+		StringBuilder line = new StringBuilder("By kind:");
+		for (int k = 0; k < KINDS.length; k++)
+			if (numByKind[k].sum() > 0)
+				line.append(' ').append(KINDS[k]).append(' ').append(numByKind[k].sum());
+		line.append("; by status:");
+		for (int c = 1; c < numByStatusClass.length; c++)
+			if (numByStatusClass[c].sum() > 0)
+				line.append(' ').append(c).append("xx ").append(numByStatusClass[c].sum());
+		if (numByStatusClass[0].sum() > 0)
+			line.append(" unparseable ").append(numByStatusClass[0].sum());
+		out.println(line);
+		line.setLength(0);
+		line.append(String.format(Locale.US, "%-16s", "Latency (ms)"));
+		for (double p : PERCENTILES)
+			line.append(String.format(Locale.US, "%10s", "p" + percentileName(p)));
+		line.append(String.format(Locale.US, "%10s%10s", "max", "mean"));
+		out.println(line);
+		printLatencies(out, "service time", serviceTime);
+		printLatencies(out, "response time", responseTime);
+		out.println("(Response time is corrected for coordinated omission.)");
+	}
+
+	private static void printLatencies(PrintStream out, String label, LatencyHistogram histogram) {
+		StringBuilder line = new StringBuilder(String.format(Locale.US, "%-16s", label));
+		for (double p : PERCENTILES)
+			line.append(String.format(Locale.US, "%10.3f", histogram.getValueAtPercentile(p) / 1000.0));
+		line.append(String.format(Locale.US, "%10.3f%10.3f", histogram.getMax() / 1000.0, histogram.getMean() / 1000.0));
+		out.println(line);
+	}
+
+	/**
+	 * Compare a run's results against a baseline, and print the statistics
+	 * side by side. Throughput is worse if lower; errors and latencies are
+	 * worse if higher.
+	 * @param tolerance % by which a statistic may be worse without being flagged.
+	 * @return number of statistics flagged as regressions.
+	 */
+	public static int compare(Properties baseline, Properties current, double tolerance, PrintStream out) {
+		TreeSet<String> keys = new TreeSet<String>(baseline.stringPropertyNames());
+		for (String key : keys) {
+			if (!key.startsWith(CONFIG_PREFIX))
+				continue;
+			String now = current.getProperty(key);
+			if (!baseline.getProperty(key).equals(now))
+				out.println("Note: " + key.substring(CONFIG_PREFIX.length()) + " was " + baseline.getProperty(key) +
+							" in the baseline, is " + now + " now.");
+		}
+		out.println(String.format(Locale.US, "%-20s%14s%14s%10s", "Statistic", "baseline", "current", "change"));
+		int numRegressions = 0;
+		for (String key : keys) {
+			if (key.startsWith(CONFIG_PREFIX) || current.getProperty(key) == null)
+				continue;
+			double before = Double.parseDouble(baseline.getProperty(key));
+			double now = Double.parseDouble(current.getProperty(key));
+			double change = (before == 0) ? ((now == 0) ? 0 : 100) : 100 * (now - before) / before;
+			double worsening = key.equals("throughput") ? -change : change;
+			boolean flagged = worsening > tolerance;
+			if (flagged)
+				numRegressions++;
+			out.println(String.format(Locale.US, "%-20s%14.3f%14.3f%+9.1f%%%s", key, before, now, change,
+									  flagged ? "  WORSE" : ""));
+		}
+		return numRegressions;
+	}
+
+	public static void main(String[] args) throws SQLiteException, InterruptedException, IOException {
+		LoadGenerator generator = new LoadGenerator();
+		String engineName = null;
+		String savePath = null;
+		String comparePath = null;
+		double tolerance = DEFAULT_TOLERANCE;
+		int argPos = 0;
+		try {
+			while (argPos < args.length && args[argPos].startsWith("-")) {
+				String opt = args[argPos++];
+				if ("-close".equals(opt))
+					generator.setKeepAlive(false);
+				else if ("-threads".equals(opt))
+					generator.setNumThreads(Integer.parseInt(args[argPos++]));
+				else if ("-duration".equals(opt))
+					generator.setDuration(Long.parseLong(args[argPos++]));
+				else if ("-warmup".equals(opt))
+					generator.setWarmup(Long.parseLong(args[argPos++]));
+				else if ("-rate".equals(opt))
+					generator.setRate(Double.parseDouble(args[argPos++]));
+				else if ("-mix".equals(opt))
+					generator.setMix(args[argPos++]);
+				else if ("-engine".equals(opt))
+					engineName = args[argPos++];
+				else if ("-workers".equals(opt))
+					HTTPCommandDispatcher.NUM_WORKERS = Integer.parseInt(args[argPos++]);
+				else if ("-keepAliveTimeout".equals(opt))
+					HTTPCommandDispatcher.KEEP_ALIVE_TIMEOUT = Integer.parseInt(args[argPos++]);
+				else if ("-maxRequests".equals(opt))
+					HTTPCommandDispatcher.MAX_REQUESTS_PER_CONNECTION = Integer.parseInt(args[argPos++]);
+				else if ("-clientTimeout".equals(opt))
+					HTTPCommandDispatcher.CLIENT_CONNECTION_TIMEOUT = Integer.parseInt(args[argPos++]);
+				else if ("-port".equals(opt))
+					HTTPCommandDispatcher.PORT = Integer.parseInt(args[argPos++]);
+				else if ("-maxConcurrency".equals(opt))
+					HTTPCommandDispatcher.MAX_CONCURRENCY = Integer.parseInt(args[argPos++]);
+				else if ("-maxQueued".equals(opt))
+					HTTPCommandDispatcher.MAX_QUEUED_CONNECTIONS = Integer.parseInt(args[argPos++]);
+				else if ("-queueWait".equals(opt))
+					HTTPCommandDispatcher.MAX_QUEUE_WAIT = Long.parseLong(args[argPos++]);
+				else if ("-unfair".equals(opt))
+					HTTPCommandDispatcher.FAIR_QUEUEING = false;
+				else if ("-sqlite".equals(opt))
+					WBIndex.readProfile = SQLiteProfile.parse(args[argPos++]);
+				else if ("-save".equals(opt))
+					savePath = args[argPos++];
+				else if ("-compare".equals(opt))
+					comparePath = args[argPos++];
+				else if ("-tolerance".equals(opt))
+					tolerance = Double.parseDouble(args[argPos++]);
+				else
+					argPos = args.length + 1;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			argPos = args.length + 1;
+		}
+		if (argPos < args.length - 1 || argPos > args.length) {
+			System.out.println("Usage: LoadGenerator [-threads n] [-duration secs] [-warmup secs] [-rate reqsPerSec]\n" +
+							   "                     [-mix timegate=80,timemap=10,miss=10,metrics=0] [-close]\n" +
+							   "                     [-engine blocking|nio|virtual] [-workers n] [-keepAliveTimeout msecs]\n" +
+							   "                     [-maxRequests n] [-clientTimeout msecs] [-port n]\n" +
+							   "                     [-save baseline.properties] [-compare baseline.properties] [-tolerance pct]\n" +
+							   "                     [indexPath]");
+			return;
+		}
+		Properties baseline = null;
+		if (comparePath != null) {
+			// Fail before the run, not after it:
+			baseline = new Properties();
+			FileInputStream in = new FileInputStream(comparePath);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		// The pool and the engines size themselves from the dispatcher
+		// settings, which are final by now:
+		WBIndexPool pool = new WBIndexPool((argPos < args.length) ? args[argPos] : null);
+		TimeGate.log(pool.checkSQLiteSettings());
+		TimeGate timeGate = new TimeGate(pool);
+		HTTPCommandDispatcher dispatcher = TimeGate.serve(timeGate, engineName);
+		generator.setTarget("localhost", HTTPCommandDispatcher.PORT);
+		generator.loadRequestMaterial(pool);
+		TimeGate.log("LoadGenerator: serving " + ((pool.getIndexPath() == null) ? "the test index" : pool.getIndexPath()) +
+					 " on port " + HTTPCommandDispatcher.PORT + " with the " + ((engineName == null) ? "blocking" : engineName) +
+					 " engine, " + HTTPCommandDispatcher.NUM_WORKERS + " workers; " + generator.urls.length + " URLs");
+
+		int numRegressions = 0;
+		try {
+			generator.run();
+			generator.report(System.out);
+			Properties results = generator.getResults();
+			if (savePath != null) {
+				FileOutputStream out = new FileOutputStream(savePath);
+				try {
+					results.store(out, "LoadGenerator baseline");
+				} finally {
+					out.close();
+				}
+				TimeGate.log("Saved results to " + savePath);
+			}
+			if (baseline != null)
+				numRegressions = compare(baseline, results, tolerance, System.out);
+		} finally {
+			dispatcher.shutdown();
+			pool.close();
+		}
+		// The dispatcher's idle workers do not end on their own:
+		System.exit((numRegressions > 0) ? 1 : 0);
+	}
+}
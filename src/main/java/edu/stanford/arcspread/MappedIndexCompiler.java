@@ -0,0 +1,249 @@
+package edu.stanford.arcspread;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+
+/**
+ * Compiles the URLs and Crawls tables of a WebBase index into the
+ * memory-mapped format that MappedURLIndex serves (see there for the
+ * layout). Works on text-layout, packed and normalized indexes alike. The URLs are
+ * read in one pass, in url order, and each section is written to a
+ * temporary file next to the output; the sections are then joined
+ * behind the header. The result replaces the output file in one
+ * rename, so that servers mapping it switch to the new version
+ * atomically.
+ *
+ * The compiled file is a snapshot: captures added to the SQLite index
+ * afterwards are only served once the index is compiled again.
+ *
+ * Usage: MappedIndexCompiler [indexPath] outputPath
+ *
+ * @author Paepcke
+ *
+ */
+public class MappedIndexCompiler {
+
+	/* # of URLs between progress messages */
+	static int PROGRESS_INTERVAL = 100000;
+
+	private static final String ALL_URLS_TEXT_QUERY = "SELECT url,datesCrawled,crawlIDs FROM URLs ORDER BY url";
+	private static final String ALL_URLS_PACKED_QUERY =
+			"SELECT url," + WBIndex.PACKED_TIMES_COL + "," + WBIndex.PACKED_CRAWL_IDS_COL + " FROM URLs ORDER BY url";
+	// On a normalized index, the captures of each URL are read by its urlID:
+	private static final String ALL_URLS_NORMALIZED_QUERY = "SELECT url,urlID FROM URLDictionary ORDER BY url";
+	private static final int ALL_URLS_URL_ID_POS = 1;
+	private static final int ALL_URLS_URL_POS = 0;
+	private static final int ALL_URLS_FIRST_CAPTURES_POS = 1;
+	private static final int ALL_URLS_SECOND_CAPTURES_POS = 2;
+
+	private static final int SECTION_BUF_SIZE = 1 << 16;
+
+	WBIndex index = null;
+
+	public MappedIndexCompiler(String indexPath) throws SQLiteException {
+		index = new WBIndex(indexPath, true);
+	}
+
+	/**
+	 * Compile the index into the given file.
+	 * @param outputPath where to put the compiled index. Replaced if it exists.
+	 * @return number of URLs compiled.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if a URL's captures are malformed, or the
+	 *         URLs table does not sort its urls bytewise.
+	 * @throws IOException
+	 */
+	public long compile(String outputPath) throws SQLiteException, DataFormatException, IOException {
+		File outFile = new File(outputPath);
+		File keysFile = new File(outputPath + ".keys.tmp");
+		File urlsFile = new File(outputPath + ".urls.tmp");
+		File timesFile = new File(outputPath + ".times.tmp");
+		File crawlIDsFile = new File(outputPath + ".crawlIDs.tmp");
+		File crawlsFile = new File(outputPath + ".crawls.tmp");
+		File joinedFile = new File(outputPath + ".tmp");
+		int numURLs = 0;
+		long numCaptures = 0;
+		int numCrawls = 0;
+		DataOutputStream keys = open(keysFile);
+		DataOutputStream urls = open(urlsFile);
+		DataOutputStream times = open(timesFile);
+		DataOutputStream crawlIDs = open(crawlIDsFile);
+		DataOutputStream crawls = open(crawlsFile);
+		SQLiteStatement allURLs = null;
+		try {
+			boolean packed = index.hasPackedCaptures();
+			boolean normalized = index.hasNormalizedCaptures();
+			allURLs = index.indexDB.prepare(normalized ? ALL_URLS_NORMALIZED_QUERY :
+											packed ? ALL_URLS_PACKED_QUERY : ALL_URLS_TEXT_QUERY, false);
+			byte[] prevURL = null;
+			long urlsSize = 0;
+			while (allURLs.step()) {
+				String url = allURLs.columnString(ALL_URLS_URL_POS);
+				byte[] urlBytes = url.getBytes(MappedURLIndex.UTF8);
+				if (prevURL != null && compareBytes(prevURL, urlBytes) >= 0)
+					throw new DataFormatException("URLs table does not return urls in byte order; '" + url +
+												  "' follows '" + new String(prevURL, MappedURLIndex.UTF8) + "'");
+				prevURL = urlBytes;
+				byte[] timesBlob;
+				byte[] crawlIDsBlob;
+				if (normalized) {
+					byte[][] blobs = index.packNormalizedCaptures(allURLs.columnLong(ALL_URLS_URL_ID_POS),
+																  Long.MIN_VALUE, Long.MAX_VALUE);
+					timesBlob = blobs[0];
+					crawlIDsBlob = blobs[1];
+				} else if (packed) {
+					timesBlob = allURLs.columnBlob(ALL_URLS_FIRST_CAPTURES_POS);
+					crawlIDsBlob = allURLs.columnBlob(ALL_URLS_SECOND_CAPTURES_POS);
+					if (timesBlob == null)
+						timesBlob = new byte[0];
+					if (crawlIDsBlob == null)
+						crawlIDsBlob = new byte[0];
+					if (PackedCaptures.numCaptures(timesBlob) * PackedCaptures.CRAWL_ID_WIDTH != crawlIDsBlob.length)
+						throw new DataFormatException("Packed capture times and crawl IDs differ in length. URI: " + url);
+				} else {
+					byte[][] blobs = PackedCaptures.packText(url,
+							allURLs.columnString(ALL_URLS_FIRST_CAPTURES_POS),
+							allURLs.columnString(ALL_URLS_SECOND_CAPTURES_POS));
+					timesBlob = blobs[0];
+					crawlIDsBlob = blobs[1];
+				}
+				int urlCaptures = PackedCaptures.numCaptures(timesBlob);
+				if (urlsSize + urlBytes.length > Integer.MAX_VALUE || numCaptures + urlCaptures > Integer.MAX_VALUE / PackedCaptures.TIME_WIDTH)
+					throw new DataFormatException("Index too large to compile: sections are limited to 2 GB.");
+
+				keys.writeLong(MappedURLIndex.prefix(urlBytes));
+				keys.writeInt((int) urlsSize);
+				keys.writeInt(urlBytes.length);
+				keys.writeInt((int) numCaptures);
+				keys.writeInt(urlCaptures);
+				urls.write(urlBytes);
+				times.write(timesBlob);
+				crawlIDs.write(crawlIDsBlob);
+				urlsSize += urlBytes.length;
+				numCaptures += urlCaptures;
+				numURLs++;
+				if (index.verbose > 0 && numURLs % PROGRESS_INTERVAL == 0)
+					System.out.println("Compiled " + numURLs + " URLs...");
+			}
+
+			for (CrawlSpec crawl : index.crawlCatalog.getAll()) {
+				byte[] name = crawl.fullName.getBytes(MappedURLIndex.UTF8);
+				crawls.writeInt(Integer.parseInt(crawl.shortName));
+				crawls.writeLong(crawl.earliestTime);
+				crawls.writeLong(crawl.latestTime);
+				crawls.writeInt(name.length);
+				crawls.write(name);
+				numCrawls++;
+			}
+		} finally {
+			if (allURLs != null)
+				allURLs.dispose();
+			keys.close();
+			urls.close();
+			times.close();
+			crawlIDs.close();
+			crawls.close();
+		}
+
+		try {
+			long keysOffset = MappedURLIndex.HEADER_SIZE;
+			long urlsOffset = keysOffset + keysFile.length();
+			long timesOffset = urlsOffset + urlsFile.length();
+			long crawlIDsOffset = timesOffset + timesFile.length();
+			long crawlsOffset = crawlIDsOffset + crawlIDsFile.length();
+			RandomAccessFile joined = new RandomAccessFile(joinedFile, "rw");
+			try {
+				joined.setLength(0);
+				joined.writeInt(MappedURLIndex.MAGIC);
+				joined.writeInt(MappedURLIndex.FORMAT_VERSION);
+				joined.writeInt(numURLs);
+				joined.writeInt(numCrawls);
+				joined.writeLong(numCaptures);
+				joined.writeLong(keysOffset);
+				joined.writeLong(urlsOffset);
+				joined.writeLong(timesOffset);
+				joined.writeLong(crawlIDsOffset);
+				joined.writeLong(crawlsOffset);
+				FileChannel out = joined.getChannel();
+				for (File section : new File[] { keysFile, urlsFile, timesFile, crawlIDsFile, crawlsFile })
+					append(out, section);
+				out.force(true);
+			} finally {
+				joined.close();
+			}
+			if (!joinedFile.renameTo(outFile)) {
+				// Some platforms will not rename onto an existing file:
+				outFile.delete();
+				if (!joinedFile.renameTo(outFile))
+					throw new IOException("Cannot rename " + joinedFile + " to " + outFile);
+			}
+		} finally {
+			for (File tmp : new File[] { keysFile, urlsFile, timesFile, crawlIDsFile, crawlsFile, joinedFile })
+				tmp.delete();
+		}
+		return numURLs;
+	}
+
+	private static DataOutputStream open(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), SECTION_BUF_SIZE));
+	}
+
+	private static void append(FileChannel out, File section) throws IOException {
+		FileInputStream in = new FileInputStream(section);
+		try {
+			FileChannel inChannel = in.getChannel();
+			long size = inChannel.size();
+			long pos = 0;
+			while (pos < size)
+				pos += inChannel.transferTo(pos, size - pos, out);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compare byte arrays lexicographically, bytes unsigned; the order of
+	 * MappedURLIndex's keys, and of SQLite's BINARY collation on UTF-8 text.
+	 */
+	static int compareBytes(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		return a.length - b.length;
+	}
+
+	public void close() {
+		index.close();
+	}
+
+	public static void main(String[] args) throws SQLiteException, DataFormatException, IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: MappedIndexCompiler [indexPath] outputPath");
+			return;
+		}
+		MappedIndexCompiler compiler = new MappedIndexCompiler((args.length == 2) ? args[0] : null);
+		String outputPath = args[args.length - 1];
+		try {
+			long numCompiled = compiler.compile(outputPath);
+			System.out.println("Compiled " + numCompiled + " URLs of " + compiler.index.getIndexPath() +
+							   " into " + outputPath);
+		} finally {
+			compiler.close();
+		}
+	}
+}
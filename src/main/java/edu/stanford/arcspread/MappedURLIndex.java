@@ -0,0 +1,438 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+import edu.stanford.arcspread.WBIndex.ResourceSpec;
+
+/**
+ * Read-only WebBase index over a file compiled by MappedIndexCompiler.
+ * The file is memory-mapped; a URL lookup is a binary search over a
+ * table of fixed-width keys, followed by a binary search over the URL's
+ * capture times. Neither goes through JNI or creates per-row objects,
+ * and the operating system's page cache holds the file once for all
+ * processes that serve it.
+ *
+ * File layout; all numbers big-endian:
+ *
+ *   header     HEADER_SIZE bytes: MAGIC, FORMAT_VERSION, numURLs,
+ *              numCrawls, numCaptures, and the offsets of the sections below.
+ *   keys       numURLs entries of KEY_WIDTH bytes, sorted by URL bytes,
+ *              unsigned: the URL's first 8 bytes (zero-padded; compared as an
+ *              unsigned long before the full URL is looked at), the URL's
+ *              offset and length in the urls section, and the index and
+ *              number of its captures in the times and crawlIDs sections.
+ *   urls       the URLs, UTF-8, back to back.
+ *   times      8-byte capture times, epoch seconds; ascending per URL.
+ *   crawlIDs   4-byte crawl short-names, parallel to times.
+ *   crawls     per crawl: shortName, earliest and latest time (or
+ *              WBDateTime.NO_TIME), name length, and the UTF-8 name.
+ *
+ * The times and crawlIDs of a URL have the layout of the packed
+ * capture columns (see PackedCaptures). Each section is mapped on its
+ * own, and must be smaller than 2 GB.
+ *
+ * One instance may be used by any number of threads. When the file's
+ * modification time or length changes, e.g. because the compiler
+ * replaced it, the next lookup maps the new file; lookups in progress
+ * finish on the old mapping. The file is checked at most once every
+ * REFRESH_CHECK_INTERVAL msecs.
+ *
+ * @author Paepcke
+ *
+ */
+public class MappedURLIndex implements CaptureIndex {
+
+	static final int MAGIC = 0x57424d49; // "WBMI"
+	static final int FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int KEY_WIDTH = 24;
+
+	// Header fields:
+	static final int HEADER_MAGIC_POS = 0;
+	static final int HEADER_VERSION_POS = 4;
+	static final int HEADER_NUM_URLS_POS = 8;
+	static final int HEADER_NUM_CRAWLS_POS = 12;
+	static final int HEADER_NUM_CAPTURES_POS = 16;
+	static final int HEADER_KEYS_OFFSET_POS = 24;
+	static final int HEADER_URLS_OFFSET_POS = 32;
+	static final int HEADER_TIMES_OFFSET_POS = 40;
+	static final int HEADER_CRAWL_IDS_OFFSET_POS = 48;
+	static final int HEADER_CRAWLS_OFFSET_POS = 56;
+
+	// Key entry fields:
+	static final int KEY_PREFIX_POS = 0;
+	static final int KEY_URL_OFFSET_POS = 8;
+	static final int KEY_URL_LENGTH_POS = 12;
+	static final int KEY_FIRST_CAPTURE_POS = 16;
+	static final int KEY_NUM_CAPTURES_POS = 20;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* Min msecs between checks of the index file for changes */
+	static long REFRESH_CHECK_INTERVAL = 1000;
+
+	/**
+	 * One mapping of the file. Never modified after construction.
+	 */
+	private static final class Sections {
+		final int numURLs;
+		final ByteBuffer keys;
+		final ByteBuffer urls;
+		final ByteBuffer times;
+		final ByteBuffer crawlIDs;
+		final CrawlCatalog.Table crawls;
+		final long modTime;
+		final long length;
+
+		Sections(int theNumURLs, ByteBuffer theKeys, ByteBuffer theURLs, ByteBuffer theTimes,
+				 ByteBuffer theCrawlIDs, CrawlCatalog.Table theCrawls, long theModTime, long theLength) {
+			numURLs = theNumURLs;
+			keys = theKeys;
+			urls = theURLs;
+			times = theTimes;
+			crawlIDs = theCrawlIDs;
+			crawls = theCrawls;
+			modTime = theModTime;
+			length = theLength;
+		}
+	}
+
+	private final File indexFile;
+	private volatile Sections sections = null;
+	private volatile long nextCheckNanos = 0;
+
+	/**
+	 * Map the given compiled index file.
+	 * @throws IOException if the file cannot be read.
+	 * @throws DataFormatException if it is not a compiled index of this format version.
+	 */
+	public MappedURLIndex(String path) throws IOException, DataFormatException {
+		indexFile = new File(path);
+		sections = map(indexFile);
+		nextCheckNanos = System.nanoTime() + REFRESH_CHECK_INTERVAL * 1000000L;
+	}
+
+	/**
+	 * @return true if the given file starts with the compiled index's magic number.
+	 */
+	public static boolean isCompiledIndex(File file) {
+		if (!file.isFile() || file.length() < HEADER_SIZE)
+			return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return raf.readInt() == MAGIC;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static Sections map(File file) throws IOException, DataFormatException {
+		// Record file state before mapping, so that a change made
+		// meanwhile leads to another mapping:
+		long modTime = file.lastModified();
+		long fileLength = file.length();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE)
+				throw new DataFormatException("Not a compiled WebBase index (too short): " + file);
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(HEADER_MAGIC_POS) != MAGIC)
+				throw new DataFormatException("Not a compiled WebBase index: " + file);
+			if (header.getInt(HEADER_VERSION_POS) != FORMAT_VERSION)
+				throw new DataFormatException("Compiled WebBase index " + file + " has format version " +
+						header.getInt(HEADER_VERSION_POS) + "; expected " + FORMAT_VERSION);
+			int numURLs = header.getInt(HEADER_NUM_URLS_POS);
+			int numCrawls = header.getInt(HEADER_NUM_CRAWLS_POS);
+			long numCaptures = header.getLong(HEADER_NUM_CAPTURES_POS);
+			long keysOffset = header.getLong(HEADER_KEYS_OFFSET_POS);
+			long urlsOffset = header.getLong(HEADER_URLS_OFFSET_POS);
+			long timesOffset = header.getLong(HEADER_TIMES_OFFSET_POS);
+			long crawlIDsOffset = header.getLong(HEADER_CRAWL_IDS_OFFSET_POS);
+			long crawlsOffset = header.getLong(HEADER_CRAWLS_OFFSET_POS);
+			if (urlsOffset - keysOffset != (long) numURLs * KEY_WIDTH ||
+				crawlIDsOffset - timesOffset != numCaptures * PackedCaptures.TIME_WIDTH ||
+				crawlsOffset - crawlIDsOffset != numCaptures * PackedCaptures.CRAWL_ID_WIDTH ||
+				crawlsOffset > channel.size())
+				throw new DataFormatException("Compiled WebBase index " + file + " is truncated or corrupt.");
+
+			ByteBuffer keys = mapSection(channel, keysOffset, urlsOffset, file);
+			ByteBuffer urls = mapSection(channel, urlsOffset, timesOffset, file);
+			ByteBuffer times = mapSection(channel, timesOffset, crawlIDsOffset, file);
+			ByteBuffer crawlIDs = mapSection(channel, crawlIDsOffset, crawlsOffset, file);
+			CrawlCatalog.Table crawls = readCrawls(mapSection(channel, crawlsOffset, channel.size(), file), numCrawls, file);
+			return new Sections(numURLs, keys, urls, times, crawlIDs, crawls, modTime, fileLength);
+		} finally {
+			// The mappings stay valid after the channel is closed:
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer mapSection(FileChannel channel, long start, long end, File file)
+			throws IOException, DataFormatException {
+		if (end - start > Integer.MAX_VALUE)
+			throw new DataFormatException("Section of compiled WebBase index " + file + " exceeds 2 GB.");
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+	}
+
+	private static CrawlCatalog.Table readCrawls(ByteBuffer buf, int numCrawls, File file) throws DataFormatException {
+		ArrayList<CrawlSpec> found = new ArrayList<CrawlSpec>(numCrawls);
+		int pos = 0;
+		try {
+			for (int i = 0; i < numCrawls; i++) {
+				int shortName = buf.getInt(pos);
+				long earliestTime = buf.getLong(pos + 4);
+				long latestTime = buf.getLong(pos + 12);
+				int nameLength = buf.getInt(pos + 20);
+				byte[] name = new byte[nameLength];
+				ByteBuffer nameBuf = buf.duplicate();
+				nameBuf.position(pos + 24);
+				nameBuf.get(name);
+				String fullName = new String(name, UTF8);
+				if (shortName < 0)
+					throw new DataFormatException("Negative shortName " + shortName + " for crawl " + fullName);
+				found.add(new CrawlSpec(Integer.toString(shortName), fullName, earliestTime, latestTime));
+				pos += 24 + nameLength;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new DataFormatException("Crawls section of compiled WebBase index " + file + " is truncated.");
+		}
+		return new CrawlCatalog.Table(found);
+	}
+
+	/**
+	 * @return the current mapping, remapping the file first if it changed.
+	 */
+	private Sections sections() throws SQLiteException {
+		Sections current = sections;
+		if (current == null)
+			throw new SQLiteException(SQLiteConstants.WRAPPER_NOT_OPENED, "Compiled WebBase index " + indexFile + " is closed.");
+		if (System.nanoTime() - nextCheckNanos < 0)
+			return current;
+		synchronized (this) {
+			// Another thread may have checked, or closed us, meanwhile:
+			long now = System.nanoTime();
+			if (sections == null || now - nextCheckNanos < 0)
+				return (sections == null) ? current : sections;
+			nextCheckNanos = now + REFRESH_CHECK_INTERVAL * 1000000L;
+			current = sections;
+			if (indexFile.lastModified() == current.modTime && indexFile.length() == current.length)
+				return current;
+			try {
+				sections = map(indexFile);
+			} catch (IOException e) {
+				TimeGate.log("MappedURLIndex: cannot remap changed index " + indexFile + "; keeping the old one: " + e);
+			} catch (DataFormatException e) {
+				TimeGate.log("MappedURLIndex: changed index " + indexFile + " is unusable; keeping the old one: " + e.getMessage());
+			}
+			return sections;
+		}
+	}
+
+	/**
+	 * Binary-search the keys section.
+	 * @return position of the URI's key entry in the keys section, or -1.
+	 */
+	private static int find(Sections s, byte[] uri) {
+		long prefix = prefix(uri);
+		int low = 0;
+		int high = s.numURLs - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int keyPos = mid * KEY_WIDTH;
+			int cmp = Long.compareUnsigned(s.keys.getLong(keyPos + KEY_PREFIX_POS), prefix);
+			if (cmp == 0)
+				cmp = compareURL(s, keyPos, uri);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return keyPos;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the first 8 bytes of a URL as an unsigned long, zero-padded.
+	 */
+	static long prefix(byte[] url) {
+		long prefix = 0;
+		for (int i = 0; i < 8; i++)
+			prefix = (prefix << 8) | ((i < url.length) ? (url[i] & 0xff) : 0);
+		return prefix;
+	}
+
+	/**
+	 * Compare the URL of the given key entry with uri, byte by byte, unsigned.
+	 */
+	private static int compareURL(Sections s, int keyPos, byte[] uri) {
+		int offset = s.keys.getInt(keyPos + KEY_URL_OFFSET_POS);
+		int length = s.keys.getInt(keyPos + KEY_URL_LENGTH_POS);
+		int n = Math.min(length, uri.length);
+		for (int i = 8; i < n; i++) {
+			int cmp = (s.urls.get(offset + i) & 0xff) - (uri[i] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		return length - uri.length;
+	}
+
+	/**
+	 * @return index, within [first, first + numCaptures), of the first capture
+	 * at or after time; first + numCaptures if there is none.
+	 */
+	private static int lowerBound(Sections s, int first, int numCaptures, long time) {
+		int low = first;
+		int high = first + numCaptures;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (s.times.getLong(mid * PackedCaptures.TIME_WIDTH) < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private static long timeAt(Sections s, int capture) {
+		return s.times.getLong(capture * PackedCaptures.TIME_WIDTH);
+	}
+
+	public ResourceSpec getClosestURLCrawl(String uri, long referenceTime) throws SQLiteException, DataFormatException {
+		Sections s = sections();
+		int keyPos = find(s, uri.getBytes(UTF8));
+		if (keyPos < 0)
+			return null;
+		return closestCapture(s, keyPos, uri, referenceTime);
+	}
+
+	/**
+	 * Like PackedCaptures.closestIndex(), over the mapped times: when the
+	 * reference time lies half-way between two captures, the earlier wins.
+	 */
+	private static ResourceSpec closestCapture(Sections s, int keyPos, String uri, long referenceTime) {
+		int first = s.keys.getInt(keyPos + KEY_FIRST_CAPTURE_POS);
+		int numCaptures = s.keys.getInt(keyPos + KEY_NUM_CAPTURES_POS);
+		if (numCaptures == 0)
+			return null;
+		int end = first + numCaptures;
+		int closest = lowerBound(s, first, numCaptures, referenceTime);
+		if (closest == end)
+			closest = end - 1;
+		else if (closest > first &&
+				 timeAt(s, closest) - referenceTime >= referenceTime - timeAt(s, closest - 1))
+			closest--;
+		long closestTime = timeAt(s, closest);
+		int crawlShortName = s.crawlIDs.getInt(closest * PackedCaptures.CRAWL_ID_WIDTH);
+		CrawlSpec crawl = s.crawls.get(crawlShortName);
+		ResourceSpec result = new ResourceSpec(uri, closestTime, (crawl == null) ? null : crawl.fullName);
+		// Step over captures taken at the same second:
+		int prev = closest - 1;
+		while (prev >= first && timeAt(s, prev) == closestTime)
+			prev--;
+		int next = closest + 1;
+		while (next < end && timeAt(s, next) == closestTime)
+			next++;
+		result.setNeighbors((prev < first) ? WBDateTime.NO_TIME : timeAt(s, prev),
+							(next == end) ? WBDateTime.NO_TIME : timeAt(s, next));
+		return result;
+	}
+
+	public List<ResourceSpec> getClosestURLCrawls(Collection<String> uris, long referenceTime)
+			throws SQLiteException, DataFormatException {
+		// Lookups are cheap enough that batching them gains nothing:
+		Sections s = sections();
+		ArrayList<ResourceSpec> result = new ArrayList<ResourceSpec>(uris.size());
+		for (String uri : uris) {
+			int keyPos = find(s, uri.getBytes(UTF8));
+			ResourceSpec match = (keyPos < 0) ? null : closestCapture(s, keyPos, uri, referenceTime);
+			result.add((match == null) ? ResourceSpec.miss(uri) : match);
+		}
+		return result;
+	}
+
+	public CaptureCursor getCaptures(String uri, long from, long until) throws SQLiteException, DataFormatException {
+		Sections s = sections();
+		int keyPos = find(s, uri.getBytes(UTF8));
+		if (keyPos < 0)
+			return null;
+		int first = s.keys.getInt(keyPos + KEY_FIRST_CAPTURE_POS);
+		int numCaptures = s.keys.getInt(keyPos + KEY_NUM_CAPTURES_POS);
+		byte[] timesBlob = new byte[numCaptures * PackedCaptures.TIME_WIDTH];
+		byte[] crawlIDsBlob = new byte[numCaptures * PackedCaptures.CRAWL_ID_WIDTH];
+		ByteBuffer times = s.times.duplicate();
+		times.position(first * PackedCaptures.TIME_WIDTH);
+		times.get(timesBlob);
+		ByteBuffer crawlIDs = s.crawlIDs.duplicate();
+		crawlIDs.position(first * PackedCaptures.CRAWL_ID_WIDTH);
+		crawlIDs.get(crawlIDsBlob);
+		return new CaptureCursor(uri, timesBlob, crawlIDsBlob, from, until);
+	}
+
+	/**
+	 * @return capture times of the given URI, in ascending order; null if the URI is not in the index.
+	 */
+	public long[] getAllURLCrawlTimes(String uri) throws SQLiteException {
+		Sections s = sections();
+		int keyPos = find(s, uri.getBytes(UTF8));
+		if (keyPos < 0)
+			return null;
+		int first = s.keys.getInt(keyPos + KEY_FIRST_CAPTURE_POS);
+		long[] result = new long[s.keys.getInt(keyPos + KEY_NUM_CAPTURES_POS)];
+		for (int i = 0; i < result.length; i++)
+			result[i] = timeAt(s, first + i);
+		return result;
+	}
+
+	public CrawlSpec getCrawlSpec(int shortName) throws SQLiteException {
+		return sections().crawls.get(shortName);
+	}
+
+	/**
+	 * @return number of URLs in the index.
+	 */
+	public int getNumURLs() throws SQLiteException {
+		return sections().numURLs;
+	}
+
+	public String getIndexPath() {
+		return indexFile.getPath();
+	}
+
+	public boolean isOpen() {
+		return sections != null;
+	}
+
+	/**
+	 * Stop serving lookups. The mapping itself is released once no
+	 * lookup in progress refers to it any more.
+	 */
+	public synchronized void close() {
+		sections = null;
+	}
+
+	public String toString() {
+		Sections s = sections;
+		return "MappedURLIndex[" + indexFile.getPath() + ": " +
+			   ((s == null) ? "closed" : s.numURLs + " URLs") + "]";
+	}
+}
@@ -0,0 +1,216 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the server's counters, gauges and latency histograms,
+ * written out in the Prometheus text format by MetricsResource.
+ *
+ * Instruments are LongAdders, which stripe their counts across cells
+ * so that concurrent increments do not contend, and LatencyHistograms;
+ * recording into either does not allocate or lock. Values that other
+ * classes keep anyway, such as TimeGateCache hits, are registered as
+ * LongSuppliers and read only when the metrics are written.
+ *
+ * Instruments that are updated all over the code base, such as the
+ * count of SQLite statement steps, are fields of this class. Others
+ * are registered by their owners. Registering a metric name and label
+ * set a second time replaces the earlier instrument, so that a
+ * restarted component does not show up twice.
+ *
+ * @author Paepcke
+ *
+ */
+public final class Metrics {
+
+	static final String COUNTER = "counter";
+	static final String GAUGE = "gauge";
+	static final String HISTOGRAM = "histogram";
+
+	/* Upper bounds, in seconds, of the cumulative histogram buckets that are exposed */
+	static double[] EXPOSED_BUCKETS =
+		{ 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	/* SQL statements compiled; see StatementCache */
+	static final LongAdder SQLITE_PREPARES = new LongAdder();
+	/* Statement checkouts that reused a compiled statement */
+	static final LongAdder SQLITE_STATEMENT_CACHE_HITS = new LongAdder();
+	/* Calls to SQLiteStatement.step() on index lookups; see StatementCache.step() */
+	static final LongAdder SQLITE_STEPS = new LongAdder();
+	/* Time from accepting a connection until a thread starts serving it */
+	static final LatencyHistogram QUEUE_TIME = new LatencyHistogram();
+
+	/**
+	 * One named metric, with its samples by label set.
+	 */
+	private static final class Family {
+		final String name;
+		final String help;
+		final String type;
+		final LinkedHashMap<String, Object> samples = new LinkedHashMap<String, Object>();
+
+		Family(String theName, String theHelp, String theType) {
+			name = theName;
+			help = theHelp;
+			type = theType;
+		}
+	}
+
+	/* All metrics, in registration order. Guarded by itself */
+	private static final LinkedHashMap<String, Family> families = new LinkedHashMap<String, Family>();
+
+	static {
+		addCounter("sqlite_statement_prepares_total", "SQL statements compiled by SQLite.", null, SQLITE_PREPARES);
+		addCounter("sqlite_statement_cache_hits_total", "Statement checkouts served from a StatementCache.", null,
+				   SQLITE_STATEMENT_CACHE_HITS);
+		addCounter("sqlite_statement_steps_total", "Statement steps taken by WebBase index lookups.", null, SQLITE_STEPS);
+		addHistogram("dispatcher_queue_seconds", "Time from accepting a connection until a thread serves it.", null,
+					 QUEUE_TIME);
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @return label set with one label, e.g. command="timegate", for the
+	 * registration methods.
+	 */
+	public static String label(String name, String value) {
+		StringBuilder buf = new StringBuilder(name.length() + value.length() + 3);
+		buf.append(name).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				buf.append('\\').append(c);
+			else if (c == '\n')
+				buf.append("\\n");
+			else
+				buf.append(c);
+		}
+		return buf.append('"').toString();
+	}
+
+	/**
+	 * Register a counter.
+	 * @param name metric name, e.g. "dispatcher_requests_total".
+	 * @param help one line of description.
+	 * @param labels label set as built by label(), or several of those
+	 *        joined by commas; null for none.
+	 * @param counter the counter.
+	 */
+	public static void addCounter(String name, String help, String labels, LongAdder counter) {
+		add(name, help, COUNTER, labels, counter);
+	}
+
+	/**
+	 * Register a counter whose value is kept elsewhere, and read when
+	 * the metrics are written.
+	 */
+	public static void addCounter(String name, String help, String labels, LongSupplier counter) {
+		add(name, help, COUNTER, labels, counter);
+	}
+
+	/**
+	 * Register a gauge, read when the metrics are written.
+	 */
+	public static void addGauge(String name, String help, String labels, LongSupplier gauge) {
+		add(name, help, GAUGE, labels, gauge);
+	}
+
+	/**
+	 * Register a histogram of durations. It is exposed in seconds.
+	 */
+	public static void addHistogram(String name, String help, String labels, LatencyHistogram histogram) {
+		add(name, help, HISTOGRAM, labels, histogram);
+	}
+
+	/**
+	 * Unregister all samples of a metric.
+	 */
+	public static void remove(String name) {
+		synchronized (families) {
+			families.remove(name);
+		}
+	}
+
+	private static void add(String name, String help, String type, String labels, Object instrument) {
+		synchronized (families) {
+			Family family = families.get(name);
+			if (family == null) {
+				family = new Family(name, help, type);
+				families.put(name, family);
+			} else if (!family.type.equals(type)) {
+				throw new IllegalArgumentException("Metric '" + name + "' is a " + family.type + ", not a " + type + ".");
+			}
+			family.samples.put((labels == null) ? "" : labels, instrument);
+		}
+	}
+
+	/**
+	 * Append all metrics in the Prometheus text exposition format, version 0.0.4.
+	 */
+	public static void write(StringBuilder out) {
+		ArrayList<Family> snapshot;
+		synchronized (families) {
+			snapshot = new ArrayList<Family>(families.size());
+			for (Family family : families.values()) {
+				Family copy = new Family(family.name, family.help, family.type);
+				copy.samples.putAll(family.samples);
+				snapshot.add(copy);
+			}
+		}
+		for (Family family : snapshot) {
+			out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (java.util.Map.Entry<String, Object> sample : family.samples.entrySet()) {
+				String labels = sample.getKey();
+				Object instrument = sample.getValue();
+				if (instrument instanceof LatencyHistogram) {
+					writeHistogram(out, family.name, labels, (LatencyHistogram) instrument);
+					continue;
+				}
+				long value = (instrument instanceof LongAdder) ?
+						((LongAdder) instrument).sum() : ((LongSupplier) instrument).getAsLong();
+				out.append(family.name);
+				appendLabels(out, labels, null);
+				out.append(' ').append(value).append('\n');
+			}
+		}
+	}
+
+	private static void writeHistogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+		// Read the total first: buckets filled in the meantime can only add to it
+		long count = histogram.getCount();
+		long sum = histogram.getSum();
+		for (double bound : EXPOSED_BUCKETS) {
+			out.append(name).append("_bucket");
+			appendLabels(out, labels, "le=\"" + bound + "\"");
+			out.append(' ').append(Math.min(count, histogram.getCountAtOrBelow((long) (bound * 1e6)))).append('\n');
+		}
+		out.append(name).append("_bucket");
+		appendLabels(out, labels, "le=\"+Inf\"");
+		out.append(' ').append(count).append('\n');
+		out.append(name).append("_sum");
+		appendLabels(out, labels, null);
+		out.append(' ').append(sum / 1e6).append('\n');
+		out.append(name).append("_count");
+		appendLabels(out, labels, null);
+		out.append(' ').append(count).append('\n');
+	}
+
+	private static void appendLabels(StringBuilder out, String labels, String extra) {
+		boolean hasLabels = labels.length() > 0;
+		if (!hasLabels && extra == null)
+			return;
+		out.append('{').append(labels);
+		if (extra != null) {
+			if (hasLabels)
+				out.append(',');
+			out.append(extra);
+		}
+		out.append('}');
+	}
+}
@@ -0,0 +1,40 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serves the Metrics registry under "/metrics", in the Prometheus text
+ * exposition format, for scraping or for a look with curl:
+ *
+ *   GET /metrics HTTP/1.1
+ *
+ *   HTTP/1.1 200 OK
+ *   Content-Type: text/plain; version=0.0.4
+ *
+ *   # HELP sqlite_statement_prepares_total SQL statements compiled by SQLite.
+ *   # TYPE sqlite_statement_prepares_total counter
+ *   sqlite_statement_prepares_total 12
+ *   ...
+ *   dispatcher_request_seconds_bucket{command="timegate",le="0.001"} 1031
+ *   ...
+ *   dispatcher_request_seconds_count{command="timegate"} 1042
+ *
+ * @author Paepcke
+ *
+ */
+public class MetricsResource implements HTTPResource {
+
+	public static final String RESOURCE_NAME = "metrics";
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+	public void handle(Command request, OutputStream out) throws IOException {
+		boolean includeBody = !"HEAD".equals(request.getMethod());
+		StringBuilder text = new StringBuilder(8192);
+		Metrics.write(text);
+		ResponseBuilder response = ResponseBuilder.forThread();
+		response.statusLine(HttpConstants.HTTP_OK, "OK").dateHeader().header("Cache-Control", "no-cache");
+		response.connection(request).body(CONTENT_TYPE, text.toString(), includeBody);
+		response.writeTo(out);
+	}
+}
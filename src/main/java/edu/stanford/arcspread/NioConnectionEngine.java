@@ -0,0 +1,739 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection engine built on non-blocking channels. One acceptor thread
+ * accepts connections and deals them round-robin to a small, fixed set
+ * of I/O threads. Each I/O thread watches its connections with one
+ * Selector, so a client that trickles in its request, or sits idle,
+ * costs a selection key rather than a thread.
+ *
+ * While a connection's request head is arriving, the bytes collect in a
+ * direct ByteBuffer taken from the I/O thread's buffer pool; the buffer
+ * goes back to the pool once the connection is idle again. A head that
+ * does not fit moves to a larger, unpooled buffer, up to
+ * HTTPRequestParser.MAX_HEAD_SIZE; beyond that, the client gets a 431.
+ *
+ * The I/O threads only read request heads and write out responses. Once
+ * a head is complete, the connection stops reading, and one of
+ * numWorkers worker threads answers the request, with its own
+ * HTTPRequestParser. Index lookups thus never hold up an I/O thread.
+ * Each worker leases a WBIndex from the dispatcher's pool per request;
+ * numWorkers therefore bounds the lookups that this engine runs at once.
+ * A command handler whose response is not ready does not hold up the
+ * worker either: the connection waits, with no thread, until the
+ * response completes, when a worker sends it.
+ *
+ * Responses go out through a buffer per connection. A worker writes
+ * what the client's socket buffer takes, and leaves the rest for the
+ * connection's I/O thread, which writes it as the socket becomes
+ * writable. A worker only waits, up to WRITE_TIMEOUT msecs, when its
+ * response outruns the client by a full buffer. The I/O thread reads
+ * the connection's next request once its response has gone out.
+ *
+ * Connections persist as the dispatcher decides (see handleRequest()).
+ * Requests pipelined on a connection are answered in order, and an
+ * I/O thread closes its connections that have been idle longer than
+ * KEEP_ALIVE_TIMEOUT (or, before their first request,
+ * CLIENT_CONNECTION_TIMEOUT, if set), and those whose client accepts no
+ * response bytes for WRITE_TIMEOUT msecs. An idle connection holds no
+ * request or response buffer.
+ *
+ * @author Paepcke
+ *
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+
+	/* Default # of I/O threads: one per core, but no more than the dispatcher has workers */
+	static int DEFAULT_NUM_IO_THREADS = 
+		Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), HTTPCommandDispatcher.NUM_WORKERS));
+	/* Default # of threads that answer requests */
+	static int DEFAULT_NUM_WORKERS = HTTPCommandDispatcher.NUM_WORKERS;
+	/* Max # of idle request buffers each I/O thread keeps for reuse */
+	static int MAX_POOLED_BUFFERS = 256;
+	/* Max msecs to wait for a client to accept more response bytes */
+	static long WRITE_TIMEOUT = 30000;
+	/* Size of each connection's response buffer */
+	static int WRITE_BUF_SIZE = 8192;
+	/* Msecs between checks for connections idle past their timeout */
+	static long IDLE_CHECK_INTERVAL = 1000;
+
+	int numIOThreads;
+	int numWorkers;
+	private HTTPCommandDispatcher dispatcher = null;
+	private ServerSocketChannel serverChannel = null;
+	private IOLoop[] ioLoops = null;
+	private ExecutorService workers = null;
+	private volatile boolean running = false;
+
+	// Parses a heap copy of each request head, for handleRequest():
+	private final ThreadLocal<HTTPRequestParser> parsers = new ThreadLocal<HTTPRequestParser>() {
+		@Override
+		protected HTTPRequestParser initialValue() {
+			return new HTTPRequestParser();
+		}
+	};
+
+	public NioConnectionEngine() {
+		this(DEFAULT_NUM_IO_THREADS, DEFAULT_NUM_WORKERS);
+	}
+
+	public NioConnectionEngine(int theNumIOThreads) {
+		this(theNumIOThreads, DEFAULT_NUM_WORKERS);
+	}
+
+	public NioConnectionEngine(int theNumIOThreads, int theNumWorkers) {
+		if (theNumIOThreads < 1)
+			throw new IllegalArgumentException("Need at least one I/O thread; was " + theNumIOThreads);
+		if (theNumWorkers < 1)
+			throw new IllegalArgumentException("Need at least one worker thread; was " + theNumWorkers);
+		numIOThreads = theNumIOThreads;
+		numWorkers = theNumWorkers;
+	}
+
+	public void start(HTTPCommandDispatcher theDispatcher, int port) throws IOException {
+		dispatcher = theDispatcher;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		running = true;
+		workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+			private int numThreads = 0;
+
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "nio worker #" + numThreads++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ioLoops = new IOLoop[numIOThreads];
+		for (int i = 0; i < numIOThreads; i++) {
+			ioLoops[i] = new IOLoop();
+			new Thread(ioLoops[i], "nio io #" + i).start();
+		}
+		new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "nio acceptor").start();
+	}
+
+	public void shutdown() {
+		running = false;
+		try {
+			if (serverChannel != null)
+				serverChannel.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		if (ioLoops != null)
+			for (IOLoop loop : ioLoops)
+				loop.selector.wakeup();
+		if (workers != null)
+			workers.shutdown();
+	}
+
+	private void acceptLoop() {
+		int nextLoop = 0;
+		while (running) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				if (!running)
+					break;
+				e.printStackTrace();
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+			ioLoops[nextLoop].add(new Connection(channel, ioLoops[nextLoop]));
+			nextLoop = (nextLoop + 1) % ioLoops.length;
+		}
+	}
+
+	/**
+	 * Per-connection state. The I/O thread owns the request buffer while
+	 * the connection reads; a worker owns it while the connection is busy.
+	 */
+	private final class Connection implements HTTPCommandDispatcher.ResponseDeferrer {
+		final SocketChannel channel;
+		final IOLoop loop;
+		final ConnectionOutput out;
+		// System.nanoTime() when the connection was accepted:
+		final long acceptedAt = System.nanoTime();
+		// Key with the loop's selector; set on registration:
+		SelectionKey key = null;
+		// Request bytes so far; null between requests:
+		ByteBuffer buf = null;
+		// Bytes of buf already searched for the end of the head:
+		int scanned = 0;
+		// Head outgrew HTTPRequestParser.MAX_HEAD_SIZE:
+		boolean headTooLarge = false;
+		// Handed to a worker, or waiting for a handler; I/O thread only:
+		boolean busy = false;
+		// Whether the connection stays open once its output is out; I/O thread only:
+		boolean keepOpen = true;
+		// Requests answered so far:
+		volatile int numRequests = 0;
+		// System.currentTimeMillis() of the last read or response:
+		volatile long lastActive = System.currentTimeMillis();
+		// Handler response still to be sent; null if none:
+		volatile HTTPCommandDispatcher.PendingResponse pending = null;
+		// Serve the pending response when both its worker is done and it is ready:
+		final AtomicInteger pendingLatch = new AtomicInteger();
+
+		Connection(SocketChannel theChannel, IOLoop theLoop) {
+			channel = theChannel;
+			loop = theLoop;
+			out = new ConnectionOutput(this);
+		}
+
+		public void defer(HTTPCommandDispatcher.PendingResponse response) {
+			pending = response;
+			pendingLatch.set(2);
+			response.whenReady(new Runnable() {
+				public void run() {
+					arrive();
+				}
+			});
+		}
+
+		/**
+		 * Count down to serving the pending response.
+		 */
+		void arrive() {
+			if (pendingLatch.decrementAndGet() == 0)
+				submit(this);
+		}
+	}
+
+	/**
+	 * Have a worker answer the connection's pending response, if any,
+	 * and then the requests in its buffer.
+	 */
+	private void submit(final Connection conn) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					serve(conn);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			conn.loop.finished(conn, false);
+		}
+	}
+
+	/**
+	 * Runs on a worker. Send the connection's pending response, then
+	 * answer each complete request head in its buffer, and hand the
+	 * connection back to its I/O thread.
+	 */
+	private void serve(Connection conn) {
+		boolean keepOpen = false;
+		try {
+			keepOpen = true;
+			HTTPCommandDispatcher.PendingResponse response = conn.pending;
+			if (response != null) {
+				conn.pending = null;
+				keepOpen = response.send(conn.out);
+			}
+			if (keepOpen)
+				keepOpen = serveBuffered(conn);
+			conn.out.flush();
+		} catch (IOException e) {
+			// Client went away, or stopped reading our response
+			keepOpen = false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			keepOpen = false;
+		}
+		if (keepOpen && conn.pending != null)
+			conn.arrive();
+		else
+			conn.loop.finished(conn, keepOpen);
+	}
+
+	/**
+	 * Answer each complete request head in the connection's buffer,
+	 * in order. Bytes behind a head are kept as the start of the
+	 * next, pipelined, request. Stops at a deferred response, and
+	 * leaves the remaining requests to the worker that sends it.
+	 * @return false if the connection must be closed.
+	 */
+	private boolean serveBuffered(Connection conn) throws IOException {
+		if (conn.headTooLarge) {
+			HTTPCommandDispatcher.sendHeadTooLarge(conn.out);
+			return false;
+		}
+		HTTPRequestParser parser = parsers.get();
+		while (conn.buf != null) {
+			int end = conn.buf.position();
+			int headerEnd = findHeaderEnd(conn.buf, Math.max(0, conn.scanned - 3), end);
+			conn.scanned = end;
+			if (headerEnd < 0)
+				return true;
+			parser.ensureCapacity(end);
+			byte[] requestBytes = parser.getBuffer();
+			conn.buf.flip();
+			conn.buf.get(requestBytes, 0, end);
+			conn.buf.clear();
+			boolean keepAlive = dispatcher.handleRequest(parser, headerEnd, conn.out, ++conn.numRequests, conn);
+			conn.lastActive = System.currentTimeMillis();
+			if (!keepAlive)
+				return false;
+			conn.buf.put(requestBytes, headerEnd, end - headerEnd);
+			conn.scanned = 0;
+			if (conn.pending != null)
+				return true;
+		}
+		return true;
+	}
+
+	private final class IOLoop implements Runnable {
+
+		final Selector selector;
+		// Connections accepted for this loop, not yet registered with its selector:
+		final ConcurrentLinkedQueue<Connection> newConnections = new ConcurrentLinkedQueue<Connection>();
+		// Work handed to this loop by the workers:
+		final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+
+		IOLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(Connection conn) {
+			newConnections.add(conn);
+			selector.wakeup();
+		}
+
+		private void runOnLoop(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Called by a worker whose response did not all fit into the
+		 * client's socket buffer: write the rest as the socket drains.
+		 */
+		void watchWritable(final Connection conn) {
+			runOnLoop(new Runnable() {
+				public void run() {
+					if (conn.key.isValid())
+						conn.key.interestOps(SelectionKey.OP_WRITE);
+				}
+			});
+		}
+
+		/**
+		 * Called by a worker that is done with the connection: once its
+		 * output is out, read its next request, or close it.
+		 */
+		void finished(final Connection conn, final boolean keepOpen) {
+			runOnLoop(new Runnable() {
+				public void run() {
+					conn.busy = false;
+					conn.keepOpen = keepOpen;
+					if (!conn.key.isValid()) {
+						// Closed while busy; the buffer is ours again:
+						recycleRequestBuffer(conn);
+						return;
+					}
+					if (conn.out.isDrained())
+						resume(conn);
+					else
+						conn.key.interestOps(SelectionKey.OP_WRITE);
+				}
+			});
+		}
+
+		public void run() {
+			long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_INTERVAL;
+			try {
+				while (running) {
+					selector.select(IDLE_CHECK_INTERVAL);
+					Connection conn;
+					while ((conn = newConnections.poll()) != null) {
+						Metrics.QUEUE_TIME.recordNanos(System.nanoTime() - conn.acceptedAt);
+						try {
+							conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+						} catch (ClosedChannelException e) {
+							// Client gave up already
+						}
+					}
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						task.run();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid())
+							continue;
+						if (key.isWritable())
+							writeReady(key);
+						else if (key.isReadable())
+							read(key);
+					}
+					long now = System.currentTimeMillis();
+					if (now >= nextIdleCheck) {
+						closeIdle(now);
+						nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys())
+					close(key);
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+		}
+
+		/**
+		 * Read what the client sent. Once the request head is complete,
+		 * or too large, hand the connection to a worker.
+		 */
+		private void read(SelectionKey key) {
+			Connection conn = (Connection) key.attachment();
+			try {
+				if (conn.buf == null) {
+					conn.buf = takeBuffer();
+					conn.scanned = 0;
+				}
+				int numRead = conn.channel.read(conn.buf);
+				if (numRead < 0) {
+					close(key);
+					return;
+				}
+				conn.lastActive = System.currentTimeMillis();
+				int end = conn.buf.position();
+				if (findHeaderEnd(conn.buf, Math.max(0, conn.scanned - 3), end) < 0) {
+					conn.scanned = end;
+					if (conn.buf.hasRemaining())
+						return;
+					// Buffer full; the head needs a larger one:
+					if (growBuffer(conn))
+						return;
+					conn.headTooLarge = true;
+				}
+			} catch (IOException e) {
+				// Client went away
+				close(key);
+				return;
+			}
+			key.interestOps(0);
+			conn.busy = true;
+			submit(conn);
+		}
+
+		/**
+		 * Write more of a connection's buffered response. Once all is
+		 * out, read the connection's next request, unless a worker is
+		 * still answering the current one.
+		 */
+		private void writeReady(SelectionKey key) {
+			Connection conn = (Connection) key.attachment();
+			try {
+				if (!conn.out.writeReady())
+					return;
+			} catch (IOException e) {
+				// Client went away
+				close(key);
+				return;
+			}
+			if (conn.busy)
+				key.interestOps(0);
+			else
+				resume(conn);
+		}
+
+		/**
+		 * The connection's response is out, and no worker holds it:
+		 * wait for its next request, or close it.
+		 */
+		private void resume(Connection conn) {
+			if (!conn.keepOpen) {
+				close(conn.key);
+				return;
+			}
+			conn.out.release();
+			if (conn.buf != null && conn.buf.position() == 0) {
+				// Between requests; don't hold a buffer while idle:
+				recycleRequestBuffer(conn);
+			}
+			conn.lastActive = System.currentTimeMillis();
+			conn.key.interestOps(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Close the connections that have waited too long for a request,
+		 * or for their client to take their response, and time out
+		 * handler responses that have taken too long.
+		 */
+		private void closeIdle(long now) {
+			for (SelectionKey key : selector.keys()) {
+				Connection conn = (Connection) key.attachment();
+				if (conn == null || !key.isValid())
+					continue;
+				HTTPCommandDispatcher.PendingResponse response = conn.pending;
+				if (response != null) {
+					long waited = (System.nanoTime() - response.getStartNanos()) / 1000000;
+					if (HTTPCommandDispatcher.HANDLER_TIMEOUT > 0 && waited > HTTPCommandDispatcher.HANDLER_TIMEOUT)
+						response.timeOut();
+					continue;
+				}
+				// A busy worker times out its own writes:
+				if (conn.busy)
+					continue;
+				if (!conn.out.isDrained()) {
+					if (now - conn.out.getLastProgress() > WRITE_TIMEOUT)
+						close(key);
+					continue;
+				}
+				long timeout = (conn.numRequests == 0) ? 
+						HTTPCommandDispatcher.CLIENT_CONNECTION_TIMEOUT : 
+						HTTPCommandDispatcher.KEEP_ALIVE_TIMEOUT;
+				if (timeout > 0 && now - conn.lastActive > timeout)
+					close(key);
+			}
+		}
+
+		/**
+		 * Replace the connection's full buffer with one twice its size,
+		 * up to HTTPRequestParser.MAX_HEAD_SIZE. Large buffers are not pooled.
+		 * @return false if the buffer is at the maximum size already.
+		 */
+		private boolean growBuffer(Connection conn) {
+			int capacity = conn.buf.capacity();
+			if (capacity >= HTTPRequestParser.MAX_HEAD_SIZE)
+				return false;
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(2 * capacity, HTTPRequestParser.MAX_HEAD_SIZE));
+			conn.buf.flip();
+			larger.put(conn.buf);
+			recycleBuffer(conn.buf);
+			conn.buf = larger;
+			return true;
+		}
+
+		private ByteBuffer takeBuffer() {
+			ByteBuffer buf = freeBuffers.pollFirst();
+			if (buf == null)
+				return ByteBuffer.allocateDirect(HTTPCommandDispatcher.BUF_SIZE);
+			buf.clear();
+			return buf;
+		}
+
+		private void recycleBuffer(ByteBuffer buf) {
+			if (buf.capacity() == HTTPCommandDispatcher.BUF_SIZE && freeBuffers.size() < MAX_POOLED_BUFFERS)
+				freeBuffers.addFirst(buf);
+		}
+
+		private void recycleRequestBuffer(Connection conn) {
+			if (conn.buf != null) {
+				recycleBuffer(conn.buf);
+				conn.buf = null;
+			}
+		}
+
+		/**
+		 * Close the connection. A worker that is busy with it finds out
+		 * when it next writes, and keeps its request buffer until then.
+		 */
+		private void close(SelectionKey key) {
+			Connection conn = (Connection) key.attachment();
+			if (conn != null) {
+				conn.out.close();
+				if (!conn.busy)
+					recycleRequestBuffer(conn);
+			}
+			key.cancel();
+			closeQuietly(key.channel());
+		}
+	}
+
+	/**
+	 * Like HTTPCommandDispatcher.findHeaderEnd(), over a ByteBuffer.
+	 * @return index just past the blank line that ends the head, or -1.
+	 */
+	static int findHeaderEnd(ByteBuffer buf, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) != (byte) '\n')
+				continue;
+			if (i + 1 < to && buf.get(i + 1) == (byte) '\n')
+				return i + 2;
+			if (i + 2 < to && buf.get(i + 1) == (byte) '\r' && buf.get(i + 2) == (byte) '\n')
+				return i + 3;
+		}
+		return -1;
+	}
+
+	private static void closeQuietly(java.nio.channels.Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+
+	/**
+	 * A connection's response stream. Bytes collect in a heap buffer,
+	 * and go out when it fills or on flush(), as far as the client's
+	 * socket buffer takes them; the connection's I/O thread writes the
+	 * rest once the socket is writable. Only when the buffer is full of
+	 * unwritten bytes does the writer wait, up to WRITE_TIMEOUT msecs.
+	 * Guarded by its own monitor, as the worker and the I/O thread both
+	 * write.
+	 */
+	private static final class ConnectionOutput extends OutputStream {
+
+		private final Connection conn;
+		// Unwritten bytes, in fill mode; null while the connection is idle:
+		private ByteBuffer writeBuf = null;
+		// Whether the I/O thread has been asked to write the rest:
+		private boolean watching = false;
+		private boolean closed = false;
+		// System.currentTimeMillis() when bytes last went out:
+		private long lastProgress = System.currentTimeMillis();
+
+		ConnectionOutput(Connection theConn) {
+			conn = theConn;
+		}
+
+		public synchronized void write(int b) throws IOException {
+			awaitRoom();
+			writeBuf.put((byte) b);
+		}
+
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				awaitRoom();
+				int n = Math.min(len, writeBuf.remaining());
+				writeBuf.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Write what the client takes now; leave the rest to the I/O thread.
+		 */
+		public synchronized void flush() throws IOException {
+			if (closed)
+				throw new ClosedChannelException();
+			if (writeBuf == null || writeBuf.position() == 0)
+				return;
+			writeOut();
+			if (writeBuf.position() > 0 && !watching) {
+				watching = true;
+				conn.loop.watchWritable(conn);
+			}
+		}
+
+		/**
+		 * Make room in the buffer, waiting for the I/O thread to write
+		 * it out if the client takes nothing now.
+		 */
+		private void awaitRoom() throws IOException {
+			if (closed)
+				throw new ClosedChannelException();
+			if (writeBuf == null)
+				writeBuf = ByteBuffer.allocate(WRITE_BUF_SIZE);
+			if (writeBuf.hasRemaining())
+				return;
+			flush();
+			long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+			while (!writeBuf.hasRemaining()) {
+				long timeLeft = deadline - System.currentTimeMillis();
+				if (timeLeft <= 0)
+					throw new SocketTimeoutException("Client accepted no response bytes for " + WRITE_TIMEOUT + " msecs");
+				try {
+					wait(timeLeft);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SocketTimeoutException("Interrupted while waiting for the client to accept response bytes");
+				}
+				if (closed)
+					throw new ClosedChannelException();
+			}
+		}
+
+		private void writeOut() throws IOException {
+			writeBuf.flip();
+			try {
+				if (conn.channel.write(writeBuf) > 0)
+					lastProgress = System.currentTimeMillis();
+			} finally {
+				writeBuf.compact();
+			}
+		}
+
+		/**
+		 * Called by the I/O thread when the socket is writable.
+		 * @return true if all buffered bytes are out.
+		 */
+		synchronized boolean writeReady() throws IOException {
+			if (writeBuf != null && writeBuf.position() > 0) {
+				writeOut();
+				notifyAll();
+			}
+			if (!isDrained())
+				return false;
+			watching = false;
+			return true;
+		}
+
+		synchronized boolean isDrained() {
+			return writeBuf == null || writeBuf.position() == 0;
+		}
+
+		synchronized long getLastProgress() {
+			return lastProgress;
+		}
+
+		/**
+		 * Drop the buffer while the connection is idle.
+		 */
+		synchronized void release() {
+			if (isDrained())
+				writeBuf = null;
+		}
+
+		/**
+		 * The connection is closed; fail the writer, if one is waiting.
+		 */
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package edu.stanford.arcspread;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.DataFormatException;
+
+/**
+ * Binary layout of the capture columns in the URLs table:
+ *
+ *   captureTimes:    BLOB of big-endian 8-byte longs, epoch seconds (UTC),
+ *                    sorted ascending.
+ *   captureCrawlIDs: BLOB of big-endian 4-byte ints, the crawl short-name
+ *                    of each capture, parallel to captureTimes.
+ *
+ * These columns replace parsing the ';'-separated datesCrawled and
+ * crawlIDs strings on every lookup. Finding the capture closest to a
+ * reference time is a binary search over the blob, with no per-capture
+ * objects. PackedCapturesMigrator adds and fills the columns in an
+ * existing index.
+ *
+ * @author Paepcke
+ *
+ */
+public final class PackedCaptures {
+
+	public static final int TIME_WIDTH = 8;
+	public static final int CRAWL_ID_WIDTH = 4;
+
+	private PackedCaptures() {
+	}
+
+	/**
+	 * Pack the given capture times and crawl IDs into the two blob columns.
+	 * The captures are sorted by time; crawl IDs stay attached to their
+	 * times. The passed-in arrays are not modified.
+	 * @param times epoch seconds of each capture, in any order.
+	 * @param crawlIDs crawl short-name of each capture, parallel to times.
+	 * @return two-element array: [captureTimes blob, captureCrawlIDs blob].
+	 */
+	public static byte[][] pack(long[] times, int[] crawlIDs) {
+		if (times.length != crawlIDs.length)
+			throw new IllegalArgumentException("Number of capture times (" + times.length +
+					") differs from number of crawl IDs (" + crawlIDs.length + ")");
+		long[] sortedTimes = times.clone();
+		int[] sortedIDs = crawlIDs.clone();
+		sortByTime(sortedTimes, sortedIDs);
+		return encode(sortedTimes, sortedIDs);
+	}
+
+	/**
+	 * Sort parallel capture arrays by time, in place. Crawl IDs stay
+	 * attached to their times, and equal times keep their order.
+	 *
+	 * Sorting runs at migration, ingest and compile time, and on the
+	 * request path for text-layout indexes. Capture lists mostly arrive
+	 * in crawl order or reverse crawl order; those take one pass.
+	 * @param times epoch seconds of each capture, in any order.
+	 * @param crawlIDs crawl short-name of each capture, parallel to times.
+	 */
+	static void sortByTime(long[] times, int[] crawlIDs) {
+		int numCaptures = times.length;
+		if (isSorted(times, false))
+			return;
+		if (isSorted(times, true)) {
+			for (int i = 0, j = numCaptures - 1; i < j; i++, j--) {
+				long time = times[i];
+				times[i] = times[j];
+				times[j] = time;
+				int id = crawlIDs[i];
+				crawlIDs[i] = crawlIDs[j];
+				crawlIDs[j] = id;
+			}
+			return;
+		}
+		// Sort an index permutation, so that crawl IDs stay with their
+		// times. The sort is stable: equal times keep their order.
+		final long[] unsortedTimes = times.clone();
+		int[] unsortedIDs = crawlIDs.clone();
+		Integer[] order = new Integer[numCaptures];
+		for (int i = 0; i < numCaptures; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return Long.compare(unsortedTimes[i], unsortedTimes[j]);
+			}
+		});
+		for (int i = 0; i < numCaptures; i++) {
+			times[i] = unsortedTimes[order[i]];
+			crawlIDs[i] = unsortedIDs[order[i]];
+		}
+	}
+
+	/**
+	 * @param descending false to check for ascending order, which allows
+	 *        equal neighbors; true for strictly descending order.
+	 * @return true if times is sorted in the given direction.
+	 */
+	private static boolean isSorted(long[] times, boolean descending) {
+		for (int i = 1; i < times.length; i++) {
+			if (descending ? times[i - 1] <= times[i] : times[i - 1] > times[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[][] encode(long[] sortedTimes, int[] sortedIDs) {
+		int numCaptures = sortedTimes.length;
+		byte[] timesBlob = new byte[numCaptures * TIME_WIDTH];
+		byte[] idsBlob = new byte[numCaptures * CRAWL_ID_WIDTH];
+		for (int i = 0; i < numCaptures; i++) {
+			putLong(timesBlob, i * TIME_WIDTH, sortedTimes[i]);
+			putInt(idsBlob, i * CRAWL_ID_WIDTH, sortedIDs[i]);
+		}
+		return new byte[][] { timesBlob, idsBlob };
+	}
+
+	/**
+	 * Pack one URLs row's text-layout columns, datesCrawled and crawlIDs.
+	 * @param url the row's URL; for error messages.
+	 * @param datesStr e.g. "2012-05-07 02:51:56;2011-11-13 14:51:56". May be null.
+	 * @param crawlIDsStr e.g. "0;1". May be null if datesStr is.
+	 * @return [captureTimes, captureCrawlIDs].
+	 * @throws DataFormatException if the columns are malformed.
+	 */
+	static byte[][] packText(String url, String datesStr, String crawlIDsStr) throws DataFormatException {
+		long[] times = parseTextTimes(url, datesStr);
+		int[] crawlIDs = parseTextCrawlIDs(url, datesStr, crawlIDsStr, times.length);
+		sortByTime(times, crawlIDs);
+		return encode(times, crawlIDs);
+	}
+
+	/**
+	 * @param url the row's URL; for error messages.
+	 * @param datesStr a row's datesCrawled column. May be null.
+	 * @return epoch seconds of each date/time, in column order.
+	 * @throws DataFormatException if a date/time is malformed.
+	 */
+	static long[] parseTextTimes(String url, String datesStr) throws DataFormatException {
+		if (datesStr == null || datesStr.trim().length() == 0)
+			return new long[0];
+		try {
+			return WBIndex.parseWBIndexTimeChain(datesStr);
+		} catch (NumberFormatException e) {
+			throw new DataFormatException(e.getMessage() + " URI: " + url);
+		}
+	}
+
+	/**
+	 * @param url the row's URL; for error messages.
+	 * @param datesStr the row's datesCrawled column; for error messages.
+	 * @param crawlIDsStr the row's crawlIDs column. May be null if numCaptures is 0.
+	 * @param numCaptures number of date/times in datesStr.
+	 * @return the first numCaptures crawl short-names, in column order.
+	 * @throws DataFormatException if there are too few, or one is not an integer.
+	 */
+	static int[] parseTextCrawlIDs(String url, String datesStr, String crawlIDsStr, int numCaptures)
+			throws DataFormatException {
+		int[] crawlIDs = new int[numCaptures];
+		if (numCaptures == 0)
+			return crawlIDs;
+		String[] crawlIDStrs = (crawlIDsStr == null) ? new String[0] : crawlIDsStr.split(";");
+		if (crawlIDStrs.length < numCaptures)
+			throw new DataFormatException("Fewer crawl short-names than crawl dates. URI: " +
+										  url + "; datesCrawled: " + datesStr +
+										  "; crawlIDs: " + crawlIDsStr);
+		for (int i = 0; i < numCaptures; i++) {
+			try {
+				crawlIDs[i] = Integer.parseInt(crawlIDStrs[i].trim());
+			} catch (NumberFormatException e) {
+				throw new DataFormatException("Non-numeric crawl short-name '" + crawlIDStrs[i] +
+											  "'. URI: " + url + "; crawlIDs: " + crawlIDsStr);
+			}
+		}
+		return crawlIDs;
+	}
+
+	/**
+	 * Binary-search sorted capture times for the first capture at or
+	 * after the given time; like lowerBound(byte[], long).
+	 * @param times epoch seconds, sorted ascending.
+	 * @param time epoch seconds.
+	 * @return index of the first capture whose time is &gt;= time; times.length if there is none.
+	 */
+	static int lowerBound(long[] times, long time) {
+		int low = 0;
+		int high = times.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @param timesBlob content of a captureTimes column.
+	 * @return number of captures in the blob; 0 if blob is null.
+	 */
+	public static int numCaptures(byte[] timesBlob) {
+		return (timesBlob == null) ? 0 : timesBlob.length / TIME_WIDTH;
+	}
+
+	/**
+	 * @return epoch seconds of the index'th capture in a captureTimes blob.
+	 */
+	public static long timeAt(byte[] timesBlob, int index) {
+		return getLong(timesBlob, index * TIME_WIDTH);
+	}
+
+	/**
+	 * @return crawl short-name of the index'th capture in a captureCrawlIDs blob.
+	 */
+	public static int crawlIDAt(byte[] crawlIDsBlob, int index) {
+		return getInt(crawlIDsBlob, index * CRAWL_ID_WIDTH);
+	}
+
+	/**
+	 * Binary-search a captureTimes blob for the capture closest to the
+	 * given reference time. When the reference time lies exactly
+	 * half-way between two captures, the earlier one wins.
+	 * @param timesBlob captureTimes column content, sorted ascending.
+	 * @param referenceTime epoch seconds to match.
+	 * @return index of the closest capture, or -1 if the blob holds no captures.
+	 */
+	public static int closestIndex(byte[] timesBlob, long referenceTime) {
+		int numCaptures = numCaptures(timesBlob);
+		if (numCaptures == 0)
+			return -1;
+		int low = lowerBound(timesBlob, referenceTime);
+		if (low == 0)
+			return 0;
+		if (low == numCaptures)
+			return numCaptures - 1;
+		long distBefore = referenceTime - timeAt(timesBlob, low - 1);
+		long distAfter = timeAt(timesBlob, low) - referenceTime;
+		return (distAfter < distBefore) ? low : low - 1;
+	}
+
+	/**
+	 * Binary-search a captureTimes blob for the first capture at or after
+	 * the given time.
+	 * @param timesBlob captureTimes column content, sorted ascending; may be null.
+	 * @param time epoch seconds.
+	 * @return index of the first capture whose time is &gt;= time; numCaptures(timesBlob)
+	 * if there is none.
+	 */
+	public static int lowerBound(byte[] timesBlob, long time) {
+		int low = 0;
+		int high = numCaptures(timesBlob);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (timeAt(timesBlob, mid) < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	static long getLong(byte[] buf, int pos) {
+		return ((long) (buf[pos] & 0xff) << 56) |
+			   ((long) (buf[pos + 1] & 0xff) << 48) |
+			   ((long) (buf[pos + 2] & 0xff) << 40) |
+			   ((long) (buf[pos + 3] & 0xff) << 32) |
+			   ((long) (buf[pos + 4] & 0xff) << 24) |
+			   ((long) (buf[pos + 5] & 0xff) << 16) |
+			   ((long) (buf[pos + 6] & 0xff) << 8) |
+			   ((long) (buf[pos + 7] & 0xff));
+	}
+
+	static int getInt(byte[] buf, int pos) {
+		return ((buf[pos] & 0xff) << 24) |
+			   ((buf[pos + 1] & 0xff) << 16) |
+			   ((buf[pos + 2] & 0xff) << 8) |
+			   (buf[pos + 3] & 0xff);
+	}
+
+	static void putLong(byte[] buf, int pos, long val) {
+		for (int i = 7; i >= 0; i--) {
+			buf[pos + i] = (byte) val;
+			val >>>= 8;
+		}
+	}
+
+	static void putInt(byte[] buf, int pos, int val) {
+		for (int i = 3; i >= 0; i--) {
+			buf[pos + i] = (byte) val;
+			val >>>= 8;
+		}
+	}
+}
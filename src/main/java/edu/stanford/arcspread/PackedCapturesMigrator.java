@@ -0,0 +1,137 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Converts an existing WebBase index to the packed capture layout
+ * (see PackedCaptures). Adds the captureTimes and captureCrawlIDs
+ * BLOB columns to the URLs table if needed, and fills them from the
+ * datesCrawled and crawlIDs text columns. The text columns are left
+ * in place, so older readers keep working.
+ *
+ * The migration is idempotent: rerunning it repacks every row. Scripts
+ * that append to datesCrawled must rerun it afterwards, or WBIndex
+ * will not see the new captures.
+ *
+ * Usage: PackedCapturesMigrator [indexPath]
+ *
+ * @author Paepcke
+ *
+ */
+public class PackedCapturesMigrator {
+
+	/* # of URL rows converted per transaction */
+	static int BATCH_SIZE = 10000;
+
+	private static final String NEXT_BATCH_QUERY =
+			"SELECT rowid,url,datesCrawled,crawlIDs FROM URLs WHERE rowid > ? ORDER BY rowid LIMIT ?";
+	private static final int NEXT_BATCH_AFTER_BIND_POS = 1;
+	private static final int NEXT_BATCH_LIMIT_BIND_POS = 2;
+	private static final int NEXT_BATCH_ROWID_POS = 0;
+	private static final int NEXT_BATCH_URL_POS = 1;
+	private static final int NEXT_BATCH_DATES_POS = 2;
+	private static final int NEXT_BATCH_CRAWL_IDS_POS = 3;
+
+	private static final String UPDATE_PACKED =
+			"UPDATE URLs SET " + WBIndex.PACKED_TIMES_COL + "=?," + WBIndex.PACKED_CRAWL_IDS_COL + "=? WHERE rowid=?";
+	private static final int UPDATE_PACKED_TIMES_BIND_POS = 1;
+	private static final int UPDATE_PACKED_CRAWL_IDS_BIND_POS = 2;
+	private static final int UPDATE_PACKED_ROWID_BIND_POS = 3;
+
+	WBIndex index = null;
+
+	public PackedCapturesMigrator(String indexPath) throws SQLiteException {
+		index = new WBIndex(indexPath, false);
+	}
+
+	/**
+	 * Add the packed columns if necessary, and (re)pack every URLs row.
+	 * @return number of URL rows converted.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if a row has fewer crawl IDs than crawl dates.
+	 */
+	public long migrate() throws SQLiteException, DataFormatException {
+		if (!index.hasURLsColumn(WBIndex.PACKED_TIMES_COL))
+			index.indexDB.exec("ALTER TABLE URLs ADD COLUMN " + WBIndex.PACKED_TIMES_COL + " BLOB");
+		if (!index.hasURLsColumn(WBIndex.PACKED_CRAWL_IDS_COL))
+			index.indexDB.exec("ALTER TABLE URLs ADD COLUMN " + WBIndex.PACKED_CRAWL_IDS_COL + " BLOB");
+
+		long numConverted = 0;
+		long lastRowID = Long.MIN_VALUE;
+		ArrayList<Long> rowIDs = new ArrayList<Long>();
+		ArrayList<byte[][]> packedRows = new ArrayList<byte[][]>();
+		SQLiteStatement batchQuery = index.indexDB.prepare(NEXT_BATCH_QUERY, false);
+		SQLiteStatement update = index.indexDB.prepare(UPDATE_PACKED, false);
+		try {
+			while (true) {
+				// Read one batch, then write it; SQLite does not promise a
+				// stable scan while the scanned table is being updated:
+				rowIDs.clear();
+				packedRows.clear();
+				batchQuery.reset(true);
+				batchQuery.bind(NEXT_BATCH_AFTER_BIND_POS, lastRowID);
+				batchQuery.bind(NEXT_BATCH_LIMIT_BIND_POS, BATCH_SIZE);
+				while (batchQuery.step()) {
+					lastRowID = batchQuery.columnLong(NEXT_BATCH_ROWID_POS);
+					rowIDs.add(lastRowID);
+					packedRows.add(packRow(batchQuery.columnString(NEXT_BATCH_URL_POS),
+										   batchQuery.columnString(NEXT_BATCH_DATES_POS),
+										   batchQuery.columnString(NEXT_BATCH_CRAWL_IDS_POS)));
+				}
+				if (rowIDs.isEmpty())
+					break;
+				index.indexDB.exec("BEGIN");
+				try {
+					for (int i = 0; i < rowIDs.size(); i++) {
+						update.reset(true);
+						update.bind(UPDATE_PACKED_TIMES_BIND_POS, packedRows.get(i)[0]);
+						update.bind(UPDATE_PACKED_CRAWL_IDS_BIND_POS, packedRows.get(i)[1]);
+						update.bind(UPDATE_PACKED_ROWID_BIND_POS, rowIDs.get(i));
+						update.stepThrough();
+					}
+					index.indexDB.exec("COMMIT");
+				} catch (SQLiteException e) {
+					index.indexDB.exec("ROLLBACK");
+					throw e;
+				}
+				numConverted += rowIDs.size();
+				if (index.verbose > 0)
+					System.out.println("Packed " + numConverted + " URLs...");
+			}
+		} finally {
+			batchQuery.dispose();
+			update.dispose();
+		}
+		return numConverted;
+	}
+
+	/**
+	 * Convert one URLs row's text columns into the two packed blobs.
+	 * @param url the row's URL; for error messages.
+	 * @param datesStr e.g. "2012-05-07 02:51:56;2011-11-13 14:51:56". May be null.
+	 * @param crawlIDsStr e.g. "0;1". May be null if datesStr is.
+	 * @return [captureTimes, captureCrawlIDs].
+	 * @throws DataFormatException
+	 */
+	byte[][] packRow(String url, String datesStr, String crawlIDsStr) throws DataFormatException {
+		return PackedCaptures.packText(url, datesStr, crawlIDsStr);
+	}
+
+	public void close() {
+		index.close();
+	}
+
+	public static void main(String[] args) throws SQLiteException, DataFormatException {
+		PackedCapturesMigrator migrator = new PackedCapturesMigrator((args.length > 0) ? args[0] : null);
+		try {
+			long numConverted = migrator.migrate();
+			System.out.println("Packed captures of " + numConverted + " URLs in " + migrator.index.getIndexPath());
+		} finally {
+			migrator.close();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package edu.stanford.arcspread;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Forward-only cursor over the rows of an arbitrary SQL query on a
+ * WebBase index, such as an analytics query over a Crawl_* table.
+ * Returned by WBIndex.query(). Rows are read from SQLite one at a time
+ * as next() is called, so a result of any size is walked in constant
+ * memory.
+ *
+ * Typical use:
+ *
+ *   QueryCursor rows = index.query("SELECT time,url FROM Crawl_state_05_2012 WHERE time > ?",
+ *                                  "2012-05-07 06:10:41");
+ *   try {
+ *       while (rows.next())
+ *           emit(rows.getString(0), rows.getString(1));
+ *   } finally {
+ *       rows.close();
+ *   }
+ *
+ * Columns are numbered from 0. Accessors convert the column's value as
+ * SQLite does: getLong() of a TEXT column parses its leading digits,
+ * getString() of an INTEGER column formats it, and so on.
+ *
+ * The cursor holds a prepared statement of its own, which is disposed
+ * when the cursor is closed, or when next() runs past the last row.
+ * Like the index, the cursor must only be used on the index's thread.
+ *
+ * @author Paepcke
+ *
+ */
+public class QueryCursor implements AutoCloseable {
+
+	private SQLiteStatement statement;
+	private final int numColumns;
+	private final String[] columnNames;
+	private boolean onRow = false;
+	private long numRows = 0;
+
+	QueryCursor(SQLiteStatement theStatement) throws SQLiteException {
+		statement = theStatement;
+		numColumns = statement.columnCount();
+		columnNames = new String[numColumns];
+		for (int i = 0; i < numColumns; i++)
+			columnNames[i] = statement.getColumnName(i);
+	}
+
+	/**
+	 * Bind the query's parameters, in order.
+	 * @param params values of the query's '?' parameters: Long, Integer,
+	 *        Double, String, byte[] or null; other objects are bound as
+	 *        their toString().
+	 * @throws SQLiteException if the number of parameters is wrong.
+	 */
+	static void bind(SQLiteStatement statement, Object[] params) throws SQLiteException {
+		int numParams = statement.getBindParameterCount();
+		if (params.length != numParams)
+			throw new SQLiteException(SQLiteConstants.SQLITE_RANGE,
+					"Query takes " + numParams + " parameters; got " + params.length + ".");
+		for (int i = 0; i < params.length; i++) {
+			Object param = params[i];
+			int pos = i + 1;
+			if (param == null)
+				statement.bindNull(pos);
+			else if (param instanceof Long || param instanceof Integer || param instanceof Short || param instanceof Byte)
+				statement.bind(pos, ((Number) param).longValue());
+			else if (param instanceof Double || param instanceof Float)
+				statement.bind(pos, ((Number) param).doubleValue());
+			else if (param instanceof byte[])
+				statement.bind(pos, (byte[]) param);
+			else
+				statement.bind(pos, param.toString());
+		}
+	}
+
+	/**
+	 * Advance to the next row.
+	 * @return false if there are no more rows; the cursor is closed then.
+	 * @throws SQLiteException
+	 */
+	public boolean next() throws SQLiteException {
+		onRow = false;
+		if (statement == null)
+			return false;
+		if (!StatementCache.step(statement)) {
+			close();
+			return false;
+		}
+		onRow = true;
+		numRows++;
+		return true;
+	}
+
+	public int getColumnCount() {
+		return numColumns;
+	}
+
+	/**
+	 * @return name of a result column: its alias if the query gives one.
+	 */
+	public String getColumnName(int col) {
+		return columnNames[col];
+	}
+
+	/**
+	 * @return names of all result columns, in order. Not to be modified.
+	 */
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	/**
+	 * @return storage class of the column's value in the current row:
+	 * SQLiteConstants.SQLITE_INTEGER, SQLITE_FLOAT, SQLITE_TEXT,
+	 * SQLITE_BLOB or SQLITE_NULL.
+	 */
+	public int getType(int col) throws SQLiteException {
+		return row().columnType(col);
+	}
+
+	public boolean isNull(int col) throws SQLiteException {
+		return row().columnNull(col);
+	}
+
+	/**
+	 * @return the column's value as text; null for NULL.
+	 */
+	public String getString(int col) throws SQLiteException {
+		return row().columnString(col);
+	}
+
+	/**
+	 * @return the column's value as an integer; 0 for NULL.
+	 */
+	public long getLong(int col) throws SQLiteException {
+		return row().columnLong(col);
+	}
+
+	public int getInt(int col) throws SQLiteException {
+		return row().columnInt(col);
+	}
+
+	/**
+	 * @return the column's value as a double; 0 for NULL.
+	 */
+	public double getDouble(int col) throws SQLiteException {
+		return row().columnDouble(col);
+	}
+
+	/**
+	 * @return the column's value as bytes; null for NULL.
+	 */
+	public byte[] getBlob(int col) throws SQLiteException {
+		return row().columnBlob(col);
+	}
+
+	/**
+	 * @return the current row as strings, one per column.
+	 */
+	public String[] getRowStrings() throws SQLiteException {
+		String[] values = new String[numColumns];
+		for (int i = 0; i < numColumns; i++)
+			values[i] = row().columnString(i);
+		return values;
+	}
+
+	/**
+	 * @return number of rows visited so far.
+	 */
+	public long getNumRows() {
+		return numRows;
+	}
+
+	public boolean isClosed() {
+		return statement == null;
+	}
+
+	/**
+	 * Dispose the cursor's statement. Safe to call more than once.
+	 */
+	public void close() {
+		onRow = false;
+		if (statement == null)
+			return;
+		statement.dispose();
+		statement = null;
+	}
+
+	private SQLiteStatement row() throws SQLiteException {
+		if (!onRow)
+			throw new SQLiteException(SQLiteConstants.WRAPPER_USER_ERROR,
+					"Query cursor is not on a row; call next() first.");
+		return statement;
+	}
+}
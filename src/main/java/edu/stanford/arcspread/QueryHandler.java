@@ -0,0 +1,587 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import com.almworks.sqlite4java.SQLiteBusyException;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteInterruptedException;
+
+/**
+ * Read-only query endpoint over the WebBase index, for analytics over
+ * the Crawl_* tables and the like. Served by HTTPCommandDispatcher as
+ * the "/query" command; see TimeGate.main(). Clients may only run the
+ * queries named in a whitelist file, and only supply their parameters,
+ * which are bound, never spliced into the SQL:
+ *
+ *   GET /query?q=crawlByDomain&domain=agr.wa.gov&format=ndjson&limit=1000
+ *
+ * Rows are streamed from the SQLite cursor as they are read, as NDJSON
+ * (the default) or as CSV (format=csv); see QueryResultWriter. A page
+ * holds up to limit rows, at most the query's maxRows. If more rows
+ * follow, the response ends with a page token, to be sent back as
+ * page=<token>, along with the same q and parameters, for the next page:
+ * the Query-Next-Page trailer of the chunked body, and, for NDJSON,
+ * a last line
+ *
+ *   {"_page":{"rows":1000,"next":"Y3Jhd2xCeURvbWFpbgppMzQ5OTk","timedOut":false}}
+ *
+ * whose next is null on the last page. Paging is by key, not by
+ * OFFSET: each query orders its rows by a unique key column, and the
+ * token holds the key of the page's last row, so that the next page
+ * starts with an index seek past it rather than by reading, and
+ * dropping, all the rows before it.
+ *
+ * The whitelist is a properties file with these entries per query:
+ *
+ *   <name>.table      table to read, e.g. Crawl_state_05_2012
+ *   <name>.columns    comma-separated columns to return
+ *   <name>.key        unique column to page by, e.g. rowid or url; it
+ *                     should be indexed. It is the first column returned.
+ *   <name>.where      optional condition, with :param for each parameter,
+ *                     e.g. domain = :domain AND time >= :since
+ *   <name>.paramTypes optional comma-separated param:type pairs, e.g.
+ *                     since:integer; type is text (the default), integer
+ *                     or real. Values are bound as the declared type, and
+ *                     a value that does not parse as it is answered 400.
+ *   <name>.maxRows    optional max rows per page; default DEFAULT_MAX_ROWS
+ *   <name>.timeBudget optional max msecs per page; default DEFAULT_TIME_BUDGET
+ *
+ * A page that reaches its time budget ends early, with a token for the
+ * rest, and with "timedOut":true. If it reaches it before its first
+ * row, as a condition that no index serves may, the query ends there,
+ * without a token: raise its timeBudget, or index its condition. Only MAX_CONCURRENT_QUERIES pages are
+ * read at a time; further requests are answered 503, with Retry-After.
+ * Together, these keep a runaway query from starving the TimeGate's
+ * lookups of index connections and threads. A page is read on the
+ * thread that answers its request, never an NioConnectionEngine I/O
+ * thread, through an index that the thread leases from the dispatcher's
+ * pool for the request. Sharded and compiled indexes are not supported.
+ *
+ * @author Paepcke
+ *
+ */
+public class QueryHandler implements CommandHandler {
+
+	public static final String COMMAND_NAME = "query";
+
+	/* Max rows per page of a query whose whitelist entry does not say */
+	static int DEFAULT_MAX_ROWS = 10000;
+	/* Max msecs to read one page of a query whose whitelist entry does not say */
+	static long DEFAULT_TIME_BUDGET = 2000;
+	/* Max pages read at a time, over all queries */
+	static int MAX_CONCURRENT_QUERIES = 2;
+
+	static final String NEXT_PAGE_TRAILER = "Query-Next-Page";
+	// Arguments that are not query parameters:
+	static final String QUERY_ARG = "q";
+	static final String FORMAT_ARG = "format";
+	static final String LIMIT_ARG = "limit";
+	static final String PAGE_ARG = "page";
+	// Types of query parameters:
+	static final String TYPE_TEXT = "text";
+	static final String TYPE_INTEGER = "integer";
+	static final String TYPE_REAL = "real";
+
+	// Interrupts the queries that run past their time budget:
+	private static final Timer deadlines = new Timer("query deadlines", true);
+	// Body of HEAD responses, which is never asked for:
+	private static final CommandResponse.BodyWriter NO_BODY = new CommandResponse.BodyWriter() {
+		public void writeBody(OutputStream body) {
+		}
+	};
+
+	/**
+	 * One whitelisted query, compiled to the SQL of its first page, and
+	 * of the pages that follow.
+	 */
+	static final class Query {
+		final String name;
+		final String firstPageSQL;
+		final String nextPageSQL;
+		// Names of the :params of the condition, in order of appearance:
+		final String[] paramNames;
+		// Declared type of each of paramNames, e.g. TYPE_TEXT:
+		final String[] paramTypes;
+		final int maxRows;
+		final long timeBudget;
+
+		Query(String theName, Properties spec) {
+			name = theName;
+			String table = identifier(spec, "table");
+			String key = identifier(spec, "key");
+			StringBuilder select = new StringBuilder(128).append("SELECT ").append(key);
+			for (String column : required(spec, "columns").split(",")) {
+				column = column.trim();
+				checkIdentifier("columns", column);
+				if (!column.equalsIgnoreCase(key))
+					select.append(',').append(column);
+			}
+			select.append(" FROM ").append(table).append(" WHERE ");
+			String where = spec.getProperty(name + ".where");
+			List<String> params = new ArrayList<String>();
+			if (where != null && !where.trim().isEmpty()) {
+				if (where.indexOf(';') >= 0 || where.indexOf('?') >= 0)
+					throw new IllegalArgumentException("Condition of query '" + name + "' holds ';' or '?'; use :param for parameters.");
+				select.append('(').append(bindParams(where, params)).append(") AND ");
+			}
+			String orderBy = " ORDER BY " + key + " LIMIT ?";
+			firstPageSQL = select.toString() + "1" + orderBy;
+			nextPageSQL = select.toString() + key + " > ?" + orderBy;
+			paramNames = params.toArray(new String[params.size()]);
+			paramTypes = paramTypes(spec.getProperty(name + ".paramTypes"), params);
+			maxRows = Integer.parseInt(spec.getProperty(name + ".maxRows", Integer.toString(DEFAULT_MAX_ROWS)).trim());
+			timeBudget = Long.parseLong(spec.getProperty(name + ".timeBudget", Long.toString(DEFAULT_TIME_BUDGET)).trim());
+			if (maxRows < 1 || timeBudget < 1)
+				throw new IllegalArgumentException("Query '" + name + "' needs a positive maxRows and timeBudget.");
+			for (String param : paramNames)
+				if (param.equals(QUERY_ARG) || param.equals(FORMAT_ARG) || param.equals(LIMIT_ARG) || param.equals(PAGE_ARG))
+					throw new IllegalArgumentException("Query '" + name + "' may not have a parameter named :" + param);
+		}
+
+		/**
+		 * Parse the paramTypes entry.
+		 * @return the type of each parameter, in order; TYPE_TEXT for those the entry does not name.
+		 */
+		private String[] paramTypes(String declared, List<String> params) {
+			String[] types = new String[params.size()];
+			Arrays.fill(types, TYPE_TEXT);
+			if (declared == null || declared.trim().isEmpty())
+				return types;
+			for (String pair : declared.split(",")) {
+				int colon = pair.indexOf(':');
+				String param = (colon < 0) ? pair.trim() : pair.substring(0, colon).trim();
+				String type = (colon < 0) ? "" : pair.substring(colon + 1).trim().toLowerCase();
+				if (!type.equals(TYPE_TEXT) && !type.equals(TYPE_INTEGER) && !type.equals(TYPE_REAL))
+					throw new IllegalArgumentException("Query '" + name + "': parameter type '" + pair.trim() +
+													   "' is not param:text, param:integer or param:real.");
+				if (!params.contains(param))
+					throw new IllegalArgumentException("Query '" + name + "' has no parameter :" + param + " to declare a type for.");
+				for (int i = 0; i < types.length; i++)
+					if (params.get(i).equals(param))
+						types[i] = type;
+			}
+			return types;
+		}
+
+		private String required(Properties spec, String field) {
+			String value = spec.getProperty(name + "." + field);
+			if (value == null || value.trim().isEmpty())
+				throw new IllegalArgumentException("Query '" + name + "' has no " + field + ".");
+			return value.trim();
+		}
+
+		private String identifier(Properties spec, String field) {
+			String value = required(spec, field);
+			checkIdentifier(field, value);
+			return value;
+		}
+
+		private void checkIdentifier(String field, String value) {
+			boolean ok = !value.isEmpty() && !Character.isDigit(value.charAt(0));
+			for (int i = 0; i < value.length() && ok; i++) {
+				char c = value.charAt(i);
+				ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+			}
+			if (!ok)
+				throw new IllegalArgumentException("Query '" + name + "': " + field + " '" + value + "' is not a plain SQL name.");
+		}
+
+		/**
+		 * Replace each :param of a condition by '?', outside of string literals.
+		 * @param names receives the parameter names, in order.
+		 */
+		private static String bindParams(String where, List<String> names) {
+			StringBuilder sql = new StringBuilder(where.length());
+			boolean inLiteral = false;
+			int i = 0;
+			while (i < where.length()) {
+				char c = where.charAt(i);
+				if (c == '\'')
+					inLiteral = !inLiteral;
+				if (c != ':' || inLiteral) {
+					sql.append(c);
+					i++;
+					continue;
+				}
+				int end = i + 1;
+				while (end < where.length() &&
+					   (Character.isLetterOrDigit(where.charAt(end)) || where.charAt(end) == '_'))
+					end++;
+				if (end == i + 1)
+					throw new IllegalArgumentException("':' without a parameter name in condition: " + where);
+				names.add(where.substring(i + 1, end));
+				sql.append('?');
+				i = end;
+			}
+			return sql.toString();
+		}
+	}
+
+	private final Map<String,Query> queries;
+	private final WBIndexPool indexPool;
+	private final Semaphore permits = new Semaphore(MAX_CONCURRENT_QUERIES);
+
+	/**
+	 * @param theIndexPool pool of the index to query; the dispatcher's.
+	 * @param whitelist the queries, as described in the class comment.
+	 * @throws IllegalArgumentException if a query is malformed.
+	 * @throws SQLiteException if the index is sharded or compiled, or a
+	 *         query does not compile against it.
+	 */
+	public QueryHandler(WBIndexPool theIndexPool, Properties whitelist) throws SQLiteException {
+		indexPool = theIndexPool;
+		if (indexPool.isSharded() || indexPool.isCompiled())
+			throw new SQLiteException(SQLiteConstants.WRAPPER_USER_ERROR,
+					"Queries need a single SQLite index; '" + indexPool.getIndexPath() + "' is sharded or compiled.");
+		TreeMap<String,Query> byName = new TreeMap<String,Query>();
+		for (String prop : whitelist.stringPropertyNames())
+			if (prop.endsWith(".table")) {
+				String name = prop.substring(0, prop.length() - ".table".length());
+				byName.put(name, new Query(name, whitelist));
+			}
+		if (byName.isEmpty())
+			throw new IllegalArgumentException("Query whitelist names no queries; each needs a <name>.table entry.");
+		queries = Collections.unmodifiableMap(byName);
+		// Fail now, not on the first request, if a query does not fit the index:
+		WBIndex index = new WBIndex(indexPool.getIndexPath(), true);
+		try {
+			for (Query query : queries.values()) {
+				index.indexDB.prepare(query.firstPageSQL, false).dispose();
+				index.indexDB.prepare(query.nextPageSQL, false).dispose();
+			}
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * @param theIndexPool pool of the index to query; the dispatcher's.
+	 * @param whitelistFile properties file of the queries.
+	 */
+	public QueryHandler(WBIndexPool theIndexPool, File whitelistFile) throws SQLiteException, IOException {
+		this(theIndexPool, loadWhitelist(whitelistFile));
+	}
+
+	private static Properties loadWhitelist(File whitelistFile) throws IOException {
+		Properties whitelist = new Properties();
+		InputStream in = new FileInputStream(whitelistFile);
+		try {
+			whitelist.load(in);
+		} finally {
+			in.close();
+		}
+		return whitelist;
+	}
+
+	/**
+	 * @return names of the whitelisted queries, sorted.
+	 */
+	public String[] getQueryNames() {
+		return queries.keySet().toArray(new String[queries.size()]);
+	}
+
+	public CompletableFuture<CommandResponse> handle(Command request) {
+		return CompletableFuture.completedFuture(answer(request));
+	}
+
+	private CommandResponse answer(Command request) {
+		Query query = queries.get(request.get(QUERY_ARG));
+		if (query == null)
+			return badRequest("Usage: /" + COMMAND_NAME + "?" + QUERY_ARG + "=<query>&<param>=<value>...[&" +
+							  FORMAT_ARG + "=ndjson|csv][&" + LIMIT_ARG + "=<rows>][&" + PAGE_ARG +
+							  "=<token>]; queries: " + queries.keySet());
+		String format = request.get(FORMAT_ARG);
+		if (format == null)
+			format = QueryResultWriter.FORMAT_NDJSON;
+		if (!format.equals(QueryResultWriter.FORMAT_NDJSON) && !format.equals(QueryResultWriter.FORMAT_CSV))
+			return badRequest("Format is ndjson or csv; was '" + format + "'.");
+		int limit = query.maxRows;
+		String limitArg = request.get(LIMIT_ARG);
+		if (limitArg != null) {
+			try {
+				limit = Math.min(Integer.parseInt(limitArg), query.maxRows);
+			} catch (NumberFormatException e) {
+				limit = 0;
+			}
+			if (limit < 1)
+				return badRequest("Limit is a positive number of rows; was '" + limitArg + "'.");
+		}
+		String page = request.get(PAGE_ARG);
+		Object after = null;
+		if (page != null && (after = decodeToken(query.name, page)) == null)
+			return badRequest("Page token is not one of query '" + query.name + "'.");
+		boolean firstPage = (after == null);
+		// Parameters, then the key to start after, then the row limit:
+		Object[] params = new Object[query.paramNames.length + (firstPage ? 1 : 2)];
+		for (int i = 0; i < query.paramNames.length; i++) {
+			String value = request.get(query.paramNames[i]);
+			if (value == null)
+				return badRequest("Query '" + query.name + "' needs parameter '" + query.paramNames[i] + "'.");
+			params[i] = paramValue(query.paramTypes[i], value);
+			if (params[i] == null)
+				return badRequest("Parameter '" + query.paramNames[i] + "' of query '" + query.name + "' is " +
+								  query.paramTypes[i] + "; was '" + value + "'.");
+		}
+		if (!firstPage)
+			params[params.length - 2] = after;
+		// One row beyond the page tells whether another page follows:
+		params[params.length - 1] = Long.valueOf(limit + 1L);
+		boolean ndjson = format.equals(QueryResultWriter.FORMAT_NDJSON);
+		QueryResultWriter writer = new QueryResultWriter(format);
+		CommandResponse response = new CommandResponse(HttpConstants.HTTP_OK, "OK").header("Cache-Control", "no-cache");
+		if ("HEAD".equals(request.getMethod()))
+			return response.stream(writer.getContentType(), NO_BODY).trailer(NEXT_PAGE_TRAILER);
+
+		if (!permits.tryAcquire())
+			return new CommandResponse(HttpConstants.HTTP_UNAVAILABLE, "Service Unavailable")
+					.header("Retry-After", Integer.toString(HTTPCommandDispatcher.RETRY_AFTER_SECS))
+					.body("text/plain", "Too many queries at a time.");
+		final Page reader;
+		try {
+			CaptureIndex captureIndex = indexPool.getIndex();
+			if (!(captureIndex instanceof WBIndex)) {
+				permits.release();
+				return new CommandResponse(HttpConstants.HTTP_INTERNAL_ERROR, "Not Implemented")
+						.body("text/plain", "Queries need a single SQLite index.");
+			}
+			WBIndex index = (WBIndex) captureIndex;
+			QueryCursor rows = index.query(firstPage ? query.firstPageSQL : query.nextPageSQL, params);
+			reader = new Page(query, index.indexDB, rows, limit, writer, ndjson, response);
+		} catch (SQLiteBusyException e) {
+			permits.release();
+			TimeGate.log("QueryHandler: index busy: " + e.getMessage());
+			return new CommandResponse(HttpConstants.HTTP_UNAVAILABLE, "Service Unavailable").header("Retry-After", "1")
+					.body("text/plain", "WebBase index busy.");
+		} catch (SQLiteException e) {
+			permits.release();
+			TimeGate.log("QueryHandler: cannot start query '" + query.name + "': " + e.getMessage());
+			return new CommandResponse(HttpConstants.HTTP_SERVER_ERROR, "Internal Server Error")
+					.body("text/plain", "WebBase index error.");
+		}
+		return response.stream(writer.getContentType(), reader).trailer(NEXT_PAGE_TRAILER).whenSent(new Runnable() {
+			public void run() {
+				reader.finishReading();
+				permits.release();
+			}
+		});
+	}
+
+	private static CommandResponse badRequest(String msg) {
+		return new CommandResponse(HttpConstants.HTTP_BAD_REQUEST, "Bad Request").body("text/plain", msg);
+	}
+
+	/**
+	 * @param type declared type of the parameter, e.g. TYPE_INTEGER.
+	 * @return the value to bind: a Long, a finite Double, or the text as
+	 *         sent; null if it does not parse as the type.
+	 */
+	static Object paramValue(String type, String value) {
+		try {
+			if (type.equals(TYPE_INTEGER))
+				return Long.valueOf(value.trim());
+			if (type.equals(TYPE_REAL)) {
+				Double real = Double.valueOf(value.trim());
+				return (real.isNaN() || real.isInfinite()) ? null : real;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return value;
+	}
+
+	/**
+	 * @return page token that resumes the query after the given key.
+	 */
+	static String encodeToken(String queryName, Object key) {
+		StringBuilder token = new StringBuilder(64).append(queryName).append('\n');
+		if (key instanceof Long)
+			token.append('i').append(key);
+		else if (key instanceof Double)
+			token.append('r').append(key);
+		else if (key instanceof byte[])
+			token.append('b').append(Base64.getEncoder().encodeToString((byte[]) key));
+		else
+			token.append('s').append(key);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toString().getBytes(QueryResultWriter.CHARSET));
+	}
+
+	/**
+	 * @return key to resume the query after, of the type it had; null if
+	 *         the token is malformed, or belongs to another query.
+	 */
+	static Object decodeToken(String queryName, String token) {
+		String text;
+		try {
+			text = new String(Base64.getUrlDecoder().decode(token), QueryResultWriter.CHARSET);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		int pos = queryName.length();
+		if (text.length() < pos + 2 || !text.startsWith(queryName) || text.charAt(pos) != '\n')
+			return null;
+		String value = text.substring(pos + 2);
+		try {
+			switch (text.charAt(pos + 1)) {
+			case 'i':
+				return Long.valueOf(value);
+			case 'r':
+				return Double.valueOf(value);
+			case 'b':
+				return Base64.getDecoder().decode(value);
+			case 's':
+				return value;
+			default:
+				return null;
+			}
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads one page of a query's rows into the response body.
+	 */
+	private final class Page implements CommandResponse.BodyWriter {
+		private final Query query;
+		private final SQLiteConnection db;
+		private final QueryCursor rows;
+		private final int limit;
+		private final QueryResultWriter writer;
+		private final boolean ndjson;
+		private final CommandResponse response;
+		// Guarded by this; true once the page is read, after which the
+		// connection must not be interrupted any more:
+		private boolean done = false;
+		private TimerTask deadline = null;
+
+		Page(Query theQuery, SQLiteConnection theDB, QueryCursor theRows, int theLimit,
+			 QueryResultWriter theWriter, boolean isNDJSON, CommandResponse theResponse) {
+			query = theQuery;
+			db = theDB;
+			rows = theRows;
+			limit = theLimit;
+			writer = theWriter;
+			ndjson = isNDJSON;
+			response = theResponse;
+		}
+
+		public void writeBody(OutputStream body) throws IOException {
+			long stopAt = System.nanoTime() + query.timeBudget * 1000000;
+			startDeadline();
+			int numRows = 0;
+			boolean more = false;
+			boolean timedOut = false;
+			Object lastKey = null;
+			try {
+				writer.start(rows, body);
+				while (rows.next()) {
+					if (numRows == limit) {
+						more = true;
+						break;
+					}
+					writer.writeRow();
+					lastKey = keyOf(rows);
+					numRows++;
+					// Rows that come quickly, but to a slow client, count, too:
+					if (System.nanoTime() - stopAt >= 0) {
+						timedOut = more = true;
+						break;
+					}
+				}
+			} catch (SQLiteInterruptedException e) {
+				timedOut = true;
+				// Without a row to resume after, the next page would time out the same way:
+				more = (numRows > 0);
+			} catch (SQLiteException e) {
+				throw new IOException("Query '" + query.name + "' failed after " + numRows + " rows: " + e.getMessage(), e);
+			} finally {
+				finishReading();
+			}
+			if (timedOut)
+				TimeGate.log("QueryHandler: query '" + query.name + "' reached its time budget of " +
+							 query.timeBudget + " msecs after " + numRows + " rows.");
+			String next = null;
+			if (more) {
+				next = encodeToken(query.name, lastKey);
+				response.setTrailer(NEXT_PAGE_TRAILER, next);
+			}
+			writer.finish();
+			if (ndjson) {
+				StringBuilder line = new StringBuilder(128).append("{\"_page\":{\"rows\":").append(numRows).append(",\"next\":");
+				if (next == null)
+					line.append("null");
+				else
+					QueryResultWriter.appendJSONString(line, next);
+				line.append(",\"timedOut\":").append(timedOut).append("}}\n");
+				body.write(line.toString().getBytes(QueryResultWriter.CHARSET));
+			}
+		}
+
+		/**
+		 * Have the connection interrupted, which ends the step in progress
+		 * with an SQLiteInterruptedException, once the time budget is up.
+		 */
+		private void startDeadline() {
+			deadline = new TimerTask() {
+				public void run() {
+					synchronized (Page.this) {
+						if (done)
+							return;
+						try {
+							db.interrupt();
+						} catch (SQLiteException e) {
+							// Closed meanwhile; nothing left to interrupt.
+						}
+					}
+				}
+			};
+			deadlines.schedule(deadline, query.timeBudget);
+		}
+
+		/**
+		 * Stop the deadline, and return the statement. Safe to call more than once.
+		 */
+		synchronized void finishReading() {
+			if (done)
+				return;
+			done = true;
+			if (deadline != null)
+				deadline.cancel();
+			rows.close();
+		}
+	}
+
+	/**
+	 * @return the paging key of the cursor's current row, of its SQLite type.
+	 */
+	private static Object keyOf(QueryCursor rows) throws SQLiteException {
+		switch (rows.getType(0)) {
+		case SQLiteConstants.SQLITE_INTEGER:
+			return Long.valueOf(rows.getLong(0));
+		case SQLiteConstants.SQLITE_FLOAT:
+			return Double.valueOf(rows.getDouble(0));
+		case SQLiteConstants.SQLITE_BLOB:
+			return rows.getBlob(0);
+		default:
+			return rows.getString(0);
+		}
+	}
+}
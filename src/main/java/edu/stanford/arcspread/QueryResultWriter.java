@@ -0,0 +1,268 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Base64;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * Writes the rows of a QueryCursor to a stream as they are read, as CSV
+ * or as NDJSON, so that a query result of any size is exported in
+ * constant memory.
+ *
+ * CSV follows RFC 4180: a header line of column names, CRLF line ends,
+ * and fields quoted if they hold a comma, quote or line break. NDJSON
+ * writes one JSON object per line, keyed by column name, with INTEGER
+ * and REAL values as numbers and NULL as null. Either way, text is
+ * UTF-8, and BLOBs are written in base64.
+ *
+ * Usage: QueryResultWriter [-csv|-ndjson] [-limit n] indexPath sql [param ...]
+ * Writes the rows of the query, with its '?' parameters bound to the
+ * given values in order, to stdout. Parameters that look like integers
+ * are bound as integers.
+ *
+ * @author Paepcke
+ *
+ */
+public class QueryResultWriter {
+
+	public static final String FORMAT_CSV = "csv";
+	public static final String FORMAT_NDJSON = "ndjson";
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final String CSV_LINE_END = "\r\n";
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final boolean csv;
+	private long maxRows = Long.MAX_VALUE;
+	// Holds one row's text at a time:
+	private final StringBuilder line = new StringBuilder(256);
+	// Set by start():
+	private QueryCursor rows = null;
+	private Writer writer = null;
+	private String[] keys = null;
+
+	/**
+	 * @param format FORMAT_CSV or FORMAT_NDJSON.
+	 */
+	public QueryResultWriter(String format) {
+		if (FORMAT_CSV.equals(format))
+			csv = true;
+		else if (FORMAT_NDJSON.equals(format))
+			csv = false;
+		else
+			throw new IllegalArgumentException("Unknown result format '" + format + "'; use csv or ndjson.");
+	}
+
+	/**
+	 * @param max most rows to write; the rest of the cursor is left unread.
+	 */
+	public QueryResultWriter setMaxRows(long max) {
+		maxRows = max;
+		return this;
+	}
+
+	/**
+	 * @return Content-Type of the output, for HTTP responses.
+	 */
+	public String getContentType() {
+		return csv ? "text/csv; charset=utf-8; header=present" : "application/x-ndjson";
+	}
+
+	/**
+	 * Write the cursor's remaining rows, up to the maximum. Does not
+	 * close the cursor or the stream; flushes the stream.
+	 * @return number of rows written.
+	 * @throws IOException if writing fails.
+	 * @throws SQLiteException if reading a row fails.
+	 */
+	public long write(QueryCursor theRows, OutputStream out) throws IOException, SQLiteException {
+		start(theRows, out);
+		long numWritten = 0;
+		while (numWritten < maxRows && rows.next()) {
+			writeRow();
+			numWritten++;
+		}
+		finish();
+		return numWritten;
+	}
+
+	/**
+	 * Begin writing rows of the cursor: for CSV, write the header line.
+	 * For callers that step the cursor themselves; see writeRow().
+	 */
+	public void start(QueryCursor theRows, OutputStream out) throws IOException {
+		rows = theRows;
+		writer = new OutputStreamWriter(out, CHARSET);
+		String[] names = rows.getColumnNames();
+		// JSON keys are the same on every line; escape them once:
+		keys = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			line.setLength(0);
+			appendJSONString(line.append(i == 0 ? '{' : ','), names[i]).append(':');
+			keys[i] = line.toString();
+		}
+		if (csv) {
+			line.setLength(0);
+			for (int i = 0; i < names.length; i++)
+				appendCSVField(line.append(i == 0 ? "" : ","), names[i]);
+			writer.append(line).append(CSV_LINE_END);
+		}
+	}
+
+	/**
+	 * Write the cursor's current row.
+	 */
+	public void writeRow() throws IOException, SQLiteException {
+		line.setLength(0);
+		if (csv)
+			appendCSVRow();
+		else
+			appendJSONRow();
+		writer.append(line);
+	}
+
+	/**
+	 * Write out what is buffered, and flush the stream. The stream may
+	 * take more output after this, e.g. a closing line of the caller's.
+	 */
+	public void finish() throws IOException {
+		writer.flush();
+	}
+
+	private void appendCSVRow() throws SQLiteException {
+		for (int i = 0; i < rows.getColumnCount(); i++) {
+			if (i > 0)
+				line.append(',');
+			int type = rows.getType(i);
+			if (type == SQLiteConstants.SQLITE_NULL)
+				continue;
+			if (type == SQLiteConstants.SQLITE_BLOB)
+				line.append(Base64.getEncoder().encodeToString(rows.getBlob(i)));
+			else
+				appendCSVField(line, rows.getString(i));
+		}
+		line.append(CSV_LINE_END);
+	}
+
+	private void appendJSONRow() throws SQLiteException {
+		for (int i = 0; i < keys.length; i++) {
+			line.append(keys[i]);
+			int type = rows.getType(i);
+			if (type == SQLiteConstants.SQLITE_INTEGER) {
+				line.append(rows.getLong(i));
+			} else if (type == SQLiteConstants.SQLITE_FLOAT) {
+				double value = rows.getDouble(i);
+				// JSON has no infinities:
+				if (Double.isInfinite(value) || Double.isNaN(value))
+					line.append("null");
+				else
+					line.append(value);
+			} else if (type == SQLiteConstants.SQLITE_NULL) {
+				line.append("null");
+			} else if (type == SQLiteConstants.SQLITE_BLOB) {
+				line.append('"').append(Base64.getEncoder().encodeToString(rows.getBlob(i))).append('"');
+			} else {
+				appendJSONString(line, rows.getString(i));
+			}
+		}
+		line.append(keys.length == 0 ? "{}\n" : "}\n");
+	}
+
+	static StringBuilder appendCSVField(StringBuilder buf, String value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+		if (!quote)
+			return buf.append(value);
+		buf.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"')
+				buf.append('"');
+			buf.append(c);
+		}
+		return buf.append('"');
+	}
+
+	static StringBuilder appendJSONString(StringBuilder buf, String value) {
+		buf.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				buf.append("\\\"");
+				break;
+			case '\\':
+				buf.append("\\\\");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					buf.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+				else
+					buf.append(c);
+			}
+		}
+		return buf.append('"');
+	}
+
+	public static void main(String[] args) throws SQLiteException, IOException {
+		String format = FORMAT_CSV;
+		long limit = Long.MAX_VALUE;
+		int argPos = 0;
+		while (argPos < args.length && args[argPos].startsWith("-")) {
+			String opt = args[argPos++];
+			if ("-csv".equals(opt))
+				format = FORMAT_CSV;
+			else if ("-ndjson".equals(opt))
+				format = FORMAT_NDJSON;
+			else if ("-limit".equals(opt) && argPos < args.length)
+				limit = Long.parseLong(args[argPos++]);
+			else
+				argPos = args.length + 1;
+		}
+		if (argPos + 2 > args.length) {
+			System.err.println("Usage: QueryResultWriter [-csv|-ndjson] [-limit n] indexPath sql [param ...]");
+			System.exit(2);
+		}
+		String indexPath = args[argPos];
+		String sql = args[argPos + 1];
+		Object[] params = Arrays.copyOfRange(args, argPos + 2, args.length, Object[].class);
+		for (int i = 0; i < params.length; i++) {
+			String param = (String) params[i];
+			if (param.matches("-?[0-9]{1,18}"))
+				params[i] = Long.valueOf(param);
+		}
+		WBIndex index = new WBIndex(indexPath, true);
+		try {
+			QueryCursor rows = index.query(sql, params);
+			try {
+				long start = System.nanoTime();
+				long numRows = new QueryResultWriter(format).setMaxRows(limit).write(rows, System.out);
+				System.err.println("QueryResultWriter: " + numRows + " rows in " +
+								   (System.nanoTime() - start) / 1000000 + " ms");
+			} finally {
+				rows.close();
+			}
+		} finally {
+			index.close();
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Splits a single-file WebBase index into a directory of shard files
+ * that ShardedWBIndex serves (see IndexShards). Each URL goes to shard
+ * IndexShards.shardOf(url), with its captures; every shard receives a
+ * copy of the Crawls table.
+ *
+ * The shards keep the source's layout. Their tables and indexes are
+ * created with the source's own CREATE statements: the tables first,
+ * the indexes once the rows are in, and the Captures index of a
+ * normalized index last, as in CapturesMigrator. Rows are copied
+ * column by column, in url order, so each shard's url index is
+ * filled in order. A normalized index keeps its urlIDs, and its
+ * stale URLs table is not copied. Neither are the Crawl_* log
+ * tables: they stay in the source index, which remains the one that
+ * CrawlIngester loads crawls into. To serve a new crawl from the
+ * shards, ingest it into the source and reshard again.
+ *
+ * The shard files are written under temporary names and renamed once
+ * all are complete, so an interrupted run leaves no shards behind that
+ * a server would open.
+ *
+ * Usage: Resharder [-shards n] indexPath shardDir
+ * shardDir must be empty or not exist yet.
+ *
+ * @author Paepcke
+ *
+ */
+public class Resharder {
+
+	static int DEFAULT_NUM_SHARDS = 4;
+	/* # of source rows copied per transaction */
+	static int BATCH_SIZE = 10000;
+	/* # of rows between progress messages */
+	static int PROGRESS_INTERVAL = 100000;
+
+	private static final String SCHEMA_QUERY =
+			"SELECT type,name,sql FROM sqlite_master WHERE tbl_name=? AND sql IS NOT NULL";
+	private static final int SCHEMA_TABLE_BIND_POS = 1;
+	private static final int SCHEMA_TYPE_POS = 0;
+	private static final int SCHEMA_NAME_POS = 1;
+	private static final int SCHEMA_SQL_POS = 2;
+
+	private static final String CRAWLS_QUERY = "SELECT * FROM Crawls";
+	private static final String URL_ROWS_QUERY = "SELECT * FROM %s ORDER BY url";
+	private static final String URL_CAPTURES_QUERY = "SELECT * FROM Captures WHERE urlID=?";
+	private static final int URL_CAPTURES_URL_ID_BIND_POS = 1;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	WBIndex index = null;
+	private final int numShards;
+	private long numURLs = 0;
+	private long numCaptureRows = 0;
+	private long startNanos = 0;
+
+	public Resharder(String indexPath, int theNumShards) throws SQLiteException {
+		if (theNumShards < 1)
+			throw new IllegalArgumentException("Number of shards must be at least 1; was " + theNumShards);
+		numShards = theNumShards;
+		index = new WBIndex(indexPath, true);
+	}
+
+	/**
+	 * Write the shards.
+	 * @param shardDirPath directory to put the shard files in; created if need be.
+	 * @return number of URLs copied.
+	 * @throws SQLiteException if shardDir is not empty, or a shard cannot be written.
+	 */
+	public long reshard(String shardDirPath) throws SQLiteException {
+		File shardDir = new File(shardDirPath);
+		String[] existing = shardDir.list();
+		if (existing != null && existing.length > 0)
+			throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN,
+					"Shard directory " + shardDir + " is not empty.");
+		if (!shardDir.isDirectory() && !shardDir.mkdirs())
+			throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN,
+					"Cannot create shard directory " + shardDir);
+
+		startNanos = System.nanoTime();
+		boolean normalized = index.hasNormalizedCaptures();
+		String urlTable = index.getURLTableName();
+		ArrayList<String> tables = new ArrayList<String>();
+		tables.add(WBIndex.CRAWLS_TABLE);
+		tables.add(urlTable);
+		if (normalized)
+			tables.add(WBIndex.CAPTURES_TABLE);
+		ArrayList<String> createTables = new ArrayList<String>();
+		ArrayList<String> createIndexes = new ArrayList<String>();
+		String createCapturesIndex = null;
+		for (String table : tables) {
+			for (String[] entry : readSchema(table)) {
+				if ("table".equals(entry[SCHEMA_TYPE_POS]))
+					createTables.add(entry[SCHEMA_SQL_POS]);
+				else if (WBIndex.CAPTURES_INDEX_NAME.equals(entry[SCHEMA_NAME_POS]))
+					createCapturesIndex = entry[SCHEMA_SQL_POS];
+				else
+					createIndexes.add(entry[SCHEMA_SQL_POS]);
+			}
+		}
+		// Last, as its presence tells readers the shard is normalized:
+		if (createCapturesIndex != null)
+			createIndexes.add(createCapturesIndex);
+
+		File[] tempFiles = new File[numShards];
+		SQLiteConnection[] shards = new SQLiteConnection[numShards];
+		Copier[] urlCopiers = new Copier[numShards];
+		Copier[] captureCopiers = new Copier[numShards];
+		try {
+			for (int i = 0; i < numShards; i++) {
+				tempFiles[i] = new File(shardDir, String.format(IndexShards.SHARD_FILE_FORMAT, i) + TEMP_SUFFIX);
+				shards[i] = new SQLiteConnection(tempFiles[i]);
+				shards[i].open(true);
+				// The files are only renamed into place once complete:
+				shards[i].exec("PRAGMA journal_mode=OFF");
+				shards[i].exec("PRAGMA synchronous=OFF");
+				for (String sql : createTables)
+					shards[i].exec(sql);
+			}
+
+			copyCrawls(shards);
+
+			SQLiteStatement urlRows = index.indexDB.prepare(String.format(URL_ROWS_QUERY, urlTable), false);
+			SQLiteStatement urlCaptures = normalized ? index.indexDB.prepare(URL_CAPTURES_QUERY, false) : null;
+			try {
+				int urlPos = -1;
+				int urlIDPos = -1;
+				for (int col = 0; col < urlRows.columnCount(); col++) {
+					if ("url".equalsIgnoreCase(urlRows.getColumnName(col)))
+						urlPos = col;
+					else if ("urlID".equalsIgnoreCase(urlRows.getColumnName(col)))
+						urlIDPos = col;
+				}
+				if (urlPos < 0 || (normalized && urlIDPos < 0))
+					throw new SQLiteException(SQLiteConstants.SQLITE_ERROR,
+							"Table " + urlTable + " of " + index.getIndexPath() + " lacks a url or urlID column.");
+				for (int i = 0; i < numShards; i++) {
+					urlCopiers[i] = new Copier(shards[i], urlTable, urlRows.columnCount());
+					if (normalized)
+						captureCopiers[i] = new Copier(shards[i], WBIndex.CAPTURES_TABLE, urlCaptures.columnCount());
+					shards[i].exec("BEGIN");
+				}
+				while (urlRows.step()) {
+					int shard = IndexShards.shardOf(urlRows.columnString(urlPos), numShards);
+					urlCopiers[shard].copy(urlRows);
+					if (normalized) {
+						urlCaptures.reset(true);
+						urlCaptures.bind(URL_CAPTURES_URL_ID_BIND_POS, urlRows.columnLong(urlIDPos));
+						while (urlCaptures.step()) {
+							captureCopiers[shard].copy(urlCaptures);
+							numCaptureRows++;
+						}
+					}
+					numURLs++;
+					if (numURLs % BATCH_SIZE == 0) {
+						for (SQLiteConnection shardDB : shards) {
+							shardDB.exec("COMMIT");
+							shardDB.exec("BEGIN");
+						}
+					}
+					if (index.verbose > 0 && numURLs % PROGRESS_INTERVAL == 0)
+						report("Copied");
+				}
+				for (SQLiteConnection shardDB : shards)
+					shardDB.exec("COMMIT");
+			} finally {
+				urlRows.dispose();
+				if (urlCaptures != null)
+					urlCaptures.dispose();
+			}
+
+			for (int i = 0; i < numShards; i++) {
+				urlCopiers[i].dispose();
+				if (captureCopiers[i] != null)
+					captureCopiers[i].dispose();
+				for (String sql : createIndexes)
+					shards[i].exec(sql);
+				shards[i].dispose();
+				shards[i] = null;
+			}
+		} finally {
+			for (int i = 0; i < numShards; i++) {
+				if (shards[i] != null)
+					shards[i].dispose();
+			}
+		}
+
+		for (int i = 0; i < numShards; i++) {
+			File shardFile = new File(shardDir, String.format(IndexShards.SHARD_FILE_FORMAT, i));
+			if (!tempFiles[i].renameTo(shardFile))
+				throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN,
+						"Cannot rename " + tempFiles[i] + " to " + shardFile);
+		}
+		return numURLs;
+	}
+
+	/**
+	 * @return type, name and CREATE statement of the table and its explicit indexes.
+	 */
+	private ArrayList<String[]> readSchema(String table) throws SQLiteException {
+		ArrayList<String[]> result = new ArrayList<String[]>();
+		SQLiteStatement schema = index.indexDB.prepare(SCHEMA_QUERY, false);
+		try {
+			schema.bind(SCHEMA_TABLE_BIND_POS, table);
+			while (schema.step())
+				result.add(new String[] { schema.columnString(SCHEMA_TYPE_POS),
+										  schema.columnString(SCHEMA_NAME_POS),
+										  schema.columnString(SCHEMA_SQL_POS) });
+		} finally {
+			schema.dispose();
+		}
+		if (result.isEmpty())
+			throw new SQLiteException(SQLiteConstants.SQLITE_ERROR,
+					"WebBase index " + index.getIndexPath() + " has no " + table + " table.");
+		return result;
+	}
+
+	private void copyCrawls(SQLiteConnection[] shards) throws SQLiteException {
+		SQLiteStatement crawls = index.indexDB.prepare(CRAWLS_QUERY, false);
+		try {
+			for (SQLiteConnection shardDB : shards) {
+				Copier copier = new Copier(shardDB, WBIndex.CRAWLS_TABLE, crawls.columnCount());
+				try {
+					crawls.reset(true);
+					while (crawls.step())
+						copier.copy(crawls);
+				} finally {
+					copier.dispose();
+				}
+			}
+		} finally {
+			crawls.dispose();
+		}
+	}
+
+	/**
+	 * Inserts rows read by a SELECT * into the same table of a shard.
+	 */
+	private static final class Copier {
+		private final SQLiteStatement insert;
+		private final int numCols;
+
+		Copier(SQLiteConnection shardDB, String table, int theNumCols) throws SQLiteException {
+			numCols = theNumCols;
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES(");
+			for (int col = 0; col < numCols; col++)
+				sql.append((col == 0) ? "?" : ",?");
+			insert = shardDB.prepare(sql.append(")").toString(), false);
+		}
+
+		void copy(SQLiteStatement row) throws SQLiteException {
+			insert.reset(true);
+			for (int col = 0; col < numCols; col++) {
+				int bindPos = col + 1;
+				switch (row.columnType(col)) {
+				case SQLiteConstants.SQLITE_INTEGER:
+					insert.bind(bindPos, row.columnLong(col));
+					break;
+				case SQLiteConstants.SQLITE_FLOAT:
+					insert.bind(bindPos, row.columnDouble(col));
+					break;
+				case SQLiteConstants.SQLITE_TEXT:
+					insert.bind(bindPos, row.columnString(col));
+					break;
+				case SQLiteConstants.SQLITE_BLOB:
+					insert.bind(bindPos, row.columnBlob(col));
+					break;
+				default:
+					insert.bindNull(bindPos);
+				}
+			}
+			insert.stepThrough();
+		}
+
+		void dispose() {
+			insert.dispose();
+		}
+	}
+
+	private void report(String what) {
+		double secs = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-3);
+		System.out.println(String.format("%s %d URLs (%d capture rows) into %d shards in %.1f s; %.0f URLs/sec",
+				what, numURLs, numCaptureRows, numShards, secs, numURLs / secs));
+	}
+
+	public long getNumURLs() {
+		return numURLs;
+	}
+
+	public void close() {
+		index.close();
+	}
+
+	public static void main(String[] args) throws SQLiteException {
+		int argPos = 0;
+		int numShards = DEFAULT_NUM_SHARDS;
+		if (args.length > 1 && "-shards".equals(args[0])) {
+			numShards = Integer.parseInt(args[1]);
+			argPos = 2;
+		}
+		if (args.length - argPos < 2) {
+			System.out.println("Usage: Resharder [-shards n] indexPath shardDir");
+			return;
+		}
+		Resharder resharder = new Resharder(args[argPos], numShards);
+		try {
+			resharder.reshard(args[argPos + 1]);
+			resharder.report("Resharded " + resharder.index.getIndexPath() + ":");
+		} finally {
+			resharder.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds an HTTP response head (and optionally a small body) as text,
+ * and writes it to the client with a single write() call. Instances are
+ * reused per thread via forThread(), so that answering a request does
+ * not allocate buffers.
+ *
+ * Text is sent as ISO-8859-1, the charset of HTTP header fields;
+ * characters outside it are sent as '?'.
+ *
+ * @author Paepcke
+ *
+ */
+final class ResponseBuilder {
+
+	static final String CRLF = "\r\n";
+
+	private static final ThreadLocal<ResponseBuilder> threadBuilder = new ThreadLocal<ResponseBuilder>() {
+		protected ResponseBuilder initialValue() {
+			return new ResponseBuilder();
+		}
+	};
+
+	final StringBuilder text = new StringBuilder(512);
+	private byte[] bytes = new byte[1024];
+
+	/**
+	 * @return the calling thread's builder, emptied.
+	 */
+	static ResponseBuilder forThread() {
+		return threadBuilder.get().reset();
+	}
+
+	ResponseBuilder reset() {
+		text.setLength(0);
+		return this;
+	}
+
+	ResponseBuilder statusLine(int code, String reason) {
+		text.append("HTTP/1.1 ").append(code).append(' ').append(reason).append(CRLF);
+		return this;
+	}
+
+	ResponseBuilder header(String name, String value) {
+		text.append(name).append(": ").append(value).append(CRLF);
+		return this;
+	}
+
+	ResponseBuilder header(String name, long value) {
+		text.append(name).append(": ").append(value).append(CRLF);
+		return this;
+	}
+
+	/**
+	 * Append header lines that are ready-made, each ending in CRLF.
+	 */
+	ResponseBuilder headerLines(CharSequence lines) {
+		text.append(lines);
+		return this;
+	}
+
+	/**
+	 * Append "Date: <now>".
+	 */
+	ResponseBuilder dateHeader() {
+		text.append("Date: ");
+		WBDateTime.appendHttpDate(System.currentTimeMillis() / 1000, text);
+		text.append(CRLF);
+		return this;
+	}
+
+	/**
+	 * Append the Connection header, if any, that the response to
+	 * the given request needs; see Command.isKeepAlive().
+	 */
+	ResponseBuilder connection(Command request) {
+		String line = HTTPCommandDispatcher.connectionHeader(request);
+		if (line != null)
+			text.append(line).append(CRLF);
+		return this;
+	}
+
+	/**
+	 * Start a header whose value the caller appends to the returned
+	 * StringBuilder piecemeal. Finish with endHeader().
+	 */
+	StringBuilder startHeader(String name) {
+		text.append(name).append(": ");
+		return text;
+	}
+
+	ResponseBuilder endHeader() {
+		text.append(CRLF);
+		return this;
+	}
+
+	/**
+	 * End the header section, announcing a body of the given text.
+	 * The text must be ASCII, so that its length equals its byte count.
+	 * @param contentType value of the Content-Type header; ignored if body is empty.
+	 * @param body body text; null or empty for no body.
+	 * @param includeBody false for HEAD requests: send the headers only.
+	 */
+	ResponseBuilder body(String contentType, String body, boolean includeBody) {
+		int len = (body == null) ? 0 : body.length();
+		if (len > 0)
+			header("Content-Type", contentType);
+		header("Content-Length", len);
+		text.append(CRLF);
+		if (includeBody && len > 0)
+			text.append(body);
+		return this;
+	}
+
+	ResponseBuilder endHeaders() {
+		text.append(CRLF);
+		return this;
+	}
+
+	/**
+	 * Send the accumulated text to the client in one write, and flush.
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		int len = text.length();
+		if (bytes.length < len)
+			bytes = new byte[Math.max(len, bytes.length * 2)];
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			bytes[i] = (c < 256) ? (byte) c : (byte) '?';
+		}
+		out.write(bytes, 0, len);
+		out.flush();
+	}
+}
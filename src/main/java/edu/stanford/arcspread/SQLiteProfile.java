@@ -0,0 +1,195 @@
+package edu.stanford.arcspread;
+
+import com.almworks.sqlite4java.SQLite;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * SQLite settings for the read-only WBIndex connections that serve
+ * lookups; applied to each as it opens (see WBIndex.readProfile).
+ * Connections that write, such as the ingester's and the migrators',
+ * keep SQLite's defaults.
+ *
+ *   cacheKiB   page cache per connection, in KiB; 0 for SQLite's default.
+ *   mmap       bytes of the file to memory-map; 0 to leave as is.
+ *   tempStore  "memory" or "file": where sorts and temp tables go.
+ *   queryOnly  "on" to refuse writes on the connection.
+ *   immutable  "on" if the index file does not change while it is served.
+ *   warmUp     "on" to read the index's URL key pages into the OS's
+ *              file cache at startup.
+ *
+ * Settings the bundled SQLite (3.7.10) predates are left out, and say so
+ * in the report: mmap_size needs 3.7.17, query_only 3.8.0. (Read-only
+ * connections refuse writes anyway.) The immutable=1 URI parameter
+ * needs 3.8.0 as well; an immutable index is instead served in
+ * EXCLUSIVE locking mode. Each reader then takes its shared lock once
+ * and keeps it, and keeps its page cache from one lookup to the next,
+ * rather than checking the file for changes on every statement.
+ * Readers do not block each other, but nothing can write the file
+ * until they close. CrawlCatalog stops checking an immutable file for
+ * changes, too. Indexes in WAL mode, as CrawlIngester leaves them, are
+ * left in normal locking mode, since there exclusive mode would lock
+ * out all readers but the first.
+ *
+ * Usage, e.g. as TimeGate's fifth argument:
+ *   cacheKiB=16384,mmap=268435456,tempStore=memory,queryOnly=on,immutable=on,warmUp=on
+ *
+ * @author Paepcke
+ *
+ */
+public class SQLiteProfile {
+
+	/* Default page cache per connection, in KiB */
+	static long DEFAULT_CACHE_KIB = 8192;
+
+	long cacheKiB = DEFAULT_CACHE_KIB;
+	long mmapSize = 0;
+	boolean tempStoreMemory = true;
+	boolean queryOnly = true;
+	boolean immutable = false;
+	boolean warmUp = false;
+
+	/**
+	 * Parse a profile from comma-separated key=value settings, as listed
+	 * in the class comment. Settings not given keep their defaults.
+	 * @throws IllegalArgumentException on an unknown key or a bad value.
+	 */
+	public static SQLiteProfile parse(String spec) {
+		SQLiteProfile profile = new SQLiteProfile();
+		for (String setting : spec.split(",")) {
+			setting = setting.trim();
+			if (setting.isEmpty())
+				continue;
+			int eq = setting.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("SQLite setting '" + setting + "' has no value.");
+			String key = setting.substring(0, eq).trim();
+			String value = setting.substring(eq + 1).trim();
+			if (key.equals("cacheKiB"))
+				profile.setCacheKiB(Long.parseLong(value));
+			else if (key.equals("mmap"))
+				profile.setMmapSize(Long.parseLong(value));
+			else if (key.equals("tempStore"))
+				profile.setTempStoreMemory(parseChoice(key, value, "memory", "file"));
+			else if (key.equals("queryOnly"))
+				profile.setQueryOnly(parseChoice(key, value, "on", "off"));
+			else if (key.equals("immutable"))
+				profile.setImmutable(parseChoice(key, value, "on", "off"));
+			else if (key.equals("warmUp"))
+				profile.setWarmUp(parseChoice(key, value, "on", "off"));
+			else
+				throw new IllegalArgumentException("Unknown SQLite setting '" + key +
+						"'; use cacheKiB, mmap, tempStore, queryOnly, immutable, or warmUp.");
+		}
+		return profile;
+	}
+
+	private static boolean parseChoice(String key, String value, String yes, String no) {
+		if (value.equalsIgnoreCase(yes))
+			return true;
+		if (value.equalsIgnoreCase(no))
+			return false;
+		throw new IllegalArgumentException("SQLite setting " + key + " is '" + yes + "' or '" + no + "'; was '" + value + "'.");
+	}
+
+	public SQLiteProfile setCacheKiB(long kiB) {
+		if (kiB < 0)
+			throw new IllegalArgumentException("Page cache size must not be negative; was " + kiB);
+		cacheKiB = kiB;
+		return this;
+	}
+
+	public SQLiteProfile setMmapSize(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("mmap size must not be negative; was " + bytes);
+		mmapSize = bytes;
+		return this;
+	}
+
+	public SQLiteProfile setTempStoreMemory(boolean inMemory) {
+		tempStoreMemory = inMemory;
+		return this;
+	}
+
+	public SQLiteProfile setQueryOnly(boolean isQueryOnly) {
+		queryOnly = isQueryOnly;
+		return this;
+	}
+
+	public SQLiteProfile setImmutable(boolean isImmutable) {
+		immutable = isImmutable;
+		return this;
+	}
+
+	public SQLiteProfile setWarmUp(boolean doWarmUp) {
+		warmUp = doWarmUp;
+		return this;
+	}
+
+	public boolean isWarmUp() {
+		return warmUp;
+	}
+
+	/**
+	 * Apply the settings to a connection that was just opened, before
+	 * its first query.
+	 * @return true if the connection serves the file as immutable.
+	 */
+	boolean apply(SQLiteConnection db) throws SQLiteException {
+		if (cacheKiB > 0)
+			db.exec("PRAGMA cache_size=-" + cacheKiB);
+		// Pragmas that this SQLite does not know are no-ops:
+		if (mmapSize > 0)
+			db.exec("PRAGMA mmap_size=" + mmapSize);
+		db.exec("PRAGMA temp_store=" + (tempStoreMemory ? "MEMORY" : "FILE"));
+		if (queryOnly)
+			db.exec("PRAGMA query_only=ON");
+		if (!immutable || "wal".equalsIgnoreCase(pragma(db, "journal_mode")))
+			return false;
+		db.exec("PRAGMA locking_mode=EXCLUSIVE");
+		return true;
+	}
+
+	/**
+	 * @return the settings in effect on the connection, one line.
+	 */
+	String report(SQLiteConnection db) throws SQLiteException {
+		StringBuilder buf = new StringBuilder(256);
+		buf.append("SQLite ").append(SQLite.getSQLiteVersion());
+		long cacheSize = Long.parseLong(pragma(db, "cache_size"));
+		// Negative sizes are in KiB, positive ones in pages:
+		buf.append(": cache ").append((cacheSize < 0) ? -cacheSize : cacheSize * Long.parseLong(pragma(db, "page_size")) / 1024)
+		   .append(" KiB");
+		appendSetting(buf, "mmap_size", pragma(db, "mmap_size"));
+		String tempStore = pragma(db, "temp_store");
+		appendSetting(buf, "temp_store", "2".equals(tempStore) ? "memory" : "1".equals(tempStore) ? "file" : "default");
+		String isQueryOnly = pragma(db, "query_only");
+		appendSetting(buf, "query_only", (isQueryOnly == null) ? null : "1".equals(isQueryOnly) ? "on" : "off");
+		appendSetting(buf, "journal_mode", pragma(db, "journal_mode"));
+		appendSetting(buf, "locking_mode", pragma(db, "locking_mode"));
+		return buf.toString();
+	}
+
+	private static void appendSetting(StringBuilder buf, String name, String value) {
+		buf.append(", ").append(name).append(' ').append((value == null) ? "unsupported" : value);
+	}
+
+	/**
+	 * @return the value of a pragma; null if this SQLite does not know it.
+	 */
+	static String pragma(SQLiteConnection db, String name) throws SQLiteException {
+		SQLiteStatement query = db.prepare("PRAGMA " + name, false);
+		try {
+			return query.step() ? query.columnString(0) : null;
+		} finally {
+			query.dispose();
+		}
+	}
+
+	public String toString() {
+		return "cacheKiB=" + cacheKiB + ",mmap=" + mmapSize + ",tempStore=" + (tempStoreMemory ? "memory" : "file") +
+			   ",queryOnly=" + (queryOnly ? "on" : "off") + ",immutable=" + (immutable ? "on" : "off") +
+			   ",warmUp=" + (warmUp ? "on" : "off");
+	}
+}
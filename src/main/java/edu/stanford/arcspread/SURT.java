@@ -0,0 +1,245 @@
+package edu.stanford.arcspread;
+
+import java.util.Arrays;
+
+/**
+ * Sort-friendly URI Reordering Transform. Turns a URI into the key
+ * under which the URLs table's surt column files it:
+ *
+ *   http://www.Agr.WA.gov:80/PestFert/index.htm?b=2&a=1#top
+ *     --> gov,wa,agr)/pestfert/index.htm?a=1&b=2
+ *
+ * The host's labels are reversed and comma-separated, so that all
+ * hosts of a domain sort together, ahead of their paths. The key is
+ * canonical: scheme, user info, a leading "www" label, default ports
+ * and fragments are dropped; everything is lower-cased, and query
+ * arguments are sorted. Different URLs may thus share a key, as
+ * http:// and https:// versions of a page do.
+ *
+ * Ingest (SURTMigrator) and lookup (WBIndex.scanURLPrefix(),
+ * scanDomain()) both go through canonicalize(), so that a prefix
+ * computed at query time matches the keys computed at load time.
+ *
+ * @author Paepcke
+ *
+ */
+public final class SURT {
+
+	/* Ends the host part of a key */
+	public static final char HOST_END = ')';
+	static final char LABEL_SEPARATOR = ',';
+	static final char PORT_SEPARATOR = ':';
+
+	private SURT() {
+	}
+
+	/**
+	 * @param uri absolute URI; the scheme may be missing, as in "agr.wa.gov/robots.txt".
+	 * @return the URI's SURT key.
+	 */
+	public static String canonicalize(String uri) {
+		String s = uri.trim();
+		String scheme = "http";
+		int schemeEnd = s.indexOf("://");
+		if (schemeEnd > 0 && isScheme(s, schemeEnd)) {
+			scheme = s.substring(0, schemeEnd).toLowerCase();
+			s = s.substring(schemeEnd + 3);
+		}
+		int fragment = s.indexOf('#');
+		if (fragment >= 0)
+			s = s.substring(0, fragment);
+
+		int authorityEnd = s.length();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '/' || c == '?') {
+				authorityEnd = i;
+				break;
+			}
+		}
+		String authority = s.substring(0, authorityEnd);
+		int at = authority.lastIndexOf('@');
+		if (at >= 0)
+			authority = authority.substring(at + 1);
+		String host = authority;
+		String port = null;
+		int portStart = authority.lastIndexOf(PORT_SEPARATOR);
+		if (portStart >= 0 && authority.indexOf(']', portStart) < 0) {
+			host = authority.substring(0, portStart);
+			port = authority.substring(portStart + 1);
+			if (port.length() == 0 || isDefaultPort(scheme, port))
+				port = null;
+		}
+
+		StringBuilder key = new StringBuilder(s.length() + 8);
+		appendHost(key, host);
+		if (port != null)
+			key.append(PORT_SEPARATOR).append(port);
+		key.append(HOST_END);
+
+		String path = s.substring(authorityEnd);
+		String query = null;
+		int queryStart = path.indexOf('?');
+		if (queryStart >= 0) {
+			query = path.substring(queryStart + 1);
+			path = path.substring(0, queryStart);
+		}
+		if (path.length() == 0)
+			key.append('/');
+		else
+			key.append(path.toLowerCase());
+		if (query != null)
+			appendQuery(key, query.toLowerCase());
+		return key.toString();
+	}
+
+	/**
+	 * @param host host name, e.g. "www.agr.wa.gov".
+	 * @return the host part of its keys, e.g. "gov,wa,agr".
+	 */
+	public static String reverseHost(String host) {
+		StringBuilder result = new StringBuilder(host.length());
+		appendHost(result, host);
+		return result.toString();
+	}
+
+	/**
+	 * Append the reversed, lower-cased host, without a leading www label.
+	 * IP addresses are not reversed.
+	 */
+	private static void appendHost(StringBuilder key, String host) {
+		host = host.toLowerCase();
+		while (host.endsWith("."))
+			host = host.substring(0, host.length() - 1);
+		if (host.startsWith("[") || isIPv4Address(host)) {
+			key.append(host);
+			return;
+		}
+		appendReversedLabels(key, host, wwwLabelEnd(host));
+	}
+
+	/**
+	 * Append the dot-separated labels of name[start..], last label
+	 * first, separated by LABEL_SEPARATOR.
+	 */
+	private static void appendReversedLabels(StringBuilder key, String name, int start) {
+		int labelEnd = name.length();
+		for (int i = name.length() - 1; i >= start - 1; i--) {
+			if (i < start || name.charAt(i) == '.') {
+				if (labelEnd < name.length())
+					key.append(LABEL_SEPARATOR);
+				key.append(name, i + 1, labelEnd);
+				labelEnd = i;
+			}
+		}
+	}
+
+	/**
+	 * @return index just past a leading "www.", "www2." etc.; 0 if the
+	 * host has none, or if nothing but that label would remain.
+	 */
+	private static int wwwLabelEnd(String host) {
+		if (!host.startsWith("www"))
+			return 0;
+		int i = 3;
+		while (i < host.length() && Character.isDigit(host.charAt(i)))
+			i++;
+		if (i < host.length() - 1 && host.charAt(i) == '.')
+			return i + 1;
+		return 0;
+	}
+
+	/**
+	 * Append "?" and the query's arguments, sorted, without empty ones.
+	 * Appends nothing if no arguments remain.
+	 */
+	private static void appendQuery(StringBuilder key, String query) {
+		String[] args = query.split("&");
+		Arrays.sort(args);
+		boolean first = true;
+		for (String arg : args) {
+			if (arg.length() == 0)
+				continue;
+			key.append(first ? '?' : '&').append(arg);
+			first = false;
+		}
+	}
+
+	/**
+	 * @param prefix beginning of the keys wanted.
+	 * @return the smallest string greater than every string that starts
+	 * with prefix; the exclusive upper bound of the prefix's key range.
+	 */
+	public static String prefixUpperBound(String prefix) {
+		StringBuilder result = new StringBuilder(prefix);
+		while (result.length() > 0) {
+			char last = result.charAt(result.length() - 1);
+			if (last != Character.MAX_VALUE) {
+				result.setCharAt(result.length() - 1, (char) (last + 1));
+				return result.toString();
+			}
+			result.setLength(result.length() - 1);
+		}
+		// Prefix of only MAX_VALUE chars; no bound short of everything:
+		return null;
+	}
+
+	/**
+	 * @param domain e.g. "wa.gov", "*.gov" or "gov".
+	 * @return the domain's reversed host, e.g. "gov,wa". The keys of the
+	 * domain's hosts are those that continue it with HOST_END, a
+	 * LABEL_SEPARATOR or a PORT_SEPARATOR; see isInDomain().
+	 */
+	public static String domainKey(String domain) {
+		String d = domain.trim().toLowerCase();
+		if (d.startsWith("*"))
+			d = d.substring(1);
+		while (d.startsWith("."))
+			d = d.substring(1);
+		while (d.endsWith("."))
+			d = d.substring(0, d.length() - 1);
+		// Unlike a host, a domain keeps a leading www label:
+		StringBuilder result = new StringBuilder(d.length());
+		appendReversedLabels(result, d, 0);
+		return result.toString();
+	}
+
+	/**
+	 * @param key a SURT key.
+	 * @param domainKey result of domainKey().
+	 * @return true if the key belongs to a host in the domain.
+	 */
+	public static boolean isInDomain(String key, String domainKey) {
+		if (!key.startsWith(domainKey))
+			return false;
+		if (key.length() == domainKey.length())
+			return false;
+		char next = key.charAt(domainKey.length());
+		return next == HOST_END || next == LABEL_SEPARATOR || next == PORT_SEPARATOR;
+	}
+
+	private static boolean isScheme(String s, int end) {
+		for (int i = 0; i < end; i++) {
+			char c = s.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '+' || c == '-' || c == '.'))
+				return false;
+		}
+		return Character.isLetter(s.charAt(0));
+	}
+
+	private static boolean isDefaultPort(String scheme, String port) {
+		return ("http".equals(scheme) && "80".equals(port)) ||
+			   ("https".equals(scheme) && "443".equals(port));
+	}
+
+	private static boolean isIPv4Address(String host) {
+		if (host.length() == 0)
+			return false;
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,126 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Gives an existing WebBase index SURT keys (see SURT). Adds the surt
+ * TEXT column to the URLs table (URLDictionary on a normalized index)
+ * if needed, fills it with the canonicalized key of each row's url,
+ * and indexes it, so that
+ * WBIndex.scanURLPrefix() and scanDomain() walk a B-tree range instead
+ * of the whole table.
+ *
+ * The migration is idempotent: rerunning it recomputes every key, which
+ * is what to do after the canonicalization rules change. Scripts that
+ * add URLs rows must fill in surt themselves, with SURT.canonicalize(),
+ * or rerun the migration.
+ *
+ * Usage: SURTMigrator [indexPath]
+ *
+ * @author Paepcke
+ *
+ */
+public class SURTMigrator {
+
+	/* # of URL rows keyed per transaction */
+	static int BATCH_SIZE = 10000;
+
+	static final String SURT_INDEX_NAME = "URLs_surt";
+	static final String NORMALIZED_SURT_INDEX_NAME = "URLDictionary_surt";
+
+	private static final String NEXT_BATCH_QUERY =
+			"SELECT rowid,url FROM %s WHERE rowid > ? ORDER BY rowid LIMIT ?";
+	private static final int NEXT_BATCH_AFTER_BIND_POS = 1;
+	private static final int NEXT_BATCH_LIMIT_BIND_POS = 2;
+	private static final int NEXT_BATCH_ROWID_POS = 0;
+	private static final int NEXT_BATCH_URL_POS = 1;
+
+	private static final String UPDATE_SURT = "UPDATE %s SET " + WBIndex.SURT_COL + "=? WHERE rowid=?";
+	private static final int UPDATE_SURT_KEY_BIND_POS = 1;
+	private static final int UPDATE_SURT_ROWID_BIND_POS = 2;
+
+	WBIndex index = null;
+
+	public SURTMigrator(String indexPath) throws SQLiteException {
+		index = new WBIndex(indexPath, false);
+	}
+
+	/**
+	 * Add the surt column if necessary, (re)key every URLs row, and
+	 * index the column.
+	 * @return number of URL rows keyed.
+	 * @throws SQLiteException
+	 */
+	public long migrate() throws SQLiteException {
+		String table = index.getURLTableName();
+		String indexName = index.hasNormalizedCaptures() ? NORMALIZED_SURT_INDEX_NAME : SURT_INDEX_NAME;
+		if (!index.hasTableColumn(table, WBIndex.SURT_COL))
+			index.indexDB.exec("ALTER TABLE " + table + " ADD COLUMN " + WBIndex.SURT_COL + " TEXT");
+		// Filling an indexed column costs a B-tree update per row; building
+		// the index afterwards sorts once:
+		index.indexDB.exec("DROP INDEX IF EXISTS " + indexName);
+
+		long numKeyed = 0;
+		long lastRowID = Long.MIN_VALUE;
+		ArrayList<Long> rowIDs = new ArrayList<Long>();
+		ArrayList<String> keys = new ArrayList<String>();
+		SQLiteStatement batchQuery = index.indexDB.prepare(String.format(NEXT_BATCH_QUERY, table), false);
+		SQLiteStatement update = index.indexDB.prepare(String.format(UPDATE_SURT, table), false);
+		try {
+			while (true) {
+				// Read one batch, then write it; SQLite does not promise a
+				// stable scan while the scanned table is being updated:
+				rowIDs.clear();
+				keys.clear();
+				batchQuery.reset(true);
+				batchQuery.bind(NEXT_BATCH_AFTER_BIND_POS, lastRowID);
+				batchQuery.bind(NEXT_BATCH_LIMIT_BIND_POS, BATCH_SIZE);
+				while (batchQuery.step()) {
+					lastRowID = batchQuery.columnLong(NEXT_BATCH_ROWID_POS);
+					rowIDs.add(lastRowID);
+					keys.add(SURT.canonicalize(batchQuery.columnString(NEXT_BATCH_URL_POS)));
+				}
+				if (rowIDs.isEmpty())
+					break;
+				index.indexDB.exec("BEGIN");
+				try {
+					for (int i = 0; i < rowIDs.size(); i++) {
+						update.reset(true);
+						update.bind(UPDATE_SURT_KEY_BIND_POS, keys.get(i));
+						update.bind(UPDATE_SURT_ROWID_BIND_POS, rowIDs.get(i));
+						update.stepThrough();
+					}
+					index.indexDB.exec("COMMIT");
+				} catch (SQLiteException e) {
+					index.indexDB.exec("ROLLBACK");
+					throw e;
+				}
+				numKeyed += rowIDs.size();
+				if (index.verbose > 0)
+					System.out.println("Keyed " + numKeyed + " URLs...");
+			}
+		} finally {
+			batchQuery.dispose();
+			update.dispose();
+		}
+		index.indexDB.exec("CREATE INDEX IF NOT EXISTS " + indexName + " ON " + table + "(" + WBIndex.SURT_COL + ")");
+		return numKeyed;
+	}
+
+	public void close() {
+		index.close();
+	}
+
+	public static void main(String[] args) throws SQLiteException {
+		SURTMigrator migrator = new SURTMigrator((args.length > 0) ? args[0] : null);
+		try {
+			long numKeyed = migrator.migrate();
+			System.out.println("Added SURT keys to " + numKeyed + " URLs in " + migrator.index.getIndexPath());
+		} finally {
+			migrator.close();
+		}
+	}
+}
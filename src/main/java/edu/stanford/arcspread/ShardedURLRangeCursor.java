@@ -0,0 +1,287 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * Forward-only cursor over a SURT key range of a sharded index, in key
+ * order; the counterpart of URLRangeCursor, returned by the scan
+ * methods of ShardedWBIndex.
+ *
+ * Every shard's part of the range is read in parallel, by a task on
+ * one of that shard's worker threads (see IndexShards). Each task
+ * walks a URLRangeCursor over its shard and passes the rows, captures
+ * included, to this cursor in batches of BATCH_SIZE, through a queue
+ * of QUEUE_DEPTH batches. The calling thread merges the shards' rows
+ * by key. A task that gets QUEUE_DEPTH batches ahead of the merge
+ * waits, so memory stays bounded however large the range.
+ *
+ * Unlike a URLRangeCursor, this cursor may be used on any one thread.
+ * It must be closed, or its tasks keep worker threads busy until they
+ * give up after ABANDON_TIMEOUT msecs of waiting.
+ *
+ * @author Paepcke
+ *
+ */
+public class ShardedURLRangeCursor {
+
+	/* # of rows a shard task hands over at a time */
+	static int BATCH_SIZE = 256;
+	/* # of batches a shard task may get ahead of the merge */
+	static int QUEUE_DEPTH = 4;
+	/* Msecs a shard task waits for the merge to take a batch before giving up */
+	static long ABANDON_TIMEOUT = 60000;
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * One URLs row, as read by a shard task.
+	 */
+	private static final class Row {
+		final String url;
+		final String surt;
+		final byte[] timesBlob;
+		final byte[] crawlIDsBlob;
+
+		Row(String theURL, String theSURT, byte[] theTimesBlob, byte[] theCrawlIDsBlob) {
+			url = theURL;
+			surt = theSURT;
+			timesBlob = theTimesBlob;
+			crawlIDsBlob = theCrawlIDsBlob;
+		}
+	}
+
+	/**
+	 * What a shard task hands over: rows, or the end of its part of the
+	 * range, or the exception that ended it.
+	 */
+	private static final class Batch {
+		final ArrayList<Row> rows;
+		final boolean last;
+		final Exception error;
+
+		Batch(ArrayList<Row> theRows, boolean isLast, Exception theError) {
+			rows = theRows;
+			last = isLast;
+			error = theError;
+		}
+	}
+
+	/**
+	 * The merge's position in one shard's stream of rows.
+	 */
+	private static final class ShardStream implements Comparable<ShardStream> {
+		final ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_DEPTH);
+		Future<Void> task = null;
+		ArrayList<Row> rows = null;
+		int pos = 0;
+
+		Row current() {
+			return rows.get(pos);
+		}
+
+		public int compareTo(ShardStream other) {
+			Row a = current();
+			Row b = other.current();
+			// The shards' own order, that of SQLite's BINARY collation:
+			int cmp = CrawlIngester.compareURLs(a.surt, b.surt);
+			return (cmp != 0) ? cmp : CrawlIngester.compareURLs(a.url, b.url);
+		}
+	}
+
+	/**
+	 * Opens one shard's part of the range; see ShardedWBIndex.
+	 */
+	interface RangeOpener {
+		URLRangeCursor open(WBIndex shardIndex) throws SQLiteException;
+	}
+
+	private final ShardStream[] streams;
+	private final PriorityQueue<ShardStream> heap;
+	private volatile boolean closed = false;
+	private boolean started = false;
+	private Row row = null;
+	private long numRows = 0;
+
+	ShardedURLRangeCursor(IndexShards shards, final RangeOpener opener) throws SQLiteException {
+		streams = new ShardStream[shards.getNumShards()];
+		heap = new PriorityQueue<ShardStream>(streams.length);
+		try {
+			for (int i = 0; i < streams.length; i++) {
+				final ShardStream stream = streams[i] = new ShardStream();
+				stream.task = shards.submit(i, new IndexShards.ShardTask<Void>() {
+					public Void run(WBIndex shardIndex) {
+						produce(shardIndex, opener, stream.queue);
+						return null;
+					}
+				});
+			}
+		} catch (SQLiteException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Body of a shard task: read the shard's part of the range into the
+	 * stream's queue.
+	 */
+	private void produce(WBIndex shardIndex, RangeOpener opener, ArrayBlockingQueue<Batch> queue) {
+		URLRangeCursor cursor = null;
+		try {
+			cursor = opener.open(shardIndex);
+			ArrayList<Row> rows = new ArrayList<Row>(BATCH_SIZE);
+			while (cursor.next()) {
+				byte[][] blobs = cursor.getPackedCaptures(Long.MIN_VALUE, Long.MAX_VALUE);
+				rows.add(new Row(cursor.getURL(), cursor.getSURT(), blobs[0], blobs[1]));
+				if (rows.size() == BATCH_SIZE) {
+					if (!handOver(queue, new Batch(rows, false, null)))
+						return;
+					rows = new ArrayList<Row>(BATCH_SIZE);
+				}
+			}
+			handOver(queue, new Batch(rows, true, null));
+		} catch (Exception e) {
+			handOver(queue, new Batch(new ArrayList<Row>(0), true, e));
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * @return false if the cursor was closed, or the merge stopped taking batches.
+	 */
+	private boolean handOver(ArrayBlockingQueue<Batch> queue, Batch batch) {
+		long deadline = System.currentTimeMillis() + ABANDON_TIMEOUT;
+		try {
+			while (!closed) {
+				if (queue.offer(batch, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+					return true;
+				if (System.currentTimeMillis() > deadline)
+					return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Move a stream to its next row, taking the next batch from its queue
+	 * if needed.
+	 * @return false if the stream has no more rows.
+	 */
+	private boolean advance(ShardStream stream) throws SQLiteException, DataFormatException {
+		stream.pos++;
+		while (stream.rows == null || stream.pos >= stream.rows.size()) {
+			if (stream.rows != null && stream.task == null)
+				return false;
+			Batch batch;
+			try {
+				batch = stream.queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLiteException(SQLiteConstants.SQLITE_INTERRUPT, "Interrupted while reading index shards.");
+			}
+			if (batch.error instanceof SQLiteException)
+				throw (SQLiteException) batch.error;
+			if (batch.error instanceof DataFormatException)
+				throw (DataFormatException) batch.error;
+			if (batch.error != null)
+				throw new SQLiteException(SQLiteConstants.SQLITE_ERROR, "WebBase index shard scan failed: " + batch.error);
+			stream.rows = batch.rows;
+			stream.pos = 0;
+			if (batch.last)
+				stream.task = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Advance to the next row in the range, across all shards.
+	 * @return false if there are no more rows.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if a shard's row is malformed.
+	 */
+	public boolean next() throws SQLiteException, DataFormatException {
+		if (closed)
+			return false;
+		if (!started) {
+			started = true;
+			for (ShardStream stream : streams) {
+				stream.pos = -1;
+				if (advance(stream))
+					heap.add(stream);
+			}
+		} else if (row != null) {
+			ShardStream stream = heap.poll();
+			if (advance(stream))
+				heap.add(stream);
+		}
+		if (heap.isEmpty()) {
+			row = null;
+			close();
+			return false;
+		}
+		row = heap.peek().current();
+		numRows++;
+		return true;
+	}
+
+	/**
+	 * @return URL of the current row, as stored.
+	 */
+	public String getURL() {
+		return row.url;
+	}
+
+	/**
+	 * @return SURT key of the current row.
+	 */
+	public String getSURT() {
+		return row.surt;
+	}
+
+	/**
+	 * @return number of captures of the current row's URL.
+	 */
+	public int getNumCaptures() {
+		return PackedCaptures.numCaptures(row.timesBlob);
+	}
+
+	/**
+	 * Open a cursor over the captures of the current row's URL.
+	 * @param from epoch seconds of the earliest capture to include; Long.MIN_VALUE for no bound.
+	 * @param until epoch seconds of the latest capture to include; Long.MAX_VALUE for no bound.
+	 */
+	public CaptureCursor getCaptures(long from, long until) {
+		return new CaptureCursor(row.url, row.timesBlob, row.crawlIDsBlob, from, until);
+	}
+
+	/**
+	 * @return number of rows visited so far.
+	 */
+	public long getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * Stop the shard tasks. Safe to call more than once.
+	 */
+	public void close() {
+		closed = true;
+		for (ShardStream stream : streams) {
+			if (stream != null && stream.task != null) {
+				stream.queue.clear();
+				stream.task.cancel(false);
+			}
+		}
+	}
+}
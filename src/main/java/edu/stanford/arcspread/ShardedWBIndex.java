@@ -0,0 +1,256 @@
+package edu.stanford.arcspread;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+import edu.stanford.arcspread.WBIndex.ResourceSpec;
+
+/**
+ * WebBase index over a directory of shard files (see IndexShards).
+ * Lookups of one URI go to the shard that holds it, over a connection
+ * of the calling thread's own; a shard's connection is opened on first
+ * use. Batch lookups and SURT range scans fan out: each shard's part
+ * runs on one of that shard's worker threads, all shards at once, and
+ * the results are merged, into input order for batches and into key
+ * order for scans.
+ *
+ * Like WBIndex, an instance must only be used by the thread that
+ * created it; WBIndexPool hands each dispatcher worker its own. The
+ * IndexShards object, and with it the fan-out threads, is shared.
+ *
+ * @author Paepcke
+ *
+ */
+public class ShardedWBIndex implements CaptureIndex {
+
+	private final IndexShards shards;
+	// True if this instance created the shards object, and closes it:
+	private final boolean ownsShards;
+	// The calling thread's connection to each shard; null until first used:
+	private final WBIndex[] shardIndexes;
+	private boolean closed = false;
+
+	/**
+	 * Open the sharded index in the given directory, with its own
+	 * fan-out threads.
+	 * @throws SQLiteException if the directory holds no shards.
+	 */
+	public ShardedWBIndex(String dirPath) throws SQLiteException {
+		this(new IndexShards(dirPath), true);
+	}
+
+	/**
+	 * @param theShards shards to query; shared with other instances.
+	 */
+	public ShardedWBIndex(IndexShards theShards) {
+		this(theShards, false);
+	}
+
+	private ShardedWBIndex(IndexShards theShards, boolean isOwner) {
+		shards = theShards;
+		ownsShards = isOwner;
+		shardIndexes = new WBIndex[shards.getNumShards()];
+	}
+
+	/**
+	 * @return the calling thread's connection to the given shard.
+	 */
+	WBIndex getShardIndex(int shard) throws SQLiteException {
+		if (closed)
+			throw new SQLiteException(SQLiteConstants.WRAPPER_NOT_OPENED,
+					"Sharded WebBase index '" + shards.getDirPath() + "' is closed.");
+		WBIndex index = shardIndexes[shard];
+		if (index == null) {
+			index = new WBIndex(shards.getShardPath(shard), true);
+			index.verbose = 0;
+			shardIndexes[shard] = index;
+		}
+		index.setURLFilter(shards.getURLFilter(shard));
+		return index;
+	}
+
+	/**
+	 * @return the calling thread's connection to the shard holding the URI.
+	 */
+	WBIndex getOwningShard(String uri) throws SQLiteException {
+		return getShardIndex(shards.shardOf(uri));
+	}
+
+	public ResourceSpec getClosestURLCrawl(String uri, long referenceTime) throws SQLiteException, DataFormatException {
+		return getOwningShard(uri).getClosestURLCrawl(uri, referenceTime);
+	}
+
+	public CaptureCursor getCaptures(String uri, long from, long until) throws SQLiteException, DataFormatException {
+		return getOwningShard(uri).getCaptures(uri, from, until);
+	}
+
+	public long[] getAllURLCrawlTimes(String uri) throws SQLiteException {
+		return getOwningShard(uri).getAllURLCrawlTimes(uri);
+	}
+
+	/**
+	 * Every shard carries the Crawls table; the answer comes from the first.
+	 */
+	public CrawlSpec getCrawlSpec(int shortName) throws SQLiteException, DataFormatException {
+		return getShardIndex(0).getCrawlSpec(shortName);
+	}
+
+	/**
+	 * Resolve a set of URIs against one reference time. The URIs are
+	 * split by shard, and each shard resolves its share with one
+	 * WBIndex.getClosestURLCrawls() call; if the URIs all live in one
+	 * shard, on the calling thread, else in parallel on the shards'
+	 * worker threads.
+	 * @return one result per input URI, in input order.
+	 */
+	public List<ResourceSpec> getClosestURLCrawls(Collection<String> uris, final long referenceTime)
+			throws SQLiteException, DataFormatException {
+		int numShards = shards.getNumShards();
+		// For each shard, its URIs, or null if none; and each input's shard:
+		ArrayList<List<String>> shardURIs = nulls(numShards);
+		int[] shardOfPos = new int[uris.size()];
+		int pos = 0;
+		int numShardsUsed = 0;
+		int lastShard = 0;
+		for (String uri : uris) {
+			int shard = shards.shardOf(uri);
+			List<String> batch = shardURIs.get(shard);
+			if (batch == null) {
+				batch = new ArrayList<String>();
+				shardURIs.set(shard, batch);
+				numShardsUsed++;
+			}
+			batch.add(uri);
+			shardOfPos[pos++] = shard;
+			lastShard = shard;
+		}
+		if (numShardsUsed == 0)
+			return new ArrayList<ResourceSpec>(0);
+		if (numShardsUsed == 1)
+			return getShardIndex(lastShard).getClosestURLCrawls(shardURIs.get(lastShard), referenceTime);
+
+		ArrayList<Future<List<ResourceSpec>>> tasks = nulls(numShards);
+		ArrayList<List<ResourceSpec>> shardResults = nulls(numShards);
+		try {
+			for (int shard = 0; shard < numShards; shard++) {
+				final List<String> batch = shardURIs.get(shard);
+				if (batch == null)
+					continue;
+				tasks.set(shard, shards.submit(shard, new IndexShards.ShardTask<List<ResourceSpec>>() {
+					public List<ResourceSpec> run(WBIndex shardIndex) throws SQLiteException, DataFormatException {
+						return shardIndex.getClosestURLCrawls(batch, referenceTime);
+					}
+				}));
+			}
+			for (int shard = 0; shard < numShards; shard++) {
+				if (tasks.get(shard) != null)
+					shardResults.set(shard, IndexShards.await(tasks.get(shard)));
+			}
+		} finally {
+			for (Future<List<ResourceSpec>> task : tasks)
+				if (task != null)
+					task.cancel(false);
+		}
+
+		// Put the shards' results back into input order:
+		ArrayList<ResourceSpec> result = new ArrayList<ResourceSpec>(uris.size());
+		int[] shardPos = new int[numShards];
+		for (int i = 0; i < shardOfPos.length; i++) {
+			int shard = shardOfPos[i];
+			result.add(shardResults.get(shard).get(shardPos[shard]++));
+		}
+		return result;
+	}
+
+	/**
+	 * @return list of the given size, all null; a generic stand-in for an array.
+	 */
+	private static <T> ArrayList<T> nulls(int size) {
+		return new ArrayList<T>(Collections.<T>nCopies(size, null));
+	}
+
+	/**
+	 * Walk the URLs whose SURT keys lie in [fromKey, toKey), in key
+	 * order, across all shards; see WBIndex.scanSURTRange().
+	 * @return cursor over the range. Must be closed.
+	 * @throws SQLiteException if the shards cannot be queried.
+	 */
+	public ShardedURLRangeCursor scanSURTRange(final String fromKey, final String toKey) throws SQLiteException {
+		return new ShardedURLRangeCursor(shards, new ShardedURLRangeCursor.RangeOpener() {
+			public URLRangeCursor open(WBIndex shardIndex) throws SQLiteException {
+				return shardIndex.scanSURTRange(fromKey, toKey);
+			}
+		});
+	}
+
+	/**
+	 * Walk all URLs under the given URI prefix, across all shards; see
+	 * WBIndex.scanURLPrefix().
+	 * @return cursor over the URLs, in SURT key order. Must be closed.
+	 * @throws SQLiteException if the shards cannot be queried.
+	 */
+	public ShardedURLRangeCursor scanURLPrefix(final String uriPrefix) throws SQLiteException {
+		return new ShardedURLRangeCursor(shards, new ShardedURLRangeCursor.RangeOpener() {
+			public URLRangeCursor open(WBIndex shardIndex) throws SQLiteException {
+				return shardIndex.scanURLPrefix(uriPrefix);
+			}
+		});
+	}
+
+	/**
+	 * Walk all URLs of the hosts in the given domain, across all shards;
+	 * see WBIndex.scanDomain().
+	 * @return cursor over the URLs, in SURT key order. Must be closed.
+	 * @throws SQLiteException if the shards cannot be queried.
+	 */
+	public ShardedURLRangeCursor scanDomain(final String domain) throws SQLiteException {
+		return new ShardedURLRangeCursor(shards, new ShardedURLRangeCursor.RangeOpener() {
+			public URLRangeCursor open(WBIndex shardIndex) throws SQLiteException {
+				return shardIndex.scanDomain(domain);
+			}
+		});
+	}
+
+	public IndexShards getShards() {
+		return shards;
+	}
+
+	public int getNumShards() {
+		return shards.getNumShards();
+	}
+
+	public String getIndexPath() {
+		return shards.getDirPath();
+	}
+
+	public boolean isOpen() {
+		return !closed && !shards.isClosed();
+	}
+
+	/**
+	 * Close the calling thread's shard connections, and, if this instance
+	 * opened the shards itself, their fan-out threads.
+	 */
+	public void close() {
+		closed = true;
+		for (int i = 0; i < shardIndexes.length; i++) {
+			if (shardIndexes[i] != null && shardIndexes[i].isOpen())
+				shardIndexes[i].close();
+			shardIndexes[i] = null;
+		}
+		if (ownsShards)
+			shards.close();
+	}
+
+	public String toString() {
+		return "ShardedWBIndex[" + shards.getDirPath() + ": " + shards.getNumShards() + " shards]";
+	}
+}
@@ -0,0 +1,145 @@
+package edu.stanford.arcspread;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * LRU cache of prepared statements on one SQLite connection, keyed
+ * by SQL text. Callers check a statement out, bind and step it, and
+ * check it back in. Check-in resets the statement and clears its
+ * bindings instead of disposing it, so the next check-out of the same
+ * SQL does not recompile it. When more than maxStatements distinct
+ * statements are idle, the least recently used one is disposed.
+ *
+ * A checked-out statement is removed from the cache until it is checked
+ * back in. A nested check-out of the same SQL text, such as a second
+ * open cursor, therefore gets its own statement rather than a shared one.
+ *
+ * Like the connection it wraps, a StatementCache must only be used
+ * by the thread that opened the connection.
+ *
+ * @author Paepcke
+ *
+ */
+class StatementCache {
+
+	/* Default max # of idle prepared statements kept per connection */
+	static int DEFAULT_MAX_STATEMENTS = 32;
+
+	private final SQLiteConnection conn;
+	private final int maxStatements;
+	private final LinkedHashMap<String, SQLiteStatement> idleStatements;
+
+	private long numHits = 0;
+	private long numMisses = 0;
+	private long numEvictions = 0;
+
+	StatementCache(SQLiteConnection theConn) {
+		this(theConn, DEFAULT_MAX_STATEMENTS);
+	}
+
+	@SuppressWarnings("serial")
+	StatementCache(SQLiteConnection theConn, int theMaxStatements) {
+		conn = theConn;
+		maxStatements = theMaxStatements;
+		// Access-ordered, so that the eldest entry is the least recently used one:
+		idleStatements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+				if (size() <= maxStatements)
+					return false;
+				eldest.getValue().dispose();
+				numEvictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Return a prepared statement for the given SQL text, ready to be bound
+	 * and stepped. Reuses an idle statement if one is cached.
+	 * @param sql statement text; used verbatim as the cache key.
+	 * @return prepared statement with no bindings. Must be returned via checkIn().
+	 * @throws SQLiteException if the statement has to be prepared and preparation fails.
+	 */
+	SQLiteStatement checkOut(String sql) throws SQLiteException {
+		SQLiteStatement st = idleStatements.remove(sql);
+		if (st != null && !st.isDisposed()) {
+			numHits++;
+			Metrics.SQLITE_STATEMENT_CACHE_HITS.increment();
+			return st;
+		}
+		numMisses++;
+		Metrics.SQLITE_PREPARES.increment();
+		// Bypass sqlite4java's own statement cache, so that
+		// our counters reflect actual compilations:
+		return conn.prepare(sql, false);
+	}
+
+	/**
+	 * Step a statement, and count the step in Metrics.SQLITE_STEPS.
+	 * @return true if the statement produced a row.
+	 */
+	static boolean step(SQLiteStatement st) throws SQLiteException {
+		Metrics.SQLITE_STEPS.increment();
+		return st.step();
+	}
+
+	/**
+	 * Return a statement obtained from checkOut() to the cache. The
+	 * statement is reset and its bindings are cleared. A statement
+	 * that cannot be reset is disposed instead. Null is ignored, so
+	 * that callers may check in from a finally clause unconditionally.
+	 * @param st statement to return.
+	 */
+	void checkIn(SQLiteStatement st) {
+		if (st == null || st.isDisposed())
+			return;
+		String sql = st.getSqlParts().toString();
+		if (maxStatements <= 0 || idleStatements.containsKey(sql)) {
+			st.dispose();
+			return;
+		}
+		try {
+			st.reset(true);
+		} catch (SQLiteException e) {
+			st.dispose();
+			return;
+		}
+		idleStatements.put(sql, st);
+	}
+
+	/**
+	 * Dispose all idle statements. Statements that are checked out at
+	 * the time are disposed when they are checked in.
+	 */
+	void clear() {
+		for (SQLiteStatement st : idleStatements.values())
+			st.dispose();
+		idleStatements.clear();
+	}
+
+	int size() {
+		return idleStatements.size();
+	}
+
+	long getNumHits() {
+		return numHits;
+	}
+
+	long getNumMisses() {
+		return numMisses;
+	}
+
+	long getNumEvictions() {
+		return numEvictions;
+	}
+
+	public String toString() {
+		return "StatementCache[" + size() + "/" + maxStatements + " idle; hits=" + numHits +
+				", misses=" + numMisses + ", evictions=" + numEvictions + "]";
+	}
+}
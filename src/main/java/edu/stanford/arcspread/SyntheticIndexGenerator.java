@@ -0,0 +1,329 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Writes a synthetic WebBase index of any size, for benchmarks (see the
+ * benchmarks module) and load tests. The index has numCrawls crawls of
+ * CRAWL_DAYS days each, CRAWL_SPACING_DAYS apart from 2005 on, and
+ * numURLs URLs with capturesPerURL captures each, spread at random over
+ * the crawls. Its tables are those of a real index in the text layout;
+ * the packed and normalized layouts, and SURT keys, are then added by
+ * the usual migrators.
+ *
+ * The output depends only on the parameters and the seed. URL i is
+ * urlOf(i), so a benchmark can name URLs that are in the index, and,
+ * with i >= numURLs, URLs that are not, without reading the index.
+ * URLs are grouped URLS_PER_HOST to a host.
+ *
+ * Usage: SyntheticIndexGenerator [-urls n] [-captures n] [-crawls n] [-seed n]
+ *                                [-layout text|packed|normalized] [-surt] indexPath
+ * indexPath must not exist yet.
+ *
+ * @author Paepcke
+ *
+ */
+public class SyntheticIndexGenerator {
+
+	public static final String LAYOUT_TEXT = "text";
+	public static final String LAYOUT_PACKED = "packed";
+	public static final String LAYOUT_NORMALIZED = "normalized";
+
+	static long DEFAULT_NUM_URLS = 100000;
+	static int DEFAULT_CAPTURES_PER_URL = 10;
+	static int DEFAULT_NUM_CRAWLS = 12;
+	static long DEFAULT_SEED = 42;
+	static int URLS_PER_HOST = 50;
+	static int CRAWL_DAYS = 14;
+	static int CRAWL_SPACING_DAYS = 120;
+	/* # of URL rows written per transaction */
+	static int BATCH_SIZE = 10000;
+	/* # of URLs between progress messages */
+	static int PROGRESS_INTERVAL = 1000000;
+
+	private static final long FIRST_CRAWL_START = WBDateTime.toEpochSeconds(2005, 1, 1, 0, 0, 0);
+	private static final long SECS_PER_DAY = 24 * 3600;
+	private static final String[] TLDS = { "com", "org", "edu", "gov", "net", "us" };
+	private static final String[] PATH_WORDS = {
+		"index", "news", "about", "archive", "docs", "images", "press", "data", "reports",
+		"contact", "events", "policy", "search", "people", "research", "services"
+	};
+
+	private static final String CREATE_CRAWLS =
+			"CREATE TABLE Crawls\n(crawlName TEXT(64) NOT NULL,\nstartDate TEXT(25),\nendDate TEXT(25)," +
+			" shortName INTEGER DEFAULT 0 NOT NULL,\nPRIMARY KEY (crawlName))";
+	private static final String CREATE_URLS =
+			"CREATE TABLE URLs\n(url TEXT(4096) NOT NULL,\ndatesCrawled TEXT(25),\ncrawlIDs VARCHAR(128),\nPRIMARY KEY (url))";
+	private static final String INSERT_CRAWL = "INSERT INTO Crawls(crawlName,startDate,endDate,shortName) VALUES(?,?,?,?)";
+	private static final int INSERT_CRAWL_NAME_BIND_POS = 1;
+	private static final int INSERT_CRAWL_START_BIND_POS = 2;
+	private static final int INSERT_CRAWL_END_BIND_POS = 3;
+	private static final int INSERT_CRAWL_SHORT_NAME_BIND_POS = 4;
+	private static final String INSERT_URL = "INSERT INTO URLs(url,datesCrawled,crawlIDs) VALUES(?,?,?)";
+	private static final int INSERT_URL_URL_BIND_POS = 1;
+	private static final int INSERT_URL_DATES_BIND_POS = 2;
+	private static final int INSERT_URL_CRAWL_IDS_BIND_POS = 3;
+
+	private long numURLs = DEFAULT_NUM_URLS;
+	private int capturesPerURL = DEFAULT_CAPTURES_PER_URL;
+	private int numCrawls = DEFAULT_NUM_CRAWLS;
+	private long seed = DEFAULT_SEED;
+	private String layout = LAYOUT_TEXT;
+	private boolean withSURTs = false;
+	int verbose = 1;
+
+	public SyntheticIndexGenerator() {
+	}
+
+	public SyntheticIndexGenerator(long theNumURLs, int theCapturesPerURL) {
+		setNumURLs(theNumURLs);
+		setCapturesPerURL(theCapturesPerURL);
+	}
+
+	/**
+	 * @param i any non-negative number.
+	 * @return URL number i of the index; not in the index if i >= numURLs.
+	 */
+	public String urlOf(long i) {
+		long host = i / URLS_PER_HOST;
+		Random random = new Random(seed * 0x9e3779b97f4a7c15L + i);
+		StringBuilder url = new StringBuilder(64);
+		url.append("http://www.site").append(host).append('.').append(TLDS[(int) (host % TLDS.length)]).append('/');
+		int depth = random.nextInt(3);
+		for (int d = 0; d < depth; d++)
+			url.append(PATH_WORDS[random.nextInt(PATH_WORDS.length)]).append('/');
+		return url.append(PATH_WORDS[random.nextInt(PATH_WORDS.length)]).append(i).append(".html").toString();
+	}
+
+	/**
+	 * @return name of the crawl with the given short-name.
+	 */
+	public static String crawlNameOf(int shortName) {
+		return String.format("synthetic-%03d-text", shortName);
+	}
+
+	/**
+	 * @return epoch seconds at which the crawl with the given short-name starts.
+	 */
+	public static long crawlStartOf(int shortName) {
+		return FIRST_CRAWL_START + (long) shortName * CRAWL_SPACING_DAYS * SECS_PER_DAY;
+	}
+
+	/**
+	 * @return epoch seconds at which the crawl with the given short-name ends.
+	 */
+	public static long crawlEndOf(int shortName) {
+		return crawlStartOf(shortName) + CRAWL_DAYS * SECS_PER_DAY - 1;
+	}
+
+	/**
+	 * Write the index.
+	 * @param indexPath file to create.
+	 * @return number of captures written.
+	 * @throws SQLiteException if the file exists, or cannot be written.
+	 * @throws DataFormatException if a migrator rejects a generated row.
+	 */
+	public long generate(String indexPath) throws SQLiteException, DataFormatException {
+		File indexFile = new File(indexPath);
+		if (indexFile.exists())
+			throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN, "Will not overwrite " + indexFile);
+		long startNanos = System.nanoTime();
+		long numCaptures = 0;
+		SQLiteConnection db = new SQLiteConnection(indexFile);
+		try {
+			db.open(true);
+			// A half-written file is of no use anyway:
+			db.exec("PRAGMA journal_mode=OFF");
+			db.exec("PRAGMA synchronous=OFF");
+			db.exec(CREATE_CRAWLS);
+			db.exec(CREATE_URLS);
+			writeCrawls(db);
+
+			SQLiteStatement insertURL = db.prepare(INSERT_URL, false);
+			try {
+				long[] times = new long[capturesPerURL];
+				StringBuilder dates = new StringBuilder();
+				StringBuilder ids = new StringBuilder();
+				db.exec("BEGIN");
+				for (long i = 0; i < numURLs; i++) {
+					Random random = new Random(~seed * 0xc2b2ae3d27d4eb4fL + i);
+					for (int c = 0; c < capturesPerURL; c++) {
+						int crawl = random.nextInt(numCrawls);
+						times[c] = crawlStartOf(crawl) + (long) (random.nextDouble() * CRAWL_DAYS * SECS_PER_DAY);
+					}
+					// Stored oldest first, the order in which crawls are added:
+					Arrays.sort(times);
+					dates.setLength(0);
+					ids.setLength(0);
+					for (int c = 0; c < capturesPerURL; c++) {
+						if (c > 0) {
+							dates.append(';');
+							ids.append(';');
+						}
+						WBDateTime.appendDateTime(times[c], dates);
+						// Crawls do not overlap; the time tells the crawl:
+						ids.append((times[c] - FIRST_CRAWL_START) / (CRAWL_SPACING_DAYS * SECS_PER_DAY));
+					}
+					insertURL.reset(true);
+					insertURL.bind(INSERT_URL_URL_BIND_POS, urlOf(i));
+					insertURL.bind(INSERT_URL_DATES_BIND_POS, dates.toString());
+					insertURL.bind(INSERT_URL_CRAWL_IDS_BIND_POS, ids.toString());
+					insertURL.stepThrough();
+					numCaptures += capturesPerURL;
+					if ((i + 1) % BATCH_SIZE == 0) {
+						db.exec("COMMIT");
+						db.exec("BEGIN");
+					}
+					if (verbose > 0 && (i + 1) % PROGRESS_INTERVAL == 0)
+						System.out.println("Generated " + (i + 1) + " URLs...");
+				}
+				db.exec("COMMIT");
+			} finally {
+				insertURL.dispose();
+			}
+			db.exec("PRAGMA journal_mode=DELETE");
+		} finally {
+			db.dispose();
+		}
+
+		if (LAYOUT_PACKED.equals(layout)) {
+			PackedCapturesMigrator migrator = new PackedCapturesMigrator(indexPath);
+			migrator.index.verbose = 0;
+			try {
+				migrator.migrate();
+			} finally {
+				migrator.close();
+			}
+		}
+		if (withSURTs) {
+			SURTMigrator migrator = new SURTMigrator(indexPath);
+			migrator.index.verbose = 0;
+			try {
+				migrator.migrate();
+			} finally {
+				migrator.close();
+			}
+		}
+		if (LAYOUT_NORMALIZED.equals(layout)) {
+			CapturesMigrator migrator = new CapturesMigrator(indexPath);
+			migrator.index.verbose = 0;
+			try {
+				migrator.migrate();
+			} finally {
+				migrator.close();
+			}
+		}
+		if (verbose > 0)
+			System.out.println(String.format("Generated %s: %d URLs, %d captures, %d crawls, %s layout%s in %.1f s",
+					indexPath, numURLs, numCaptures, numCrawls, layout, withSURTs ? " with SURT keys" : "",
+					(System.nanoTime() - startNanos) / 1e9));
+		return numCaptures;
+	}
+
+	private void writeCrawls(SQLiteConnection db) throws SQLiteException {
+		SQLiteStatement insertCrawl = db.prepare(INSERT_CRAWL, false);
+		try {
+			for (int crawl = 0; crawl < numCrawls; crawl++) {
+				insertCrawl.reset(true);
+				insertCrawl.bind(INSERT_CRAWL_NAME_BIND_POS, crawlNameOf(crawl));
+				insertCrawl.bind(INSERT_CRAWL_START_BIND_POS, WBDateTime.formatDateTime(crawlStartOf(crawl)));
+				insertCrawl.bind(INSERT_CRAWL_END_BIND_POS, WBDateTime.formatDateTime(crawlEndOf(crawl)));
+				insertCrawl.bind(INSERT_CRAWL_SHORT_NAME_BIND_POS, crawl);
+				insertCrawl.stepThrough();
+			}
+		} finally {
+			insertCrawl.dispose();
+		}
+	}
+
+	public long getNumURLs() {
+		return numURLs;
+	}
+
+	public void setNumURLs(long theNumURLs) {
+		if (theNumURLs < 1)
+			throw new IllegalArgumentException("Number of URLs must be at least 1; was " + theNumURLs);
+		numURLs = theNumURLs;
+	}
+
+	public int getCapturesPerURL() {
+		return capturesPerURL;
+	}
+
+	public void setCapturesPerURL(int theCapturesPerURL) {
+		if (theCapturesPerURL < 1)
+			throw new IllegalArgumentException("Number of captures per URL must be at least 1; was " + theCapturesPerURL);
+		capturesPerURL = theCapturesPerURL;
+	}
+
+	public int getNumCrawls() {
+		return numCrawls;
+	}
+
+	public void setNumCrawls(int theNumCrawls) {
+		if (theNumCrawls < 1)
+			throw new IllegalArgumentException("Number of crawls must be at least 1; was " + theNumCrawls);
+		numCrawls = theNumCrawls;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long theSeed) {
+		seed = theSeed;
+	}
+
+	public String getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @param theLayout LAYOUT_TEXT, LAYOUT_PACKED or LAYOUT_NORMALIZED.
+	 */
+	public void setLayout(String theLayout) {
+		if (!LAYOUT_TEXT.equals(theLayout) && !LAYOUT_PACKED.equals(theLayout) && !LAYOUT_NORMALIZED.equals(theLayout))
+			throw new IllegalArgumentException("Unknown index layout '" + theLayout + "'; use text, packed or normalized.");
+		layout = theLayout;
+	}
+
+	public void setWithSURTs(boolean withSURTKeys) {
+		withSURTs = withSURTKeys;
+	}
+
+	public static void main(String[] args) throws SQLiteException, DataFormatException {
+		SyntheticIndexGenerator generator = new SyntheticIndexGenerator();
+		int argPos = 0;
+		while (argPos < args.length - 1 && args[argPos].startsWith("-")) {
+			String opt = args[argPos++];
+			if ("-surt".equals(opt))
+				generator.setWithSURTs(true);
+			else if ("-urls".equals(opt))
+				generator.setNumURLs(Long.parseLong(args[argPos++]));
+			else if ("-captures".equals(opt))
+				generator.setCapturesPerURL(Integer.parseInt(args[argPos++]));
+			else if ("-crawls".equals(opt))
+				generator.setNumCrawls(Integer.parseInt(args[argPos++]));
+			else if ("-seed".equals(opt))
+				generator.setSeed(Long.parseLong(args[argPos++]));
+			else if ("-layout".equals(opt))
+				generator.setLayout(args[argPos++]);
+			else
+				argPos = args.length;
+		}
+		if (argPos != args.length - 1) {
+			System.out.println("Usage: SyntheticIndexGenerator [-urls n] [-captures n] [-crawls n] [-seed n] " +
+							   "[-layout text|packed|normalized] [-surt] indexPath");
+			return;
+		}
+		generator.generate(args[argPos]);
+	}
+}
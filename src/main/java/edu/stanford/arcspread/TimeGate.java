@@ -1,9 +1,351 @@
 package edu.stanford.arcspread;
 
-public class TimeGate {
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteBusyException;
+import com.almworks.sqlite4java.SQLiteException;
+
+import edu.stanford.arcspread.WBIndex.ResourceSpec;
+
+/**
+ * RFC 7089 Memento TimeGate over the WebBase index. Served by
+ * HTTPCommandDispatcher under "/timegate/<URI-R>". Datetime negotiation:
+ * the client names the original resource (URI-R) and the datetime it
+ * wants in the Accept-Datetime header; the TimeGate redirects to the
+ * WebBase capture (memento, URI-M) closest to that datetime:
+ *
+ *   GET /timegate/http://agr.wa.gov/robots.txt HTTP/1.1
+ *   Accept-Datetime: Thu, 01 Dec 2011 00:00:00 GMT
+ *
+ *   HTTP/1.1 302 Found
+ *   Location: <mementoBaseURI>state-05-2012-text/20111113145156/http://agr.wa.gov/robots.txt
+ *   Memento-Datetime: Sun, 13 Nov 2011 14:51:56 GMT
+ *   Vary: accept-datetime
+ *   Link: <http://agr.wa.gov/robots.txt>; rel="original", ...
+ *
+ * Without Accept-Datetime the most recent capture is chosen. Lookups go
+ * through the calling worker's own connection from the WBIndexPool,
+ * so negotiations on different workers run in parallel. Headers are
+ * parsed without regular expressions, and each response is built in a
+ * reused per-thread buffer and sent with a single write.
+ *
+ * Answers are kept in a TimeGateCache, which serves all datetimes that
+ * lead to the same capture from one entry. Redirects carry an ETag
+ * that identifies the chosen memento; a request whose If-None-Match
+ * lists it is answered with 304 Not Modified.
+ *
+ * @author Paepcke
+ *
+ */
+public class TimeGate implements HTTPResource {
+
+	public static final String RESOURCE_NAME = "timegate";
+	/* Where WebBase serves captures: <base><crawlName>/<yyyyMMddHHmmss>/<URI-R> */
+	public static String DEFAULT_MEMENTO_BASE_URI = "http://webbase.stanford.edu/memento/";
+
+	static final String ACCEPT_DATETIME_HEADER = "Accept-Datetime";
+	static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	static final String LINK_FORMAT_TYPE = "application/link-format";
+
+	WBIndexPool indexPool = null;
+	// Null if answers are not cached:
+	TimeGateCache cache = null;
+	String mementoBaseURI = DEFAULT_MEMENTO_BASE_URI;
+	// URI prefix of this TimeGate, and of the corresponding TimeMaps, as
+	// seen by clients; e.g. "http://localhost:8080/timegate/":
+	String timeGateBaseURI = "/" + RESOURCE_NAME + "/";
+	String timeMapBaseURI = "/" + TimeMap.RESOURCE_NAME + "/";
+
+	/**
+	 * @throws SQLiteException if the pool's index is a directory that holds no shards.
+	 */
+	public TimeGate(WBIndexPool theIndexPool) throws SQLiteException {
+		indexPool = theIndexPool;
+		cache = new TimeGateCache(indexPool.getIndexFiles());
+		final TimeGateCache answers = cache;
+		Metrics.addCounter("timegate_cache_lookups_total", "TimeGate answer cache lookups, by outcome.",
+				Metrics.label("result", "hit"), new LongSupplier() {
+					public long getAsLong() {
+						return answers.getNumHits();
+					}
+				});
+		Metrics.addCounter("timegate_cache_lookups_total", "TimeGate answer cache lookups, by outcome.",
+				Metrics.label("result", "miss"), new LongSupplier() {
+					public long getAsLong() {
+						return answers.getNumMisses();
+					}
+				});
+	}
+
+	/**
+	 * Size the answer cache.
+	 * @param maxEntries max # of cached answers; 0 turns caching off.
+	 * @param ttl msecs an answer stays cached.
+	 */
+	public void setCacheLimits(int maxEntries, long ttl) {
+		cache.setMaxEntries(maxEntries);
+		cache.setTTL(ttl);
+		if (maxEntries <= 0)
+			cache.clear();
+	}
+
+	public void setMementoBaseURI(String uri) {
+		mementoBaseURI = uri;
+	}
+
+	/**
+	 * @param baseURI absolute URI under which clients reach the dispatcher,
+	 *        e.g. "http://localhost:8080/". Used in Link headers.
+	 */
+	public void setServerBaseURI(String baseURI) {
+		if (!baseURI.endsWith("/"))
+			baseURI += "/";
+		timeGateBaseURI = baseURI + RESOURCE_NAME + "/";
+		timeMapBaseURI = baseURI + TimeMap.RESOURCE_NAME + "/";
+	}
+
+	public void handle(Command request, OutputStream out) throws IOException {
+		boolean includeBody = !"HEAD".equals(request.getMethod());
+		ResponseBuilder response = ResponseBuilder.forThread();
+		String uriR = request.getPathInfo();
+		if (uriR == null || uriR.length() == 0) {
+			sendError(request, response, out, HttpConstants.HTTP_BAD_REQUEST, "Bad Request",
+					"Usage: /" + RESOURCE_NAME + "/<original URI>", includeBody);
+			return;
+		}
+
+		long acceptTime;
+		String acceptDatetime = request.getHeader(ACCEPT_DATETIME_HEADER);
+		if (acceptDatetime == null) {
+			// RFC 7089: without Accept-Datetime, redirect to the most recent memento:
+			acceptTime = System.currentTimeMillis() / 1000;
+		} else {
+			try {
+				acceptTime = WBDateTime.parseHttpDate(acceptDatetime);
+			} catch (NumberFormatException e) {
+				sendError(request, response, out, HttpConstants.HTTP_BAD_REQUEST, "Bad Request",
+						"Accept-Datetime is not an RFC 1123 date: " + acceptDatetime, includeBody);
+				return;
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		TimeGateCache.Entry answer = cache.get(uriR, acceptTime, now);
+		if (answer == null) {
+			long generation = cache.getGeneration();
+			ResourceSpec memento;
+			try {
+				memento = indexPool.getIndex().getClosestURLCrawl(uriR, acceptTime);
+			} catch (SQLiteBusyException e) {
+				log("TimeGate: index busy: " + e.getMessage());
+				response.statusLine(HttpConstants.HTTP_UNAVAILABLE, "Service Unavailable").header("Retry-After", 1);
+				response.connection(request).body("text/plain", "WebBase index busy.", includeBody);
+				response.writeTo(out);
+				return;
+			} catch (SQLiteException e) {
+				log("TimeGate: index error for " + uriR + ": " + e.getMessage());
+				sendError(request, response, out, HttpConstants.HTTP_SERVER_ERROR, "Internal Server Error",
+						"WebBase index error.", includeBody);
+				return;
+			} catch (DataFormatException e) {
+				log("TimeGate: malformed index entry for " + uriR + ": " + e.getMessage());
+				sendError(request, response, out, HttpConstants.HTTP_SERVER_ERROR, "Internal Server Error",
+						"Malformed WebBase index entry.", includeBody);
+				return;
+			}
+			answer = newAnswer(uriR, memento, now + cache.getTTL());
+			cache.put(uriR, answer, generation);
+		}
+
+		if (!answer.found) {
+			response.statusLine(HttpConstants.HTTP_NOT_FOUND, "Not Found").dateHeader().headerLines(answer.headerLines);
+			response.connection(request).body("text/plain", answer.body, includeBody);
+			response.writeTo(out);
+			return;
+		}
+
+		if (etagMatches(request.getHeader(IF_NONE_MATCH_HEADER), answer.etag)) {
+			response.statusLine(HttpConstants.HTTP_NOT_MODIFIED, "Not Modified").dateHeader();
+			response.header("ETag", answer.etag).header("Vary", "accept-datetime");
+			response.connection(request).endHeaders();
+			response.writeTo(out);
+			return;
+		}
+		response.statusLine(HttpConstants.HTTP_MOVED_TEMP, "Found").dateHeader();
+		response.headerLines(answer.headerLines).header("Content-Length", 0).connection(request).endHeaders();
+		response.writeTo(out);
+	}
+
+	/**
+	 * Build the parts of the answer for the given lookup result that
+	 * stay the same from one request to the next.
+	 * @param uriR original URI.
+	 * @param memento closest capture; null or a miss if uriR is not archived.
+	 * @param expires System.currentTimeMillis() after which the answer
+	 *        may no longer be served from the cache.
+	 */
+	TimeGateCache.Entry newAnswer(String uriR, ResourceSpec memento, long expires) {
+		StringBuilder headers = new StringBuilder(512);
+		if (memento == null || !memento.isFound()) {
+			headers.append("Vary: accept-datetime").append(ResponseBuilder.CRLF).append("Link: ");
+			appendOriginalLink(headers, uriR).append(ResponseBuilder.CRLF);
+			return new TimeGateCache.Entry(Long.MIN_VALUE, Long.MAX_VALUE, false, headers.toString(), null,
+					"Not archived in WebBase: " + uriR, expires);
+		}
+		headers.append("Location: ");
+		appendMementoURI(headers, memento).append(ResponseBuilder.CRLF);
+		headers.append("Memento-Datetime: ");
+		WBDateTime.appendHttpDate(memento.getCrawlTime(), headers).append(ResponseBuilder.CRLF);
+		headers.append("Vary: accept-datetime").append(ResponseBuilder.CRLF);
+		headers.append("Link: ");
+		appendOriginalLink(headers, uriR);
+		headers.append(", <").append(timeMapBaseURI).append(uriR).append(">; rel=\"timemap\"; type=\"")
+			   .append(LINK_FORMAT_TYPE).append('"');
+		headers.append(", <");
+		appendMementoURI(headers, memento);
+		headers.append(">; rel=\"memento\"; datetime=\"");
+		WBDateTime.appendHttpDate(memento.getCrawlTime(), headers);
+		headers.append('"').append(ResponseBuilder.CRLF);
+		String etag = etag(headers);
+		headers.append("ETag: ").append(etag).append(ResponseBuilder.CRLF);
+		return new TimeGateCache.Entry(memento.getIntervalStart(), memento.getIntervalEnd(), true,
+				headers.toString(), etag, null, expires);
+	}
+
+	/**
+	 * @return a strong entity tag for the given response headers: their
+	 * 64-bit FNV-1a hash, in hex, in quotes.
+	 */
+	static String etag(CharSequence headers) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < headers.length(); i++) {
+			hash ^= headers.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return "\"" + Long.toHexString(hash) + "\"";
+	}
+
+	/**
+	 * @param ifNoneMatch value of an If-None-Match header; may be null.
+	 * @param etag entity tag of the response, quotes included; may be null.
+	 * @return true if ifNoneMatch is "*" or lists etag. Weak tags match
+	 * their strong counterparts, as If-None-Match compares weakly.
+	 */
+	static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null)
+			return false;
+		int len = ifNoneMatch.length();
+		int pos = 0;
+		while (pos < len) {
+			while (pos < len && (ifNoneMatch.charAt(pos) == ' ' || ifNoneMatch.charAt(pos) == ','))
+				pos++;
+			if (ifNoneMatch.startsWith("W/", pos))
+				pos += 2;
+			int end = ifNoneMatch.indexOf(',', pos);
+			if (end < 0)
+				end = len;
+			int tagEnd = end;
+			while (tagEnd > pos && ifNoneMatch.charAt(tagEnd - 1) == ' ')
+				tagEnd--;
+			if (tagEnd - pos == 1 && ifNoneMatch.charAt(pos) == '*')
+				return true;
+			if (tagEnd - pos == etag.length() && ifNoneMatch.startsWith(etag, pos))
+				return true;
+			pos = end;
+		}
+		return false;
+	}
+
+	/**
+	 * Append the URI under which WebBase serves the given capture.
+	 */
+	StringBuilder appendMementoURI(StringBuilder buf, ResourceSpec memento) {
+		return appendMementoURI(buf, memento.getCrawlName(), memento.getCrawlTime(), memento.getURI());
+	}
+
+	StringBuilder appendMementoURI(StringBuilder buf, String crawlName, long crawlTime, String uriR) {
+		buf.append(mementoBaseURI).append(crawlName).append('/');
+		WBDateTime.appendTimestamp14(crawlTime, buf);
+		return buf.append('/').append(uriR);
+	}
+
+	/**
+	 * Append the link to the original resource, and to this TimeGate.
+	 */
+	StringBuilder appendOriginalLink(StringBuilder buf, String uriR) {
+		buf.append('<').append(uriR).append(">; rel=\"original\", <")
+		   .append(timeGateBaseURI).append(uriR).append(">; rel=\"timegate\"");
+		return buf;
+	}
+
+	private void sendError(Command request, ResponseBuilder response, OutputStream out, int code, String reason,
+						   String msg, boolean includeBody) throws IOException {
+		response.statusLine(code, reason).dateHeader().connection(request);
+		response.body("text/plain", msg, includeBody);
+		response.writeTo(out);
+	}
 
-	
 	public static void log(String msg) {
 		System.out.println(msg);
 	}
+
+	/**
+	 * Run a TimeGate, and the corresponding TimeMaps, on HTTPCommandDispatcher.PORT.
+	 * Usage: TimeGate [indexPath [mementoBaseURI [blocking|nio|virtual [urlFilterRate [sqliteProfile [queryFile]]]]]]
+	 * indexPath may name a directory of shards written by Resharder.
+	 * The third argument selects the connection engine; see ConnectionEngine.
+	 * The fourth puts a URLFilter with the given false positive rate, such
+	 * as 0.01, in front of the index; 0 for none. The fifth sets the SQLite
+	 * settings of the index connections, e.g. "immutable=on,warmUp=on";
+	 * see SQLiteProfile. The effective settings are logged at startup.
+	 * The sixth names a whitelist of queries to serve under "/query";
+	 * see QueryHandler.
+	 */
+	public static void main(String[] args) throws SQLiteException, IOException {
+		if (args.length > 4)
+			WBIndex.readProfile = SQLiteProfile.parse(args[4]);
+		WBIndexPool pool = new WBIndexPool((args.length > 0) ? args[0] : null);
+		log(pool.checkSQLiteSettings());
+		if (args.length > 3) {
+			pool.enableURLFilter(Double.parseDouble(args[3]));
+			if (pool.getURLFilter() != null)
+				log(pool.getURLFilter().toString());
+			else if (pool.isSharded())
+				log("URL filters enabled on " + pool.getIndexFiles().length + " shards.");
+		}
+		TimeGate timeGate = new TimeGate(pool);
+		if (args.length > 1)
+			timeGate.setMementoBaseURI(args[1]);
+		HTTPCommandDispatcher dispatcher = serve(timeGate, (args.length > 2) ? args[2] : null);
+		if (args.length > 5) {
+			QueryHandler queries = new QueryHandler(pool, new File(args[5]));
+			dispatcher.addHandler(QueryHandler.COMMAND_NAME, queries);
+			log("Serving queries " + Arrays.toString(queries.getQueryNames()) + " under /" + QueryHandler.COMMAND_NAME);
+		}
+		log("TimeGate listening on port " + HTTPCommandDispatcher.PORT + "; index: " +
+			((pool.getIndexPath() == null) ? "test index" : pool.getIndexPath()));
+	}
+
+	/**
+	 * Start the dispatcher on HTTPCommandDispatcher.PORT, if it is not
+	 * running yet, and serve the given TimeGate, the corresponding
+	 * TimeMaps, and the server's metrics (see MetricsResource) on it.
+	 * @param timeGate the TimeGate; its index pool becomes the dispatcher's.
+	 * @param engineName connection engine; see HTTPCommandDispatcher.newEngine().
+	 * @return the dispatcher.
+	 */
+	public static HTTPCommandDispatcher serve(TimeGate timeGate, String engineName) {
+		HTTPCommandDispatcher dispatcher = 
+			HTTPCommandDispatcher.getInstance(HTTPCommandDispatcher.newEngine(engineName));
+		dispatcher.setIndexPool(timeGate.indexPool);
+		dispatcher.addResource(RESOURCE_NAME, timeGate);
+		dispatcher.addResource(TimeMap.RESOURCE_NAME, new TimeMap(timeGate.indexPool, timeGate));
+		dispatcher.addResource(MetricsResource.RESOURCE_NAME, new MetricsResource());
+		return dispatcher;
+	}
 }
@@ -0,0 +1,248 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of TimeGate answers. Every reference datetime between
+ * two captures of a URI leads to the same capture, so an entry is
+ * keyed by the URI plus the interval of reference times that its
+ * capture answers (see ResourceSpec.getIntervalStart()). One entry
+ * thus serves all Accept-Datetime values in that interval. A URI that
+ * is not in the index gets one entry for all reference times.
+ *
+ * Entries expire after ttl msecs. When the cache holds more than
+ * maxEntries entries, the URIs used least recently are dropped first.
+ * The whole cache is emptied when the modification time or length of
+ * an index file changes, of any shard's file for a sharded index; the
+ * files are checked at most once every INDEX_CHECK_INTERVAL msecs.
+ *
+ * All methods are synchronized; the work done under the lock is a
+ * hash lookup plus a scan of one URI's few entries.
+ *
+ * @author Paepcke
+ *
+ */
+final class TimeGateCache {
+
+	static int DEFAULT_MAX_ENTRIES = 10000;
+	/* Default msecs an entry stays valid */
+	static long DEFAULT_TTL = 300000;
+	/* Min msecs between checks of the index file for changes */
+	static long INDEX_CHECK_INTERVAL = 1000;
+
+	/**
+	 * One cached answer. Immutable.
+	 */
+	static final class Entry {
+		// Reference times, inclusive, the answer holds for:
+		final long intervalStart;
+		final long intervalEnd;
+		// True for a redirect to a memento; false if the URI is not archived:
+		final boolean found;
+		// Response header lines, each ending in CRLF, that do not change
+		// from one request to the next:
+		final String headerLines;
+		// Entity tag, quotes included; null if the answer has none:
+		final String etag;
+		// Body text of a not-found answer; null for none:
+		final String body;
+		final long expires;
+
+		Entry(long theIntervalStart, long theIntervalEnd, boolean isFound,
+			  String theHeaderLines, String theEtag, String theBody, long theExpires) {
+			intervalStart = theIntervalStart;
+			intervalEnd = theIntervalEnd;
+			found = isFound;
+			headerLines = theHeaderLines;
+			etag = theEtag;
+			body = theBody;
+			expires = theExpires;
+		}
+
+		boolean covers(long time) {
+			return time >= intervalStart && time <= intervalEnd;
+		}
+	}
+
+	private final File[] indexFiles;
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private long ttl = DEFAULT_TTL;
+
+	// Entries of each URI, by URI, least recently used first:
+	private final LinkedHashMap<String, Entry[]> entries = new LinkedHashMap<String, Entry[]>(256, 0.75f, true);
+	private int numEntries = 0;
+	// Incremented whenever the cache is emptied:
+	private long generation = 0;
+	// Modification time and length of each of the index files:
+	private final long[] indexModified;
+	private final long[] indexLength;
+	private long nextIndexCheck = 0;
+
+	private long numHits = 0;
+	private long numMisses = 0;
+
+	/**
+	 * @param theIndexFiles the files of the index whose answers are cached; watched for changes.
+	 */
+	TimeGateCache(File... theIndexFiles) {
+		indexFiles = theIndexFiles;
+		indexModified = new long[indexFiles.length];
+		indexLength = new long[indexFiles.length];
+		for (int i = 0; i < indexFiles.length; i++) {
+			indexModified[i] = indexFiles[i].lastModified();
+			indexLength[i] = indexFiles[i].length();
+		}
+	}
+
+	/**
+	 * @param uri URI-R of the request.
+	 * @param referenceTime epoch seconds the client asked for.
+	 * @param now System.currentTimeMillis().
+	 * @return the cached answer, or null if there is none, or it expired.
+	 */
+	synchronized Entry get(String uri, long referenceTime, long now) {
+		checkIndex(now);
+		Entry[] uriEntries = entries.get(uri);
+		if (uriEntries != null) {
+			for (int i = 0; i < uriEntries.length; i++) {
+				Entry entry = uriEntries[i];
+				if (!entry.covers(referenceTime))
+					continue;
+				if (entry.expires > now) {
+					numHits++;
+					return entry;
+				}
+				removeEntry(uri, uriEntries, i);
+				break;
+			}
+		}
+		numMisses++;
+		return null;
+	}
+
+	/**
+	 * @return the current generation. Pass it to put() with an answer
+	 * obtained from the index after this call, so that answers from
+	 * before an index change are not cached after it.
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Add an answer for the given URI. Entries of the URI whose
+	 * intervals overlap the new one are replaced.
+	 * @param generation value of getGeneration() from before the index lookup.
+	 */
+	synchronized void put(String uri, Entry entry, long generation) {
+		if (generation != this.generation || maxEntries <= 0)
+			return;
+		Entry[] uriEntries = entries.get(uri);
+		int numKept = 0;
+		Entry[] newEntries;
+		if (uriEntries == null) {
+			newEntries = new Entry[] { entry };
+		} else {
+			newEntries = new Entry[uriEntries.length + 1];
+			for (Entry old : uriEntries) {
+				if (old.intervalEnd < entry.intervalStart || old.intervalStart > entry.intervalEnd)
+					newEntries[numKept++] = old;
+			}
+			newEntries[numKept] = entry;
+			if (numKept + 1 < newEntries.length)
+				newEntries = Arrays.copyOf(newEntries, numKept + 1);
+			numEntries -= uriEntries.length;
+		}
+		entries.put(uri, newEntries);
+		numEntries += newEntries.length;
+		// Drop least recently used URIs, but never the one just added:
+		Iterator<Map.Entry<String, Entry[]>> eldest = entries.entrySet().iterator();
+		while (numEntries > maxEntries && entries.size() > 1) {
+			Map.Entry<String, Entry[]> victim = eldest.next();
+			numEntries -= victim.getValue().length;
+			eldest.remove();
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		numEntries = 0;
+		generation++;
+	}
+
+	private void removeEntry(String uri, Entry[] uriEntries, int i) {
+		numEntries--;
+		if (uriEntries.length == 1) {
+			entries.remove(uri);
+			return;
+		}
+		Entry[] newEntries = new Entry[uriEntries.length - 1];
+		System.arraycopy(uriEntries, 0, newEntries, 0, i);
+		System.arraycopy(uriEntries, i + 1, newEntries, i, newEntries.length - i);
+		entries.put(uri, newEntries);
+	}
+
+	/**
+	 * Empty the cache if an index file changed since the last check.
+	 */
+	private void checkIndex(long now) {
+		if (now < nextIndexCheck)
+			return;
+		nextIndexCheck = now + INDEX_CHECK_INTERVAL;
+		File changed = null;
+		for (int i = 0; i < indexFiles.length; i++) {
+			long modified = indexFiles[i].lastModified();
+			long length = indexFiles[i].length();
+			if (modified != indexModified[i] || length != indexLength[i]) {
+				indexModified[i] = modified;
+				indexLength[i] = length;
+				changed = indexFiles[i];
+			}
+		}
+		if (changed != null) {
+			if (numEntries > 0)
+				TimeGate.log("TimeGateCache: index " + changed + " changed; dropping " + numEntries + " entries.");
+			clear();
+		}
+	}
+
+	synchronized void setMaxEntries(int theMaxEntries) {
+		maxEntries = theMaxEntries;
+	}
+
+	synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @param msecs how long entries stay valid.
+	 */
+	synchronized void setTTL(long msecs) {
+		ttl = msecs;
+	}
+
+	synchronized long getTTL() {
+		return ttl;
+	}
+
+	synchronized int size() {
+		return numEntries;
+	}
+
+	synchronized long getNumHits() {
+		return numHits;
+	}
+
+	synchronized long getNumMisses() {
+		return numMisses;
+	}
+
+	public synchronized String toString() {
+		return "TimeGateCache[" + numEntries + " entries for " + entries.size() + " URIs; " +
+			   numHits + " hits, " + numMisses + " misses]";
+	}
+}
@@ -0,0 +1,233 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteBusyException;
+import com.almworks.sqlite4java.SQLiteException;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+
+/**
+ * RFC 7089 Memento TimeMap over the WebBase index. Served by
+ * HTTPCommandDispatcher under "/timemap/<URI-R>": lists every WebBase
+ * capture (memento) of the original resource as application/link-format,
+ * oldest first:
+ *
+ *   GET /timemap/http://agr.wa.gov/robots.txt HTTP/1.1
+ *
+ *   HTTP/1.1 200 OK
+ *   Content-Type: application/link-format
+ *   Transfer-Encoding: chunked
+ *
+ *   <http://agr.wa.gov/robots.txt>; rel="original",
+ *   <.../timegate/http://agr.wa.gov/robots.txt>; rel="timegate",
+ *   <.../timemap/http://agr.wa.gov/robots.txt>; rel="self"; type="application/link-format",
+ *   <...state-05-2012-text/20111113145156/http://agr.wa.gov/robots.txt>; rel="first memento"; datetime="...",
+ *   ...
+ *
+ * Entries are streamed from a WBIndex CaptureCursor through a fixed-size
+ * chunk buffer as they are formatted, so the response never exists as a
+ * whole in memory, and no Content-Length is needed. HTTP/1.0 clients get
+ * the same body unchunked, ended by closing the connection.
+ *
+ * Paging: at most pageSize mementos are listed per response. Optional
+ * path segments restrict the listing to a time range (inclusive; GMT):
+ *
+ *   /timemap/from=20111101000000/until=20120101000000/<URI-R>
+ *
+ * If the range holds more mementos than fit on the page, the map ends
+ * with a rel="next" link to the page that starts at the first memento
+ * left out. (A URI-R starts with its scheme, so it cannot be mistaken
+ * for a from= or until= segment.)
+ *
+ * @author Paepcke
+ *
+ */
+public class TimeMap implements HTTPResource {
+
+	public static final String RESOURCE_NAME = "timemap";
+	/* Max mementos listed in one response */
+	public static int DEFAULT_PAGE_SIZE = 10000;
+
+	static final String FROM_SEGMENT = "from=";
+	static final String UNTIL_SEGMENT = "until=";
+
+	WBIndexPool indexPool = null;
+	// Source of memento, TimeGate and TimeMap URIs:
+	TimeGate timeGate = null;
+	int pageSize = DEFAULT_PAGE_SIZE;
+
+	public TimeMap(WBIndexPool theIndexPool, TimeGate theTimeGate) {
+		indexPool = theIndexPool;
+		timeGate = theTimeGate;
+	}
+
+	public void setPageSize(int newPageSize) {
+		if (newPageSize < 1)
+			throw new IllegalArgumentException("TimeMap page size must be positive: " + newPageSize);
+		pageSize = newPageSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void handle(Command request, OutputStream out) throws IOException {
+		boolean includeBody = !"HEAD".equals(request.getMethod());
+		ResponseBuilder response = ResponseBuilder.forThread();
+		String target = request.getPathInfo();
+		if (target == null)
+			target = "";
+
+		// Strip any from=/until= segments off the front of the URI-R:
+		long from = Long.MIN_VALUE;
+		long until = Long.MAX_VALUE;
+		int uriStart = 0;
+		try {
+			while (true) {
+				if (target.startsWith(FROM_SEGMENT, uriStart)) {
+					uriStart += FROM_SEGMENT.length();
+					from = WBDateTime.parseTimestamp14(target, uriStart);
+				} else if (target.startsWith(UNTIL_SEGMENT, uriStart)) {
+					uriStart += UNTIL_SEGMENT.length();
+					until = WBDateTime.parseTimestamp14(target, uriStart);
+				} else
+					break;
+				uriStart += WBDateTime.TIMESTAMP14_LENGTH;
+				if (uriStart >= target.length() || target.charAt(uriStart) != '/')
+					throw new NumberFormatException("Timestamp not followed by '/'");
+				uriStart++;
+			}
+		} catch (NumberFormatException e) {
+			sendError(request, response, out, HttpConstants.HTTP_BAD_REQUEST, "Bad Request",
+					"Usage: /" + RESOURCE_NAME + "/[from=yyyyMMddHHmmss/][until=yyyyMMddHHmmss/]<original URI>. " +
+					e.getMessage(), includeBody);
+			return;
+		}
+		String uriR = target.substring(uriStart);
+		if (uriR.length() == 0) {
+			sendError(request, response, out, HttpConstants.HTTP_BAD_REQUEST, "Bad Request",
+					"Usage: /" + RESOURCE_NAME + "/<original URI>", includeBody);
+			return;
+		}
+
+		CaptureIndex index;
+		CaptureCursor cursor;
+		try {
+			index = indexPool.getIndex();
+			cursor = index.getCaptures(uriR, from, until);
+		} catch (SQLiteBusyException e) {
+			TimeGate.log("TimeMap: index busy: " + e.getMessage());
+			response.statusLine(HttpConstants.HTTP_UNAVAILABLE, "Service Unavailable").header("Retry-After", 1);
+			response.connection(request).body("text/plain", "WebBase index busy.", includeBody);
+			response.writeTo(out);
+			return;
+		} catch (SQLiteException e) {
+			TimeGate.log("TimeMap: index error for " + uriR + ": " + e.getMessage());
+			sendError(request, response, out, HttpConstants.HTTP_SERVER_ERROR, "Internal Server Error",
+					"WebBase index error.", includeBody);
+			return;
+		} catch (DataFormatException e) {
+			TimeGate.log("TimeMap: malformed index entry for " + uriR + ": " + e.getMessage());
+			sendError(request, response, out, HttpConstants.HTTP_SERVER_ERROR, "Internal Server Error",
+					"Malformed WebBase index entry.", includeBody);
+			return;
+		}
+		if (cursor == null || cursor.getNumTotal() == 0) {
+			sendError(request, response, out, HttpConstants.HTTP_NOT_FOUND, "Not Found",
+					"Not archived in WebBase: " + uriR, includeBody);
+			return;
+		}
+
+		boolean chunked = request.isHttp11();
+		if (!chunked) {
+			// Only closing the connection can end an unchunked body:
+			request.setKeepAlive(false);
+		}
+		response.statusLine(HttpConstants.HTTP_OK, "OK").dateHeader();
+		response.header("Content-Type", TimeGate.LINK_FORMAT_TYPE);
+		if (chunked)
+			response.header("Transfer-Encoding", "chunked");
+		response.connection(request).endHeaders();
+		response.writeTo(out);
+		if (!includeBody) {
+			cursor.close();
+			return;
+		}
+
+		ChunkedOutputStream body = new ChunkedOutputStream(out, chunked);
+		// Reused for every entry:
+		StringBuilder entry = response.reset().text;
+		try {
+			entry.append('<').append(uriR).append(">; rel=\"original\",\n<")
+				 .append(timeGate.timeGateBaseURI).append(uriR).append(">; rel=\"timegate\",\n<");
+			appendTimeMapURI(entry, from, until, uriR)
+				 .append(">; rel=\"self\"; type=\"").append(TimeGate.LINK_FORMAT_TYPE).append('"');
+			body.append(entry);
+
+			int numListed = 0;
+			while (cursor.next()) {
+				if (numListed == pageSize) {
+					// The page is full; point to the rest of the range:
+					entry.setLength(0);
+					entry.append(",\n<");
+					appendTimeMapURI(entry, cursor.getTime(), until, uriR)
+						 .append(">; rel=\"next\"; type=\"").append(TimeGate.LINK_FORMAT_TYPE).append('"');
+					body.append(entry);
+					break;
+				}
+				long time = cursor.getTime();
+				CrawlSpec crawl = index.getCrawlSpec(cursor.getCrawlShortName());
+				entry.setLength(0);
+				entry.append(",\n<");
+				timeGate.appendMementoURI(entry, (crawl == null) ? null : crawl.fullName, time, uriR);
+				entry.append(">; rel=\"");
+				if (cursor.isFirst())
+					entry.append("first ");
+				if (cursor.isLast())
+					entry.append("last ");
+				entry.append("memento\"; datetime=\"");
+				WBDateTime.appendHttpDate(time, entry).append('"');
+				body.append(entry);
+				numListed++;
+			}
+			body.append("\n");
+		} catch (SQLiteException e) {
+			// Headers are out; leave the body unterminated, and close
+			// the connection, so the client sees the map is incomplete:
+			request.setKeepAlive(false);
+			TimeGate.log("TimeMap: index error while listing " + uriR + ": " + e.getMessage());
+			return;
+		} catch (DataFormatException e) {
+			request.setKeepAlive(false);
+			TimeGate.log("TimeMap: malformed Crawls table while listing " + uriR + ": " + e.getMessage());
+			return;
+		} finally {
+			cursor.close();
+		}
+		body.close();
+	}
+
+	/**
+	 * Append the URI of the TimeMap page for the given range.
+	 * @param from start of range; Long.MIN_VALUE for none.
+	 * @param until end of range; Long.MAX_VALUE for none.
+	 */
+	StringBuilder appendTimeMapURI(StringBuilder buf, long from, long until, String uriR) {
+		buf.append(timeGate.timeMapBaseURI);
+		if (from != Long.MIN_VALUE)
+			WBDateTime.appendTimestamp14(from, buf.append(FROM_SEGMENT)).append('/');
+		if (until != Long.MAX_VALUE)
+			WBDateTime.appendTimestamp14(until, buf.append(UNTIL_SEGMENT)).append('/');
+		return buf.append(uriR);
+	}
+
+	private void sendError(Command request, ResponseBuilder response, OutputStream out, int code, String reason,
+						   String msg, boolean includeBody) throws IOException {
+		response.statusLine(code, reason).dateHeader().connection(request);
+		response.body("text/plain", msg, includeBody);
+		response.writeTo(out);
+	}
+}
@@ -0,0 +1,467 @@
+package edu.stanford.arcspread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Bloom filter over all URLs of a WebBase index. Much TimeGate traffic
+ * is for URIs that were never crawled; WBIndex asks the filter first,
+ * and answers such URIs as not found without touching SQLite. A URI
+ * the filter rejects is certainly not in the index. A URI it passes
+ * is in the index, or, with probability about the configured false
+ * positive rate, is not, and costs the usual probe.
+ *
+ * The filter is loaded from a sidecar file next to the index,
+ * <indexPath>.bloom, if that file was built from the index as it is
+ * now. Otherwise it is built by scanning the URLs table (URLDictionary
+ * on a normalized index), and the sidecar is (re)written. Sizing follows the standard formulas: for n
+ * URLs and false positive rate p, m = -n ln p / (ln 2)^2 bits and
+ * k = (m / n) ln 2 hash functions, derived by double hashing from one
+ * 64-bit hash of the URL's chars.
+ *
+ * One instance is shared by all threads. The bits are an immutable
+ * snapshot. Like CrawlCatalog, the filter checks the index file, and
+ * its write-ahead log, for changes at most once every
+ * REFRESH_CHECK_INTERVAL msecs. A URL added to the index must never be
+ * rejected, so on a change the snapshot is dropped at once, every URI
+ * passes, and a background thread builds a new snapshot.
+ *
+ * @author Paepcke
+ *
+ */
+public final class URLFilter {
+
+	/* Min msecs between checks of the index file for changes */
+	static long REFRESH_CHECK_INTERVAL = 1000;
+	public static double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	static final String SIDECAR_SUFFIX = ".bloom";
+
+	static final int MAGIC = 0x57424246;  // "WBBF"
+	static final int FORMAT_VERSION = 1;
+
+	private static final String URL_COUNT_QUERY = "SELECT count(*) FROM URLs";
+	private static final String ALL_URLS_QUERY = "SELECT url FROM URLs";
+	private static final String NORMALIZED_URL_COUNT_QUERY = "SELECT count(*) FROM URLDictionary";
+	private static final String NORMALIZED_ALL_URLS_QUERY = "SELECT url FROM URLDictionary";
+	private static final int THE_ONLY_COL = 0;
+
+	/**
+	 * The bits, plus the state of the index file they were built from.
+	 * Immutable once published.
+	 */
+	private static final class Snapshot {
+		final long[] words;
+		final long numBits;
+		final int numHashes;
+		final long numURLs;
+		final double falsePositiveRate;
+		final long indexModTime;
+		final long indexLength;
+		final long walModTime;
+		final long walLength;
+
+		Snapshot(long[] theWords, long theNumBits, int theNumHashes, long theNumURLs, double theFalsePositiveRate,
+				 long theIndexModTime, long theIndexLength, long theWalModTime, long theWalLength) {
+			words = theWords;
+			numBits = theNumBits;
+			numHashes = theNumHashes;
+			numURLs = theNumURLs;
+			falsePositiveRate = theFalsePositiveRate;
+			indexModTime = theIndexModTime;
+			indexLength = theIndexLength;
+			walModTime = theWalModTime;
+			walLength = theWalLength;
+		}
+
+		boolean mightContain(long hash) {
+			long h1 = mix(hash);
+			long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+			for (int i = 0; i < numHashes; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+				if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private final String indexPath;
+	private final File indexFile;
+	private final File walFile;
+	private final File sidecarFile;
+	private final double falsePositiveRate;
+
+	/* Null while the filter is being (re)built; then every URI passes */
+	private volatile Snapshot snapshot = null;
+	private volatile long nextCheckNanos = 0;
+	/* Guarded by 'this' */
+	private boolean rebuilding = false;
+
+	private final LongAdder numRejected = new LongAdder();
+	private final LongAdder numPassed = new LongAdder();
+	private final LongAdder numUnfiltered = new LongAdder();
+	private final LongAdder numFalsePositives = new LongAdder();
+	private volatile long numBuilds = 0;
+
+	/**
+	 * Load the filter of the given index from its sidecar, or build it.
+	 * Building reads every URL of the index, on the calling thread.
+	 * @param theIndexPath SQLite index file.
+	 * @param theFalsePositiveRate fraction of absent URIs the filter may pass; in (0, 1).
+	 * @throws SQLiteException if the filter had to be built and the URLs table could not be read.
+	 */
+	public URLFilter(String theIndexPath, double theFalsePositiveRate) throws SQLiteException {
+		if (!(theFalsePositiveRate > 0 && theFalsePositiveRate < 1))
+			throw new IllegalArgumentException("False positive rate must lie between 0 and 1; was " + theFalsePositiveRate);
+		indexPath = theIndexPath;
+		indexFile = new File(theIndexPath);
+		walFile = new File(theIndexPath + "-wal");
+		sidecarFile = new File(theIndexPath + SIDECAR_SUFFIX);
+		falsePositiveRate = theFalsePositiveRate;
+		Snapshot loaded = readSidecar();
+		if (loaded == null) {
+			WBIndex index = new WBIndex(indexPath, true);
+			try {
+				loaded = build(index);
+			} finally {
+				index.close();
+			}
+			writeSidecar(loaded);
+		}
+		snapshot = loaded;
+		nextCheckNanos = System.nanoTime() + REFRESH_CHECK_INTERVAL * 1000000L;
+		registerMetrics();
+	}
+
+	/**
+	 * Expose the filter's counters through Metrics, labeled with the index path.
+	 */
+	private void registerMetrics() {
+		String index = Metrics.label("index", indexPath);
+		String help = "URL filter lookups, by outcome.";
+		Metrics.addCounter("url_filter_lookups_total", help, index + "," + Metrics.label("result", "rejected"), numRejected);
+		Metrics.addCounter("url_filter_lookups_total", help, index + "," + Metrics.label("result", "passed"), numPassed);
+		Metrics.addCounter("url_filter_lookups_total", help, index + "," + Metrics.label("result", "unfiltered"), numUnfiltered);
+		Metrics.addCounter("url_filter_false_positives_total", "Passed lookups of URIs not in the index.", index,
+						   numFalsePositives);
+	}
+
+	/**
+	 * @return false if the index certainly does not hold the URI; true
+	 * if it may.
+	 */
+	public boolean mightContain(String uri) {
+		if (System.nanoTime() - nextCheckNanos >= 0)
+			checkIndex();
+		Snapshot s = snapshot;
+		if (s == null) {
+			numUnfiltered.increment();
+			return true;
+		}
+		if (s.mightContain(hash(uri))) {
+			numPassed.increment();
+			return true;
+		}
+		numRejected.increment();
+		return false;
+	}
+
+	/**
+	 * Called by WBIndex when a URI the filter passed turned out not to
+	 * be in the index.
+	 */
+	void countFalsePositive() {
+		if (snapshot != null)
+			numFalsePositives.increment();
+	}
+
+	/**
+	 * Drop the snapshot and start a rebuild if the index file changed
+	 * since the snapshot was built.
+	 */
+	private synchronized void checkIndex() {
+		long now = System.nanoTime();
+		if (now - nextCheckNanos < 0)
+			return;
+		nextCheckNanos = now + REFRESH_CHECK_INTERVAL * 1000000L;
+		Snapshot s = snapshot;
+		if (s != null && isCurrent(s))
+			return;
+		snapshot = null;
+		if (rebuilding)
+			return;
+		rebuilding = true;
+		TimeGate.log("URLFilter: index " + indexPath + " changed; rebuilding URL filter.");
+		Thread builder = new Thread(new Runnable() {
+			public void run() {
+				rebuild();
+			}
+		}, "URL filter builder");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	private void rebuild() {
+		Snapshot built = null;
+		try {
+			WBIndex index = new WBIndex(indexPath, true);
+			try {
+				built = build(index);
+			} finally {
+				index.close();
+			}
+			writeSidecar(built);
+		} catch (SQLiteException e) {
+			TimeGate.log("URLFilter: cannot rebuild URL filter of " + indexPath + "; URIs pass unfiltered: " + e.getMessage());
+		} finally {
+			synchronized (this) {
+				rebuilding = false;
+				// A change made during the build, or a failed build,
+				// leads to another build at the next check:
+				snapshot = built;
+			}
+		}
+	}
+
+	private boolean isCurrent(Snapshot s) {
+		return indexFile.lastModified() == s.indexModTime &&
+			   indexFile.length() == s.indexLength &&
+			   walFile.lastModified() == s.walModTime &&
+			   walFile.length() == s.walLength;
+	}
+
+	/**
+	 * Read all URLs of the index into a new snapshot.
+	 */
+	private Snapshot build(WBIndex index) throws SQLiteException {
+		// Record file state before reading, so that a change made
+		// during the read is noticed afterwards:
+		long indexModTime = indexFile.lastModified();
+		long indexLength = indexFile.length();
+		long walModTime = walFile.lastModified();
+		long walLength = walFile.length();
+
+		long numURLs = 0;
+		SQLiteStatement query = null;
+		try {
+			query = index.statementCache.checkOut(index.hasNormalizedCaptures() ? NORMALIZED_URL_COUNT_QUERY : URL_COUNT_QUERY);
+			if (StatementCache.step(query))
+				numURLs = query.columnLong(THE_ONLY_COL);
+		} finally {
+			index.statementCache.checkIn(query);
+		}
+		// Allow for URLs added between the count and the scan:
+		long expected = Math.max(numURLs + numURLs / 100, 1);
+		long numBits = Math.max((long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))), 64);
+		if ((numBits + 63) / 64 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("URL filter of " + numBits + " bits is too large for the JVM.");
+		int numHashes = (int) Math.max(1, Math.round((double) numBits / expected * Math.log(2)));
+		long[] words = new long[(int) ((numBits + 63) / 64)];
+		numURLs = 0;
+		query = null;
+		try {
+			query = index.statementCache.checkOut(index.hasNormalizedCaptures() ? NORMALIZED_ALL_URLS_QUERY : ALL_URLS_QUERY);
+			while (StatementCache.step(query)) {
+				String url = query.columnString(THE_ONLY_COL);
+				if (url != null) {
+					add(words, numBits, numHashes, hash(url));
+					numURLs++;
+				}
+			}
+		} finally {
+			index.statementCache.checkIn(query);
+		}
+		numBuilds++;
+		return new Snapshot(words, numBits, numHashes, numURLs, falsePositiveRate,
+							indexModTime, indexLength, walModTime, walLength);
+	}
+
+	private static void add(long[] words, long numBits, int numHashes, long hash) {
+		long h1 = mix(hash);
+		long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+			words[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return the sidecar's snapshot; null if there is no sidecar, if it
+	 * is unreadable, was built for another false positive rate, or is
+	 * older than the index.
+	 */
+	private Snapshot readSidecar() {
+		if (!sidecarFile.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecarFile), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+					return null;
+				long indexModTime = in.readLong();
+				long indexLength = in.readLong();
+				long walModTime = in.readLong();
+				long walLength = in.readLong();
+				long numURLs = in.readLong();
+				double rate = in.readDouble();
+				int numHashes = in.readInt();
+				long numBits = in.readLong();
+				if (rate != falsePositiveRate || numHashes < 1 || numBits < 64 || (numBits + 63) / 64 > Integer.MAX_VALUE)
+					return null;
+				long[] words = new long[(int) ((numBits + 63) / 64)];
+				for (int i = 0; i < words.length; i++)
+					words[i] = in.readLong();
+				Snapshot result = new Snapshot(words, numBits, numHashes, numURLs, rate,
+											   indexModTime, indexLength, walModTime, walLength);
+				return isCurrent(result) ? result : null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			TimeGate.log("URLFilter: ignoring unreadable " + sidecarFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Save the snapshot for the next start. Failure is not fatal: the
+	 * index directory may well be read-only.
+	 */
+	private void writeSidecar(Snapshot s) {
+		File tmpFile = new File(sidecarFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(s.indexModTime);
+				out.writeLong(s.indexLength);
+				out.writeLong(s.walModTime);
+				out.writeLong(s.walLength);
+				out.writeLong(s.numURLs);
+				out.writeDouble(s.falsePositiveRate);
+				out.writeInt(s.numHashes);
+				out.writeLong(s.numBits);
+				for (long word : s.words)
+					out.writeLong(word);
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(sidecarFile)) {
+				sidecarFile.delete();
+				if (!tmpFile.renameTo(sidecarFile))
+					throw new IOException("cannot rename " + tmpFile);
+			}
+		} catch (IOException e) {
+			tmpFile.delete();
+			TimeGate.log("URLFilter: cannot save URL filter to " + sidecarFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars of the URI; mix() spreads it before use.
+	 */
+	static long hash(String uri) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < uri.length(); i++) {
+			h ^= uri.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/* Finalizer of MurmurHash3's 64-bit variant */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public String getIndexPath() {
+		return indexPath;
+	}
+
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * @return false while the filter is being rebuilt after an index change.
+	 */
+	public boolean isReady() {
+		return snapshot != null;
+	}
+
+	/**
+	 * @return # of URLs in the current snapshot; 0 while rebuilding.
+	 */
+	public long getNumURLs() {
+		Snapshot s = snapshot;
+		return (s == null) ? 0 : s.numURLs;
+	}
+
+	/**
+	 * @return size of the current snapshot in bytes; 0 while rebuilding.
+	 */
+	public long getSizeInBytes() {
+		Snapshot s = snapshot;
+		return (s == null) ? 0 : 8L * s.words.length;
+	}
+
+	/**
+	 * @return # of lookups answered as not found without a database probe.
+	 */
+	public long getNumRejected() {
+		return numRejected.sum();
+	}
+
+	/**
+	 * @return # of lookups the filter passed on to the database.
+	 */
+	public long getNumPassed() {
+		return numPassed.sum();
+	}
+
+	/**
+	 * @return # of passed lookups whose URI was not in the index after all.
+	 */
+	public long getNumFalsePositives() {
+		return numFalsePositives.sum();
+	}
+
+	/**
+	 * @return # of lookups that arrived while the filter was being rebuilt.
+	 */
+	public long getNumUnfiltered() {
+		return numUnfiltered.sum();
+	}
+
+	/**
+	 * @return # of times the filter was built from the URLs table, rather
+	 * than loaded from its sidecar.
+	 */
+	public long getNumBuilds() {
+		return numBuilds;
+	}
+
+	public String toString() {
+		Snapshot s = snapshot;
+		return "URLFilter[" + indexPath + ": " +
+			   ((s == null) ? "rebuilding" : (s.numURLs + " URLs, " + s.numBits + " bits, " + s.numHashes + " hashes")) +
+			   "; " + getNumRejected() + " rejected, " + getNumPassed() + " passed, " +
+			   getNumFalsePositives() + " false positives, " + getNumUnfiltered() + " unfiltered]";
+	}
+}
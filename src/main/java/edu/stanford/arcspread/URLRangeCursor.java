@@ -0,0 +1,178 @@
+package edu.stanford.arcspread;
+
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Forward-only cursor over the URLs rows whose SURT keys fall into a
+ * range, in key order. Returned by WBIndex.scanSURTRange() and its
+ * relatives. The cursor steps one SQLite statement down the surt
+ * index, so a range of any size is walked in constant memory: only
+ * the current row is ever held.
+ *
+ * Typical use:
+ *
+ *   URLRangeCursor urls = index.scanDomain("wa.gov");
+ *   try {
+ *       while (urls.next())
+ *           emit(urls.getURL(), urls.getNumCaptures());
+ *   } finally {
+ *       urls.close();
+ *   }
+ *
+ * The cursor holds one of its index's prepared statements until
+ * closed, and, like the index, must only be used on the index's thread.
+ *
+ * @author Paepcke
+ *
+ */
+public class URLRangeCursor {
+
+	static final int URL_POS = 0;
+	static final int SURT_POS = 1;
+	static final int FIRST_CAPTURES_POS = 2;
+	static final int SECOND_CAPTURES_POS = 3;
+	// On a normalized index, the row's urlID takes the place of its captures:
+	static final int URL_ID_POS = 2;
+
+	private final WBIndex index;
+	private SQLiteStatement statement;
+	private final boolean packed;
+	private final boolean normalized;
+	// Rows outside this domain key are skipped; null for no such filter:
+	private final String domainKey;
+
+	private String url = null;
+	private String surt = null;
+	private long numRows = 0;
+
+	URLRangeCursor(WBIndex theIndex, SQLiteStatement theStatement, boolean isPacked, boolean isNormalized, String theDomainKey) {
+		index = theIndex;
+		statement = theStatement;
+		packed = isPacked;
+		normalized = isNormalized;
+		domainKey = theDomainKey;
+	}
+
+	/**
+	 * Advance to the next row in the range.
+	 * @return false if there are no more rows.
+	 * @throws SQLiteException
+	 */
+	public boolean next() throws SQLiteException {
+		while (statement != null) {
+			if (!StatementCache.step(statement)) {
+				close();
+				break;
+			}
+			surt = statement.columnString(SURT_POS);
+			if (domainKey != null && !SURT.isInDomain(surt, domainKey))
+				continue;
+			url = statement.columnString(URL_POS);
+			numRows++;
+			return true;
+		}
+		url = null;
+		surt = null;
+		return false;
+	}
+
+	/**
+	 * @return URL of the current row, as stored.
+	 */
+	public String getURL() {
+		return url;
+	}
+
+	/**
+	 * @return SURT key of the current row.
+	 */
+	public String getSURT() {
+		return surt;
+	}
+
+	/**
+	 * @return number of captures of the current row's URL.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if the row's captures are malformed.
+	 */
+	public int getNumCaptures() throws SQLiteException, DataFormatException {
+		if (normalized)
+			return index.countNormalizedCaptures(statement.columnLong(URL_ID_POS));
+		if (packed)
+			return PackedCaptures.numCaptures(statement.columnBlob(FIRST_CAPTURES_POS));
+		return PackedCaptures.numCaptures(packCurrentRow()[0]);
+	}
+
+	/**
+	 * Open a cursor over the captures of the current row's URL. Saves
+	 * the URL lookup that WBIndex.getCaptures() would make.
+	 * @param from epoch seconds of the earliest capture to include; Long.MIN_VALUE for no bound.
+	 * @param until epoch seconds of the latest capture to include; Long.MAX_VALUE for no bound.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if the row's captures are malformed.
+	 */
+	public CaptureCursor getCaptures(long from, long until) throws SQLiteException, DataFormatException {
+		if (!normalized && !packed) {
+			String datesStr = statement.columnString(FIRST_CAPTURES_POS);
+			long[] times = PackedCaptures.parseTextTimes(url, datesStr);
+			int[] crawlIDs = PackedCaptures.parseTextCrawlIDs(url, datesStr,
+					statement.columnString(SECOND_CAPTURES_POS), times.length);
+			PackedCaptures.sortByTime(times, crawlIDs);
+			return new CaptureCursor(url, times, crawlIDs, from, until);
+		}
+		byte[][] blobs = getPackedCaptures(from, until);
+		return new CaptureCursor(url, blobs[0], blobs[1], from, until);
+	}
+
+	/**
+	 * @return the current row's captures in the layout of PackedCaptures:
+	 * [captureTimes, captureCrawlIDs]. May hold captures outside [from, until].
+	 * @throws DataFormatException if the row's captures are malformed.
+	 */
+	byte[][] getPackedCaptures(long from, long until) throws SQLiteException, DataFormatException {
+		byte[] timesBlob;
+		byte[] crawlIDsBlob;
+		if (normalized) {
+			byte[][] blobs = index.packNormalizedCaptures(statement.columnLong(URL_ID_POS), from, until);
+			timesBlob = blobs[0];
+			crawlIDsBlob = blobs[1];
+		} else if (packed) {
+			timesBlob = statement.columnBlob(FIRST_CAPTURES_POS);
+			crawlIDsBlob = statement.columnBlob(SECOND_CAPTURES_POS);
+		} else {
+			byte[][] blobs = packCurrentRow();
+			timesBlob = blobs[0];
+			crawlIDsBlob = blobs[1];
+		}
+		if (PackedCaptures.numCaptures(timesBlob) * PackedCaptures.CRAWL_ID_WIDTH !=
+				((crawlIDsBlob == null) ? 0 : crawlIDsBlob.length))
+			throw new DataFormatException("Packed capture times and crawl IDs differ in length. URI: " + url);
+		return new byte[][] { timesBlob, crawlIDsBlob };
+	}
+
+	private byte[][] packCurrentRow() throws SQLiteException, DataFormatException {
+		return PackedCaptures.packText(url,
+				statement.columnString(FIRST_CAPTURES_POS),
+				statement.columnString(SECOND_CAPTURES_POS));
+	}
+
+	/**
+	 * @return number of rows visited so far.
+	 */
+	public long getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * Return the cursor's statement to its index. Safe to call more than once.
+	 */
+	public void close() {
+		if (statement == null)
+			return;
+		index.statementCache.checkIn(statement);
+		statement = null;
+	}
+}
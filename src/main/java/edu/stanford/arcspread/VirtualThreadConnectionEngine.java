@@ -0,0 +1,132 @@
+package edu.stanford.arcspread;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Connection engine that runs every connection on its own virtual
+ * thread, using plain blocking socket I/O. Virtual threads are cheap
+ * enough that tens of thousands of slow clients can each have one.
+ *
+ * Virtual threads need Java 21 or later. The executor is looked up
+ * reflectively, so the engine also compiles and runs on older JVMs;
+ * there it logs a warning and falls back to a cached pool of platform
+ * threads, which behaves like the default engine's additional workers.
+ *
+ * WBIndex connections are thread-confined, so a request that needs
+ * the index leases one from the dispatcher's WBIndexPool, and the
+ * dispatcher returns it once the request is answered. The pool size
+ * thus bounds the number of lookups that run at once, not the number
+ * of open connections; idle connections hold no pool slot. The pool
+ * waits on a lock condition, so virtual threads that wait for a slot
+ * do not pin their carrier threads.
+ *
+ * @author Paepcke
+ *
+ */
+public class VirtualThreadConnectionEngine implements ConnectionEngine {
+
+	private HTTPCommandDispatcher dispatcher = null;
+	private ServerSocket serverSocket = null;
+	private ExecutorService executor = null;
+	private volatile boolean running = false;
+	private boolean usingVirtualThreads = false;
+
+	public void start(HTTPCommandDispatcher theDispatcher, int port) throws IOException {
+		dispatcher = theDispatcher;
+		executor = newVirtualThreadExecutor();
+		serverSocket = new ServerSocket(port);
+		running = true;
+		new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "virtual-thread acceptor").start();
+	}
+
+	public void shutdown() {
+		running = false;
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	/**
+	 * @return true if connections run on virtual threads; false if
+	 * the JVM lacks them and the engine fell back to platform threads.
+	 */
+	public boolean isUsingVirtualThreads() {
+		return usingVirtualThreads;
+	}
+
+	private ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService result = (ExecutorService) factory.invoke(null);
+			usingVirtualThreads = true;
+			return result;
+		} catch (Exception e) {
+			TimeGate.log("VirtualThreadConnectionEngine: this JVM (" + System.getProperty("java.version") + 
+						 ") has no virtual threads; running connections on platform threads.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			final Socket sock;
+			try {
+				sock = serverSocket.accept();
+			} catch (IOException e) {
+				if (!running)
+					break;
+				e.printStackTrace();
+				continue;
+			}
+			final long acceptedAt = System.nanoTime();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						serve(sock, acceptedAt);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+				try {
+					sock.close();
+				} catch (IOException e1) {
+					// Closing anyway
+				}
+			}
+		}
+	}
+
+	private void serve(Socket sock, long acceptedAt) {
+		Metrics.QUEUE_TIME.recordNanos(System.nanoTime() - acceptedAt);
+		HTTPRequestParser parser = new HTTPRequestParser();
+		try {
+			sock.setTcpNoDelay(true);
+			dispatcher.serveConnection(sock, parser);
+		} catch (IOException e) {
+			// Client went away
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				sock.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+}
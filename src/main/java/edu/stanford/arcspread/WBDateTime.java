@@ -0,0 +1,350 @@
+package edu.stanford.arcspread;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.GregorianCalendar;
+
+/**
+ * Allocation-free conversion between WebBase index date/time strings,
+ * such as "2012-04-23 23:45:02", and epoch seconds. Index date/times
+ * carry no zone; they are at the fixed offset INDEX_UTC_OFFSET (GMT).
+ *
+ * The parser reads the digits in place and the formatter appends to a
+ * caller-supplied StringBuilder. Neither goes through String.split,
+ * Calendar or SimpleDateFormat, so converting a timestamp creates no
+ * objects. The GregorianCalendar-based methods in WBIndex are thin
+ * adapters over this class.
+ *
+ * @author Paepcke
+ *
+ */
+public final class WBDateTime {
+
+	/* Offset of index date/times from UTC, in seconds */
+	public static final int INDEX_UTC_OFFSET = 0;
+
+	/* Length of "yyyy-MM-dd HH:mm:ss" */
+	public static final int DATE_TIME_LENGTH = 19;
+
+	/* Marks an absent time in long-valued fields */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
+	/* Length of "Sun, 06 Nov 1994 08:49:37 GMT" */
+	public static final int HTTP_DATE_LENGTH = 29;
+
+	/* Length of "yyyyMMddHHmmss" */
+	public static final int TIMESTAMP14_LENGTH = 14;
+
+	private static final long SECS_PER_DAY = 86400;
+
+	// Indexed by (days since 1970-01-01) mod 7; that day was a Thursday:
+	private static final String[] DAY_NAMES = { "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" };
+	private static final String[] MONTH_NAMES = { "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+												  "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private WBDateTime() {
+	}
+
+	/**
+	 * Parse an index date/time, such as "2012-04-23 23:45:02".
+	 * A 'T' is accepted in place of the blank.
+	 * @param dateTimeStr date/time string; leading and trailing blanks are ignored.
+	 * @return epoch seconds.
+	 * @throws NumberFormatException if the string is not a well-formed date/time.
+	 */
+	public static long parseEpochSeconds(CharSequence dateTimeStr) {
+		return parseEpochSeconds(dateTimeStr, 0, dateTimeStr.length());
+	}
+
+	/**
+	 * Parse the date/time that makes up the given part of a string,
+	 * such as one entry of a ';'-separated datesCrawled column.
+	 * @param str string holding the date/time among other text.
+	 * @param start position of the part's first character.
+	 * @param end position just past the part; blanks at either end of the part are ignored.
+	 * @return epoch seconds.
+	 * @throws NumberFormatException if the part is not exactly one well-formed date/time.
+	 */
+	public static long parseEpochSeconds(CharSequence str, int start, int end) {
+		while (start < end && str.charAt(start) == ' ')
+			start++;
+		while (end > start && str.charAt(end - 1) == ' ')
+			end--;
+		if (end - start != DATE_TIME_LENGTH)
+			throw badDateTime(str, start, end);
+		return parseEpochSeconds(str, start);
+	}
+
+	/**
+	 * Parse the DATE_TIME_LENGTH characters of a date/time that start
+	 * at the given position.
+	 * @param str string holding the date/time, possibly among other text.
+	 * @param start position of the date/time's first digit.
+	 * @return epoch seconds.
+	 * @throws NumberFormatException if the characters are not a well-formed date/time.
+	 */
+	public static long parseEpochSeconds(CharSequence str, int start) {
+		int end = start + DATE_TIME_LENGTH;
+		if (start < 0 || end > str.length() ||
+			str.charAt(start + 4) != '-' ||
+			str.charAt(start + 7) != '-' ||
+			(str.charAt(start + 10) != ' ' && str.charAt(start + 10) != 'T') ||
+			str.charAt(start + 13) != ':' ||
+			str.charAt(start + 16) != ':')
+			throw badDateTime(str, start, Math.min(end, str.length()));
+		int year   = digits(str, start, 4);
+		int month  = digits(str, start + 5, 2);
+		int day    = digits(str, start + 8, 2);
+		int hour   = digits(str, start + 11, 2);
+		int minute = digits(str, start + 14, 2);
+		int second = digits(str, start + 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 ||
+			hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+			throw badDateTime(str, start, end);
+		return toEpochSeconds(year, month, day, hour, minute, second);
+	}
+
+	/**
+	 * @return epoch seconds of the given date and time at the index's UTC offset.
+	 * Month is 1-based.
+	 */
+	public static long toEpochSeconds(int year, int month, int day, int hour, int minute, int second) {
+		return daysFromCivil(year, month, day) * SECS_PER_DAY +
+				hour * 3600 + minute * 60 + second - INDEX_UTC_OFFSET;
+	}
+
+	/**
+	 * Append epoch seconds to the given buffer as an index date/time,
+	 * e.g. "2012-04-23 23:45:02".
+	 * @param epochSeconds time to format.
+	 * @param buf buffer to append to.
+	 * @return buf, for chaining.
+	 */
+	public static StringBuilder appendDateTime(long epochSeconds, StringBuilder buf) {
+		long localSecs = epochSeconds + INDEX_UTC_OFFSET;
+		long days = Math.floorDiv(localSecs, SECS_PER_DAY);
+		long secOfDay = Math.floorMod(localSecs, SECS_PER_DAY);
+		long yearMonthDay = civilFromDays(days);
+		appendDigits(buf, yearMonthDay >> 9, 4);
+		buf.append('-');
+		appendDigits(buf, (yearMonthDay >> 5) & 0xf, 2);
+		buf.append('-');
+		appendDigits(buf, yearMonthDay & 0x1f, 2);
+		buf.append(' ');
+		appendDigits(buf, secOfDay / 3600, 2);
+		buf.append(':');
+		appendDigits(buf, (secOfDay / 60) % 60, 2);
+		buf.append(':');
+		appendDigits(buf, secOfDay % 60, 2);
+		return buf;
+	}
+
+	/**
+	 * Append epoch seconds as an RFC 1123 HTTP date, as used in the
+	 * Date, Accept-Datetime and Memento-Datetime headers, e.g.
+	 * "Sun, 06 Nov 1994 08:49:37 GMT".
+	 * @param epochSeconds time to format.
+	 * @param buf buffer to append to.
+	 * @return buf, for chaining.
+	 */
+	public static StringBuilder appendHttpDate(long epochSeconds, StringBuilder buf) {
+		long days = Math.floorDiv(epochSeconds, SECS_PER_DAY);
+		long secOfDay = Math.floorMod(epochSeconds, SECS_PER_DAY);
+		long yearMonthDay = civilFromDays(days);
+		buf.append(DAY_NAMES[(int) Math.floorMod(days, 7L)]).append(", ");
+		appendDigits(buf, yearMonthDay & 0x1f, 2);
+		buf.append(' ').append(MONTH_NAMES[(int) ((yearMonthDay >> 5) & 0xf) - 1]).append(' ');
+		appendDigits(buf, yearMonthDay >> 9, 4);
+		buf.append(' ');
+		appendDigits(buf, secOfDay / 3600, 2);
+		buf.append(':');
+		appendDigits(buf, (secOfDay / 60) % 60, 2);
+		buf.append(':');
+		appendDigits(buf, secOfDay % 60, 2);
+		buf.append(" GMT");
+		return buf;
+	}
+
+	/**
+	 * Parse an RFC 1123 HTTP date, such as "Sun, 06 Nov 1994 08:49:37 GMT".
+	 * The day name is not checked against the date.
+	 * @param httpDate date string; leading and trailing blanks are ignored.
+	 * @return epoch seconds.
+	 * @throws NumberFormatException if the string is not a well-formed RFC 1123 date.
+	 */
+	public static long parseHttpDate(CharSequence httpDate) {
+		int start = 0;
+		int end = httpDate.length();
+		while (start < end && httpDate.charAt(start) == ' ')
+			start++;
+		while (end > start && httpDate.charAt(end - 1) == ' ')
+			end--;
+		if (end - start != HTTP_DATE_LENGTH ||
+			httpDate.charAt(start + 3) != ',' ||
+			httpDate.charAt(start + 4) != ' ' ||
+			httpDate.charAt(start + 7) != ' ' ||
+			httpDate.charAt(start + 11) != ' ' ||
+			httpDate.charAt(start + 16) != ' ' ||
+			httpDate.charAt(start + 19) != ':' ||
+			httpDate.charAt(start + 22) != ':' ||
+			httpDate.charAt(start + 25) != ' ' ||
+			httpDate.charAt(start + 26) != 'G' ||
+			httpDate.charAt(start + 27) != 'M' ||
+			httpDate.charAt(start + 28) != 'T')
+			throw badDate(httpDate, start, end, "RFC 1123 HTTP date");
+		int month = 0;
+		for (int i = 0; i < MONTH_NAMES.length; i++) {
+			String name = MONTH_NAMES[i];
+			if (httpDate.charAt(start + 8) == name.charAt(0) &&
+				httpDate.charAt(start + 9) == name.charAt(1) &&
+				httpDate.charAt(start + 10) == name.charAt(2)) {
+				month = i + 1;
+				break;
+			}
+		}
+		int day    = digits(httpDate, start + 5, 2);
+		int year   = digits(httpDate, start + 12, 4);
+		int hour   = digits(httpDate, start + 17, 2);
+		int minute = digits(httpDate, start + 20, 2);
+		int second = digits(httpDate, start + 23, 2);
+		if (month == 0 || year < 0 || day < 1 || day > 31 ||
+			hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+			throw badDate(httpDate, start, end, "RFC 1123 HTTP date");
+		return daysFromCivil(year, month, day) * SECS_PER_DAY + hour * 3600 + minute * 60 + second;
+	}
+
+	/**
+	 * Append epoch seconds as a 14-digit GMT timestamp, "yyyyMMddHHmmss",
+	 * as used in archive (memento) URIs.
+	 * @param epochSeconds time to format.
+	 * @param buf buffer to append to.
+	 * @return buf, for chaining.
+	 */
+	public static StringBuilder appendTimestamp14(long epochSeconds, StringBuilder buf) {
+		long days = Math.floorDiv(epochSeconds, SECS_PER_DAY);
+		long secOfDay = Math.floorMod(epochSeconds, SECS_PER_DAY);
+		long yearMonthDay = civilFromDays(days);
+		appendDigits(buf, yearMonthDay >> 9, 4);
+		appendDigits(buf, (yearMonthDay >> 5) & 0xf, 2);
+		appendDigits(buf, yearMonthDay & 0x1f, 2);
+		appendDigits(buf, secOfDay / 3600, 2);
+		appendDigits(buf, (secOfDay / 60) % 60, 2);
+		appendDigits(buf, secOfDay % 60, 2);
+		return buf;
+	}
+
+	/**
+	 * Parse a 14-digit GMT timestamp, "yyyyMMddHHmmss".
+	 * @param str string holding the timestamp, possibly among other text.
+	 * @param start position of the timestamp's first digit.
+	 * @return epoch seconds.
+	 * @throws NumberFormatException if the 14 characters are not a well-formed timestamp.
+	 */
+	public static long parseTimestamp14(CharSequence str, int start) {
+		int end = start + TIMESTAMP14_LENGTH;
+		if (start < 0 || end > str.length())
+			throw badDate(str, Math.max(start, 0), str.length(), "14-digit timestamp (yyyyMMddHHmmss)");
+		int year   = digits(str, start, 4);
+		int month  = digits(str, start + 4, 2);
+		int day    = digits(str, start + 6, 2);
+		int hour   = digits(str, start + 8, 2);
+		int minute = digits(str, start + 10, 2);
+		int second = digits(str, start + 12, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 ||
+			hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+			throw badDate(str, start, end, "14-digit timestamp (yyyyMMddHHmmss)");
+		return daysFromCivil(year, month, day) * SECS_PER_DAY + hour * 3600 + minute * 60 + second;
+	}
+
+	/**
+	 * @return epoch seconds as an index date/time string, e.g. "2012-04-23 23:45:02".
+	 */
+	public static String formatDateTime(long epochSeconds) {
+		return appendDateTime(epochSeconds, new StringBuilder(DATE_TIME_LENGTH)).toString();
+	}
+
+	/*------------------------------
+	 * java.time and Calendar adapters
+	 *-----------------*/
+
+	public static Instant toInstant(long epochSeconds) {
+		return Instant.ofEpochSecond(epochSeconds);
+	}
+
+	public static long fromInstant(Instant instant) {
+		return instant.getEpochSecond();
+	}
+
+	public static ZonedDateTime toZonedDateTime(long epochSeconds) {
+		return ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSeconds), ZoneOffset.ofTotalSeconds(INDEX_UTC_OFFSET));
+	}
+
+	public static long fromCalendar(GregorianCalendar cal) {
+		return Math.floorDiv(cal.getTimeInMillis(), 1000L);
+	}
+
+	public static GregorianCalendar toCalendar(long epochSeconds) {
+		GregorianCalendar cal = new GregorianCalendar(WBIndex.INDEX_TIME_ZONE);
+		cal.setTimeInMillis(epochSeconds * 1000);
+		return cal;
+	}
+
+	/*------------------------------
+	 * Civil calendar arithmetic
+	 *-----------------*/
+
+	/**
+	 * Days since 1970-01-01 of the given proleptic Gregorian date.
+	 * (H. Hinnant's days_from_civil algorithm.)
+	 */
+	static long daysFromCivil(int year, int month, int day) {
+		long y = (month <= 2) ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Inverse of daysFromCivil(). To avoid allocating, the date is returned
+	 * packed into a long: year << 9 | month << 5 | day.
+	 */
+	static long civilFromDays(long days) {
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		long month = (mp < 10) ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+		return (year << 9) | (month << 5) | day;
+	}
+
+	private static int digits(CharSequence str, int pos, int numDigits) {
+		int result = 0;
+		for (int i = pos; i < pos + numDigits; i++) {
+			int digit = str.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	private static void appendDigits(StringBuilder buf, long value, int width) {
+		for (int divisor = (width == 4) ? 1000 : 10; divisor > 0; divisor /= 10)
+			buf.append((char) ('0' + (value / divisor) % 10));
+	}
+
+	private static NumberFormatException badDateTime(CharSequence str, int start, int end) {
+		return badDate(str, start, end, "WebBase index date/time (yyyy-MM-dd HH:mm:ss)");
+	}
+
+	private static NumberFormatException badDate(CharSequence str, int start, int end, String expected) {
+		return new NumberFormatException("Not a " + expected + ": '" + str.subSequence(start, end) + "'");
+	}
+}
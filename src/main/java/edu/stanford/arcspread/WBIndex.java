@@ -1,29 +1,53 @@
 package edu.stanford.arcspread;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.zip.DataFormatException;
 
 import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteConstants;
 import com.almworks.sqlite4java.SQLiteException;
 import com.almworks.sqlite4java.SQLiteStatement;
 
-public class WBIndex {
+public class WBIndex implements CaptureIndex {
 	
 	SQLiteConnection indexDB = null;
-	SQLiteStatement  urlDatesQuery = null;
-	SQLiteStatement  urlDatesAndCrawlsQuery = null;
-	SQLiteStatement  crawlNameQuery = null;
+	// Prepared statements of indexDB, reused across lookups:
+	StatementCache   statementCache = null;
+	// The Crawls table, held in memory:
+	CrawlCatalog     crawlCatalog = null;
 	String webBaseIndexPath = null;
+	boolean readOnly = false;
+	// True if URLs table carries the binary captureTimes/captureCrawlIDs columns:
+	boolean hasPackedCaptures = false;
+	// True if captures live in the Captures table that CapturesMigrator
+	// creates, rather than in the URLs table:
+	boolean hasNormalizedCaptures = false;
+	// True if the URL table carries the surt column that SURTMigrator adds:
+	boolean hasSURTKeys = false;
 	boolean printErrors = true;
 	boolean throwErrors = true;
 	int verbose     	= 1;
+	// Capture times of the row being searched by closestTextCapture():
+	private long[] textTimes = new long[16];
+	// Consulted before each URL lookup; null for none. Shared among instances:
+	URLFilter urlFilter = null;
+	// True if the connection serves the index file as unchanging; see SQLiteProfile:
+	boolean immutable = false;
+	
+	/* Settings applied to read-only connections as they open */
+	static SQLiteProfile readProfile = new SQLiteProfile();
+	
+	/* Index opened when no path is given */
+	static final String TEST_INDEX_PATH = "src/test/resources/WBTestIndex";
 	
 	private static final String URL_DATES_QUERY = "SELECT datesCrawled FROM URLs WHERE url=?";
 	private static final int URL_DATES_QUERY_URL_BIND_POS = 1;
@@ -32,37 +56,208 @@ public class WBIndex {
 	private static final int URL_DATES_AND_CRAWL_NAMES_QUERY_DATES_POS = 0;
 	private static final int URL_DATES_AND_CRAWL_NAMES_QUERY_CRAWL_NAMES_POS = 1;
 	
-	private static final String CRAWL_NAME_QUERY = "SELECT crawlName,startDate,endDate FROM Crawls WHERE shortName=?";
-	private static final int CRAWL_NAME_QUERY_BIND_POS = 1;
-	private static final int CRAWLS_QUERY_NAME_POS = 0;
-	private static final int CRAWLS_QUERY_START_DATE_POS = 1;
-	private static final int CRAWLS_QUERY_END_DATE_POS = 2;
+	private static final String URL_PACKED_CAPTURES_QUERY = "SELECT captureTimes,captureCrawlIDs FROM URLs WHERE url=?";
+	private static final int URL_PACKED_CAPTURES_QUERY_TIMES_POS = 0;
+	private static final int URL_PACKED_CAPTURES_QUERY_CRAWL_IDS_POS = 1;
+	
+	// Batch lookups: "SELECT url,... FROM URLs WHERE url IN (?,?,...)", with
+	// the number of parameters rounded up to a power of two, so that only
+	// a handful of distinct statements end up in the statement cache:
+	private static final String URL_BATCH_TEXT_QUERY_PREFIX = "SELECT url,datesCrawled,crawlIDs FROM URLs WHERE url IN (";
+	private static final String URL_BATCH_PACKED_QUERY_PREFIX = "SELECT url,captureTimes,captureCrawlIDs FROM URLs WHERE url IN (";
+	private static final int URL_BATCH_QUERY_URL_POS = 0;
+	private static final int URL_BATCH_QUERY_FIRST_CAPTURES_POS = 1;
+	private static final int URL_BATCH_QUERY_SECOND_CAPTURES_POS = 2;
+	/* Max # of URIs per batch query; SQLite allows at most 999 parameters */
+	static final int MAX_BATCH_CHUNK_SIZE = 512;
+	
+	// Normalized layout: the captures nearest a reference time are the
+	// first rows of two probes down the Captures index, one walking
+	// back in time from the reference time, one walking forward:
+	private static final String CAPTURES_AT_OR_BEFORE_QUERY =
+			"SELECT captureTime,crawlID FROM Captures WHERE urlID=(SELECT urlID FROM URLDictionary WHERE url=?) " +
+			"AND captureTime<=? ORDER BY captureTime DESC,crawlID DESC";
+	private static final String CAPTURES_AFTER_QUERY =
+			"SELECT captureTime,crawlID FROM Captures WHERE urlID=(SELECT urlID FROM URLDictionary WHERE url=?) " +
+			"AND captureTime>? ORDER BY captureTime,crawlID";
+	private static final int CAPTURES_PROBE_URL_BIND_POS = 1;
+	private static final int CAPTURES_PROBE_TIME_BIND_POS = 2;
+	private static final String URL_ID_QUERY = "SELECT urlID FROM URLDictionary WHERE url=?";
+	private static final String CAPTURES_RANGE_QUERY =
+			"SELECT captureTime,crawlID FROM Captures WHERE urlID=? AND captureTime>=? AND captureTime<=? " +
+			"ORDER BY captureTime,crawlID";
+	private static final int CAPTURES_RANGE_URL_ID_BIND_POS = 1;
+	private static final int CAPTURES_RANGE_FROM_BIND_POS = 2;
+	private static final int CAPTURES_RANGE_UNTIL_BIND_POS = 3;
+	private static final String CAPTURE_COUNT_QUERY = "SELECT count(*) FROM Captures WHERE urlID=?";
+	private static final int CAPTURE_TIME_POS = 0;
+	private static final int CAPTURE_CRAWL_ID_POS = 1;
 	
 	// Schema related constants:
 	
 	private static final int THE_ONLY_COL = 0;
+	private static final String TABLE_INFO_QUERY = "PRAGMA table_info(%s)";
+	private static final int TABLE_INFO_COL_NAME_POS = 1;
+	static final String PACKED_TIMES_COL = "captureTimes";
+	static final String PACKED_CRAWL_IDS_COL = "captureCrawlIDs";
+	static final String SURT_COL = "surt";
+	static final String CRAWLS_TABLE = "Crawls";
+	static final String URLS_TABLE = "URLs";
+	static final String URL_DICTIONARY_TABLE = "URLDictionary";
+	static final String CAPTURES_TABLE = "Captures";
+	/* The normalized layout is in force once this index exists; CapturesMigrator builds it last */
+	static final String CAPTURES_INDEX_NAME = "Captures_urlID_time";
+	private static final String INDEX_EXISTS_QUERY = "SELECT count(*) FROM sqlite_master WHERE type='index' AND name=?";
+	// Walks the whole URL key index, which covers the query:
+	private static final String URL_KEY_SCAN_QUERY = "SELECT count(url) FROM %s WHERE url >= ''";
+	
+	private static final String SURT_RANGE_TEXT_QUERY =
+			"SELECT url,surt,datesCrawled,crawlIDs FROM URLs WHERE surt >= ? AND surt < ? ORDER BY surt";
+	private static final String SURT_RANGE_PACKED_QUERY =
+			"SELECT url,surt,captureTimes,captureCrawlIDs FROM URLs WHERE surt >= ? AND surt < ? ORDER BY surt";
+	private static final String SURT_FROM_TEXT_QUERY =
+			"SELECT url,surt,datesCrawled,crawlIDs FROM URLs WHERE surt >= ? ORDER BY surt";
+	private static final String SURT_FROM_PACKED_QUERY =
+			"SELECT url,surt,captureTimes,captureCrawlIDs FROM URLs WHERE surt >= ? ORDER BY surt";
+	private static final String SURT_RANGE_NORMALIZED_QUERY =
+			"SELECT url,surt,urlID FROM URLDictionary WHERE surt >= ? AND surt < ? ORDER BY surt";
+	private static final String SURT_FROM_NORMALIZED_QUERY =
+			"SELECT url,surt,urlID FROM URLDictionary WHERE surt >= ? ORDER BY surt";
+	private static final int SURT_RANGE_FROM_BIND_POS = 1;
+	private static final int SURT_RANGE_TO_BIND_POS = 2;
+	
+	// Date/times in the index are GMT, as are Memento datetimes:
+	public static final TimeZone INDEX_TIME_ZONE = TimeZone.getTimeZone("GMT");
 	
-	class ResourceSpec {
+	static class ResourceSpec {
 		String uri;
+		// Epoch seconds; the Calendar is only built if asked for:
+		long crawlTime = WBDateTime.NO_TIME;
 		GregorianCalendar crawlDate;
 		String crawlName;
+		// Reference times, inclusive, that are strictly closer to this
+		// capture than to any other capture of the URI:
+		long intervalStart = Long.MIN_VALUE;
+		long intervalEnd = Long.MAX_VALUE;
 		
 		public ResourceSpec(String theURI, GregorianCalendar theCrawlDate, String theCrawlName) {
 			uri = theURI;
 			crawlDate = theCrawlDate;
+			crawlTime = WBDateTime.fromCalendar(theCrawlDate);
 			crawlName = theCrawlName;
 		}
 		
+		public ResourceSpec(String theURI, long theCrawlTime, String theCrawlName) {
+			uri = theURI;
+			crawlTime = theCrawlTime;
+			crawlName = theCrawlName;
+		}
+		
+		/**
+		 * @return a result for a URI that is not in the index. Used by
+		 * getClosestURLCrawls() to mark misses in its result list.
+		 */
+		static ResourceSpec miss(String theURI) {
+			return new ResourceSpec(theURI, WBDateTime.NO_TIME, null);
+		}
+		
+		/**
+		 * @return false if this is a miss, i.e. the URI has no captures in the index.
+		 */
+		public boolean isFound() {
+			return crawlTime != WBDateTime.NO_TIME;
+		}
+		
+		public String getURI() {
+			return uri;
+		}
+		
+		public String getCrawlName() {
+			return crawlName;
+		}
+		
+		public long getCrawlTime() {
+			return crawlTime;
+		}
+		
+		/**
+		 * Record the URI's captures on either side of this one, which
+		 * bound the reference times this capture is the answer for.
+		 * @param prevTime latest capture before crawlTime; WBDateTime.NO_TIME if none.
+		 * @param nextTime earliest capture after crawlTime; WBDateTime.NO_TIME if none.
+		 */
+		void setNeighbors(long prevTime, long nextTime) {
+			intervalStart = (prevTime == WBDateTime.NO_TIME) ? 
+					Long.MIN_VALUE : Math.floorDiv(prevTime + crawlTime, 2) + 1;
+			intervalEnd = (nextTime == WBDateTime.NO_TIME) ? 
+					Long.MAX_VALUE : Math.floorDiv(crawlTime + nextTime - 1, 2);
+		}
+		
+		/**
+		 * @return earliest reference time, in epoch seconds, for which this
+		 * capture is the closest one of its URI, with no other capture as
+		 * close. Long.MIN_VALUE if there is no earlier capture.
+		 */
+		public long getIntervalStart() {
+			return intervalStart;
+		}
+		
+		/**
+		 * @return latest such reference time; Long.MAX_VALUE if there is
+		 * no later capture.
+		 */
+		public long getIntervalEnd() {
+			return intervalEnd;
+		}
+		
+		public Instant getCrawlInstant() {
+			return WBDateTime.toInstant(crawlTime);
+		}
+		
+		public GregorianCalendar getCrawlDate() {
+			if (crawlDate == null)
+				crawlDate = WBDateTime.toCalendar(crawlTime);
+			return crawlDate;
+		}
+		
 		public String toString() {
-			return "<" + uri + ": " + crawlName + " at " + WBIndex.calendarToString(crawlDate) + ">";
+			if (!isFound())
+				return "<" + uri + ": not in index>";
+			return "<" + uri + ": " + crawlName + " at " + WBDateTime.formatDateTime(crawlTime) + ">";
 		}
 	}
 	
-	class CrawlSpec {
-		String fullName;
-		String shortName;
-		GregorianCalendar earliestDate;
-		GregorianCalendar latestDate;
+	/**
+	 * A crawl from the Crawls table. Immutable, so that the crawl
+	 * catalogs can hand out the instances they hold.
+	 */
+	static final class CrawlSpec {
+		final String fullName;
+		final String shortName;
+		// Epoch seconds, or WBDateTime.NO_TIME:
+		final long earliestTime;
+		final long latestTime;
+		
+		CrawlSpec(String theShortName, String theFullName, long theEarliestTime, long theLatestTime) {
+			shortName = theShortName;
+			fullName = theFullName;
+			earliestTime = theEarliestTime;
+			latestTime = theLatestTime;
+		}
+		
+		/**
+		 * @return a new calendar holding earliestTime; null if the crawl has no start date.
+		 */
+		GregorianCalendar getEarliestDate() {
+			return (earliestTime == WBDateTime.NO_TIME) ? null : WBDateTime.toCalendar(earliestTime);
+		}
+		
+		/**
+		 * @return a new calendar holding latestTime; null if the crawl has no end date.
+		 */
+		GregorianCalendar getLatestDate() {
+			return (latestTime == WBDateTime.NO_TIME) ? null : WBDateTime.toCalendar(latestTime);
+		}
 	}
 	
 	public WBIndex() throws SQLiteException {
@@ -70,15 +265,27 @@ public class WBIndex {
 	}
 	
 	public WBIndex(String newWebBaseIndexPath) throws SQLiteException {
+		this(newWebBaseIndexPath, false);
+	}
+	
+	/**
+	 * Open the WebBase index at the given path. Read-only instances
+	 * are what WBIndexPool hands to the dispatcher's worker threads:
+	 * SQLite lets any number of read-only connections query the same
+	 * index file concurrently.
+	 * 
+	 * @param newWebBaseIndexPath path to the SQLite index file. If null, the test index is used.
+	 * @param openReadOnly if true, open the connection with SQLITE_OPEN_READONLY.
+	 * @throws SQLiteException
+	 */
+	public WBIndex(String newWebBaseIndexPath, boolean openReadOnly) throws SQLiteException {
+		readOnly = openReadOnly;
 		if (newWebBaseIndexPath == null)
-			webBaseIndexPath = "src/test/resources/WBTestIndex";
+			webBaseIndexPath = TEST_INDEX_PATH;
 		else
 			webBaseIndexPath = newWebBaseIndexPath;
 		try {
 			open();
-			urlDatesQuery = indexDB.prepare(URL_DATES_QUERY);
-			urlDatesAndCrawlsQuery = indexDB.prepare(URL_DATES_AND_CRAWL_NAMES_QUERY);
-			crawlNameQuery = indexDB.prepare(CRAWL_NAME_QUERY);
 		} catch (SQLiteException e) {
 			handleSQLiteException(e);
 		}
@@ -86,86 +293,791 @@ public class WBIndex {
 	
 	public void open() throws SQLiteException {
 		indexDB = new SQLiteConnection(new File(webBaseIndexPath));
-		indexDB.open(false);
+		if (readOnly) {
+			indexDB.openReadonly();
+			immutable = readProfile.apply(indexDB);
+		} else {
+			indexDB.open(false);
+		}
+		statementCache = new StatementCache(indexDB);
+		crawlCatalog = new CrawlCatalog(this);
+		hasNormalizedCaptures = hasIndex(CAPTURES_INDEX_NAME);
+		hasPackedCaptures = !hasNormalizedCaptures &&
+				hasURLsColumn(PACKED_TIMES_COL) && hasURLsColumn(PACKED_CRAWL_IDS_COL);
+		hasSURTKeys = hasTableColumn(getURLTableName(), SURT_COL);
+	}
+	
+	/**
+	 * @param colName name of a column.
+	 * @return true if the URLs table of this index has the given column.
+	 * @throws SQLiteException
+	 */
+	boolean hasURLsColumn(String colName) throws SQLiteException {
+		return hasTableColumn(URLS_TABLE, colName);
+	}
+	
+	/**
+	 * @param tableName name of a table.
+	 * @param colName name of a column.
+	 * @return true if the table exists and has the given column.
+	 * @throws SQLiteException
+	 */
+	boolean hasTableColumn(String tableName, String colName) throws SQLiteException {
+		SQLiteStatement tableInfo = null;
+		try {
+			tableInfo = statementCache.checkOut(String.format(TABLE_INFO_QUERY, tableName));
+			while (StatementCache.step(tableInfo)) {
+				if (colName.equalsIgnoreCase(tableInfo.columnString(TABLE_INFO_COL_NAME_POS)))
+					return true;
+			}
+		} finally {
+			statementCache.checkIn(tableInfo);
+		}
+		return false;
+	}
+	
+	/**
+	 * @param indexName name of a database index.
+	 * @return true if the index file has a database index of that name.
+	 * @throws SQLiteException
+	 */
+	boolean hasIndex(String indexName) throws SQLiteException {
+		SQLiteStatement query = null;
+		try {
+			query = statementCache.checkOut(INDEX_EXISTS_QUERY);
+			query.bind(1, indexName);
+			return StatementCache.step(query) && query.columnLong(THE_ONLY_COL) > 0;
+		} finally {
+			statementCache.checkIn(query);
+		}
+	}
+	
+	/**
+	 * Read the pages of the URL key index, so that they are in the OS's
+	 * file cache. This connection's own page cache benefits only as long
+	 * as the connection stays open; WBIndexPool warms a connection that
+	 * it then closes, so the lookups after a restart read the pages from
+	 * the file cache rather than from disk.
+	 * @return number of URLs in the index.
+	 * @throws SQLiteException
+	 */
+	public long warmUp() throws SQLiteException {
+		SQLiteStatement scan = null;
+		try {
+			scan = statementCache.checkOut(String.format(URL_KEY_SCAN_QUERY, getURLTableName()));
+			return StatementCache.step(scan) ? scan.columnLong(THE_ONLY_COL) : 0;
+		} finally {
+			statementCache.checkIn(scan);
+		}
+	}
+	
+	/**
+	 * @return the SQLite settings in effect on this index's connection, one line.
+	 * @throws SQLiteException
+	 */
+	public String describeSettings() throws SQLiteException {
+		String settings = readProfile.report(indexDB);
+		if (readOnly && readProfile.immutable && !immutable)
+			settings += "; not served as immutable: the index is in WAL mode";
+		return settings;
 	}
 	
 	public void close() {
-		urlDatesQuery.dispose();
-		urlDatesAndCrawlsQuery.dispose();
-		crawlNameQuery.dispose();
+		statementCache.clear();
 		indexDB.dispose();
 		indexDB = null;
 	}
 	
+	public String getIndexPath() {
+		return webBaseIndexPath;
+	}
+	
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
 	public boolean isOpen() {
 		return (indexDB != null) && (!indexDB.isDisposed()); 
 	}
 	
+	/**
+	 * @return true if this index stores captures in the packed binary
+	 * columns that PackedCapturesMigrator adds.
+	 */
+	public boolean hasPackedCaptures() {
+		return hasPackedCaptures;
+	}
+	
+	/**
+	 * @return true if this index keeps one row per capture in the
+	 * Captures table, keyed by the URL IDs of the URLDictionary table,
+	 * as CapturesMigrator arranges. The URLs table, if still there, is
+	 * then no longer read.
+	 */
+	public boolean hasNormalizedCaptures() {
+		return hasNormalizedCaptures;
+	}
+	
+	/**
+	 * @return name of the table that holds one row per URL, with the
+	 * url and, if any, surt columns: URLDictionary for a normalized
+	 * index, else URLs.
+	 */
+	public String getURLTableName() {
+		return hasNormalizedCaptures ? URL_DICTIONARY_TABLE : URLS_TABLE;
+	}
+	
 	public ResourceSpec getClosestURLCrawl(String uri, GregorianCalendar referenceDate) throws SQLiteException, DataFormatException {
+		return getClosestURLCrawl(uri, WBDateTime.fromCalendar(referenceDate));
+	}
+	
+	public ResourceSpec getClosestURLCrawl(String uri, Instant referenceDate) throws SQLiteException, DataFormatException {
+		return getClosestURLCrawl(uri, referenceDate.getEpochSecond());
+	}
+	
+	/**
+	 * Find the capture of the given URI that is closest in time to the
+	 * given reference time. When two captures are equally close, the one
+	 * stored first wins.
+	 * @param uri URI to look up.
+	 * @param referenceTime epoch seconds.
+	 * @return closest capture, or null if the URI is not in the index.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if the URI's captures in the index are malformed.
+	 */
+	public ResourceSpec getClosestURLCrawl(String uri, long referenceTime) throws SQLiteException, DataFormatException {
 		
-		
-		// Get map like, e.g. 
-		// "uri":<givenURI>, "datesCrawled":""2012-04-23 23:45:02; 2011-10-02 15:23:40", "crawlIDs":0;1
-		// where each 'datesCrawled' entry corresponds to one 'crawlID' by position:
-		Map<String,String> crawlDatesAndCrawlIDs = getURLTableCrawlDatesAndCrawlIDs(uri);
-		if (crawlDatesAndCrawlIDs == null)
+		if (isFilteredOut(uri))
 			return null;
+		if (hasNormalizedCaptures)
+			return getClosestNormalizedURLCrawl(uri, referenceTime);
+		if (hasPackedCaptures)
+			return getClosestPackedURLCrawl(uri, referenceTime);
 		
-		// Grab the crawl dates of the uri:
-		String datesStr = crawlDatesAndCrawlIDs.get("datesCrawled");
+		// Get e.g. "2012-04-23 23:45:02; 2011-10-02 15:23:40" and "0;1",
+		// where each 'datesCrawled' entry corresponds to one 'crawlID' by position:
+		String datesStr = null;
+		String crawlShortNamesStr = null;
+		SQLiteStatement urlDatesAndCrawlsQuery = null;
+		try {
+			urlDatesAndCrawlsQuery = statementCache.checkOut(URL_DATES_AND_CRAWL_NAMES_QUERY);
+			urlDatesAndCrawlsQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
+			if (StatementCache.step(urlDatesAndCrawlsQuery)) {
+				datesStr = urlDatesAndCrawlsQuery.columnString(URL_DATES_AND_CRAWL_NAMES_QUERY_DATES_POS);
+				crawlShortNamesStr = urlDatesAndCrawlsQuery.columnString(URL_DATES_AND_CRAWL_NAMES_QUERY_CRAWL_NAMES_POS);
+			} else {
+				countFalsePositive();
+			}
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(urlDatesAndCrawlsQuery);
+		}
+		return closestTextCapture(uri, datesStr, crawlShortNamesStr, referenceTime);
+	}
+	
+	/**
+	 * Find the capture closest to referenceTime among one URLs row's
+	 * text-layout columns.
+	 * @param uri the row's URI.
+	 * @param datesStr the row's datesCrawled column; may be null.
+	 * @param crawlShortNamesStr the row's crawlIDs column.
+	 * @param referenceTime epoch seconds.
+	 * @return closest capture, or null if datesStr holds no captures.
+	 * @throws DataFormatException if the columns are malformed.
+	 */
+	private ResourceSpec closestTextCapture(String uri, String datesStr, String crawlShortNamesStr, long referenceTime) 
+			throws SQLiteException, DataFormatException {
 		if (datesStr == null || datesStr.length() == 0)
 			return null;
 		
-		// Turn the string of date/times into a list of Calendar instances:
-		ArrayList<GregorianCalendar> dates = parseWBIndexDateChain(datesStr);
-		
-		// Find date least distant from given reference date: 
-		long referenceInMsecs = referenceDate.getTimeInMillis();
-		long leastDistance = Math.abs(referenceInMsecs - dates.get(0).getTimeInMillis());
-		GregorianCalendar closestTime = dates.get(0); 
-		int closesCrawlShortNameIndex = 0;
-		
-		// Keep track of crawlIDs index while we go through list
-		// of Calendar date/times to find the one with minimum distance:
-		int  currentCrawlIDIndex  = 0;
-
-		for (GregorianCalendar date : dates.subList(1, dates.size())) {
-			long msecsSinceEpoch = date.getTimeInMillis();
-			long distance = Math.abs(referenceInMsecs - msecsSinceEpoch);
-			if (distance < leastDistance) {
-				leastDistance = distance;
-				closesCrawlShortNameIndex = currentCrawlIDIndex + 1;
+		// Walk the date/times in place, keeping track of the one
+		// least distant from the given reference time. As in the other
+		// layouts, half-way between two captures the earlier one wins:
+		long closestTime = WBDateTime.NO_TIME;
+		long leastDistance = Long.MAX_VALUE;
+		int closestIndex = -1;
+		int numDates = 0;
+		int pos = 0;
+		int len = datesStr.length();
+		try {
+			while (pos < len) {
+				int sep = datesStr.indexOf(';', pos);
+				if (sep < 0)
+					sep = len;
+				pos = skipBlanks(datesStr, pos, sep);
+				if (pos < sep) {
+					long time = WBDateTime.parseEpochSeconds(datesStr, pos, sep);
+					if (numDates == textTimes.length)
+						textTimes = Arrays.copyOf(textTimes, 2 * numDates);
+					textTimes[numDates] = time;
+					long distance = Math.abs(referenceTime - time);
+					if (distance < leastDistance || (distance == leastDistance && time < closestTime)) {
+						leastDistance = distance;
+						closestTime = time;
+						closestIndex = numDates;
+					}
+					numDates++;
+				}
+				pos = sep + 1;
 			}
-			currentCrawlIDIndex += 1;
+		} catch (NumberFormatException e) {
+			throw new DataFormatException(e.getMessage() + " URI: " + uri + "; datesCrawled: " + datesStr);
 		}
+		if (closestIndex < 0)
+			return null;
 		
-		// Get the crawl short-names, e.g. "0;1":
-		String crawlShortNamesStr = crawlDatesAndCrawlIDs.get("crawlIDs");
 		if (crawlShortNamesStr == null) {
 			throw new DataFormatException("Crawl short-names field in WebBase index is null. URI: " +
 										  uri + "; datesCrawled: " + datesStr);
 		}
-		String[] crawlShortNamesArray = crawlShortNamesStr.split(";");
-		if (crawlShortNamesArray.length < currentCrawlIDIndex) {
-			throw new DataFormatException("Fewer crawl short-names than crawl dates. URI: " +
+		int crawlShortName = parseNthShortName(crawlShortNamesStr, closestIndex);
+		if (crawlShortName == NO_SHORT_NAME) {
+			throw new DataFormatException("Fewer crawl short-names than crawl dates, or short-name not numeric. URI: " +
 										  uri + "; datesCrawled: " + datesStr + 
 										  "; crawlIDs: " + crawlShortNamesStr);
 		}
-		String crawlShortName = crawlShortNamesArray[closesCrawlShortNameIndex];
-		CrawlSpec crawlLookupFromShortName = getCrawlNameFromShortName(crawlShortName);
-		String crawlFullName  = crawlLookupFromShortName.fullName;
+		CrawlSpec crawl = getCrawlSpec(crawlShortName);
+		ResourceSpec closest = new ResourceSpec(uri, closestTime, (crawl == null) ? null : crawl.fullName);
+		// The row's dates are in no particular order:
+		long prevTime = WBDateTime.NO_TIME;
+		long nextTime = WBDateTime.NO_TIME;
+		for (int i = 0; i < numDates; i++) {
+			long time = textTimes[i];
+			if (time < closestTime && (prevTime == WBDateTime.NO_TIME || time > prevTime))
+				prevTime = time;
+			else if (time > closestTime && (nextTime == WBDateTime.NO_TIME || time < nextTime))
+				nextTime = time;
+		}
+		closest.setNeighbors(prevTime, nextTime);
+		return closest;
+	}
+	
+	private static final int NO_SHORT_NAME = -1;
+	
+	/**
+	 * Parse the n'th entry of a crawlIDs column, such as "0;1", without
+	 * splitting the string.
+	 * @param crawlShortNamesStr semicolon-separated crawl short-names.
+	 * @param n 0-based position of the wanted entry.
+	 * @return the short-name, or NO_SHORT_NAME if there is no n'th entry, or it is not a
+	 * non-negative integer.
+	 */
+	private static int parseNthShortName(String crawlShortNamesStr, int n) {
+		int pos = 0;
+		for (int i = 0; i < n; i++) {
+			pos = crawlShortNamesStr.indexOf(';', pos) + 1;
+			if (pos == 0)
+				return NO_SHORT_NAME;
+		}
+		int end = crawlShortNamesStr.indexOf(';', pos);
+		if (end < 0)
+			end = crawlShortNamesStr.length();
+		pos = skipBlanks(crawlShortNamesStr, pos, end);
+		int result = 0;
+		int numDigits = 0;
+		for (; pos < end; pos++, numDigits++) {
+			int digit = crawlShortNamesStr.charAt(pos) - '0';
+			if (digit < 0 || digit > 9)
+				break;
+			result = result * 10 + digit;
+		}
+		if (numDigits == 0 || skipBlanks(crawlShortNamesStr, pos, end) != end)
+			return NO_SHORT_NAME;
+		return result;
+	}
+	
+	private static int skipBlanks(String str, int pos, int end) {
+		while (pos < end && str.charAt(pos) == ' ')
+			pos++;
+		return pos;
+	}
+	
+	/**
+	 * Closest-capture lookup against the packed captureTimes/captureCrawlIDs
+	 * columns: one row fetch and a binary search, without parsing any dates.
+	 * @param uri URI to look up.
+	 * @param referenceTime epoch seconds of the reference date.
+	 * @return closest capture, or null if the URI is not in the index.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if the two packed columns disagree in length.
+	 */
+	private ResourceSpec getClosestPackedURLCrawl(String uri, long referenceTime) throws SQLiteException, DataFormatException {
+		byte[] timesBlob = null;
+		byte[] crawlIDsBlob = null;
+		SQLiteStatement packedQuery = null;
+		try {
+			packedQuery = statementCache.checkOut(URL_PACKED_CAPTURES_QUERY);
+			packedQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
+			if (StatementCache.step(packedQuery)) {
+				timesBlob = packedQuery.columnBlob(URL_PACKED_CAPTURES_QUERY_TIMES_POS);
+				crawlIDsBlob = packedQuery.columnBlob(URL_PACKED_CAPTURES_QUERY_CRAWL_IDS_POS);
+			} else {
+				countFalsePositive();
+			}
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(packedQuery);
+		}
+		return closestPackedCapture(uri, timesBlob, crawlIDsBlob, referenceTime);
+	}
+	
+	/**
+	 * Find the capture closest to referenceTime among one URLs row's
+	 * packed columns.
+	 * @return closest capture, or null if timesBlob holds no captures.
+	 * @throws DataFormatException if the two blobs disagree in length.
+	 */
+	private ResourceSpec closestPackedCapture(String uri, byte[] timesBlob, byte[] crawlIDsBlob, long referenceTime)
+			throws SQLiteException, DataFormatException {
+		int closest = PackedCaptures.closestIndex(timesBlob, referenceTime);
+		if (closest < 0)
+			return null;
+		if (PackedCaptures.numCaptures(timesBlob) * PackedCaptures.CRAWL_ID_WIDTH != 
+				((crawlIDsBlob == null) ? 0 : crawlIDsBlob.length))
+			throw new DataFormatException("Packed capture times and crawl IDs differ in length. URI: " + uri);
+		
+		long closestTime = PackedCaptures.timeAt(timesBlob, closest);
+		int crawlShortName = PackedCaptures.crawlIDAt(crawlIDsBlob, closest);
+		CrawlSpec crawl = getCrawlSpec(crawlShortName);
+		ResourceSpec result = new ResourceSpec(uri, closestTime, (crawl == null) ? null : crawl.fullName);
+		// Step over captures taken at the same second:
+		int prev = closest - 1;
+		while (prev >= 0 && PackedCaptures.timeAt(timesBlob, prev) == closestTime)
+			prev--;
+		int next = closest + 1;
+		int numCaptures = PackedCaptures.numCaptures(timesBlob);
+		while (next < numCaptures && PackedCaptures.timeAt(timesBlob, next) == closestTime)
+			next++;
+		result.setNeighbors((prev < 0) ? WBDateTime.NO_TIME : PackedCaptures.timeAt(timesBlob, prev),
+							(next == numCaptures) ? WBDateTime.NO_TIME : PackedCaptures.timeAt(timesBlob, next));
+		return result;
+	}
+
+	/**
+	 * Closest-capture lookup against the Captures table: two indexed
+	 * range probes from the reference time, one backward and one
+	 * forward, of which usually only the first row or two are read.
+	 * @param uri URI to look up.
+	 * @param referenceTime epoch seconds of the reference date.
+	 * @return closest capture, or null if the URI is not in the index.
+	 * @throws SQLiteException
+	 * @throws DataFormatException
+	 */
+	private ResourceSpec getClosestNormalizedURLCrawl(String uri, long referenceTime) throws SQLiteException, DataFormatException {
+		long closestTime = WBDateTime.NO_TIME;
+		int crawlShortName = NO_SHORT_NAME;
+		long prevTime = WBDateTime.NO_TIME;
+		long nextTime = WBDateTime.NO_TIME;
+		SQLiteStatement before = null;
+		SQLiteStatement after = null;
+		try {
+			before = statementCache.checkOut(CAPTURES_AT_OR_BEFORE_QUERY);
+			before.bind(CAPTURES_PROBE_URL_BIND_POS, uri);
+			before.bind(CAPTURES_PROBE_TIME_BIND_POS, referenceTime);
+			after = statementCache.checkOut(CAPTURES_AFTER_QUERY);
+			after.bind(CAPTURES_PROBE_URL_BIND_POS, uri);
+			after.bind(CAPTURES_PROBE_TIME_BIND_POS, referenceTime);
+			boolean hasBefore = StatementCache.step(before);
+			boolean hasAfter = StatementCache.step(after);
+			if (!hasBefore && !hasAfter) {
+				countFalsePositive();
+				return null;
+			}
+			long beforeTime = hasBefore ? before.columnLong(CAPTURE_TIME_POS) : WBDateTime.NO_TIME;
+			long afterTime = hasAfter ? after.columnLong(CAPTURE_TIME_POS) : WBDateTime.NO_TIME;
+			// Half-way between two captures, the earlier one wins:
+			if (!hasBefore || (hasAfter && afterTime - referenceTime < referenceTime - beforeTime)) {
+				closestTime = afterTime;
+				crawlShortName = after.columnInt(CAPTURE_CRAWL_ID_POS);
+				prevTime = beforeTime;
+				nextTime = nextDistinctTime(after, closestTime);
+			} else {
+				closestTime = beforeTime;
+				crawlShortName = before.columnInt(CAPTURE_CRAWL_ID_POS);
+				nextTime = afterTime;
+				// Step back past the other captures of that second. As
+				// in the packed layout, an exact hit among them goes to
+				// the first crawl:
+				while (StatementCache.step(before)) {
+					long time = before.columnLong(CAPTURE_TIME_POS);
+					if (time != closestTime) {
+						prevTime = time;
+						break;
+					}
+					if (closestTime == referenceTime)
+						crawlShortName = before.columnInt(CAPTURE_CRAWL_ID_POS);
+				}
+			}
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(before);
+			statementCache.checkIn(after);
+		}
+		if (closestTime == WBDateTime.NO_TIME)
+			return null;
+		CrawlSpec crawl = getCrawlSpec(crawlShortName);
+		ResourceSpec result = new ResourceSpec(uri, closestTime, (crawl == null) ? null : crawl.fullName);
+		result.setNeighbors(prevTime, nextTime);
+		return result;
+	}
+	
+	/**
+	 * Step a forward Captures probe past the captures taken at the given second.
+	 * @return time of the probe's next capture; WBDateTime.NO_TIME if it has none.
+	 */
+	private static long nextDistinctTime(SQLiteStatement probe, long time) throws SQLiteException {
+		while (StatementCache.step(probe)) {
+			long nextTime = probe.columnLong(CAPTURE_TIME_POS);
+			if (nextTime != time)
+				return nextTime;
+		}
+		return WBDateTime.NO_TIME;
+	}
+	
+	/**
+	 * @param uri URI to look up in the URLDictionary table.
+	 * @return the URI's urlID, or -1 if the dictionary does not have it.
+	 * @throws SQLiteException
+	 */
+	long getURLID(String uri) throws SQLiteException {
+		SQLiteStatement query = null;
+		try {
+			query = statementCache.checkOut(URL_ID_QUERY);
+			query.bind(1, uri);
+			if (StatementCache.step(query))
+				return query.columnLong(THE_ONLY_COL);
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(query);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Read the Captures rows of one URL into the packed layout of
+	 * PackedCaptures, so that a CaptureCursor can walk them.
+	 * @param urlID the URL's key in URLDictionary.
+	 * @param from epoch seconds of the earliest capture to include.
+	 * @param until epoch seconds of the latest capture to include.
+	 * @return [captureTimes, captureCrawlIDs], in time order.
+	 * @throws SQLiteException
+	 */
+	byte[][] packNormalizedCaptures(long urlID, long from, long until) throws SQLiteException {
+		long[] times = new long[16];
+		int[] crawlIDs = new int[16];
+		int numCaptures = 0;
+		SQLiteStatement query = null;
+		try {
+			query = statementCache.checkOut(CAPTURES_RANGE_QUERY);
+			query.bind(CAPTURES_RANGE_URL_ID_BIND_POS, urlID);
+			query.bind(CAPTURES_RANGE_FROM_BIND_POS, from);
+			query.bind(CAPTURES_RANGE_UNTIL_BIND_POS, until);
+			while (StatementCache.step(query)) {
+				if (numCaptures == times.length) {
+					times = Arrays.copyOf(times, 2 * numCaptures);
+					crawlIDs = Arrays.copyOf(crawlIDs, 2 * numCaptures);
+				}
+				times[numCaptures] = query.columnLong(CAPTURE_TIME_POS);
+				crawlIDs[numCaptures] = query.columnInt(CAPTURE_CRAWL_ID_POS);
+				numCaptures++;
+			}
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(query);
+		}
+		// Already in order, so packing does not move anything:
+		return PackedCaptures.pack(Arrays.copyOf(times, numCaptures), Arrays.copyOf(crawlIDs, numCaptures));
+	}
+	
+	/**
+	 * @param urlID a URL's key in URLDictionary.
+	 * @return number of Captures rows of the URL.
+	 * @throws SQLiteException
+	 */
+	int countNormalizedCaptures(long urlID) throws SQLiteException {
+		SQLiteStatement query = null;
+		try {
+			query = statementCache.checkOut(CAPTURE_COUNT_QUERY);
+			query.bind(1, urlID);
+			if (StatementCache.step(query))
+				return query.columnInt(THE_ONLY_COL);
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(query);
+		}
+		return 0;
+	}
+
+	/**
+	 * Open a cursor over the captures of the given URI, in ascending
+	 * time order. On a packed index the cursor walks the row's blobs
+	 * directly; on a text-layout index it walks the row's parsed
+	 * dates, which are only sorted if they are out of order, and on a
+	 * normalized index the captures in [from, until], packed here.
+	 * @param uri URI to look up.
+	 * @param from epoch seconds of the earliest capture to include; Long.MIN_VALUE for no bound.
+	 * @param until epoch seconds of the latest capture to include; Long.MAX_VALUE for no bound.
+	 * @return cursor, or null if the URI is not in the index.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if the URI's captures in the index are malformed.
+	 */
+	public CaptureCursor getCaptures(String uri, long from, long until) throws SQLiteException, DataFormatException {
+		if (isFilteredOut(uri))
+			return null;
+		byte[] timesBlob = null;
+		byte[] crawlIDsBlob = null;
+		// Text layout: the row's captures, parsed but not packed:
+		long[] times = null;
+		int[] crawlIDs = null;
+		boolean found = false;
+		SQLiteStatement capturesQuery = null;
+		try {
+			if (hasNormalizedCaptures) {
+				long urlID = getURLID(uri);
+				if (found = (urlID >= 0)) {
+					byte[][] packed = packNormalizedCaptures(urlID, from, until);
+					timesBlob = packed[0];
+					crawlIDsBlob = packed[1];
+				}
+			} else if (hasPackedCaptures) {
+				capturesQuery = statementCache.checkOut(URL_PACKED_CAPTURES_QUERY);
+				capturesQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
+				if (found = StatementCache.step(capturesQuery)) {
+					timesBlob = capturesQuery.columnBlob(URL_PACKED_CAPTURES_QUERY_TIMES_POS);
+					crawlIDsBlob = capturesQuery.columnBlob(URL_PACKED_CAPTURES_QUERY_CRAWL_IDS_POS);
+				}
+			} else {
+				capturesQuery = statementCache.checkOut(URL_DATES_AND_CRAWL_NAMES_QUERY);
+				capturesQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
+				if (found = StatementCache.step(capturesQuery)) {
+					String datesStr = capturesQuery.columnString(URL_DATES_AND_CRAWL_NAMES_QUERY_DATES_POS);
+					times = PackedCaptures.parseTextTimes(uri, datesStr);
+					crawlIDs = PackedCaptures.parseTextCrawlIDs(uri, datesStr,
+							capturesQuery.columnString(URL_DATES_AND_CRAWL_NAMES_QUERY_CRAWL_NAMES_POS), times.length);
+					PackedCaptures.sortByTime(times, crawlIDs);
+				}
+			}
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(capturesQuery);
+		}
+		if (!found) {
+			countFalsePositive();
+			return null;
+		}
+		if (times != null)
+			return new CaptureCursor(uri, times, crawlIDs, from, until);
+		if (PackedCaptures.numCaptures(timesBlob) * PackedCaptures.CRAWL_ID_WIDTH !=
+				((crawlIDsBlob == null) ? 0 : crawlIDsBlob.length))
+			throw new DataFormatException("Packed capture times and crawl IDs differ in length. URI: " + uri);
+		return new CaptureCursor(uri, timesBlob, crawlIDsBlob, from, until);
+	}
+
+	/**
+	 * @return true if this index files its URLs under SURT keys, as
+	 * SURTMigrator arranges; required by the scan methods.
+	 */
+	public boolean hasSURTKeys() {
+		return hasSURTKeys;
+	}
+	
+	/**
+	 * Walk the URLs whose SURT keys lie in [fromKey, toKey), in key order,
+	 * along the surt index.
+	 * @param fromKey inclusive lower bound.
+	 * @param toKey exclusive upper bound; null for none.
+	 * @return cursor over the range. Must be closed.
+	 * @throws SQLiteException if the index has no SURT keys, or the query fails.
+	 */
+	public URLRangeCursor scanSURTRange(String fromKey, String toKey) throws SQLiteException {
+		return scanSURTRange(fromKey, toKey, null);
+	}
+	
+	/**
+	 * Walk all URLs that canonicalize to keys starting with the key of
+	 * the given URI prefix; e.g. "http://agr.wa.gov/PestFert/" yields
+	 * everything archived under that directory, whatever the scheme or
+	 * the case of the URL.
+	 * @param uriPrefix beginning of the URIs wanted, host included.
+	 * @return cursor over the URLs, in SURT key order. Must be closed.
+	 * @throws SQLiteException if the index has no SURT keys, or the query fails.
+	 */
+	public URLRangeCursor scanURLPrefix(String uriPrefix) throws SQLiteException {
+		String prefix = SURT.canonicalize(uriPrefix);
+		return scanSURTRange(prefix, SURT.prefixUpperBound(prefix), null);
+	}
+	
+	/**
+	 * Walk all URLs of the hosts in the given domain: "wa.gov" or
+	 * "*.wa.gov" yields wa.gov, agr.wa.gov, www.ecy.wa.gov, and so on;
+	 * "gov" yields everything under .gov.
+	 * @param domain DNS domain.
+	 * @return cursor over the URLs, in SURT key order. Must be closed.
+	 * @throws SQLiteException if the index has no SURT keys, or the query fails.
+	 */
+	public URLRangeCursor scanDomain(String domain) throws SQLiteException {
+		String domainKey = SURT.domainKey(domain);
+		// A host of the domain continues its key with ')', ',' or ':'.
+		// These sort between ')' and ';', so one range covers them,
+		// along with a few keys the cursor skips, such as those of
+		// wa-state.gov when the domain is wa.gov:
+		return scanSURTRange(domainKey + SURT.HOST_END, domainKey + (char) (SURT.PORT_SEPARATOR + 1), domainKey);
+	}
+	
+	private URLRangeCursor scanSURTRange(String fromKey, String toKey, String domainKey) throws SQLiteException {
+		if (!hasSURTKeys)
+			throw new SQLiteException(SQLiteConstants.SQLITE_ERROR,
+					"WebBase index " + webBaseIndexPath + " has no SURT keys; run SURTMigrator on it.");
+		String sql;
+		if (hasNormalizedCaptures)
+			sql = (toKey == null) ? SURT_FROM_NORMALIZED_QUERY : SURT_RANGE_NORMALIZED_QUERY;
+		else if (toKey == null)
+			sql = hasPackedCaptures ? SURT_FROM_PACKED_QUERY : SURT_FROM_TEXT_QUERY;
+		else
+			sql = hasPackedCaptures ? SURT_RANGE_PACKED_QUERY : SURT_RANGE_TEXT_QUERY;
+		SQLiteStatement rangeQuery = null;
+		try {
+			rangeQuery = statementCache.checkOut(sql);
+			rangeQuery.bind(SURT_RANGE_FROM_BIND_POS, fromKey);
+			if (toKey != null)
+				rangeQuery.bind(SURT_RANGE_TO_BIND_POS, toKey);
+		} catch (SQLiteException e) {
+			statementCache.checkIn(rangeQuery);
+			handleSQLiteException(e);
+		}
+		return new URLRangeCursor(this, rangeQuery, hasPackedCaptures, hasNormalizedCaptures, domainKey);
+	}
+	
+	public List<ResourceSpec> getClosestURLCrawls(Collection<String> uris, GregorianCalendar referenceDate) 
+			throws SQLiteException, DataFormatException {
+		return getClosestURLCrawls(uris, WBDateTime.fromCalendar(referenceDate));
+	}
+	
+	/**
+	 * Resolve a set of URIs, such as a page and its embedded resources,
+	 * against one reference time. Equivalent to calling getClosestURLCrawl()
+	 * for each URI, but fetches the URLs rows with one query per
+	 * MAX_BATCH_CHUNK_SIZE URIs. On a normalized index each URI takes
+	 * its own pair of index probes.
+	 * @param uris URIs to look up. Duplicates are allowed.
+	 * @param referenceTime epoch seconds.
+	 * @return one result per input URI, in input order. URIs that are not
+	 * in the index get a result whose isFound() is false.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if a URI's captures in the index are malformed.
+	 */
+	public List<ResourceSpec> getClosestURLCrawls(Collection<String> uris, long referenceTime) 
+			throws SQLiteException, DataFormatException {
 		
-		ResourceSpec result = new ResourceSpec(uri, closestTime, crawlFullName);
+		// Distinct URIs, in input order, less those the URL filter rules out:
+		ArrayList<String> distinctURIs = new ArrayList<String>(uris.size());
+		HashMap<String,ResourceSpec> closest = new HashMap<String,ResourceSpec>(uris.size() * 2);
+		for (String uri : uris) {
+			if (!closest.containsKey(uri)) {
+				closest.put(uri, null);
+				if (!isFilteredOut(uri))
+					distinctURIs.add(uri);
+			}
+		}
 		
+		// Bring the crawl catalog up to date once for the whole batch:
+		try {
+			crawlCatalog.refreshIfStale();
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		}
+		
+		if (hasNormalizedCaptures) {
+			for (String uri : distinctURIs)
+				closest.put(uri, getClosestNormalizedURLCrawl(uri, referenceTime));
+		} else {
+			for (int chunkStart = 0; chunkStart < distinctURIs.size(); chunkStart += MAX_BATCH_CHUNK_SIZE) {
+				int chunkEnd = Math.min(chunkStart + MAX_BATCH_CHUNK_SIZE, distinctURIs.size());
+				resolveChunk(distinctURIs, chunkStart, chunkEnd, referenceTime, closest);
+			}
+		}
+		
+		ArrayList<ResourceSpec> result = new ArrayList<ResourceSpec>(uris.size());
+		for (String uri : uris) {
+			ResourceSpec match = closest.get(uri);
+			result.add((match == null) ? ResourceSpec.miss(uri) : match);
+		}
 		return result;
 	}
+	
+	/**
+	 * Look up distinctURIs[chunkStart..chunkEnd) with a single IN query,
+	 * and enter the closest capture of each URI found into 'closest'.
+	 */
+	private void resolveChunk(ArrayList<String> distinctURIs, int chunkStart, int chunkEnd, 
+							  long referenceTime, HashMap<String,ResourceSpec> closest) 
+			throws SQLiteException, DataFormatException {
+		int numURIs = chunkEnd - chunkStart;
+		int numParms = Integer.highestOneBit(numURIs);
+		if (numParms < numURIs)
+			numParms <<= 1;
+		
+		StringBuilder sql = new StringBuilder(hasPackedCaptures ? URL_BATCH_PACKED_QUERY_PREFIX : URL_BATCH_TEXT_QUERY_PREFIX);
+		for (int i = 0; i < numParms; i++)
+			sql.append((i == 0) ? "?" : ",?");
+		sql.append(')');
+		
+		SQLiteStatement batchQuery = null;
+		try {
+			batchQuery = statementCache.checkOut(sql.toString());
+			// Unused parameter slots repeat the chunk's last URI:
+			for (int i = 0; i < numParms; i++)
+				batchQuery.bind(i + 1, distinctURIs.get(chunkStart + Math.min(i, numURIs - 1)));
+			int numFound = 0;
+			while (StatementCache.step(batchQuery)) {
+				numFound++;
+				String uri = batchQuery.columnString(URL_BATCH_QUERY_URL_POS);
+				ResourceSpec match;
+				if (hasPackedCaptures)
+					match = closestPackedCapture(uri, 
+							batchQuery.columnBlob(URL_BATCH_QUERY_FIRST_CAPTURES_POS),
+							batchQuery.columnBlob(URL_BATCH_QUERY_SECOND_CAPTURES_POS), 
+							referenceTime);
+				else
+					match = closestTextCapture(uri, 
+							batchQuery.columnString(URL_BATCH_QUERY_FIRST_CAPTURES_POS),
+							batchQuery.columnString(URL_BATCH_QUERY_SECOND_CAPTURES_POS), 
+							referenceTime);
+				closest.put(uri, match);
+			}
+			for (int i = numFound; i < numURIs; i++)
+				countFalsePositive();
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(batchQuery);
+		}
+	}
 
 	public ArrayList<GregorianCalendar> getAllURLCrawlDates(String uri) throws SQLiteException {		
+		if (isFilteredOut(uri))
+			return null;
+		if (hasNormalizedCaptures) {
+			long[] times = getNormalizedCaptureTimes(uri);
+			if (times == null)
+				return null;
+			ArrayList<GregorianCalendar> result = new ArrayList<GregorianCalendar>(times.length);
+			for (long time : times)
+				result.add(WBDateTime.toCalendar(time));
+			return result;
+		}
+		SQLiteStatement urlDatesQuery = null;
 		try {
-			if (urlDatesQuery.isDisposed())
-				urlDatesQuery = indexDB.prepare(URL_DATES_QUERY);
+			urlDatesQuery = statementCache.checkOut(URL_DATES_QUERY);
 			urlDatesQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
-			while (urlDatesQuery.step()) {
+			while (StatementCache.step(urlDatesQuery)) {
 				// Query returns one column: the crawl dates, separated by semicolons:
 				// as in "2012-04-23 23:45:02; 2011-10-02 15:23:40"
 				String datesStr = urlDatesQuery.columnString(THE_ONLY_COL);
@@ -174,19 +1086,63 @@ public class WBIndex {
 		} catch (SQLiteException e) {
 			handleSQLiteException(e);
 		} finally {
-			urlDatesQuery.dispose();
+			statementCache.checkIn(urlDatesQuery);
+		}
+		return null;
+	}
+	
+	/**
+	 * Like getAllURLCrawlDates(), but without creating a Calendar per capture.
+	 * @param uri URI to look up.
+	 * @return epoch seconds of each capture, in the order stored in the index;
+	 * null if the URI is not in the index.
+	 * @throws SQLiteException
+	 */
+	public long[] getAllURLCrawlTimes(String uri) throws SQLiteException {		
+		if (isFilteredOut(uri))
+			return null;
+		if (hasNormalizedCaptures)
+			return getNormalizedCaptureTimes(uri);
+		SQLiteStatement urlDatesQuery = null;
+		try {
+			urlDatesQuery = statementCache.checkOut(URL_DATES_QUERY);
+			urlDatesQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
+			if (StatementCache.step(urlDatesQuery))
+				return parseWBIndexTimeChain(urlDatesQuery.columnString(THE_ONLY_COL));
+			countFalsePositive();
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			statementCache.checkIn(urlDatesQuery);
 		}
 		return null;
 	}
 
+	/**
+	 * @return epoch seconds of each of the URI's Captures rows, in time
+	 * order; null if the URI is not in the index.
+	 */
+	private long[] getNormalizedCaptureTimes(String uri) throws SQLiteException {
+		long urlID = getURLID(uri);
+		if (urlID < 0) {
+			countFalsePositive();
+			return null;
+		}
+		byte[] timesBlob = packNormalizedCaptures(urlID, Long.MIN_VALUE, Long.MAX_VALUE)[0];
+		long[] result = new long[PackedCaptures.numCaptures(timesBlob)];
+		for (int i = 0; i < result.length; i++)
+			result[i] = PackedCaptures.timeAt(timesBlob, i);
+		return result;
+	}
+
 	private Map<String,String> getURLTableCrawlDatesAndCrawlIDs (String uri) throws SQLiteException {
 		Map<String,String> result = new HashMap<String,String>();
 		result.put("uri", uri);
+		SQLiteStatement urlDatesAndCrawlsQuery = null;
 		try {
-			if (urlDatesAndCrawlsQuery.isDisposed())
-				urlDatesAndCrawlsQuery = indexDB.prepare(URL_DATES_AND_CRAWL_NAMES_QUERY);
+			urlDatesAndCrawlsQuery = statementCache.checkOut(URL_DATES_AND_CRAWL_NAMES_QUERY);
 			urlDatesAndCrawlsQuery.bind(URL_DATES_QUERY_URL_BIND_POS, uri);
-			while (urlDatesAndCrawlsQuery.step()) {
+			while (StatementCache.step(urlDatesAndCrawlsQuery)) {
 				// Query returns two columns: the crawl dates, and a list of 
 				// crawl short-names.
 				// as in ["2012-04-23 23:45:02; 2011-10-02 15:23:40", "0;1"]
@@ -196,49 +1152,49 @@ public class WBIndex {
 		} catch (SQLiteException e) {
 			handleSQLiteException(e);
 		} finally {
-			urlDatesAndCrawlsQuery.dispose();
+			statementCache.checkIn(urlDatesAndCrawlsQuery);
 		}
 		
 		return result;
 	}
 
+	/**
+	 * Look up a crawl by the short-name under which the URLs table
+	 * refers to it. Served from the in-memory crawl catalog; the Crawls
+	 * table is only read when the index file has changed.
+	 * @param shortName crawl short-name, e.g. "0".
+	 * @return the crawl. If the Crawls table has no such crawl, or
+	 * shortName is not an integer, only the shortName field of the
+	 * result is set.
+	 * @throws SQLiteException
+	 * @throws DataFormatException if the Crawls table is malformed.
+	 */
 	public CrawlSpec getCrawlNameFromShortName(String shortName) throws SQLiteException, DataFormatException {
 		
-		CrawlSpec result = new CrawlSpec();
-		result.shortName = shortName;
-		
+		CrawlSpec result = null;
 		try {
-			if (crawlNameQuery.isDisposed())
-				crawlNameQuery = indexDB.prepare(CRAWL_NAME_QUERY);
-			crawlNameQuery.bind(CRAWL_NAME_QUERY_BIND_POS, shortName);
-			while (crawlNameQuery.step()) {
-				// Query returns three columns: [<fullCrawlName>, <earliestDate>, <latestDate>]
-				result.fullName     = crawlNameQuery.columnString(CRAWLS_QUERY_NAME_POS);
-				String earliestDate = crawlNameQuery.columnString(CRAWLS_QUERY_START_DATE_POS);
-				String latestDate   = crawlNameQuery.columnString(CRAWLS_QUERY_END_DATE_POS);
-				
-				if (result.fullName == null || result.fullName.length() == 0)
-					throw new DataFormatException("Full crawl name is null or empty in table URLs for crawlID " + shortName);
-				
-				if (earliestDate != null && earliestDate.length() > 0) {
-					GregorianCalendar date = parseWBIndexDateTime(earliestDate);
-					if (date != null)
-						result.earliestDate = date;
-				}
-				
-				if (latestDate != null && latestDate.length() > 0) {
-					GregorianCalendar  date = parseWBIndexDateTime(latestDate);
-					if (date != null)
-						result.latestDate = date;
-				}
-			}
+			result = getCrawlSpec(Integer.parseInt(shortName.trim()));
+		} catch (NumberFormatException e) {
+			// Crawls are keyed by integer short-names; no crawl has this one.
+		}
+		if (result == null)
+			result = new CrawlSpec(shortName, null, WBDateTime.NO_TIME, WBDateTime.NO_TIME);
+		return result;
+	}
+	
+	/**
+	 * @param shortName integer crawl short-name.
+	 * @return the crawl, or null if the Crawls table has no such crawl.
+	 * @throws SQLiteException
+	 * @throws DataFormatException
+	 */
+	public CrawlSpec getCrawlSpec(int shortName) throws SQLiteException, DataFormatException {
+		try {
+			return crawlCatalog.get(shortName);
 		} catch (SQLiteException e) {
 			handleSQLiteException(e);
-		} finally {
-			crawlNameQuery.dispose();
 		}
-		
-		return result;
+		return null;
 	}
 	
 	
@@ -250,22 +1206,8 @@ public class WBIndex {
 	 * @param dateTime: String of space-separated date and time. 
 	 * @return GregorianCalendar instance wrapping the given date/time.
 	 */
-	private GregorianCalendar parseWBIndexDateTime(String dateTimeStr) {
-			// Separate date from time:
-			String[] dateTime    = dateTimeStr.split(" ");
-			// Get e.g. [2012,04,23]:
-			String[] dateArray   = dateTime[0].split("-");
-			// Get e.g. [23,45,02]:
-			String[] timeArray   =  dateTime[1].split(":");
-			// The 'minus 1' is because calendar seems to have month
-			// 0-based, yet everything else is 1-based:
-			GregorianCalendar cal = new GregorianCalendar (Integer.parseInt(dateArray[0]), 
-														   Integer.parseInt(dateArray[1]) - 1, 
-														   Integer.parseInt(dateArray[2]),
-														   Integer.parseInt(timeArray[0]),
-														   Integer.parseInt(timeArray[1]),
-														   Integer.parseInt(timeArray[2]));
-			return cal;
+	GregorianCalendar parseWBIndexDateTime(String dateTimeStr) {
+		return WBDateTime.toCalendar(WBDateTime.parseEpochSeconds(dateTimeStr));
 	}
 	
 	/**
@@ -278,53 +1220,150 @@ public class WBIndex {
 	 * one of the passed-in date/time string segments. If input is an empty string,
 	 * and empty ArrayList is returned.
 	 */
-	private ArrayList<GregorianCalendar> parseWBIndexDateChain(String dateChainStr) {
+	ArrayList<GregorianCalendar> parseWBIndexDateChain(String dateChainStr) {
 		
-		ArrayList<GregorianCalendar> result = new ArrayList<GregorianCalendar>(); 
-		String[] dates  = dateChainStr.split(";");
-		for (String oneDate : dates) {
-			result.add(parseWBIndexDateTime(oneDate));
+		long[] times = parseWBIndexTimeChain(dateChainStr);
+		ArrayList<GregorianCalendar> result = new ArrayList<GregorianCalendar>(times.length); 
+		for (long time : times) {
+			result.add(WBDateTime.toCalendar(time));
+		}
+		return result;
+	}
+	
+	/**
+	 * Like parseWBIndexDateChain(), but returns epoch seconds. Parses the
+	 * date/times in place rather than splitting the string.
+	 * @param dateChainStr: semi-colon-separated list of "yyyy-MM-dd hh:mm:ss". 
+	 * @return epoch seconds of each date/time, in input order. Empty
+	 * array if input is an empty string.
+	 * @throws NumberFormatException if a date/time is malformed.
+	 */
+	static long[] parseWBIndexTimeChain(String dateChainStr) {
+		int len = dateChainStr.length();
+		int numDates = 0;
+		for (int pos = 0; pos < len; pos++) {
+			int sep = dateChainStr.indexOf(';', pos);
+			if (sep < 0)
+				sep = len;
+			if (skipBlanks(dateChainStr, pos, sep) < sep)
+				numDates++;
+			pos = sep;
+		}
+		long[] result = new long[numDates];
+		int i = 0;
+		for (int pos = 0; pos < len; pos++) {
+			int sep = dateChainStr.indexOf(';', pos);
+			if (sep < 0)
+				sep = len;
+			pos = skipBlanks(dateChainStr, pos, sep);
+			if (pos < sep)
+				result[i++] = WBDateTime.parseEpochSeconds(dateChainStr, pos, sep);
+			pos = sep;
 		}
 		return result;
 	}
 
 	
 	public static String calendarToString(GregorianCalendar cal) {
-		SimpleDateFormat dateFormat = new SimpleDateFormat();
-		dateFormat.applyLocalizedPattern("yyyy-MM-dd HH:mm:ss");
-		String dateTimeStr = dateFormat.format(cal.getTime());
-		return dateTimeStr;
+		return WBDateTime.formatDateTime(WBDateTime.fromCalendar(cal));
 	}
 	
+	/**
+	 * Run an arbitrary query, and return all its rows as strings. Holds
+	 * the whole result in memory; for large results, use query().
+	 * @param numColsExpected number of leading columns to return of each row.
+	 * @return the rows; each printed as it is read if verbose > 0.
+	 * @throws SQLiteException
+	 */
 	public List<String[]>poseRawQuery(String sqlStr, int numColsExpected) throws SQLiteException {
-		SQLiteStatement st = null;
 		String[] row;
 		ArrayList<String[]> result = new ArrayList<String[]>();
+		QueryCursor rows = null;
 		
 		try {
-			st = indexDB.prepare(sqlStr);
-		} catch (SQLiteException e) {
-			handleSQLiteException(e);
-		}
-		while (st.step()) {
-			row = new String[numColsExpected];
-			for (int i=0; i<numColsExpected; i++) {
-				row[i] = st.columnString(i);
-			}
-			result.add(row);
-			if (verbose > 0) {
-				Iterator<String[]> it = (Iterator<String[]>) result.iterator();
-				System.out.print("[");
-				while (it.hasNext()) {
-					for (String col : it.next()) {
-						System.out.println(col);
-					}
+			rows = query(sqlStr);
+			while (rows.next()) {
+				row = new String[numColsExpected];
+				for (int i=0; i<numColsExpected; i++) {
+					row[i] = rows.getString(i);
 				}
-				System.out.println("]");
+				result.add(row);
+				if (verbose > 0)
+					System.out.println(Arrays.toString(row));
 			}
+		} catch (SQLiteException e) {
+			handleSQLiteException(e);
+		} finally {
+			if (rows != null)
+				rows.close();
 		}
 		return result;
 	}
+	
+	/**
+	 * Start an arbitrary query, e.g. over a Crawl_* table, whose rows
+	 * are read one at a time as the returned cursor advances. The
+	 * statement is compiled for the cursor, and disposed when the cursor
+	 * closes. It stays out of the index's statement cache, so that
+	 * ad-hoc queries do not evict the statements of the lookups.
+	 * @param sql the query, with a '?' for each parameter.
+	 * @param params values of the parameters, in order; see QueryCursor.bind().
+	 * @return cursor before the first row. Must be closed, unless run to its end.
+	 * @throws SQLiteException if the query does not compile, or the parameters do not fit.
+	 */
+	public QueryCursor query(String sql, Object... params) throws SQLiteException {
+		Metrics.SQLITE_PREPARES.increment();
+		SQLiteStatement statement = indexDB.prepare(sql, false);
+		try {
+			QueryCursor.bind(statement, params);
+			return new QueryCursor(statement);
+		} catch (SQLiteException e) {
+			statement.dispose();
+			throw e;
+		} catch (RuntimeException e) {
+			statement.dispose();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @param filter Bloom filter over this index's URLs, asked before each
+	 *        lookup by URL; null to probe the database for every URL.
+	 */
+	public void setURLFilter(URLFilter filter) {
+		urlFilter = filter;
+	}
+	
+	public URLFilter getURLFilter() {
+		return urlFilter;
+	}
+	
+	/**
+	 * @return true if the URL filter rules out that the index holds the URI.
+	 */
+	private boolean isFilteredOut(String uri) {
+		return (urlFilter != null) && !urlFilter.mightContain(uri);
+	}
+	
+	private void countFalsePositive() {
+		if (urlFilter != null)
+			urlFilter.countFalsePositive();
+	}
+	
+	/**
+	 * @return number of lookups that reused an already prepared statement.
+	 */
+	public long getStatementCacheHits() {
+		return statementCache.getNumHits();
+	}
+	
+	/**
+	 * @return number of lookups that had to compile their SQL. In steady
+	 * state this stays at the number of distinct statements used.
+	 */
+	public long getStatementCacheMisses() {
+		return statementCache.getNumMisses();
+	}
 
 	@SuppressWarnings("unused")
 	private void log(Object obj) {
@@ -377,8 +1416,8 @@ public class WBIndex {
 //			System.out.println("crawlLookupFromShortName is null.");
 //		else
 //			System.out.println("Crawl lookup of '0': Name is " + crawlLookupFromShortName.fullName +
-//								"; Earliest date is " +  WBIndex.calendarToString(crawlLookupFromShortName.earliestDate) +
-//								"; Latest date is " + WBIndex.calendarToString(crawlLookupFromShortName.latestDate));
+//								"; Earliest date is " +  WBIndex.calendarToString(crawlLookupFromShortName.getEarliestDate()) +
+//								"; Latest date is " + WBIndex.calendarToString(crawlLookupFromShortName.getLatestDate()));
 //
 		// Test getting closest crawl date and crawl name for given URI and reference date:
 		// Ref date equal to first date in list:
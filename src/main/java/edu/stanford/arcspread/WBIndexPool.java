@@ -0,0 +1,497 @@
+package edu.stanford.arcspread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+
+import com.almworks.sqlite4java.SQLiteBusyException;
+import com.almworks.sqlite4java.SQLiteConstants;
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * Pool of thread-confined, read-only WBIndex instances over one
+ * WebBase index file. sqlite4java connections may only be used by
+ * one thread at a time, so a single WBIndex cannot be shared among
+ * the HTTPCommandDispatcher workers. Instead, each thread that calls
+ * getIndex() leases a WBIndex of its own, with its own connection and
+ * prepared statements, and keeps it until it calls releaseIndex().
+ * Lookups from different workers thus run in parallel against the
+ * same index file.
+ *
+ * Leases are meant to be short: the dispatcher releases the calling
+ * thread's instance after each request, so that a thread that waits
+ * for its connection's next request holds no slot. A connection never
+ * leaves the thread that opened it: releaseIndex() closes the
+ * instance on the releasing thread, and the next lease opens a new
+ * one.
+ *
+ * The number of connections is capped at the pool size. When all
+ * slots are leased, getIndex() first sweeps for leaked instances,
+ * i.e. instances whose owning thread terminated without calling
+ * releaseIndex(). If none are found it waits up to acquireTimeout
+ * msecs for a slot before failing with SQLITE_BUSY. The sweep only
+ * frees the leaked slots; no other thread may close a connection, so
+ * a leaked one stays open until the process exits. Threads wait on a
+ * lock condition rather than a monitor, so that waiting virtual
+ * threads do not pin their carrier threads.
+ *
+ * If the index file was compiled by MappedIndexCompiler, there are no
+ * connections to confine: getIndex() hands every thread the same
+ * MappedURLIndex, and the pool size does not apply.
+ *
+ * If the index path names a directory of shard files written by
+ * Resharder, each thread receives a ShardedWBIndex instead, which
+ * holds one connection per shard, opened as needed. The slot count
+ * then applies to ShardedWBIndex instances. Their batch and range
+ * queries fan out over the worker threads of the pool's IndexShards.
+ *
+ * After enableURLFilter(), all of the pool's WBIndex instances share
+ * one URLFilter, which answers lookups of URIs that are not in the
+ * index without a database probe. For a sharded index, each shard has
+ * its own filter.
+ *
+ * @author Paepcke
+ *
+ */
+public class WBIndexPool {
+
+	/* Default max # of connections; one per dispatcher worker, plus slack for handler threads */
+	static int DEFAULT_POOL_SIZE = HTTPCommandDispatcher.NUM_WORKERS + 3;
+	/* Default msecs getIndex() waits for a free slot */
+	static long DEFAULT_ACQUIRE_TIMEOUT = 5000;
+
+	String webBaseIndexPath = null;
+	int poolSize = DEFAULT_POOL_SIZE;
+	long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+	volatile boolean closed = false;
+
+	/* Shared by all threads if the index file is compiled; see MappedURLIndex */
+	private volatile MappedURLIndex mappedIndex = null;
+	/* Set if the index path is a directory of shards; see ShardedWBIndex */
+	private volatile IndexShards shards = null;
+	private volatile boolean formatChecked = false;
+	/* Handed to every WBIndex of the pool; null for none */
+	private volatile URLFilter urlFilter = null;
+	/* The calling thread's WBIndex or ShardedWBIndex, if it holds one */
+	private final ThreadLocal<CaptureIndex> threadIndex = new ThreadLocal<CaptureIndex>();
+	/* Guards the fields below */
+	private final ReentrantLock lock = new ReentrantLock();
+	/* Signaled when a slot is released, or the pool closes */
+	private final Condition slotFreed = lock.newCondition();
+	/* All leased instances by owning thread */
+	private final HashMap<Thread, CaptureIndex> leases = new HashMap<Thread, CaptureIndex>();
+
+	private long numOpened = 0;
+	private long numReleased = 0;
+	private long numLeaked = 0;
+
+	public WBIndexPool(String theWebBaseIndexPath) {
+		this(theWebBaseIndexPath, DEFAULT_POOL_SIZE);
+	}
+
+	public WBIndexPool(String theWebBaseIndexPath, int thePoolSize) {
+		if (thePoolSize < 1)
+			throw new IllegalArgumentException("WBIndex pool size must be at least 1; was " + thePoolSize);
+		webBaseIndexPath = theWebBaseIndexPath;
+		poolSize = thePoolSize;
+	}
+
+	/**
+	 * Return the calling thread's WBIndex. If the thread does not hold
+	 * one yet, open a new read-only connection.
+	 * The result must only be used by the calling thread, until it calls
+	 * releaseIndex(). For a compiled index, return the
+	 * MappedURLIndex that all threads share; for a sharded one, the
+	 * thread's ShardedWBIndex.
+	 *
+	 * @return index for the calling thread.
+	 * @throws SQLiteException if the pool is closed, if no slot frees up within
+	 *         acquireTimeout msecs, or if the index cannot be opened.
+	 */
+	public CaptureIndex getIndex() throws SQLiteException {
+		if (!formatChecked)
+			checkFormat();
+		MappedURLIndex mapped = mappedIndex;
+		if (mapped != null) {
+			if (closed)
+				throw new SQLiteException(SQLiteConstants.WRAPPER_NOT_OPENED,
+						"WebBase index pool for '" + webBaseIndexPath + "' is closed.");
+			return mapped;
+		}
+		CaptureIndex index = threadIndex.get();
+		if (index != null) {
+			if (index.isOpen() && !closed) {
+				if (index instanceof WBIndex)
+					((WBIndex) index).urlFilter = urlFilter;
+				return index;
+			}
+			// Pool was closed since this thread last looked, or the
+			// instance was closed behind our back. Only the owning
+			// thread may dispose the connection:
+			releaseIndex();
+		}
+		Thread me = Thread.currentThread();
+		lock.lock();
+		try {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+			while (!closed && leases.size() >= poolSize) {
+				if (sweepLeaksLocked() > 0)
+					continue;
+				long timeLeft = deadline - System.nanoTime();
+				if (timeLeft <= 0)
+					throw new SQLiteBusyException(SQLiteConstants.SQLITE_BUSY,
+							"WebBase index pool exhausted: all " + poolSize +
+							" connections are held by other threads: " + leases.keySet());
+				try {
+					slotFreed.awaitNanos(timeLeft);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLiteBusyException(SQLiteConstants.SQLITE_BUSY,
+							"Interrupted while waiting for a WebBase index connection.");
+				}
+			}
+			if (closed)
+				throw new SQLiteException(SQLiteConstants.WRAPPER_NOT_OPENED,
+						"WebBase index pool for '" + webBaseIndexPath + "' is closed.");
+			// Reserve the slot before a (slow) open, so that other
+			// threads see the correct count:
+			leases.put(me, null);
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (shards != null) {
+				index = new ShardedWBIndex(shards);
+			} else {
+				WBIndex wbIndex = new WBIndex(webBaseIndexPath, true);
+				wbIndex.setURLFilter(urlFilter);
+				index = wbIndex;
+			}
+		} catch (SQLiteException e) {
+			lock.lock();
+			try {
+				leases.remove(me);
+				slotFreed.signal();
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+		lock.lock();
+		try {
+			leases.put(me, index);
+			numOpened++;
+		} finally {
+			lock.unlock();
+		}
+		threadIndex.set(index);
+		return index;
+	}
+
+	/**
+	 * Find out, once, whether the index is a directory of shards or a
+	 * compiled file, and if so, open the shards or map the file.
+	 */
+	private void checkFormat() throws SQLiteException {
+		lock.lock();
+		try {
+			if (formatChecked)
+				return;
+			File indexFile = getIndexFile();
+			if (indexFile.isDirectory())
+				shards = new IndexShards(indexFile.getPath());
+			else if (MappedURLIndex.isCompiledIndex(indexFile)) {
+				try {
+					mappedIndex = new MappedURLIndex(indexFile.getPath());
+				} catch (IOException e) {
+					throw new SQLiteException(SQLiteConstants.SQLITE_CANTOPEN,
+							"Cannot map compiled WebBase index " + indexFile + ": " + e.getMessage());
+				} catch (DataFormatException e) {
+					throw new SQLiteException(SQLiteConstants.SQLITE_CORRUPT, e.getMessage());
+				}
+			}
+			formatChecked = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the pool serves a compiled index through a MappedURLIndex.
+	 */
+	public boolean isCompiled() throws SQLiteException {
+		if (!formatChecked)
+			checkFormat();
+		return mappedIndex != null;
+	}
+
+	/**
+	 * @return true if the pool serves a directory of shards through ShardedWBIndex instances.
+	 */
+	public boolean isSharded() throws SQLiteException {
+		if (!formatChecked)
+			checkFormat();
+		return shards != null;
+	}
+
+	/**
+	 * Put a Bloom filter over the index's URLs in front of all lookups.
+	 * Loads the filter from its sidecar file, or builds it from the URLs
+	 * table on the calling thread; see URLFilter. A sharded index gets
+	 * one filter per shard. Ignored for a compiled index, whose misses
+	 * cost no more than a filter check.
+	 *
+	 * @param falsePositiveRate fraction of absent URIs the filter may
+	 *        pass on to the database; 0 removes the filter.
+	 * @throws SQLiteException if the filter had to be built, and the URLs table could not be read.
+	 */
+	public void enableURLFilter(double falsePositiveRate) throws SQLiteException {
+		if (falsePositiveRate <= 0) {
+			urlFilter = null;
+			return;
+		}
+		if (isCompiled()) {
+			TimeGate.log("WBIndexPool: " + getIndexFile() + " is a compiled index; it needs no URL filter.");
+			return;
+		}
+		if (isSharded()) {
+			shards.enableURLFilters(falsePositiveRate);
+			return;
+		}
+		urlFilter = new URLFilter(getIndexFile().getPath(), falsePositiveRate);
+	}
+
+	/**
+	 * Open a read-only connection to each of the index's files, as the
+	 * pool's threads will, with WBIndex.readProfile applied. If the
+	 * profile asks for it, warm the file up (see WBIndex.warmUp()).
+	 * The connections are closed again, so only the OS's file cache
+	 * stays warm; the pool's own connections start with empty page
+	 * caches. Meant for startup, on the calling thread.
+	 * @return the effective SQLite settings, one line per index file.
+	 * @throws SQLiteException if an index file cannot be opened or read.
+	 */
+	public String checkSQLiteSettings() throws SQLiteException {
+		if (isCompiled())
+			return getIndexFile() + ": compiled index; SQLite settings do not apply.";
+		StringBuilder report = new StringBuilder();
+		for (File indexFile : getIndexFiles()) {
+			WBIndex index = new WBIndex(indexFile.getPath(), true);
+			try {
+				if (report.length() > 0)
+					report.append('\n');
+				report.append(indexFile.getName()).append(": ").append(index.describeSettings());
+				if (WBIndex.readProfile.isWarmUp()) {
+					long start = System.nanoTime();
+					long numURLs = index.warmUp();
+					report.append("; read ").append(numURLs).append(" URL keys into the OS file cache in ")
+						  .append((System.nanoTime() - start) / 1000000).append(" ms");
+				}
+			} finally {
+				index.close();
+			}
+		}
+		return report.toString();
+	}
+
+	/**
+	 * @return the pool's URL filter; null if none was enabled.
+	 */
+	public URLFilter getURLFilter() {
+		return urlFilter;
+	}
+
+	/**
+	 * Close the calling thread's WBIndex, if it holds one, and free its
+	 * slot for the next thread that needs one. Threads must release
+	 * their instance before they terminate; otherwise their slot is only
+	 * reclaimed by the leak sweep, and their connection stays open.
+	 */
+	public void releaseIndex() {
+		CaptureIndex index = threadIndex.get();
+		if (index == null)
+			return;
+		threadIndex.remove();
+		// sqlite4java connections may only be closed by their own thread:
+		if (index.isOpen())
+			index.close();
+		lock.lock();
+		try {
+			leases.remove(Thread.currentThread());
+			numReleased++;
+			slotFreed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reclaim the slots of instances whose owning thread has terminated
+	 * without calling releaseIndex(). Their connections are confined to
+	 * the dead thread, and stay open. The leaks are reported so that the
+	 * offending code can be found.
+	 *
+	 * @return number of leaked instances reclaimed.
+	 */
+	public int sweepLeaks() {
+		lock.lock();
+		try {
+			return sweepLeaksLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int sweepLeaksLocked() {
+		int numFound = 0;
+		Iterator<Map.Entry<Thread, CaptureIndex>> it = leases.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Thread, CaptureIndex> lease = it.next();
+			Thread owner = lease.getKey();
+			if (owner.isAlive())
+				continue;
+			it.remove();
+			numFound++;
+			TimeGate.log("WBIndexPool: thread '" + owner.getName() +
+					"' terminated without releasing its WebBase index connection to " +
+					webBaseIndexPath + "; the connection stays open.");
+		}
+		if (numFound > 0) {
+			numLeaked += numFound;
+			slotFreed.signalAll();
+		}
+		return numFound;
+	}
+
+	/**
+	 * Close the pool. The calling thread's instance is closed right away.
+	 * Other threads' instances are closed by their owners on their next
+	 * call to getIndex() or releaseIndex().
+	 * The worker threads of a sharded index close their connections as
+	 * they exit.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			slotFreed.signalAll();
+			if (mappedIndex != null)
+				mappedIndex.close();
+			if (shards != null)
+				shards.close();
+		} finally {
+			lock.unlock();
+		}
+		releaseIndex();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public String getIndexPath() {
+		return webBaseIndexPath;
+	}
+
+	/**
+	 * @return the index file the pool's connections open; the test
+	 * index if the pool was given no path. For a sharded index, the
+	 * directory of shards.
+	 */
+	public File getIndexFile() {
+		return new File((webBaseIndexPath == null) ? WBIndex.TEST_INDEX_PATH : webBaseIndexPath);
+	}
+
+	/**
+	 * @return the files that make up the index: its shards if it is
+	 * sharded, else just the index file.
+	 */
+	public File[] getIndexFiles() throws SQLiteException {
+		if (isSharded())
+			return shards.getShardFiles();
+		return new File[] { getIndexFile() };
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public void setPoolSize(int newPoolSize) {
+		if (newPoolSize < 1)
+			throw new IllegalArgumentException("WBIndex pool size must be at least 1; was " + newPoolSize);
+		lock.lock();
+		try {
+			poolSize = newPoolSize;
+			slotFreed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void setAcquireTimeout(long msecs) {
+		acquireTimeout = msecs;
+	}
+
+	public int getNumActive() {
+		lock.lock();
+		try {
+			return leases.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getNumOpened() {
+		lock.lock();
+		try {
+			return numOpened;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getNumReleased() {
+		lock.lock();
+		try {
+			return numReleased;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getNumLeaked() {
+		lock.lock();
+		try {
+			return numLeaked;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return names of the threads that currently hold an instance.
+	 */
+	public ArrayList<String> getLeaseHolders() {
+		lock.lock();
+		try {
+			ArrayList<String> result = new ArrayList<String>();
+			for (Thread owner : leases.keySet())
+				result.add(owner.getName());
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String toString() {
+		return "WBIndexPool[" + webBaseIndexPath + ": " + getNumActive() + "/" + poolSize +
+				" active, " + getNumLeaked() + " leaked]";
+	}
+}
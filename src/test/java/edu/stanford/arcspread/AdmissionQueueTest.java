@@ -0,0 +1,118 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AdmissionQueueTest {
+
+	/**
+	 * Unconnected socket that claims to come from the given client.
+	 */
+	private static Socket from(int client) throws UnknownHostException {
+		final InetAddress address = InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) client });
+		return new Socket() {
+			@Override
+			public InetAddress getInetAddress() {
+				return address;
+			}
+		};
+	}
+
+	@Test
+	public void unfairQueueShedsArrivals() throws Exception {
+		AdmissionQueue queue = new AdmissionQueue(2, false);
+		Socket first = from(1);
+		Socket second = from(2);
+		Socket third = from(3);
+		assertNull(queue.add(first, 1));
+		assertNull(queue.add(second, 2));
+		assertSame(third, queue.add(third, 3).socket);
+		assertEquals(2, queue.size());
+		assertSame(first, queue.poll().socket);
+		assertSame(second, queue.poll().socket);
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void fairQueueShedsNewestOfLongestClient() throws Exception {
+		AdmissionQueue queue = new AdmissionQueue(4, true);
+		Socket[] crawler = { from(1), from(1), from(1) };
+		for (int i = 0; i < crawler.length; i++)
+			assertNull(queue.add(crawler[i], i));
+		Socket[] other = { from(2), from(2) };
+		assertNull(queue.add(other[0], 10));
+		// Full: the crawler's newest connection makes room:
+		assertSame(crawler[2], queue.add(other[1], 11).socket);
+		assertEquals(4, queue.size());
+		assertEquals(2, queue.numClients());
+
+		// Clients take turns:
+		assertSame(crawler[0], queue.poll().socket);
+		assertSame(other[0], queue.poll().socket);
+		assertSame(crawler[1], queue.poll().socket);
+		assertSame(other[1], queue.poll().socket);
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void fairQueueShedsArrivalOfLongestClient() throws Exception {
+		AdmissionQueue queue = new AdmissionQueue(3, true);
+		assertNull(queue.add(from(1), 0));
+		assertNull(queue.add(from(1), 1));
+		assertNull(queue.add(from(2), 2));
+		Socket arrival = from(1);
+		assertSame(arrival, queue.add(arrival, 3).socket);
+		// A new client still gets in, at the longest client's expense:
+		AdmissionQueue.Entry shed = queue.add(from(3), 4);
+		assertEquals(from(1).getInetAddress(), shed.socket.getInetAddress());
+		assertEquals(1, shed.acceptedAt);
+		assertEquals(3, queue.size());
+		assertEquals(3, queue.numClients());
+	}
+
+	@Test
+	public void fairQueueShedsOnlyConnectionOfAClient() throws Exception {
+		AdmissionQueue queue = new AdmissionQueue(2, true);
+		Socket first = from(1);
+		Socket second = from(2);
+		Socket third = from(3);
+		assertNull(queue.add(first, 0));
+		assertNull(queue.add(second, 1));
+		// All queues are equally long; the first client's goes:
+		assertSame(first, queue.add(third, 2).socket);
+		assertEquals(2, queue.size());
+		assertEquals(2, queue.numClients());
+		assertSame(second, queue.poll().socket);
+		assertSame(third, queue.poll().socket);
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void removesExpiredConnections() throws Exception {
+		AdmissionQueue queue = new AdmissionQueue(10, true);
+		Socket old1 = from(1);
+		Socket old2 = from(2);
+		queue.add(old1, 100);
+		queue.add(from(1), 300);
+		queue.add(old2, 150);
+		queue.add(from(3), 400);
+		List<AdmissionQueue.Entry> expired = queue.removeExpired(200);
+		assertEquals(2, expired.size());
+		assertSame(old1, expired.get(0).socket);
+		assertSame(old2, expired.get(1).socket);
+		assertEquals(2, queue.size());
+		assertEquals(2, queue.numClients());
+		assertEquals(300, queue.poll().acceptedAt);
+		assertEquals(400, queue.poll().acceptedAt);
+	}
+}
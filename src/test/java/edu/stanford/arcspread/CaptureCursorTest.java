@@ -0,0 +1,68 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureCursorTest {
+
+	private WBIndex index;
+
+	@Before
+	public void openIndex() throws Exception {
+		index = new WBIndex(WBIndex.TEST_INDEX_PATH, true);
+	}
+
+	@After
+	public void closeIndex() {
+		index.close();
+	}
+
+	@Test
+	public void textRowInReverseOrderIsWalkedAscending() throws Exception {
+		// datesCrawled: "2012-05-07 02:51:56;2011-11-13 14:51:56", crawlIDs: "0;1"
+		CaptureCursor cursor = index.getCaptures("http://agr.wa.gov/robots.txt", Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(2, cursor.getNumTotal());
+		assertTrue(cursor.next());
+		assertEquals(WBDateTime.parseEpochSeconds("2011-11-13 14:51:56"), cursor.getTime());
+		assertEquals(1, cursor.getCrawlShortName());
+		assertTrue(cursor.isFirst());
+		assertTrue(cursor.next());
+		assertEquals(WBDateTime.parseEpochSeconds("2012-05-07 02:51:56"), cursor.getTime());
+		assertEquals(0, cursor.getCrawlShortName());
+		assertTrue(cursor.isLast());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void textRowInOrderIsWalkedAscending() throws Exception {
+		// datesCrawled: "2011-11-13 14:10:41;2012-05-07 06:10:41", crawlIDs: "0;1"
+		CaptureCursor cursor = index.getCaptures("http://agr.wa.gov/PestFert/natresources/leftmenu.htm",
+												 Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(WBDateTime.parseEpochSeconds("2011-11-13 14:10:41"), cursor.getFirstTime());
+		assertEquals(WBDateTime.parseEpochSeconds("2012-05-07 06:10:41"), cursor.getLastTime());
+		assertTrue(cursor.next());
+		assertEquals(0, cursor.getCrawlShortName());
+	}
+
+	@Test
+	public void rangeRestrictsCaptures() throws Exception {
+		long from = WBDateTime.parseEpochSeconds("2012-01-01 00:00:00");
+		CaptureCursor cursor = index.getCaptures("http://agr.wa.gov", from, Long.MAX_VALUE);
+		assertEquals(1, cursor.getNumInRange());
+		assertTrue(cursor.next());
+		assertEquals(WBDateTime.parseEpochSeconds("2012-05-07 02:52:13"), cursor.getTime());
+		assertFalse(cursor.isFirst());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void unknownURIHasNoCursor() throws Exception {
+		assertNull(index.getCaptures("http://example.com/", Long.MIN_VALUE, Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,79 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.stanford.arcspread.WBIndex.CrawlSpec;
+
+public class CrawlCatalogTest {
+
+	private static CrawlSpec crawl(int shortName) {
+		return new CrawlSpec(Integer.toString(shortName), "crawl" + shortName, WBDateTime.NO_TIME, WBDateTime.NO_TIME);
+	}
+
+	@Test
+	public void denseShortNamesUseAnArray() {
+		CrawlSpec c0 = crawl(0);
+		CrawlSpec c2 = crawl(2);
+		CrawlCatalog.Table table = new CrawlCatalog.Table(Arrays.asList(c2, c0));
+		assertFalse(table.isSparse());
+		assertSame(c0, table.get(0));
+		assertNull(table.get(1));
+		assertSame(c2, table.get(2));
+		assertNull(table.get(3));
+		assertNull(table.get(-1));
+		assertEquals(Arrays.asList(c0, c2), table.getAll());
+	}
+
+	@Test
+	public void sparseShortNamesUseAMap() {
+		CrawlSpec small = crawl(1);
+		CrawlSpec huge = crawl(Integer.MAX_VALUE);
+		CrawlCatalog.Table table = new CrawlCatalog.Table(Arrays.asList(huge, small));
+		assertTrue(table.isSparse());
+		assertSame(small, table.get(1));
+		assertSame(huge, table.get(Integer.MAX_VALUE));
+		assertNull(table.get(2));
+		assertEquals(Arrays.asList(small, huge), table.getAll());
+	}
+
+	@Test
+	public void emptyTableFindsNothing() {
+		CrawlCatalog.Table table = new CrawlCatalog.Table(new ArrayList<CrawlSpec>());
+		assertNull(table.get(0));
+		assertEquals(0, table.size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void getAllIsUnmodifiable() {
+		new CrawlCatalog.Table(Arrays.asList(crawl(0))).getAll().clear();
+	}
+
+	@Test
+	public void crawlSpecHandsOutFreshCalendars() {
+		CrawlSpec spec = new CrawlSpec("0", "crawl0", 1336359116L, WBDateTime.NO_TIME);
+		spec.getEarliestDate().add(java.util.Calendar.YEAR, 1);
+		assertEquals(1336359116000L, spec.getEarliestDate().getTimeInMillis());
+		assertNull(spec.getLatestDate());
+	}
+
+	@Test
+	public void unknownShortNameKeepsItsContract() throws Exception {
+		WBIndex index = new WBIndex(WBIndex.TEST_INDEX_PATH, true);
+		try {
+			CrawlSpec spec = index.getCrawlNameFromShortName("not-a-number");
+			assertEquals("not-a-number", spec.shortName);
+			assertNull(spec.fullName);
+		} finally {
+			index.close();
+		}
+	}
+}
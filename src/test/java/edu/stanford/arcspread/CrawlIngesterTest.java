@@ -0,0 +1,107 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+public class CrawlIngesterTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static long time(String dateTime) {
+		return WBDateTime.parseEpochSeconds(dateTime);
+	}
+
+	@Test
+	public void appendsOnlyCapturesNotHeld() {
+		// Row order is not time order; one time is held by two crawls:
+		long[] oldTimes = { time("2012-05-07 02:51:56"), time("2011-11-13 14:51:56"), time("2011-11-13 14:51:56") };
+		int[] oldCrawlIDs = { 0, 1, 2 };
+		long[] times = { time("2010-01-01 00:00:00"), time("2011-11-13 14:51:56"),
+						 time("2012-05-07 02:51:56"), time("2013-01-01 00:00:00") };
+		StringBuilder dates = new StringBuilder("old");
+		StringBuilder crawlIDs = new StringBuilder("old");
+		int numAdded = CrawlIngester.appendNewCaptures(oldTimes, oldCrawlIDs, times, times.length, 2, dates, crawlIDs);
+		// Only 2011-11-13 is held by crawl 2; 2012-05-07 is crawl 0's:
+		assertEquals(3, numAdded);
+		assertEquals("old;2010-01-01 00:00:00;2012-05-07 02:51:56;2013-01-01 00:00:00", dates.toString());
+		assertEquals("old;2;2;2", crawlIDs.toString());
+	}
+
+	@Test
+	public void appendsEverythingToAnEmptyRow() {
+		long[] times = { time("2010-01-01 00:00:00"), time("2011-01-01 00:00:00") };
+		StringBuilder dates = new StringBuilder();
+		StringBuilder crawlIDs = new StringBuilder();
+		assertEquals(2, CrawlIngester.appendNewCaptures(new long[0], new int[0], times, times.length, 7, dates, crawlIDs));
+		assertEquals("2010-01-01 00:00:00;2011-01-01 00:00:00", dates.toString());
+		assertEquals("7;7", crawlIDs.toString());
+	}
+
+	@Test
+	public void reloadingALogAddsNoCaptures() throws Exception {
+		File index = tmp.newFile("index.db");
+		Files.copy(new File(WBIndex.TEST_INDEX_PATH).toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		File log = tmp.newFile("crawl.log");
+		FileOutputStream out = new FileOutputStream(log);
+		try {
+			out.write(("2011-11-13 14:51:56\thttp://agr.wa.gov\t/robots.txt\n" +
+					   "2012-05-07 02:51:56\thttp://agr.wa.gov\t/robots.txt\n" +
+					   "2013-01-01 00:00:00\thttp://agr.wa.gov\t/robots.txt\n" +
+					   "2013-01-01 00:00:00\thttp://agr.wa.gov\t/robots.txt\n" +
+					   "2013-01-01 00:00:00\thttp://new.org\t\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		// state-05-2012-text is crawl 1; the row holds its first capture already:
+		CrawlIngester ingester = ingest(index, log);
+		assertEquals(5, ingester.getNumCaptures());
+		assertEquals(2, ingester.getNumDuplicates());
+		assertEquals(1, ingester.getNumNewURLs());
+		assertEquals(1, ingester.getNumUpdatedURLs());
+		String[] row = urlsRow(index, "http://agr.wa.gov/robots.txt");
+		assertEquals("2012-05-07 02:51:56;2011-11-13 14:51:56;2012-05-07 02:51:56;2013-01-01 00:00:00", row[0]);
+		assertEquals("0;1;1;1", row[1]);
+
+		ingester = ingest(index, log);
+		assertEquals(5, ingester.getNumDuplicates());
+		assertEquals(0, ingester.getNumNewURLs());
+		assertEquals(0, ingester.getNumUpdatedURLs());
+		assertEquals("0;1;1;1", urlsRow(index, "http://agr.wa.gov/robots.txt")[1]);
+	}
+
+	private static CrawlIngester ingest(File index, File log) throws Exception {
+		CrawlIngester ingester = new CrawlIngester(index.getPath(), "state-05-2012-text");
+		ingester.setNumThreads(1);
+		ingester.ingest(Collections.singletonList(log.getPath()));
+		return ingester;
+	}
+
+	private static String[] urlsRow(File index, String url) throws Exception {
+		SQLiteConnection db = new SQLiteConnection(index);
+		db.openReadonly();
+		try {
+			SQLiteStatement query = db.prepare("SELECT datesCrawled, crawlIDs FROM URLs WHERE url = ?");
+			query.bind(1, url);
+			if (!query.step())
+				throw new IOException("No URLs row for " + url);
+			return new String[] { query.columnString(0), query.columnString(1) };
+		} finally {
+			db.dispose();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class HTTPRequestParserTest {
+
+	/**
+	 * Copy a request head into a new parser's buffer, and parse it.
+	 */
+	private static HTTPRequestParser parse(String head) {
+		HTTPRequestParser parser = new HTTPRequestParser();
+		byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+		parser.ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, parser.getBuffer(), 0, bytes.length);
+		parser.parse(bytes.length);
+		return parser;
+	}
+
+	@Test
+	public void parsesRequestLineAndHeaders() {
+		HTTPRequestParser parser = parse("\r\nGET /timegate/http://foo.org/ HTTP/1.1\r\n" +
+										 "Host:  192.168.0.36:8080 \r\n" +
+										 "Connection:keep-alive\r\n\r\n");
+		Command command = parser.command;
+		assertSame(HTTPRequestParser.GET, command.getMethod());
+		assertSame(HTTPRequestParser.HTTP_1_1, command.getProtocol());
+		assertEquals("/timegate/http://foo.org/", parser.getTarget());
+		assertEquals("192.168.0.36:8080", command.getHeader("host"));
+		assertEquals("keep-alive", command.getHeader("Connection"));
+		assertFalse(parser.hasQuery());
+	}
+
+	@Test
+	public void joinsFoldedHeaderLines() {
+		HTTPRequestParser parser = parse("GET / HTTP/1.0\r\n" +
+										 " orphan continuation\r\n" +
+										 "Accept: text/html,\r\n" +
+										 "   application/xml; q=0.9 \r\n" +
+										 "\t*/*\r\n" +
+										 "X-Empty-Fold: value\r\n" +
+										 " \t \r\n" +
+										 "Host: foo.org\n\n");
+		Command command = parser.command;
+		assertEquals("text/html, application/xml; q=0.9 */*", command.getHeader("Accept"));
+		assertEquals("value", command.getHeader("X-Empty-Fold"));
+		assertEquals("foo.org", command.getHeader("Host"));
+		assertNull(command.getHeader("orphan continuation"));
+	}
+
+	@Test
+	public void percentDecodesQueryArguments() {
+		HTTPRequestParser parser = parse("GET /play?file=help%20me.mp3&volume=14&&name=a+b%2Bc" +
+										 "&city=Z%C3%BCrich&eq=a=b&bad=%zz%4&pct=100%25 HTTP/1.1\r\n\r\n");
+		assertTrue(parser.hasQuery());
+		assertEquals("play", parser.commandName());
+		assertTrue(parser.parseQuery());
+		Command command = parser.command;
+		assertEquals("help me.mp3", command.get("file"));
+		assertEquals("14", command.get("volume"));
+		assertEquals("a b+c", command.get("name"));
+		assertEquals("Z\u00fcrich", command.get("city"));
+		assertEquals("a=b", command.get("eq"));
+		assertEquals("%zz%4", command.get("bad"));
+		assertEquals("100%", command.get("pct"));
+		assertNull(parser.malformedArg);
+	}
+
+	@Test
+	public void lastValueOfRepeatedArgumentWins() {
+		HTTPRequestParser parser = parse("GET /play?file=a&volume=1&file=b&%66ile=c" +
+										 "&Z%C3%BCrich=1&Z\u00c3\u00bcrich=2 HTTP/1.1\r\n\r\n");
+		assertTrue(parser.parseQuery());
+		Command command = parser.command;
+		assertEquals(3, command.size());
+		assertEquals("c", command.get("file"));
+		assertEquals("1", command.get("volume"));
+		assertEquals("2", command.get("Z\u00fcrich"));
+	}
+
+	@Test
+	public void rejectsArgumentsWithoutName() {
+		HTTPRequestParser parser = parse("GET /play?file=a&volume HTTP/1.1\r\n\r\n");
+		assertFalse(parser.parseQuery());
+		assertEquals("volume", parser.malformedArg);
+
+		parser = parse("GET /play?=14 HTTP/1.1\r\n\r\n");
+		assertFalse(parser.parseQuery());
+		assertEquals("=14", parser.malformedArg);
+	}
+}
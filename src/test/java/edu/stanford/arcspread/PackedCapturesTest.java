@@ -0,0 +1,108 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+public class PackedCapturesTest {
+
+	private static long[] timesOf(byte[][] packed) {
+		long[] result = new long[PackedCaptures.numCaptures(packed[0])];
+		for (int i = 0; i < result.length; i++)
+			result[i] = PackedCaptures.timeAt(packed[0], i);
+		return result;
+	}
+
+	private static int[] crawlIDsOf(byte[][] packed) {
+		int[] result = new int[PackedCaptures.numCaptures(packed[0])];
+		for (int i = 0; i < result.length; i++)
+			result[i] = PackedCaptures.crawlIDAt(packed[1], i);
+		return result;
+	}
+
+	@Test
+	public void packKeepsAscendingInput() {
+		byte[][] packed = PackedCaptures.pack(new long[] {10, 20, 30}, new int[] {1, 2, 3});
+		assertArrayEquals(new long[] {10, 20, 30}, timesOf(packed));
+		assertArrayEquals(new int[] {1, 2, 3}, crawlIDsOf(packed));
+	}
+
+	@Test
+	public void packReversesDescendingInput() {
+		byte[][] packed = PackedCaptures.pack(new long[] {30, 20, 10}, new int[] {3, 2, 1});
+		assertArrayEquals(new long[] {10, 20, 30}, timesOf(packed));
+		assertArrayEquals(new int[] {1, 2, 3}, crawlIDsOf(packed));
+	}
+
+	@Test
+	public void packSortsMixedInputWithCrawlIDsAttached() {
+		byte[][] packed = PackedCaptures.pack(new long[] {20, 40, 10, 30}, new int[] {2, 4, 1, 3});
+		assertArrayEquals(new long[] {10, 20, 30, 40}, timesOf(packed));
+		assertArrayEquals(new int[] {1, 2, 3, 4}, crawlIDsOf(packed));
+	}
+
+	@Test
+	public void packKeepsDuplicateTimesInInputOrder() {
+		byte[][] packed = PackedCaptures.pack(new long[] {20, 10, 20, 10}, new int[] {5, 6, 7, 8});
+		assertArrayEquals(new long[] {10, 10, 20, 20}, timesOf(packed));
+		assertArrayEquals(new int[] {6, 8, 5, 7}, crawlIDsOf(packed));
+
+		packed = PackedCaptures.pack(new long[] {30, 20, 20, 10}, new int[] {1, 2, 3, 4});
+		assertArrayEquals(new long[] {10, 20, 20, 30}, timesOf(packed));
+		assertArrayEquals(new int[] {4, 2, 3, 1}, crawlIDsOf(packed));
+	}
+
+	@Test
+	public void packDoesNotModifyItsArguments() {
+		long[] times = {3, 1, 2};
+		int[] crawlIDs = {30, 10, 20};
+		PackedCaptures.pack(times, crawlIDs);
+		assertArrayEquals(new long[] {3, 1, 2}, times);
+		assertArrayEquals(new int[] {30, 10, 20}, crawlIDs);
+	}
+
+	@Test
+	public void packHandlesLongReverseOrderedLists() {
+		int numCaptures = 200000;
+		long[] times = new long[numCaptures];
+		int[] crawlIDs = new int[numCaptures];
+		for (int i = 0; i < numCaptures; i++) {
+			times[i] = numCaptures - i;
+			crawlIDs[i] = numCaptures - i;
+		}
+		times[numCaptures / 2] = 0;
+		crawlIDs[numCaptures / 2] = 0;
+		byte[][] packed = PackedCaptures.pack(times, crawlIDs);
+		for (int i = 1; i < numCaptures; i++) {
+			assertEquals(PackedCaptures.timeAt(packed[0], i), PackedCaptures.crawlIDAt(packed[1], i));
+			assertEquals(true, PackedCaptures.timeAt(packed[0], i - 1) <= PackedCaptures.timeAt(packed[0], i));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void packRejectsMismatchedLengths() {
+		PackedCaptures.pack(new long[] {1, 2}, new int[] {1});
+	}
+
+	@Test
+	public void packTextSortsDatesCrawled() throws DataFormatException {
+		byte[][] packed = PackedCaptures.packText("http://example.com/",
+				"2012-05-07 02:51:56;2011-11-13 14:51:56", "0;1");
+		assertEquals(2, PackedCaptures.numCaptures(packed[0]));
+		assertArrayEquals(new int[] {1, 0}, crawlIDsOf(packed));
+		assertEquals(true, PackedCaptures.timeAt(packed[0], 0) < PackedCaptures.timeAt(packed[0], 1));
+	}
+
+	@Test
+	public void closestIndexPrefersEarlierCaptureOnTie() {
+		byte[] times = PackedCaptures.pack(new long[] {10, 20, 30}, new int[] {1, 2, 3})[0];
+		assertEquals(0, PackedCaptures.closestIndex(times, 5));
+		assertEquals(0, PackedCaptures.closestIndex(times, 15));
+		assertEquals(1, PackedCaptures.closestIndex(times, 16));
+		assertEquals(2, PackedCaptures.closestIndex(times, 99));
+		assertEquals(-1, PackedCaptures.closestIndex(new byte[0], 10));
+	}
+}
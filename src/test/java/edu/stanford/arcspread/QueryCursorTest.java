@@ -0,0 +1,52 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryCursorTest {
+
+	private WBIndex index;
+
+	@Before
+	public void openIndex() throws Exception {
+		index = new WBIndex(WBIndex.TEST_INDEX_PATH, true);
+	}
+
+	@After
+	public void closeIndex() {
+		index.close();
+	}
+
+	@Test
+	public void adHocQueriesStayOutOfStatementCache() throws Exception {
+		int numCached = index.statementCache.size();
+		long numMisses = index.statementCache.getNumMisses();
+		for (int limit = 1; limit <= StatementCache.DEFAULT_MAX_STATEMENTS + 1; limit++) {
+			QueryCursor rows = index.query("SELECT url FROM URLs ORDER BY url LIMIT " + limit + " OFFSET ?", 0);
+			try {
+				assertTrue(rows.next());
+				assertEquals("url", rows.getColumnName(0));
+			} finally {
+				rows.close();
+			}
+			assertTrue(rows.isClosed());
+		}
+		assertEquals(numCached, index.statementCache.size());
+		assertEquals(numMisses, index.statementCache.getNumMisses());
+	}
+
+	@Test
+	public void cursorClosesAtEnd() throws Exception {
+		QueryCursor rows = index.query("SELECT count(*) FROM URLs WHERE url > ?", "");
+		assertTrue(rows.next());
+		assertEquals(7, rows.getLong(0));
+		assertFalse(rows.next());
+		assertTrue(rows.isClosed());
+		assertEquals(1, rows.getNumRows());
+	}
+}
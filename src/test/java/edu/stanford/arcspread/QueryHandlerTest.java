@@ -0,0 +1,58 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class QueryHandlerTest {
+
+	private static Properties whitelist(String paramTypes) {
+		Properties spec = new Properties();
+		spec.setProperty("byDomain.table", "Crawl_state_05_2012");
+		spec.setProperty("byDomain.columns", "time,url");
+		spec.setProperty("byDomain.key", "rowid");
+		spec.setProperty("byDomain.where", "domain = :domain AND time >= :since AND (:since > 0 OR score > :score)");
+		if (paramTypes != null)
+			spec.setProperty("byDomain.paramTypes", paramTypes);
+		return spec;
+	}
+
+	@Test
+	public void parametersAreTextUnlessDeclared() {
+		QueryHandler.Query query = new QueryHandler.Query("byDomain", whitelist(null));
+		assertArrayEquals(new String[] { "domain", "since", "since", "score" }, query.paramNames);
+		assertArrayEquals(new String[] { "text", "text", "text", "text" }, query.paramTypes);
+	}
+
+	@Test
+	public void declaredTypesApplyToEveryUse() {
+		QueryHandler.Query query = new QueryHandler.Query("byDomain", whitelist(" since:INTEGER , score:real"));
+		assertArrayEquals(new String[] { "text", "integer", "integer", "real" }, query.paramTypes);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownType() {
+		new QueryHandler.Query("byDomain", whitelist("since:date"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTypeOfUnknownParameter() {
+		new QueryHandler.Query("byDomain", whitelist("until:integer"));
+	}
+
+	@Test
+	public void valuesAreBoundAsDeclared() {
+		assertEquals("007", QueryHandler.paramValue(QueryHandler.TYPE_TEXT, "007"));
+		assertEquals(Long.valueOf(7), QueryHandler.paramValue(QueryHandler.TYPE_INTEGER, "007"));
+		assertEquals(Long.valueOf(-1335224702L), QueryHandler.paramValue(QueryHandler.TYPE_INTEGER, "-1335224702"));
+		assertEquals(Double.valueOf(0.5), QueryHandler.paramValue(QueryHandler.TYPE_REAL, "0.5"));
+		assertNull(QueryHandler.paramValue(QueryHandler.TYPE_INTEGER, "12345678901234567890"));
+		assertNull(QueryHandler.paramValue(QueryHandler.TYPE_INTEGER, "1.5"));
+		assertNull(QueryHandler.paramValue(QueryHandler.TYPE_REAL, "NaN"));
+		assertNull(QueryHandler.paramValue(QueryHandler.TYPE_REAL, "abc"));
+	}
+}
@@ -0,0 +1,130 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TimeGateCacheTest {
+
+	private static final long NOW = 1000000L;
+	private static final long CHECK = TimeGateCache.INDEX_CHECK_INTERVAL;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static TimeGateCache.Entry entry(long start, long end, long expires) {
+		return new TimeGateCache.Entry(start, end, true, "Vary: accept-datetime\r\n", "\"e\"", null, expires);
+	}
+
+	private File indexFile(String name) throws IOException {
+		File file = tmp.newFile(name);
+		append(file, "index");
+		return file;
+	}
+
+	private static void append(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(text.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void servesReferenceTimesWithinInterval() throws IOException {
+		TimeGateCache cache = new TimeGateCache(indexFile("idx.db"));
+		TimeGateCache.Entry answer = entry(100, 200, NOW + 60000);
+		cache.put("http://foo.org/", answer, cache.getGeneration());
+		assertSame(answer, cache.get("http://foo.org/", 100, NOW));
+		assertSame(answer, cache.get("http://foo.org/", 200, NOW));
+		assertNull(cache.get("http://foo.org/", 201, NOW));
+		assertNull(cache.get("http://bar.org/", 150, NOW));
+		assertEquals(2, cache.getNumHits());
+		assertEquals(2, cache.getNumMisses());
+	}
+
+	@Test
+	public void dropsEverythingWhenIndexFileChanges() throws IOException {
+		File index = indexFile("idx.db");
+		TimeGateCache cache = new TimeGateCache(index);
+		long generation = cache.getGeneration();
+		cache.put("http://foo.org/", entry(100, 200, NOW + 60000), generation);
+		cache.put("http://bar.org/", entry(0, 50, NOW + 60000), generation);
+		assertNotNull(cache.get("http://foo.org/", 150, NOW));
+
+		append(index, " grown");
+		// The file is not checked again within INDEX_CHECK_INTERVAL:
+		assertNotNull(cache.get("http://foo.org/", 150, NOW + 1));
+		assertNull(cache.get("http://foo.org/", 150, NOW + CHECK));
+		assertNull(cache.get("http://bar.org/", 10, NOW + CHECK));
+		assertEquals(0, cache.size());
+		assertEquals(generation + 1, cache.getGeneration());
+
+		// An answer looked up before the change is not cached after it:
+		cache.put("http://foo.org/", entry(100, 200, NOW + 60000), generation);
+		assertEquals(0, cache.size());
+		cache.put("http://foo.org/", entry(100, 200, NOW + 60000), cache.getGeneration());
+		assertNotNull(cache.get("http://foo.org/", 150, NOW + CHECK));
+	}
+
+	@Test
+	public void watchesEveryShardFile() throws IOException {
+		File shard0 = indexFile("shard0.db");
+		File shard1 = indexFile("shard1.db");
+		TimeGateCache cache = new TimeGateCache(shard0, shard1);
+		cache.put("http://foo.org/", entry(100, 200, NOW + 60000), cache.getGeneration());
+		assertNotNull(cache.get("http://foo.org/", 150, NOW));
+		shard1.setLastModified(shard1.lastModified() - 10000);
+		assertNull(cache.get("http://foo.org/", 150, NOW + CHECK));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void expiresEntriesAfterTTL() throws IOException {
+		TimeGateCache cache = new TimeGateCache(indexFile("idx.db"));
+		cache.put("http://foo.org/", entry(100, 200, NOW + 10), cache.getGeneration());
+		cache.put("http://foo.org/", entry(300, 400, NOW + 60000), cache.getGeneration());
+		assertNotNull(cache.get("http://foo.org/", 150, NOW + 9));
+		assertNull(cache.get("http://foo.org/", 150, NOW + 10));
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get("http://foo.org/", 350, NOW + 10));
+	}
+
+	@Test
+	public void replacesOverlappingIntervals() throws IOException {
+		TimeGateCache cache = new TimeGateCache(indexFile("idx.db"));
+		long generation = cache.getGeneration();
+		cache.put("http://foo.org/", entry(100, 200, NOW + 60000), generation);
+		cache.put("http://foo.org/", entry(300, 400, NOW + 60000), generation);
+		TimeGateCache.Entry merged = entry(150, 350, NOW + 60000);
+		cache.put("http://foo.org/", merged, generation);
+		assertEquals(1, cache.size());
+		assertNull(cache.get("http://foo.org/", 120, NOW));
+		assertSame(merged, cache.get("http://foo.org/", 320, NOW));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedURIs() throws IOException {
+		TimeGateCache cache = new TimeGateCache(indexFile("idx.db"));
+		cache.setMaxEntries(2);
+		long generation = cache.getGeneration();
+		cache.put("http://a.org/", entry(0, 10, NOW + 60000), generation);
+		cache.put("http://b.org/", entry(0, 10, NOW + 60000), generation);
+		assertNotNull(cache.get("http://a.org/", 5, NOW));
+		cache.put("http://c.org/", entry(0, 10, NOW + 60000), generation);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("http://b.org/", 5, NOW));
+		assertNotNull(cache.get("http://a.org/", 5, NOW));
+		assertNotNull(cache.get("http://c.org/", 5, NOW));
+	}
+}
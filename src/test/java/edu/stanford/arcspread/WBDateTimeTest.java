@@ -0,0 +1,96 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class WBDateTimeTest {
+
+	private static void assertRejected(String dateTimeStr) {
+		try {
+			WBDateTime.parseEpochSeconds(dateTimeStr);
+			fail("Accepted malformed date/time '" + dateTimeStr + "'");
+		} catch (NumberFormatException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void parsesIndexDateTimes() {
+		assertEquals(0L, WBDateTime.parseEpochSeconds("1970-01-01 00:00:00"));
+		assertEquals(1335224702L, WBDateTime.parseEpochSeconds("2012-04-23 23:45:02"));
+		assertEquals(1335224702L, WBDateTime.parseEpochSeconds("  2012-04-23T23:45:02 "));
+		assertEquals(-1L, WBDateTime.parseEpochSeconds("1969-12-31 23:59:59"));
+	}
+
+	@Test
+	public void indexDateTimesRoundTrip() {
+		long[] times = {0L, -1L, 951782400L, 1335224702L, 4102444799L, -2208988800L};
+		for (long time : times)
+			assertEquals(time, WBDateTime.parseEpochSeconds(WBDateTime.formatDateTime(time)));
+		assertEquals("2000-02-29 00:00:00", WBDateTime.formatDateTime(951782400L));
+	}
+
+	@Test
+	public void httpDatesRoundTrip() {
+		StringBuilder buf = new StringBuilder();
+		WBDateTime.appendHttpDate(784111777L, buf);
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", buf.toString());
+		assertEquals(784111777L, WBDateTime.parseHttpDate(buf));
+		for (long time = -86400L * 3; time < 86400L * 3; time += 3599) {
+			buf.setLength(0);
+			assertEquals(time, WBDateTime.parseHttpDate(WBDateTime.appendHttpDate(time, buf)));
+		}
+	}
+
+	@Test
+	public void timestamp14RoundTrips() {
+		StringBuilder buf = new StringBuilder();
+		WBDateTime.appendTimestamp14(1335224702L, buf);
+		assertEquals("20120423234502", buf.toString());
+		assertEquals(1335224702L, WBDateTime.parseTimestamp14(buf, 0));
+		buf.setLength(0);
+		assertEquals(-1L, WBDateTime.parseTimestamp14(WBDateTime.appendTimestamp14(-1L, buf), 0));
+	}
+
+	@Test
+	public void rejectsMalformedDateTimes() {
+		assertRejected("");
+		assertRejected("2012-04-23");
+		assertRejected("2012-04-23 23:45:0");
+		assertRejected("2012-04-23 23:45:02x");
+		assertRejected("2012-04-23 23:45:02.5");
+		assertRejected("2012/04/23 23:45:02");
+		assertRejected("2012-13-23 23:45:02");
+		assertRejected("2012-04-23 24:45:02");
+		assertRejected("2012-04-2a 23:45:02");
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void rejectsMalformedHttpDates() {
+		WBDateTime.parseHttpDate("Sun, 06 Nov 1994 08:49:37 UTC");
+	}
+
+	@Test
+	public void parsesPartsOfLargerStrings() {
+		String chain = "2012-05-07 02:51:56; 2011-11-13 14:51:56 ";
+		assertEquals(WBDateTime.parseEpochSeconds("2012-05-07 02:51:56"), WBDateTime.parseEpochSeconds(chain, 0, 19));
+		assertEquals(WBDateTime.parseEpochSeconds("2011-11-13 14:51:56"),
+					 WBDateTime.parseEpochSeconds(chain, 20, chain.length()));
+	}
+
+	@Test
+	public void timeChainsRejectTrailingGarbage() {
+		assertArrayEquals(new long[] {1336359116L, 1321195916L},
+						  WBIndex.parseWBIndexTimeChain("2012-05-07 02:51:56;2011-11-13 14:51:56"));
+		assertArrayEquals(new long[0], WBIndex.parseWBIndexTimeChain(""));
+		try {
+			WBIndex.parseWBIndexTimeChain("2012-05-07 02:51:56junk;2011-11-13 14:51:56");
+			fail("Accepted trailing garbage after a date/time");
+		} catch (NumberFormatException e) {
+			// Expected
+		}
+	}
+}
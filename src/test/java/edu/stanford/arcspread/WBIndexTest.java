@@ -0,0 +1,70 @@
+package edu.stanford.arcspread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+
+public class WBIndexTest {
+
+	private static final String URL = "http://agr.wa.gov/robots.txt";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Copy the test index, and give URL two captures, the later one
+	 * stored first.
+	 */
+	private File textIndex(String name) throws Exception {
+		File index = tmp.newFile(name);
+		Files.copy(new File(WBIndex.TEST_INDEX_PATH).toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		SQLiteConnection db = new SQLiteConnection(index);
+		db.open(false);
+		try {
+			db.exec("UPDATE URLs SET datesCrawled = '2012-01-03 00:00:00;2012-01-01 00:00:00', " +
+					"crawlIDs = '1;0' WHERE url = '" + URL + "'");
+		} finally {
+			db.dispose();
+		}
+		return index;
+	}
+
+	@Test
+	public void midpointGoesToEarlierCaptureInEveryLayout() throws Exception {
+		File text = textIndex("text.db");
+		File packed = textIndex("packed.db");
+		PackedCapturesMigrator packer = new PackedCapturesMigrator(packed.getPath());
+		packer.migrate();
+		packer.close();
+		File normalized = textIndex("normalized.db");
+		CapturesMigrator normalizer = new CapturesMigrator(normalized.getPath());
+		normalizer.migrate();
+		normalizer.close();
+
+		long midpoint = WBDateTime.parseEpochSeconds("2012-01-02 00:00:00");
+		long earlier = WBDateTime.parseEpochSeconds("2012-01-01 00:00:00");
+		String[] layouts = { "text", "packed", "normalized" };
+		File[] files = { text, packed, normalized };
+		for (int i = 0; i < files.length; i++) {
+			WBIndex index = new WBIndex(files[i].getPath(), true);
+			try {
+				assertEquals(i == 1, index.hasPackedCaptures());
+				assertEquals(i == 2, index.hasNormalizedCaptures());
+				WBIndex.ResourceSpec closest = index.getClosestURLCrawl(URL, midpoint);
+				assertEquals(layouts[i], earlier, closest.crawlTime);
+				assertTrue(layouts[i], closest.crawlName.contains("Hurricane"));
+			} finally {
+				index.close();
+			}
+		}
+	}
+}